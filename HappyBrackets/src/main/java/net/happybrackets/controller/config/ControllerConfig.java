@@ -23,6 +23,7 @@ public class ControllerConfig extends LoadableConfig {
     private String compositionsPath = null;
     private String configDir;
     private Boolean useHostname;
+    private Integer sensorRecordingBudget; //megabytes, 0 for no recording
 
     public String getCompositionsPath() {
         if (compositionsPath != null) {
@@ -59,4 +60,15 @@ public class ControllerConfig extends LoadableConfig {
         return useHostname;
     }
 
+    /**
+     * @return the memory kept for the sensor frames recorded from all the devices, in megabytes. 0 means sensor frames
+     * are not recorded.
+     */
+    public int getSensorRecordingBudget() {
+        if(sensorRecordingBudget == null) {
+            return 64;
+        }
+        return sensorRecordingBudget;
+    }
+
 }
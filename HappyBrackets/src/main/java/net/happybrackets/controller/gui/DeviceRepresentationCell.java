@@ -21,12 +21,16 @@ import javafx.geometry.HPos;
 import javafx.geometry.Pos;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
+import net.happybrackets.controller.network.CommandTracker;
 import net.happybrackets.controller.network.LocalDeviceRepresentation;
+import net.happybrackets.core.OutputLatency;
+import net.happybrackets.core.SynchStats;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Orientation;
+import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
 
 public class DeviceRepresentationCell extends ListCell<LocalDeviceRepresentation> {
@@ -137,10 +141,69 @@ public class DeviceRepresentationCell extends ListCell<LocalDeviceRepresentation
 					});
 				}
 			});
+			//how well the device is synched to its leader, red if it has lost it
+			Text synchText = new Text("synch unknown");
+			Tooltip synchTooltip = new Tooltip("No synch report from this device yet.");
+			Tooltip.install(synchText, synchTooltip);
+			main.add(synchText, 0, 2, 2, 1);
+			item.addSynchReportListener(new LocalDeviceRepresentation.SynchReportListener() {
+				@Override
+				public void update(SynchStats.Report report) {
+					if(report.role == SynchStats.Report.PEER) {
+						return;
+					}
+					Platform.runLater(new Runnable() {
+						public void run() {
+							synchText.setText("synch: " + report.summary());
+							synchText.setFill(report.isWellSynched() ? Color.BLACK : Color.RED);
+							synchTooltip.setText(roundTripHistogram(report));
+						}
+					});
+				}
+			});
+			//the output latency the device triggers events early by
+			Text latencyText = new Text("output latency unknown");
+			main.add(latencyText, 0, 3, 2, 1);
+			item.addOutputLatencyListener(new LocalDeviceRepresentation.OutputLatencyListener() {
+				@Override
+				public void update(OutputLatency latency) {
+					Platform.runLater(new Runnable() {
+						public void run() {
+							latencyText.setText("output latency: " + latency.summary());
+						}
+					});
+				}
+			});
+			//how quickly the device acknowledges commands, red if it is consistently slow
+			Text commandText = new Text("no commands acknowledged");
+			main.add(commandText, 0, 4, 2, 1);
+			item.addCommandStatsListener(new LocalDeviceRepresentation.CommandStatsListener() {
+				@Override
+				public void update(CommandTracker.Stats stats) {
+					Platform.runLater(new Runnable() {
+						public void run() {
+							commandText.setText("commands: " + stats.summary());
+							commandText.setFill(stats.isSlow() ? Color.RED : Color.BLACK);
+						}
+					});
+				}
+			});
 
 			setGraphic(main);
 		}
 
 		this.prefWidthProperty().bind(this.getListView().widthProperty().subtract(4));
     }
+
+	private static String roundTripHistogram(SynchStats.Report report) {
+		long[] histogram = report.getRoundTripHistogram();
+		StringBuilder text = new StringBuilder("Round trips to " + report.peer + " (" + report.samples + " in all):");
+		for(int i = 0; i < histogram.length; i++) {
+			String limit = i < SynchStats.ROUND_TRIP_BUCKETS.length
+					? "<= " + SynchStats.ROUND_TRIP_BUCKETS[i] / 1000.0 + "ms"
+					: "> " + SynchStats.ROUND_TRIP_BUCKETS[i - 1] / 1000.0 + "ms";
+			text.append("\n").append(limit).append(": ").append(histogram[i]);
+		}
+		return text.toString();
+	}
 }
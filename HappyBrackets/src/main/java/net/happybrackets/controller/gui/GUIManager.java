@@ -143,6 +143,25 @@ public class GUIManager {
 	    	globalcommands.getChildren().add(b);
 		}
 
+		{
+			TextField bpm = new TextField(String.valueOf(piConnection.getTempoMap().getBPM()));
+			bpm.setPrefColumnCount(5);
+			Button b = new Button();
+	    	b.setOnMouseClicked(new EventHandler<MouseEvent>() {
+				@Override
+				public void handle(MouseEvent e) {
+					try {
+						piConnection.deviceTempo(Double.parseDouble(bpm.getText()));
+					} catch(IllegalArgumentException ex) {
+						logger.warn("Not a tempo: {}", bpm.getText());
+					}
+				}
+			});
+	    	b.setText("Set Tempo");
+	    	globalcommands.getChildren().add(bpm);
+	    	globalcommands.getChildren().add(b);
+		}
+
 		//text sender
 		pane.getChildren().add(new Separator());
 
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.network;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects additions to and removals from a list that belongs to another thread, such as the device list shown by the
+ * GUI, and applies them in batches on that thread. Changes wait until {@link #flush()}, which is called on a regular
+ * tick, so however many devices come and go the GUI thread is asked to update the list at most once a tick. If an item
+ * is added and removed again before a flush, only the last change is applied.
+ *
+ * @param <T> the type of the items in the list.
+ */
+public class CoalescingListUpdater<T> {
+
+	private final List<T> list;
+	private final Executor owner;
+	private LinkedHashMap<T, Boolean> pending = new LinkedHashMap<>();		//true to add, false to remove
+	private boolean scheduled;
+	private long batchCount;
+	private long changeCount;
+
+	/**
+	 * @param list the list.
+	 * @param owner runs a task on the thread the list belongs to, such as {@link javafx.application.Platform#runLater(Runnable)}.
+	 */
+	public CoalescingListUpdater(List<T> list, Executor owner) {
+		this.list = list;
+		this.owner = owner;
+	}
+
+	/**
+	 * Add an item to the list at the next flush.
+	 *
+	 * @param item the item.
+	 */
+	public synchronized void add(T item) {
+		pending.put(item, true);
+	}
+
+	/**
+	 * Remove an item from the list at the next flush.
+	 *
+	 * @param item the item.
+	 */
+	public synchronized void remove(T item) {
+		pending.put(item, false);
+	}
+
+	/**
+	 * Apply the changes waiting on the list's thread, unless an earlier flush still hasn't been applied, in which case
+	 * the changes go with that one.
+	 */
+	public synchronized void flush() {
+		if (scheduled || pending.isEmpty()) {
+			return;
+		}
+		scheduled = true;
+		owner.execute(this::apply);
+	}
+
+	/**
+	 * @return the number of batches applied to the list.
+	 */
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * @return the number of additions and removals applied to the list.
+	 */
+	public synchronized long getChangeCount() {
+		return changeCount;
+	}
+
+	private void apply() {
+		Map<T, Boolean> changes;
+		synchronized (this) {
+			changes = pending;
+			pending = new LinkedHashMap<>();
+			scheduled = false;
+		}
+		Set<T> present = new HashSet<>(list);
+		List<T> toAdd = new ArrayList<>();
+		Set<T> toRemove = new HashSet<>();
+		for (Map.Entry<T, Boolean> change : changes.entrySet()) {
+			if (change.getValue()) {
+				if (!present.contains(change.getKey())) {
+					toAdd.add(change.getKey());
+				}
+			} else if (present.contains(change.getKey())) {
+				toRemove.add(change.getKey());
+			}
+		}
+		//one change each, so an observable list only notifies its listeners twice
+		if (!toRemove.isEmpty()) {
+			list.removeIf(toRemove::contains);
+		}
+		if (!toAdd.isEmpty()) {
+			list.addAll(toAdd);
+		}
+		synchronized (this) {
+			batchCount++;
+			changeCount += changes.size();
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.network;
+
+import net.happybrackets.core.CommandAck;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the commands sent to devices with a {@link CommandAck} request: which devices have acknowledged each
+ * one, and the round trip time of the command to each device, from sending it to getting the acknowledgement. The
+ * round trips of the last {@link #HISTORY} commands to each device are kept, so that devices that are consistently
+ * slow to respond can be shown as slow. A device that hasn't acknowledged a command within the timeout is counted as
+ * having lost it.
+ */
+public class CommandTracker {
+
+	final static Logger logger = LoggerFactory.getLogger(CommandTracker.class);
+
+	/**
+	 * How long to wait for an acknowledgement before counting the command as lost, in ms.
+	 */
+	public static final long DEFAULT_TIMEOUT = 2000;
+
+	/**
+	 * The number of round trips kept for each device.
+	 */
+	public static final int HISTORY = 64;
+
+	/**
+	 * The median round trip over which a device counts as slow, in us.
+	 */
+	public static final long SLOW_ROUND_TRIP = 50000;
+
+	/**
+	 * The number of round trips needed before a device can count as slow.
+	 */
+	public static final int MIN_SAMPLES = 5;
+
+	/**
+	 * Called when the stats of a device change.
+	 */
+	public interface StatsListener {
+		void update(String deviceName, Stats stats);
+	}
+
+	/**
+	 * A command sent to a set of devices.
+	 */
+	public class Command {
+		public final int id;
+		public final String name;
+		private final long sentAt;
+		private final Set<String> waiting;
+		private final Map<String, Long> roundTrips = new HashMap<>();
+		private final Set<String> lost = new HashSet<>();
+
+		private Command(int id, String name, Collection<String> deviceNames, long sentAt) {
+			this.id = id;
+			this.name = name;
+			this.waiting = new HashSet<>(deviceNames);
+			this.sentAt = sentAt;
+		}
+
+		/**
+		 * @return the devices that haven't acknowledged the command yet, and aren't counted as having lost it.
+		 */
+		public synchronized Set<String> getWaiting() {
+			return new HashSet<>(waiting);
+		}
+
+		/**
+		 * @return the devices that didn't acknowledge the command in time.
+		 */
+		public synchronized Set<String> getLost() {
+			return new HashSet<>(lost);
+		}
+
+		/**
+		 * @return the round trip to each device that has acknowledged the command, in us.
+		 */
+		public synchronized Map<String, Long> getRoundTrips() {
+			return new HashMap<>(roundTrips);
+		}
+
+		/**
+		 * @return true once every device has acknowledged the command or been counted as having lost it.
+		 */
+		public synchronized boolean isComplete() {
+			return waiting.isEmpty();
+		}
+
+		/**
+		 * Wait for every device to acknowledge the command, or be counted as having lost it.
+		 *
+		 * @param timeout the longest time to wait, in ms.
+		 * @return true if the command is complete.
+		 * @throws InterruptedException if the thread is interrupted while waiting.
+		 */
+		public synchronized boolean await(long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while (!waiting.isEmpty()) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+
+		private synchronized Long acknowledged(String deviceName, long now) {
+			if (!waiting.remove(deviceName)) {
+				return null;
+			}
+			long roundTrip = (now - sentAt) / 1000;
+			roundTrips.put(deviceName, roundTrip);
+			notifyAll();
+			return roundTrip;
+		}
+
+		private synchronized Set<String> expire() {
+			Set<String> expired = new HashSet<>(waiting);
+			lost.addAll(waiting);
+			waiting.clear();
+			notifyAll();
+			return expired;
+		}
+	}
+
+	/**
+	 * A summary of the round trips of recent commands to a device. Round trips are in us.
+	 */
+	public static class Stats {
+		public final int acknowledged;
+		public final int lost;
+		public final int samples;
+		public final long median;
+		public final long p95;
+		public final long max;
+
+		Stats(int acknowledged, int lost, long[] recent) {
+			this.acknowledged = acknowledged;
+			this.lost = lost;
+			this.samples = recent.length;
+			long[] sorted = recent.clone();
+			Arrays.sort(sorted);
+			median = sorted.length == 0 ? 0 : sorted[sorted.length / 2];
+			p95 = sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95) - 1)];
+			max = sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+		}
+
+		/**
+		 * @return true if the device is consistently slow to acknowledge commands.
+		 */
+		public boolean isSlow() {
+			return samples >= MIN_SAMPLES && median > SLOW_ROUND_TRIP;
+		}
+
+		/**
+		 * @return a short summary, in ms, for display.
+		 */
+		public String summary() {
+			if (samples == 0) {
+				return lost + " lost";
+			}
+			return String.format("%.1fms median, %.1fms p95, %d lost", median / 1000.0, p95 / 1000.0, lost);
+		}
+	}
+
+	/**
+	 * The round trips to one device.
+	 */
+	private static class History {
+		final long[] roundTrips = new long[HISTORY];
+		int count;
+		int acknowledged;
+		int lost;
+
+		void add(long roundTrip) {
+			roundTrips[acknowledged % HISTORY] = roundTrip;
+			acknowledged++;
+			count = Math.min(count + 1, HISTORY);
+		}
+
+		Stats stats() {
+			return new Stats(acknowledged, lost, Arrays.copyOf(roundTrips, count));
+		}
+	}
+
+	private final LongSupplier clock;
+	private final long timeout;
+	private final Map<Integer, Command> pending = new Hashtable<>();
+	private final Map<String, History> histories = new HashMap<>();
+	private int nextID = 1;
+	private volatile StatsListener listener;
+
+	/**
+	 * Create a CommandTracker on the system clock, with the default timeout.
+	 */
+	public CommandTracker() {
+		this(System::nanoTime, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param clock the time, in ns.
+	 * @param timeout how long to wait for an acknowledgement before counting the command as lost, in ms.
+	 */
+	public CommandTracker(LongSupplier clock, long timeout) {
+		this.clock = clock;
+		this.timeout = timeout;
+	}
+
+	public void setListener(StatsListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Start tracking a command, which should then be sent with {@link CommandAck#request} and the command's id.
+	 *
+	 * @param name the name of the command.
+	 * @param deviceNames the devices the command is being sent to.
+	 * @return the command.
+	 */
+	public synchronized Command track(String name, Collection<String> deviceNames) {
+		Command command = new Command(nextID++, name, deviceNames, clock.getAsLong());
+		if (nextID == Integer.MAX_VALUE) {
+			nextID = 1;
+		}
+		pending.put(command.id, command);
+		return command;
+	}
+
+	/**
+	 * Record a {@link CommandAck#MESSAGE_NAME} message from a device.
+	 *
+	 * @param deviceName the device.
+	 * @param id the id of the command.
+	 * @return true if the acknowledgement was for a command the device hadn't acknowledged yet and that hasn't timed out.
+	 */
+	public boolean acknowledged(String deviceName, int id) {
+		Command command = pending.get(id);
+		if (command == null) {
+			return false;
+		}
+		Long roundTrip = command.acknowledged(deviceName, clock.getAsLong());
+		if (roundTrip == null) {
+			return false;
+		}
+		Stats stats;
+		synchronized (this) {
+			History history = history(deviceName);
+			history.add(roundTrip);
+			stats = history.stats();
+			if (command.isComplete()) {
+				pending.remove(id);
+			}
+		}
+		notifyListener(deviceName, stats);
+		return true;
+	}
+
+	/**
+	 * Count every device that hasn't acknowledged a command within the timeout as having lost it.
+	 *
+	 * @return the number of acknowledgements that timed out.
+	 */
+	public int expire() {
+		long now = clock.getAsLong();
+		Map<String, Stats> changed = new HashMap<>();
+		int count = 0;
+		synchronized (this) {
+			for (Command command : new ArrayList<>(pending.values())) {
+				if (now - command.sentAt < timeout * 1000000) {
+					continue;
+				}
+				pending.remove(command.id);
+				for (String deviceName : command.expire()) {
+					History history = history(deviceName);
+					history.lost++;
+					changed.put(deviceName, history.stats());
+					count++;
+					logger.debug("{} didn't acknowledge {} ({})", deviceName, command.name, command.id);
+				}
+			}
+		}
+		changed.forEach(this::notifyListener);
+		return count;
+	}
+
+	/**
+	 * @param deviceName a device.
+	 * @return the stats of the recent commands to the device.
+	 */
+	public synchronized Stats getStats(String deviceName) {
+		History history = histories.get(deviceName);
+		return history == null ? new Stats(0, 0, new long[0]) : history.stats();
+	}
+
+	/**
+	 * Forget the history of a device that has gone.
+	 *
+	 * @param deviceName the device.
+	 */
+	public synchronized void forget(String deviceName) {
+		histories.remove(deviceName);
+	}
+
+	/**
+	 * @return the number of commands still waiting for acknowledgements.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	private History history(String deviceName) {
+		History history = histories.get(deviceName);
+		if (history == null) {
+			history = new History();
+			histories.put(deviceName, history);
+		}
+		return history;
+	}
+
+	private void notifyListener(String deviceName, Stats stats) {
+		StatsListener l = listener;
+		if (l != null) {
+			l.update(deviceName, stats);
+		}
+	}
+}
@@ -20,67 +20,121 @@ import de.sciss.net.OSCMessage;
 import de.sciss.net.OSCTransmitter;
 import net.happybrackets.core.BroadcastManager;
 
-import net.happybrackets.core.Device;
+import net.happybrackets.core.TrickleTimer;
+import net.happybrackets.core.transport.Transport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
+/**
+ * Advertises the controller to devices with /hb/controller messages over multicast.
+ *
+ * Advertisements are sent on a {@link TrickleTimer}. Devices include the controller address they are using in their
+ * /device/alive messages, so an alive message naming this controller counts as a consistent message and one naming
+ * another or no controller resets the timer and forces an advertisement. Once every device knows the controller the advertisements back off
+ * to the maximum interval, and are suppressed altogether while enough devices confirm they know it.
+ */
 public class ControllerAdvertiser {
 
 	final static Logger logger = LoggerFactory.getLogger(ControllerAdvertiser.class);
 
-	private Thread advertisementService;
-	private boolean keepAlive = true;
+	public static final long MIN_INTERVAL = 250;
+	public static final long MAX_INTERVAL = 8000;
+	public static final int REDUNDANCY = 2;
+
+	private final BroadcastManager broadcastManager;
+	private final TrickleTimer timer;
+	private final BroadcastManager.OnTransmitter advertisement;
+	private final BroadcastManager.OnListener aliveListener;
+	private final Set<String> advertisedAddresses = Collections.synchronizedSet(new HashSet<>());
+	private boolean started = false;
 
 	public ControllerAdvertiser(BroadcastManager broadcastManager) {
-		//set up an indefinite thread to advertise the controller
-		advertisementService = new Thread() {
-			public void run() {
-            BroadcastManager.OnTransmitter advertisement = new BroadcastManager.OnTransmitter() {
-                @Override
-                public void cb(NetworkInterface ni, OSCTransmitter transmitter) throws IOException {
-                    transmitter.send(
-                            new OSCMessage(
-                                    "/hb/controller",
-                                    new Object[] {
-                                            Device.selectHostname(ni),
-                                            Device.selectIP(ni)
-                                    }
-                            )
-                    );
-                }
-            };
-
-            while (keepAlive) {
-                broadcastManager.forAllTransmitters(advertisement);
-
-                try {
-                    Thread.sleep(500);
-                }
-                catch (InterruptedException e) {
-                    logger.error("Sleep was interupted in ControllerAdvertiser thread", e);
-                }
-            }
+		this(broadcastManager, MIN_INTERVAL, MAX_INTERVAL, REDUNDANCY);
+	}
+
+	/**
+	 * Create a new ControllerAdvertiser.
+	 * @param broadcastManager the {@link BroadcastManager} to advertise on and to listen for devices on.
+	 * @param minInterval the shortest interval between advertisements, in ms.
+	 * @param maxInterval the longest interval between advertisements, in ms.
+	 * @param redundancy the number of alive messages from devices that know this controller which suppresses an advertisement, 0 to never suppress.
+	 */
+	public ControllerAdvertiser(BroadcastManager broadcastManager, long minInterval, long maxInterval, int redundancy) {
+		this.broadcastManager = broadcastManager;
+		timer = new TrickleTimer(minInterval, maxInterval, redundancy);
+		Transport transport = broadcastManager.getTransport();
+		advertisement = new BroadcastManager.OnTransmitter() {
+			@Override
+			public void cb(NetworkInterface ni, OSCTransmitter transmitter) throws IOException {
+				String address = transport.selectIP(ni);
+				advertisedAddresses.add(address);
+				transmitter.send(
+						new OSCMessage(
+								"/hb/controller",
+								new Object[] {
+										transport.selectHostname(ni),
+										address
+								}
+						)
+				);
 			}
 		};
+		aliveListener = new BroadcastManager.OnListener() {
+			@Override
+			public void cb(NetworkInterface ni, OSCMessage msg, SocketAddress sender, long time) {
+				if (!msg.getName().equals("/device/alive")) {
+					return;
+				}
+				//devices older than the trickle timer do not say which controller they use, so they always count as consistent
+				if (msg.getArgCount() < 9 || advertisedAddresses.contains(msg.getArg(8))) {
+					timer.hearConsistent();
+				} else {
+					logger.debug("Device {} does not know this controller yet", msg.getArg(0));
+					timer.hearInconsistent();
+				}
+			}
+		};
+		broadcastManager.addOnMessage(aliveListener);
+	}
+
+	public synchronized void start() {
+		if (!started) {
+			started = true;
+			timer.startThread(() -> broadcastManager.forAllTransmitters(advertisement));
+		}
 	}
 
-	public void start() {
-		keepAlive = true;
-		advertisementService.start();
+	public synchronized void stop() {
+		started = false;
+		timer.stopThread();
 	}
 
-	public void stop() {
-		keepAlive = false;
+	/**
+	 * Advertise again soon, for example because this controller has just started listening on a new address.
+	 */
+	public void reset() {
+		timer.reset();
 	}
 
 	public void interrupt() {
-		advertisementService.interrupt();
+		stop();
+	}
+
+	/**
+	 * @return the current interval between advertisements, in ms.
+	 */
+	public long getInterval() {
+		return timer.getInterval();
 	}
 
-	public boolean isAlive() {
-		return advertisementService.isAlive();
+	public synchronized boolean isAlive() {
+		return started;
 	}
 }
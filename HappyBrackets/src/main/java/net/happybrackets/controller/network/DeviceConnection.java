@@ -20,9 +20,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sun.javafx.tk.Toolkit;
 import javafx.application.Platform;
@@ -31,9 +37,19 @@ import javafx.collections.ObservableList;
 import net.happybrackets.controller.config.ControllerConfig;
 import de.sciss.net.OSCListener;
 import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
 import de.sciss.net.OSCServer;
 
 import net.happybrackets.core.BroadcastManager;
+import net.happybrackets.core.CommandAck;
+import net.happybrackets.core.ControlCodec;
+import net.happybrackets.core.DeviceHeartbeat;
+import net.happybrackets.core.OutputLatency;
+import net.happybrackets.core.SensorFrames;
+import net.happybrackets.core.SynchStats;
+import net.happybrackets.core.Synchronizer;
+import net.happybrackets.core.TempoMap;
+import net.happybrackets.core.transport.Transport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,17 +59,79 @@ public class DeviceConnection {
 	public static final boolean verbose = false;
 
 	private OSCServer oscServer;
+	private Transport transport;
+	private final BroadcastManager broadcast;
+	private Transport.PacketSender packetSender;	//sends pre-encoded packets when fanning out commands and relayed broadcasts
 	private ObservableList<LocalDeviceRepresentation> theDevices;
-	private Map<String, LocalDeviceRepresentation> devicesByHostname;
+	private final Map<String, LocalDeviceRepresentation> devicesByHostname = new ConcurrentHashMap<>();
+	private final Map<Integer, LocalDeviceRepresentation> devicesByToken = new ConcurrentHashMap<>();
+																//by the token in their heartbeats
+	private final Map<Integer, LocalDeviceRepresentation> devicesById = new ConcurrentHashMap<>();
+																//by their ID, for messages such as /device/log that name the device by ID
 	private Map<String, Integer> knownDevices;
-	private int newID = -1;
+	private final AtomicInteger newID = new AtomicInteger(-1);
+	private final TimingWheel<LocalDeviceRepresentation> expiry;
+																//removes devices that haven't been heard from
+	private final CoalescingListUpdater<LocalDeviceRepresentation> deviceListUpdater;
+																//batches changes to theDevices for the GUI thread
+	private final ExecutorService resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, r -> {
+		Thread t = new Thread(r, "HB address resolver");
+		t.setDaemon(true);
+		return t;
+	});															//looks up device addresses
+	private final ExecutorService fanOut = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "HB fan-out");
+		t.setDaemon(true);
+		return t;
+	});															//sends commands to many devices, off the GUI thread
+	private final ControlCodec fanOutCodec = new ControlCodec();	//only used on the fan-out thread
+	private final ControlCodec relayCodec = new ControlCodec();		//only used on the receive thread
+	private volatile boolean running = true;
 	private ControllerConfig config;
 	private boolean loggingEnabled;
+	private TempoMap tempoMap = TempoMap.DEFAULT;
+	private final SensorRecorder sensorRecorder;
+	private final CommandTracker commandTracker = new CommandTracker();
 
+	/**
+	 * How far ahead tempo and meter changes are sent, so every device has them before they take effect, in ms.
+	 */
+	public static final long TEMPO_CHANGE_LEAD = 1000;
+
+	/**
+	 * How often lost devices are looked for and changes to the device list are passed to the GUI, in ms.
+	 */
+	public static final long TICK = 100;
+
+	/**
+	 * The number of threads that look up device addresses, so that a device that is slow to resolve doesn't hold up the others.
+	 */
+	public static final int RESOLVER_THREADS = 4;
+
+	/**
+	 * Create a new DeviceConnection, which communicates with devices on the same {@link Transport} as the given {@link BroadcastManager}.
+	 * @param config the controller configuration.
+	 * @param broadcast the {@link BroadcastManager} devices announce themselves on.
+	 */
 	public DeviceConnection(ControllerConfig config, BroadcastManager broadcast) {
+		this(config, broadcast, Platform::runLater);
+	}
+
+	/**
+	 * Create a new DeviceConnection, which communicates with devices on the same {@link Transport} as the given {@link BroadcastManager}.
+	 * @param config the controller configuration.
+	 * @param broadcast the {@link BroadcastManager} devices announce themselves on.
+	 * @param guiThread runs changes to the device list on the thread that owns it, which is the JavaFX application thread in the controller.
+	 */
+	public DeviceConnection(ControllerConfig config, BroadcastManager broadcast, Executor guiThread) {
 		this.config = config;
+		sensorRecorder = new SensorRecorder((long) config.getSensorRecordingBudget() << 20);
+		this.transport = broadcast.getTransport();
+		this.broadcast = broadcast;
 		theDevices = FXCollections.observableArrayList(new ArrayList<LocalDeviceRepresentation>());
-		devicesByHostname = new Hashtable<String, LocalDeviceRepresentation>();
+		deviceListUpdater = new CoalescingListUpdater<>(theDevices, guiThread);
+		long aliveTimeout = config.getAliveTimeout();
+		expiry = new TimingWheel<>(TICK, (int) (aliveTimeout / TICK) + 1, device -> device.lastTimeSeen + aliveTimeout, System.currentTimeMillis());
 		knownDevices = new Hashtable<String, Integer>();
 		//read the known devices from file
 		try {
@@ -67,40 +145,66 @@ public class DeviceConnection {
 		} catch (FileNotFoundException e1) {
 			logger.error("Unable to read '{}'", config.getKnownDevicesFile());
 		}
-		broadcast.addBroadcastListener(new OSCListener() {
+		commandTracker.setListener(new CommandTracker.StatsListener() {
 			@Override
-			public void messageReceived(OSCMessage msg, SocketAddress sender, long time) {
-				incomingMessage(msg);
+			public void update(String deviceName, CommandTracker.Stats stats) {
+				LocalDeviceRepresentation device = devicesByHostname.get(deviceName);
+				if(device != null) {
+					device.setCommandStats(stats);
+				}
+			}
+		});
+		broadcast.addOnMessage(new BroadcastManager.OnListener() {
+			@Override
+			public void cb(NetworkInterface ni, OSCMessage msg, SocketAddress sender, long time) {
+				if(msg.getName().equals(DeviceHeartbeat.MESSAGE_NAME)) {
+					heartbeatReceived(ni, msg, sender);
+				} else {
+					incomingMessage(msg);
+				}
 			}
 		});
 		// create the OSC Server
 		try {
-			oscServer = OSCServer.newUsing(OSCServer.UDP, config.getStatusFromDevicePort());
+			oscServer = transport.openServer(new ControlCodec(), config.getStatusFromDevicePort());
 			oscServer.start();
 			logger.info("Created and started OSCServer for address {}", oscServer.getLocalAddress());
 		} catch (IOException e) {
 			logger.error("Error setting up new OSCServer!", e);
 		}
+		try {
+			packetSender = transport.openSender();
+		} catch (IOException e) {
+			logger.error("Error setting up channel for sending to many devices!", e);
+		}
 		// set up to listen for basic messages
 		oscServer.addOSCListener(new OSCListener() {
 			@Override
 			public void messageReceived(OSCMessage msg, SocketAddress source, long timestamp) {
-				incomingMessage(msg);
+				if(msg.getName().equals(BroadcastManager.RELAY_MESSAGE_NAME)) {
+					relayToAllDevices(msg);
+				} else {
+					incomingMessage(msg);
+				}
 			}
 		});
 		// set up thread to watch for lost devices
-		new Thread() {
+		Thread maintenance = new Thread("HB device list") {
 			public void run() {
-				while(true) {
+				while(running) {
 					checkDeviceAliveness();
+					commandTracker.expire();
+					deviceListUpdater.flush();
 					try {
-						Thread.sleep(config.getAliveInterval());
+						Thread.sleep(TICK);
 					} catch (InterruptedException e) {
 						logger.error("Poll interval interupted for alive devices checkup", e);
 					}
 				}
 			}
-		}.start();
+		};
+		maintenance.setDaemon(true);
+		maintenance.start();
 	}
 
 	/**
@@ -109,7 +213,7 @@ public class DeviceConnection {
 	 */
 	public void setKnownDevices(String[] lines) {
 		knownDevices.clear();
-		newID = -1;
+		newID.set(-1);
 
 		for (String line : lines) {
 			String[] lineSplit = line.trim().split("[ ]+");
@@ -120,25 +224,31 @@ public class DeviceConnection {
 			}
 		}
 
-		for (LocalDeviceRepresentation device: theDevices) {
-			int id = 0;
-
+		for (LocalDeviceRepresentation device: devicesByHostname.values()) {
 			if (knownDevices.containsKey(device.hostname)) {
-				device.setID(knownDevices.get(device.hostname));
+				setID(device, knownDevices.get(device.hostname));
 			}
 			else if (knownDevices.containsKey(device.deviceName)) {
-				device.setID(knownDevices.get(device.deviceName));
+				setID(device, knownDevices.get(device.deviceName));
 			}
 			else {
-				device.setID(newID--);
+				setID(device, newID.getAndDecrement());
 			}
 
-			new Thread() {
-				public void run() {
-					sendToDevice(device, "/device/set_id", device.getID());
-					logger.info("Assigning id {} to {}", device.getID(), device.hostname);
-				}
-			}.start();
+			sendToDevice(device, "/device/set_id", device.getID());
+			logger.info("Assigning id {} to {}", device.getID(), device.hostname);
+		}
+	}
+
+	/**
+	 * Give a device a new ID, keeping the lookup by ID up to date.
+	 */
+	private void setID(LocalDeviceRepresentation device, int id) {
+		devicesById.remove(device.getID(), device);
+		device.setID(id);
+		//virtual test devices never send anything, and would hide a real device with the same ID
+		if (!device.deviceName.startsWith("Virtual Test Device")) {
+			devicesById.put(id, device);
 		}
 	}
 
@@ -170,124 +280,273 @@ public class DeviceConnection {
     }
 
 	private void incomingMessage(OSCMessage msg) {
-		if(msg.getName().equals("/device/alive")) {
-			synchronized (this) {			//needs to be synchronized else we might put two copies in
-				try {
-					String deviceName = (String) msg.getArg(0);
-					String deviceHostname = (String) msg.getArg(1);
-					String deviceAddress = (String) msg.getArg(2);
-					logger.debug("Received message from device: " + deviceName);
-					//			System.out.println("Device Alive Message: " + deviceName);
-					//see if we have this device yet
-					LocalDeviceRepresentation thisDevice = devicesByHostname.get(deviceName);
-					logger.debug("Getting device from store: name=" + deviceName + ", result=" + thisDevice);
-
-					if (thisDevice == null) { //if not add it
-						int id = 0;
-						if (knownDevices.containsKey(deviceName)) {
-							id = knownDevices.get(deviceName);
-						} else {
-							id = newID--;
-						}
-						//force names if useHostname is true
-						if (config.useHostname()) deviceAddress = deviceName;
-						thisDevice = new LocalDeviceRepresentation(deviceName, deviceHostname, deviceAddress, id, oscServer, config);
-						devicesByHostname.put(deviceName, thisDevice);
-						logger.debug("Put device in store: name=" + deviceName + ", size=" + devicesByHostname.size());
-						final LocalDeviceRepresentation deviceToAdd = thisDevice;
-						//adding needs to be done in an "app" thread because it affects the GUI.
-						Platform.runLater(new Runnable() {
-							@Override
-							public void run() {
-								theDevices.add(deviceToAdd);
-							}
-						});
-						//make sure this device knows its ID
-						//since there is a lag in assigning an InetSocketAddress, and since this is the first
-						//message sent to the device, it should be done in a separate thread.
-						final LocalDeviceRepresentation deviceID = thisDevice;
-						new Thread() {
-							public void run() {
-								sendToDevice(deviceID, "/device/set_id", deviceID.getID());
-								logger.info("Assigning id {} to {}", deviceID.getID(), deviceID.hostname);
-							}
-						}.start();
+		if(msg.getName().equals(DeviceHeartbeat.ALIVE_MESSAGE_NAME)) {
+			try {
+				String deviceName = (String) msg.getArg(0);
+				logger.debug("Received message from device: " + deviceName);
+				//see if we have this device yet, and if not add it, without holding up alive messages from other devices
+				LocalDeviceRepresentation thisDevice = devicesByHostname.get(deviceName);
+				if (thisDevice == null) {
+					LocalDeviceRepresentation[] added = new LocalDeviceRepresentation[1];
+					thisDevice = devicesByHostname.computeIfAbsent(deviceName, name -> {
+						added[0] = newDevice(name, (String) msg.getArg(1), (String) msg.getArg(2));
+						return added[0];
+					});
+					if (added[0] != null) {
+						deviceAdded(added[0]);
 					}
-					//keep up to date
-					if (thisDevice != null) {
-						thisDevice.lastTimeSeen = System.currentTimeMillis();    //Ultimately this should be "corrected time"
-						//TODO update the status in the GUI, not sure how to bind this
-						if (msg.getArgCount() > 4) {
-							String status = (String) msg.getArg(4);
-							thisDevice.setStatus(status);
-							//				System.out.println("Got status update from " + thisDevice.hostname + ": " + status);
-						}
+				}
+				//keep up to date
+				thisDevice.lastTimeSeen = System.currentTimeMillis();    //Ultimately this should be "corrected time"
+				if (msg.getArgCount() > 4) {
+					thisDevice.setStatus((String) msg.getArg(4));
+				}
+				if (msg.getArgCount() > 7 && msg.getArg(7) instanceof Integer) {
+					thisDevice.setControlProtocolVersion((Integer) msg.getArg(7));
+				}
+				int token = DeviceHeartbeat.tokenOf(msg);
+				if (token != 0) {
+					int oldToken = thisDevice.getStatusToken();
+					thisDevice.setStatusVersion(token, DeviceHeartbeat.versionOf(msg));
+					if (token != oldToken) {
+						//the device has restarted, or is new
+						devicesByToken.remove(oldToken);
+						devicesByToken.put(token, thisDevice);
 					}
-				} catch (Exception e) {
-					logger.error("Error reading incoming OSC message", e);
-					return;
 				}
+			} catch (Exception e) {
+				logger.error("Error reading incoming OSC message", e);
+				return;
+			}
+		} else if(msg.getName().equals(SynchStats.MESSAGE_NAME)) {
+			try {
+				LocalDeviceRepresentation device = devicesByHostname.get((String) msg.getArg(0));
+				if (device != null) {
+					device.setSynchReport(SynchStats.Report.fromMessage(msg));
+				}
+			} catch (Exception e) {
+				logger.error("Error reading synch stats from device", e);
+			}
+		} else if(msg.getName().equals(SensorFrames.MESSAGE_NAME)) {
+			try {
+				sensorRecorder.record(msg);
+			} catch (Exception e) {
+				logger.error("Error reading sensor frames from device", e);
+			}
+		} else if(msg.getName().equals("/device/log")) {
+			try {
+				LocalDeviceRepresentation device = devicesById.get(((Number) msg.getArg(0)).intValue());
+				if (device != null) {
+					device.appendLog((String) msg.getArg(1));
+				}
+			} catch (Exception e) {
+				logger.error("Error reading log output from device", e);
+			}
+		} else if(msg.getName().equals(CommandAck.MESSAGE_NAME)) {
+			try {
+				commandTracker.acknowledged((String) msg.getArg(0), ((Number) msg.getArg(1)).intValue());
+			} catch (Exception e) {
+				logger.error("Error reading command acknowledgement from device", e);
+			}
+		} else if(msg.getName().equals(OutputLatency.MESSAGE_NAME)) {
+			try {
+				LocalDeviceRepresentation device = devicesByHostname.get((String) msg.getArg(0));
+				if (device != null) {
+					device.setOutputLatency(OutputLatency.fromMessage(msg));
+				}
+			} catch (Exception e) {
+				logger.error("Error reading output latency from device", e);
 			}
 		}
 //		logger.debug("Updated device list. Number of devices = " + devicesByHostname.size());
 	}
 
+	private LocalDeviceRepresentation newDevice(String deviceName, String deviceHostname, String deviceAddress) {
+		Integer known = knownDevices.get(deviceName);
+		int id = known != null ? known : newID.getAndDecrement();
+		//force names if useHostname is true
+		if (config.useHostname()) deviceAddress = deviceName;
+		LocalDeviceRepresentation device = new LocalDeviceRepresentation(deviceName, deviceHostname, deviceAddress, id, oscServer, config, transport, resolver);
+		device.lastTimeSeen = System.currentTimeMillis();
+		return device;
+	}
+
+	private void deviceAdded(LocalDeviceRepresentation device) {
+		logger.debug("Put device in store: name=" + device.deviceName + ", size=" + devicesByHostname.size());
+		devicesById.put(device.getID(), device);
+		expiry.add(device);
+		//the GUI list is updated in batches on the "app" thread
+		deviceListUpdater.add(device);
+		//make sure this device knows its ID
+		//these are the first messages sent to the device, so they wait for its address to be resolved on the resolver threads
+		sendToDevice(device, "/device/set_id", device.getID());
+		logger.info("Assigning id {} to {}", device.getID(), device.hostname);
+		sendToDevice(device, TempoMap.MESSAGE_NAME, getTempoMap().toArgs());
+	}
+
+	/**
+	 * Handle a {@link DeviceHeartbeat}, which only needs a lookup by token rather than the lock and string comparisons of a full /device/alive message. A device that is unknown, or whose status version is not the one we have, is asked to send its full status again.
+	 * @param ni the interface the heartbeat arrived on.
+	 * @param msg the heartbeat.
+	 * @param sender the address of the device's broadcast socket, which the resync request is sent to.
+	 */
+	private void heartbeatReceived(NetworkInterface ni, OSCMessage msg, SocketAddress sender) {
+		int token = DeviceHeartbeat.tokenOf(msg);
+		if(token == 0) {
+			return;
+		}
+		LocalDeviceRepresentation device = devicesByToken.get(token);
+		if(device != null) {
+			device.lastTimeSeen = System.currentTimeMillis();
+		}
+		if(device == null || device.getStatusVersion() != DeviceHeartbeat.versionOf(msg)) {
+			logger.debug("Asking device with token {} to resync", token);
+			broadcast.sendTo(ni, sender, DeviceHeartbeat.RESYNC_MESSAGE_NAME, token);
+		}
+	}
+
 	public void sendToDevice(LocalDeviceRepresentation device, String msgName, Object... args) {
 		device.send(msgName, args);
 	}
 
 
-	public void sendToAllDevices(String msgName, Object... args) {
+	/**
+	 * Send a command to a device, asking it to acknowledge the command once it has run it.
+	 * @param device the device.
+	 * @param msgName the message name.
+	 * @param args the message arguments.
+	 * @return the command, which tells whether the device has acknowledged it and how long that took.
+	 */
+	public CommandTracker.Command sendToDeviceWithAck(LocalDeviceRepresentation device, String msgName, Object... args) {
+		return sendWithAck(Collections.singletonList(device), msgName, args);
+	}
+
+	/**
+	 * Send a message to every device, asking each one to acknowledge it once it has run it if it is a built-in command (see {@link CommandAck#isCommand(String)}). This returns straight away: the message is sent on the fan-out thread, and to devices whose address hasn't been resolved yet once it has been.
+	 * @param msgName the message name.
+	 * @param args the message arguments.
+	 * @return the command, which tells which devices have acknowledged it and how long each took. It waits on no devices if the message isn't a built-in command.
+	 */
+	public CommandTracker.Command sendToAllDevices(String msgName, Object... args) {
+		return sendWithAck(new ArrayList<>(devicesByHostname.values()), msgName, args);
+	}
+
+	private CommandTracker.Command sendWithAck(List<LocalDeviceRepresentation> devices, String msgName, Object... args) {
+		boolean acknowledged = CommandAck.isCommand(msgName);
+		List<String> deviceNames = new ArrayList<>();
+		for(LocalDeviceRepresentation device : devices) {
+			//virtual test devices are never sent anything
+			if(acknowledged && !device.deviceName.startsWith("Virtual Test Device")) {
+				deviceNames.add(device.deviceName);
+			}
+		}
+		CommandTracker.Command command = commandTracker.track(msgName, deviceNames);
+		int ackId = acknowledged ? command.id : 0;
+		fanOut.execute(() -> sendToMany(devices, ackId, msgName, args));
+		return command;
+	}
+
+	/**
+	 * Send the same command to many devices. It is encoded at most twice, once for devices that understand the compact binary form of built-in messages and once for those that don't, and the same packet is sent to each device without waiting on any of them.
+	 * @param devices the devices.
+	 * @param ackId the correlation id of the command, or 0 if it isn't acknowledged.
+	 * @param msgName the message name.
+	 * @param args the message arguments.
+	 */
+	private void sendToMany(List<LocalDeviceRepresentation> devices, int ackId, String msgName, Object[] args) {
+		ByteBuffer[] packets = new ByteBuffer[2];		//by whether the device uses binary control
+		for(LocalDeviceRepresentation device : devices) {
+			if(packetSender == null) {
+				if(ackId == 0) {
+					device.send(msgName, args);
+				} else {
+					device.sendWithAck(ackId, msgName, args);
+				}
+				continue;
+			}
+			int form = device.usesBinaryControl() ? 1 : 0;
+			if(packets[form] == null) {
+				try {
+					OSCPacket packet = device.createPacket(ackId, msgName, args);
+					packets[form] = ByteBuffer.allocate(fanOutCodec.getSize(packet));
+					fanOutCodec.encode(packet, packets[form]);
+					packets[form].flip();
+				} catch (IOException e) {
+					logger.error("Unable to encode {} for sending to devices", msgName, e);
+					return;
+				}
+			}
+			device.send(packetSender, packets[form]);
+		}
+	}
+
+	/**
+	 * @return the tracker of commands sent with acknowledgement, which has the round trip stats of each device.
+	 */
+	public CommandTracker getCommandTracker() {
+		return commandTracker;
+	}
+
+	/**
+	 * Fan out a broadcast sent to the controller by a device in relay mode. The message is encoded once and the same packet is sent by unicast to every known device, including the sender, just as multicast loops back to the sender.
+	 * @param msg the {@link BroadcastManager#RELAY_MESSAGE_NAME} message, forwarded unchanged.
+	 */
+	private void relayToAllDevices(OSCMessage msg) {
+		if(packetSender == null) {
+			return;
+		}
+		ByteBuffer packet;
+		try {
+			packet = ByteBuffer.allocate(relayCodec.getSize(msg));
+			relayCodec.encode(msg, packet);
+			packet.flip();
+		} catch (IOException e) {
+			logger.error("Unable to encode relayed broadcast", e);
+			return;
+		}
 		for(LocalDeviceRepresentation device : devicesByHostname.values()) {
-			sendToDevice(device, msgName, args);
+			device.send(packetSender, packet);
 		}
 	}
 
 	public void sendToDeviceList(Iterable<LocalDeviceRepresentation> devices, String msgName, Object... args) {
-		for (LocalDeviceRepresentation device : devices) {
-			sendToDevice(device, msgName, args);
-		}
+		List<LocalDeviceRepresentation> list = new ArrayList<>();
+		devices.forEach(list::add);
+		fanOut.execute(() -> sendToMany(list, 0, msgName, args));
 	}
 
 	public void sendToDeviceList(String[] list, String msgName, Object... args) {
+		List<LocalDeviceRepresentation> devices = new ArrayList<>();
 		for(String deviceName : list) {
-			sendToDevice(devicesByHostname.get(deviceName), msgName, args);
+			LocalDeviceRepresentation device = devicesByHostname.get(deviceName);
+			if(device != null) {
+				devices.add(device);
+			}
 		}
+		fanOut.execute(() -> sendToMany(devices, 0, msgName, args));
 	}
 
 	public void sendToDeviceGroup(int group, String msgName, Object... args) {
 		//send to group - group is defined by each LocalDeviceRep having group[i] flag
+		List<LocalDeviceRepresentation> devices = new ArrayList<>();
 		for(LocalDeviceRepresentation device : theDevices) {
 			if(device.groups[group]) {
-				sendToDevice(device, msgName, args);
+				devices.add(device);
 			}
 		}
-
+		fanOut.execute(() -> sendToMany(devices, 0, msgName, args));
 	}
 
 	private void checkDeviceAliveness() {
-		long timeNow = System.currentTimeMillis();
-		List<String> devicesToRemove = new ArrayList<String>();
-		for(String deviceName : devicesByHostname.keySet()) {
-			if(!deviceName.startsWith("Virtual Test Device")) {
-				LocalDeviceRepresentation thisDevice = devicesByHostname.get(deviceName);
-				long timeSinceSeen = timeNow - thisDevice.lastTimeSeen;
-				if(timeSinceSeen > config.getAliveInterval() * 5) {	//config this number?
-					devicesToRemove.add(deviceName);
-				}
+		for(LocalDeviceRepresentation device : expiry.advance(System.currentTimeMillis())) {
+			if(devicesByHostname.remove(device.deviceName, device)) {
+				devicesByToken.remove(device.getStatusToken(), device);
+				devicesById.remove(device.getID(), device);
+				commandTracker.forget(device.deviceName);
+				deviceListUpdater.remove(device);
+				logger.info("Removed Device from list: {}", device.deviceName);
 			}
 		}
-		for(final String deviceName : devicesToRemove) {
-			//removal needs to be done in an "app" thread because it affects the GUI.
-			Platform.runLater(new Runnable() {
-		        @Override
-		        public void run() {
-					theDevices.remove(devicesByHostname.get(deviceName));
-					devicesByHostname.remove(deviceName);
-					logger.info("Removed Device from list: {}", deviceName);
-		        }
-		   });
-		}
 	}
 
 
@@ -305,7 +564,55 @@ public class DeviceConnection {
 		long timeNow = System.currentTimeMillis();
 		long timeToSync = timeNow + 5000;
 		String timeAsString = "" + timeToSync;
-		sendToAllDevices("/device/sync", timeAsString);
+		for(LocalDeviceRepresentation device : devicesByHostname.values()) {
+			sendToDevice(device, "/device/sync", device.usesBinaryControl() ? (Object) timeToSync : timeAsString);
+		}
+	}
+
+	/**
+	 * @return the recorder that keeps the sensor frames devices stream to the controller.
+	 */
+	public SensorRecorder getSensorRecorder() {
+		return sensorRecorder;
+	}
+
+	/**
+	 * Change the tempo of the fleet's tempo map on the first beat after {@link #TEMPO_CHANGE_LEAD} from now.
+	 * @param bpm the new tempo, in beats per minute.
+	 */
+	public void deviceTempo(double bpm) {
+		setTempoMap(getTempoMap().withTempo(bpm, tempoChangeTime()));
+	}
+
+	/**
+	 * Change the meter of the fleet's tempo map on the first bar after {@link #TEMPO_CHANGE_LEAD} from now.
+	 * @param beatsPerBar the new number of beats in a bar.
+	 * @param barsPerPhrase the new number of bars in a phrase.
+	 */
+	public void deviceMeter(int beatsPerBar, int barsPerPhrase) {
+		setTempoMap(getTempoMap().withMeter(beatsPerBar, barsPerPhrase, tempoChangeTime()));
+	}
+
+	/**
+	 * @return the latest tempo map sent to the devices, which may not have taken effect yet.
+	 */
+	public synchronized TempoMap getTempoMap() {
+		return tempoMap;
+	}
+
+	/**
+	 * @return the earliest synchronized time for a tempo or meter change, in us, which is after any change still to come.
+	 */
+	private long tempoChangeTime() {
+		return Math.max(Synchronizer.timeMicros() + TEMPO_CHANGE_LEAD * 1000, getTempoMap().getEpoch());
+	}
+
+	private void setTempoMap(TempoMap map) {
+		synchronized (this) {
+			tempoMap = map;
+		}
+		logger.info("Sending tempo map: {}", map);
+		sendToAllDevices(TempoMap.MESSAGE_NAME, map.toArgs());
 	}
 
 	public void deviceGain(float dest, float timeMS) {
@@ -354,9 +661,15 @@ public class DeviceConnection {
 	}
 
 	/**
-	 * Perform shutdown processes. Stops and disposes of the OSC server.
+	 * Perform shutdown processes. Stops and disposes of the OSC server and the packet sender.
 	 */
 	public void dispose() {
+		running = false;
+		fanOut.shutdown();
+		resolver.shutdown();
 		oscServer.dispose();
+		if(packetSender != null) {
+			packetSender.close();
+		}
 	}
 }
@@ -18,17 +18,28 @@ package net.happybrackets.controller.network;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
-import de.sciss.net.OSCListener;
 import net.happybrackets.controller.config.ControllerConfig;
 import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
 import de.sciss.net.OSCServer;
 
+import net.happybrackets.core.CommandAck;
+import net.happybrackets.core.ControlCodec;
 import net.happybrackets.core.ErrorListener;
+import net.happybrackets.core.OutputLatency;
+import net.happybrackets.core.SynchStats;
+import net.happybrackets.core.transport.Transport;
+import net.happybrackets.core.transport.UdpTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,16 +47,24 @@ public class LocalDeviceRepresentation {
 
 	final static Logger logger = LoggerFactory.getLogger(LocalDeviceRepresentation.class);
 
-	public long lastTimeSeen;
+	public volatile long lastTimeSeen;
 	public final String deviceName;
 	public final String hostname;
 	public final String address;
 	public List<String> preferredAddressStrings; 	//This list contains, in order of preference: address, hostname, deviceName, hostname.local or deviceName.local.
-	private int id;
-	private InetSocketAddress socketAddress;
+	private volatile int id;
+	private volatile InetSocketAddress socketAddress;
+	private final Object addressLock = new Object();		//guards preferredAddressStrings, resolving and waiting
+	private boolean resolving;
+	private final List<Delivery> waiting = new ArrayList<>();	//sends waiting for the address to be resolved
 	private final OSCServer server;
+	private final Transport transport;
+	private final Executor resolver;
 	public final boolean[] groups;
 	private ControllerConfig config;
+	private volatile int controlProtocolVersion = 0;	//0 for devices that only understand OSC control messages
+	private volatile int statusToken;					//the heartbeat token and status version of the last /device/alive, 0 if the device sends none
+	private volatile int statusVersion;
 
 	public interface StatusUpdateListener {
 		public void update(String state);
@@ -53,6 +72,29 @@ public class LocalDeviceRepresentation {
 
 	private List<StatusUpdateListener> statusUpdateListenerList;
 
+	public interface SynchReportListener {
+		public void update(SynchStats.Report report);
+	}
+
+	private List<SynchReportListener> synchReportListenerList;
+
+	private final Map<String, SynchStats.Report> synchReports = new Hashtable<String, SynchStats.Report>();
+	private volatile SynchStats.Report leaderSynchReport;
+
+	public interface OutputLatencyListener {
+		public void update(OutputLatency latency);
+	}
+
+	private List<OutputLatencyListener> outputLatencyListenerList;
+	private volatile OutputLatency outputLatency;
+
+	public interface CommandStatsListener {
+		public void update(CommandTracker.Stats stats);
+	}
+
+	private List<CommandStatsListener> commandStatsListenerList;
+	private volatile CommandTracker.Stats commandStats;
+
 	private List<ErrorListener> errorListenerList;
 
 	private String log;
@@ -65,7 +107,27 @@ public class LocalDeviceRepresentation {
 
 	private String status = "Status unknown";
 
+	/**
+	 * The most sends kept for a device while its address is being resolved. Older ones are dropped first.
+	 */
+	public static final int MAX_WAITING = 64;
+
+	private interface Delivery {
+		void sendTo(InetSocketAddress target) throws IOException;
+	}
+
 	public LocalDeviceRepresentation(String deviceName, String hostname, String addr, int id, OSCServer server, ControllerConfig config) {
+		this(deviceName, hostname, addr, id, server, config, UdpTransport.getInstance());
+	}
+
+	public LocalDeviceRepresentation(String deviceName, String hostname, String addr, int id, OSCServer server, ControllerConfig config, Transport transport) {
+		this(deviceName, hostname, addr, id, server, config, transport, Runnable::run);
+	}
+
+	/**
+	 * @param resolver runs the name lookups for the device's address, which can take seconds for a device that is slow to answer or gone. Sends to the device never wait for it.
+	 */
+	public LocalDeviceRepresentation(String deviceName, String hostname, String addr, int id, OSCServer server, ControllerConfig config, Transport transport, Executor resolver) {
 
 		this.deviceName						= deviceName;
 		this.hostname   					= hostname;
@@ -73,27 +135,18 @@ public class LocalDeviceRepresentation {
 		this.socketAddress = null;
 		this.id         					= id;
 		this.server     					= server;
+		this.transport  					= transport;
+		this.resolver   					= resolver;
 		this.config     					= config;
 		groups          					= new boolean[4];
 		statusUpdateListenerList  = new ArrayList<>();
+		synchReportListenerList = new ArrayList<>();
+		outputLatencyListenerList = new ArrayList<>();
+		commandStatsListenerList = new ArrayList<>();
 		logListenerList = new ArrayList<>();
 		errorListenerList = new ArrayList<>();
 
-		// Set-up log monitor.
 		log = "";
-		server.addOSCListener(new OSCListener() {
-			@Override
-			public void messageReceived(OSCMessage msg, SocketAddress source, long timestamp) {
-				if (msg.getName().equals("/device/log") && ((Integer) msg.getArg(0)) == id) {
-					String newLogOutput = (String) msg.getArg(1);
-					log = log + "\n" + newLogOutput;
-					logger.debug("Received new log output from device {} ({}): {}", hostname, id, newLogOutput);
-					for (LogListener listener : logListenerList) {
-						listener.newLogMessage(newLogOutput);
-					}
-				}
-			}
-		});
 	}
 
 	public void setID(int id) {
@@ -104,42 +157,210 @@ public class LocalDeviceRepresentation {
 		return id;
 	}
 
+	/**
+	 * Set the version of the binary control protocol the device advertised in its /device/alive messages.
+	 * @param version the version, or 0 if the device only understands OSC.
+	 */
+	public void setControlProtocolVersion(int version) {
+		this.controlProtocolVersion = version;
+	}
+
+	/**
+	 * Set the {@link net.happybrackets.core.DeviceHeartbeat} token and status version of the device's last /device/alive message.
+	 * @param token the token the device picked when it started.
+	 * @param version the version of its status.
+	 */
+	public void setStatusVersion(int token, int version) {
+		this.statusToken = token;
+		this.statusVersion = version;
+	}
+
+	public int getStatusToken() {
+		return statusToken;
+	}
+
+	public int getStatusVersion() {
+		return statusVersion;
+	}
+
+	/**
+	 * @return true if built-in control messages are sent to this device using the compact binary form of {@link ControlCodec}.
+	 */
+	public boolean usesBinaryControl() {
+		return controlProtocolVersion == ControlCodec.VERSION;
+	}
+
 	private void lazySetupAddressStrings() {
-		if(preferredAddressStrings == null) {
-			preferredAddressStrings = new LinkedList<>();
-			preferredAddressStrings.add(deviceName + ".local");
-			preferredAddressStrings.add(address);
-			preferredAddressStrings.add(hostname + ".local");
-			preferredAddressStrings.add(hostname);
-			preferredAddressStrings.add(deviceName);
+		synchronized (addressLock) {
+			if(preferredAddressStrings == null) {
+				preferredAddressStrings = new LinkedList<>();
+				preferredAddressStrings.add(deviceName + ".local");
+				preferredAddressStrings.add(address);
+				preferredAddressStrings.add(hostname + ".local");
+				preferredAddressStrings.add(hostname);
+				preferredAddressStrings.add(deviceName);
+			}
+		}
+	}
+
+	/**
+	 * Forget the current address and move the address string it came from to the back of preferredAddressStrings, so the next one in the list is tried.
+	 * @param failed the address that failed, or null to rotate regardless.
+	 * @return the address string that failed.
+	 */
+	private String rotateAddress(InetSocketAddress failed) {
+		synchronized (addressLock) {
+			String failedString = preferredAddressStrings.get(0);
+			if(failed == null || failed.equals(socketAddress)) {
+				socketAddress = null;
+				preferredAddressStrings.add(preferredAddressStrings.remove(0));
+			}
+			return failedString;
+		}
+	}
+
+	/**
+	 * Get the address this device listens for control messages on. This never waits for the address to be resolved: if it hasn't been yet, it is resolved in the background.
+	 * @return the address, or null for virtual test devices or if the address hasn't been resolved yet.
+	 */
+	public InetSocketAddress getSocketAddress() {
+		if(deviceName.startsWith("Virtual Test Device")) {
+			return null;
+		}
+		InetSocketAddress target = socketAddress;
+		if(target == null) {
+			resolveInBackground();
+		}
+		return target;
+	}
+
+	public void send(String msgName, Object... args) {
+		if(deviceName.startsWith("Virtual Test Device")) {
+			return;
 		}
+		OSCPacket msg = createMessage(msgName, args);
+		deliver(target -> server.send(msg, target));
 	}
 
-	public synchronized void send(String msgName, Object... args) {
-		if(hostname.startsWith("Virtual Test Device")) {
+	/**
+	 * Send a command that the device acknowledges once it has run it, see {@link CommandAck}.
+	 * @param id the correlation id, from a {@link CommandTracker}.
+	 * @param msgName the message name.
+	 * @param args the message arguments.
+	 */
+	public void sendWithAck(int id, String msgName, Object... args) {
+		if(deviceName.startsWith("Virtual Test Device")) {
 			return;
 		}
-		OSCMessage msg = new OSCMessage(msgName, args);
+		OSCPacket msg = createPacket(id, msgName, args);
+		deliver(target -> server.send(msg, target));
+	}
+
+	/**
+	 * Send a packet that has already been encoded, so the same packet can be sent to many devices without encoding it for each one.
+	 * @param sender the sender, which must not block.
+	 * @param packet the packet, from its position to its limit, which is not changed.
+	 */
+	public void send(Transport.PacketSender sender, ByteBuffer packet) {
+		if(deviceName.startsWith("Virtual Test Device")) {
+			return;
+		}
+		deliver(target -> {
+			if(!sender.send(packet, target)) {
+				logger.warn("Send buffer full, dropped a message to device {}", deviceName);
+			}
+		});
+	}
+
+	/**
+	 * Make the packet for a command, in the form this device understands.
+	 * @param ackId the correlation id of a command the device should acknowledge, or 0 for none.
+	 * @param msgName the message name.
+	 * @param args the message arguments.
+	 * @return the packet.
+	 */
+	OSCPacket createPacket(int ackId, String msgName, Object[] args) {
+		OSCMessage msg = createMessage(msgName, args);
+		return ackId == 0 ? msg : CommandAck.request(msg, ackId);
+	}
+
+	private OSCMessage createMessage(String msgName, Object[] args) {
+		if(usesBinaryControl() && ControlCodec.isBuiltIn(msgName)) {
+			return new ControlCodec.CompactMessage(msgName, args);
+		} else {
+			return new OSCMessage(msgName, args);
+		}
+	}
+
+	/**
+	 * Send something to the device straight away if its address is known, and otherwise once it has been resolved. Nothing here waits for a name lookup, so a slow or unresolvable device never holds up the thread sending to it.
+	 * @param delivery sends to an address.
+	 */
+	private void deliver(Delivery delivery) {
+		InetSocketAddress target = socketAddress;
+		if(target != null) {
+			try {
+				delivery.sendTo(target);
+				return;
+			} catch (UnresolvedAddressException | IOException e1) {
+				String failedString = rotateAddress(target);
+				logger.error("Error sending to device {} using address {}! (Trying the next address).", deviceName, failedString, e1);
+			}
+		}
+		synchronized (addressLock) {
+			if(waiting.size() >= MAX_WAITING) {
+				waiting.remove(0);
+			}
+			waiting.add(delivery);
+		}
+		resolveInBackground();
+	}
+
+	private void resolveInBackground() {
+		synchronized (addressLock) {
+			if(resolving) {
+				return;
+			}
+			resolving = true;
+		}
+		resolver.execute(this::resolve);
+	}
+
+	/**
+	 * Try each of preferredAddressStrings in turn until one resolves, then send everything that was waiting for the address.
+	 */
+	private void resolve() {
 		lazySetupAddressStrings();
-		boolean success = false;
-		int count = 0;
-		while(!success) {
+		InetSocketAddress found = null;
+		for(int i = 0; i < preferredAddressStrings.size() && found == null; i++) {
+			String candidate;
+			synchronized (addressLock) {
+				candidate = preferredAddressStrings.get(0);
+			}
+			InetSocketAddress resolved = transport.resolve(candidate, config.getControlToDevicePort());
+			if(resolved.isUnresolved()) {
+				logger.warn("Unable to resolve address {} of device {}", candidate, deviceName);
+				rotateAddress(null);
+			} else {
+				found = resolved;
+			}
+		}
+		List<Delivery> ready;
+		synchronized (addressLock) {
+			socketAddress = found;
+			resolving = false;
+			ready = new ArrayList<>(waiting);
+			waiting.clear();
+		}
+		if(found == null) {
+			logger.error("Unable to resolve any address of device {}, dropping {} messages to it", deviceName, ready.size());
+			return;
+		}
+		for(Delivery delivery : ready) {
 			try {
-				if (socketAddress == null) {
-					socketAddress = new InetSocketAddress(preferredAddressStrings.get(0), config.getControlToDevicePort());
-				}
-				server.send(msg, socketAddress);
-				success = true;
+				delivery.sendTo(found);
 			} catch (UnresolvedAddressException | IOException e1) {
-				logger.error("Error sending to device {} using address {}! (Setting socketAddress back to null).",
-						deviceName, preferredAddressStrings.get(0), e1);
-				//set the socketAddress back to null as it will need to be rebuilt
-				socketAddress = null;
-				//rotate the preferredAddressStrings list to try the next one in the list
-				String failedString = preferredAddressStrings.remove(0);
-				preferredAddressStrings.add(failedString);
-				if(count > 4) break;
-				count++;
+				logger.error("Error sending to device {} using address {}!", deviceName, found, e1);
 			}
 		}
 	}
@@ -163,11 +384,8 @@ public class LocalDeviceRepresentation {
 			} catch (IOException | IllegalArgumentException e1) {
 				logger.error("Error sending to device {} using address {}! (Setting socketAddress back to null).",
 						deviceName, preferredAddressStrings.get(0), e1);
-				//set the socketAddress back to null as it will need to be rebuilt
-				socketAddress = null;
-				//rotate the preferredAddressStrings list to try the next one in the list
-				String failedString = preferredAddressStrings.remove(0);	//remove from front
-				preferredAddressStrings.add(failedString);		//add to end
+				//rotate the preferredAddressStrings list to try the next one in the list, and rebuild the socketAddress from it
+				rotateAddress(null);
 
 				exceptions.add(e1);
 				possibleIPvIssue |= e1 instanceof java.net.SocketException && e1.getMessage().contains("rotocol");
@@ -201,6 +419,82 @@ public class LocalDeviceRepresentation {
 		}
 	}
 
+	public void addSynchReportListener(SynchReportListener listener) {
+		synchReportListenerList.add(listener);
+	}
+
+	/**
+	 * Record a report from the device of how well it is synched to another device.
+	 * @param report the report.
+	 */
+	public void setSynchReport(SynchStats.Report report) {
+		synchReports.put(report.peer, report);
+		if(report.role != SynchStats.Report.PEER) {
+			leaderSynchReport = report;
+		}
+		for(SynchReportListener listener : synchReportListenerList) {
+			listener.update(report);
+		}
+	}
+
+	/**
+	 * @return the latest report of how well the device is synched to its leader, or null if it hasn't sent one.
+	 */
+	public SynchStats.Report getLeaderSynchReport() {
+		return leaderSynchReport;
+	}
+
+	/**
+	 * @return the latest report from the device for each device it has synched to, by that device's id.
+	 */
+	public Map<String, SynchStats.Report> getSynchReports() {
+		return new HashMap<String, SynchStats.Report>(synchReports);
+	}
+
+	public void addOutputLatencyListener(OutputLatencyListener listener) {
+		outputLatencyListenerList.add(listener);
+	}
+
+	/**
+	 * Record the output latency the device reports it is compensating for.
+	 * @param latency the latency.
+	 */
+	public void setOutputLatency(OutputLatency latency) {
+		outputLatency = latency;
+		for(OutputLatencyListener listener : outputLatencyListenerList) {
+			listener.update(latency);
+		}
+	}
+
+	/**
+	 * @return the latest output latency reported by the device, or null if it hasn't sent one.
+	 */
+	public OutputLatency getOutputLatency() {
+		return outputLatency;
+	}
+
+	public void addCommandStatsListener(CommandStatsListener listener) {
+		commandStatsListenerList.add(listener);
+	}
+
+	/**
+	 * Record how quickly the device has acknowledged recent commands.
+	 * @param stats the stats.
+	 */
+	public void setCommandStats(CommandTracker.Stats stats) {
+		commandStats = stats;
+		for(CommandStatsListener listener : commandStatsListenerList) {
+			listener.update(stats);
+		}
+	}
+
+	/**
+	 * @return how quickly the device has acknowledged recent commands, or null if it hasn't been sent any.
+	 */
+	public CommandTracker.Stats getCommandStats() {
+		return commandStats;
+	}
+
 	private void sendError(String description, Exception ex) {
 		for (ErrorListener l : errorListenerList) {
 			l.errorOccurred(this.getClass(), description, ex);
@@ -214,6 +508,18 @@ public class LocalDeviceRepresentation {
 		logListenerList.remove(listener);
 	}
 
+	/**
+	 * Add output from the device's log, which {@link DeviceConnection} passes on from the device's /device/log messages.
+	 * @param newLogOutput the new lines of the log.
+	 */
+	public void appendLog(String newLogOutput) {
+		log = log + "\n" + newLogOutput;
+		logger.debug("Received new log output from device {} ({}): {}", hostname, id, newLogOutput);
+		for (LogListener listener : logListenerList) {
+			listener.newLogMessage(newLogOutput);
+		}
+	}
+
 	public String getDeviceLog() {
 		return log;
 	}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.network;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.SensorFrames;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the sensor frames devices stream to the controller, one {@link Recording} for each stream of each device.
+ *
+ * A recording is kept in columns: one array of times and one array of floats per channel, rather than an object per
+ * frame, so recording many devices at a high rate costs little more than copying the values and makes little garbage.
+ *
+ * The frames of all the recordings together are kept within a memory budget, shared equally between the streams. When
+ * a stream has used its share, its oldest frames are dropped, and when a new stream arrives the others give up part of
+ * their share to it, dropping their oldest frames if they have to.
+ */
+public class SensorRecorder {
+
+	final static Logger logger = LoggerFactory.getLogger(SensorRecorder.class);
+
+	/**
+	 * The default memory budget for the frames of all the streams, in bytes.
+	 */
+	public static final long DEFAULT_BUDGET = 64L << 20;
+
+	private static final int INITIAL_SIZE = 1024;
+
+	/**
+	 * The frames of one stream from one device, oldest first.
+	 */
+	public static class Recording {
+		public final String device;
+		public final String stream;
+		public final int channels;
+		private int capacity;
+		private long[] times;
+		private float[][] columns;
+		private int start = 0;
+		private int size = 0;
+		private int nextSequence = -1;
+		private long lostMessages = 0;
+
+		private Recording(String device, String stream, int channels, int capacity) {
+			this.device = device;
+			this.stream = stream;
+			this.channels = channels;
+			this.capacity = capacity;
+			int initial = Math.min(INITIAL_SIZE, capacity);
+			times = new long[initial];
+			columns = new float[channels][initial];
+		}
+
+		private synchronized void append(SensorFrames frames) {
+			if(nextSequence >= 0 && frames.sequence != nextSequence) {
+				//a sequence that goes backwards means the stream was restarted
+				if(frames.sequence > nextSequence) {
+					lostMessages += frames.sequence - nextSequence;
+				}
+			}
+			nextSequence = frames.sequence + 1;
+			for(int frame = 0; frame < frames.size(); frame++) {
+				int index = nextIndex();
+				times[index] = frames.getTime(frame);
+				for(int channel = 0; channel < channels; channel++) {
+					columns[channel][index] = frames.getValue(frame, channel);
+				}
+			}
+		}
+
+		/**
+		 * Make room for another frame, by growing the arrays or dropping the oldest frame.
+		 * @return the index to put the frame at.
+		 */
+		private int nextIndex() {
+			if(size == times.length && size < capacity) {
+				int length = Math.min(capacity, times.length * 2);
+				times = unwrap(times, length);
+				for(int channel = 0; channel < channels; channel++) {
+					columns[channel] = unwrap(columns[channel], length);
+				}
+				start = 0;
+			}
+			if(size < times.length) {
+				return (start + size++) % times.length;
+			}
+			int index = start;
+			start = (start + 1) % times.length;
+			return index;
+		}
+
+		/**
+		 * Change the most frames kept, dropping the oldest frames if there are more than that.
+		 * @param capacity the new capacity.
+		 */
+		private synchronized void setCapacity(int capacity) {
+			this.capacity = capacity;
+			if(size > capacity) {
+				start = (start + size - capacity) % times.length;
+				size = capacity;
+			}
+			if(times.length > capacity) {
+				times = unwrap(times, capacity);
+				for(int channel = 0; channel < channels; channel++) {
+					columns[channel] = unwrap(columns[channel], capacity);
+				}
+				start = 0;
+			}
+		}
+
+		/**
+		 * @return the memory a frame takes, in bytes.
+		 */
+		private int frameBytes() {
+			return 8 + 4 * channels;
+		}
+
+		private long[] unwrap(long[] array, int length) {
+			long[] result = new long[length];
+			int first = Math.min(size, array.length - start);
+			System.arraycopy(array, start, result, 0, first);
+			System.arraycopy(array, 0, result, first, size - first);
+			return result;
+		}
+
+		private float[] unwrap(float[] array, int length) {
+			float[] result = new float[length];
+			int first = Math.min(size, array.length - start);
+			System.arraycopy(array, start, result, 0, first);
+			System.arraycopy(array, 0, result, first, size - first);
+			return result;
+		}
+
+		/**
+		 * @return the number of frames kept.
+		 */
+		public synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * @return the number of messages from the device that never arrived.
+		 */
+		public synchronized long getLostMessages() {
+			return lostMessages;
+		}
+
+		/**
+		 * @param frame a frame, 0 being the oldest kept.
+		 * @return the synchronized time the frame was read, in us.
+		 */
+		public synchronized long getTime(int frame) {
+			return times[index(frame)];
+		}
+
+		/**
+		 * @param frame a frame, 0 being the oldest kept.
+		 * @param channel a channel.
+		 * @return the value of the channel in the frame.
+		 */
+		public synchronized float getValue(int frame, int channel) {
+			return columns[channel][index(frame)];
+		}
+
+		/**
+		 * @return a copy of the times of the frames, oldest first, in us.
+		 */
+		public synchronized long[] getTimes() {
+			return unwrap(times, size);
+		}
+
+		/**
+		 * @param channel a channel.
+		 * @return a copy of the values of the channel, oldest first.
+		 */
+		public synchronized float[] getColumn(int channel) {
+			return unwrap(columns[channel], size);
+		}
+
+		/**
+		 * Write the frames as comma separated values, a line per frame with the time in us first.
+		 * @param out where to write.
+		 * @throws IOException if writing fails.
+		 */
+		public synchronized void writeCSV(Writer out) throws IOException {
+			StringBuilder line = new StringBuilder();
+			for(int frame = 0; frame < size; frame++) {
+				int index = index(frame);
+				line.setLength(0);
+				line.append(times[index]);
+				for(int channel = 0; channel < channels; channel++) {
+					line.append(',').append(columns[channel][index]);
+				}
+				line.append('\n');
+				out.write(line.toString());
+			}
+		}
+
+		private int index(int frame) {
+			if(frame < 0 || frame >= size) {
+				throw new IndexOutOfBoundsException("No frame " + frame + " in a recording of " + size);
+			}
+			return (start + frame) % times.length;
+		}
+	}
+
+	private final long budget;
+	private final int capacity;
+	private final Map<String, Recording> recordings = new Hashtable<String, Recording>();
+
+	public SensorRecorder() {
+		this(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param budget the most memory the frames of all the streams may take, in bytes. 0 records nothing.
+	 */
+	public SensorRecorder(long budget) {
+		this(budget, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param budget the most memory the frames of all the streams may take, in bytes. 0 records nothing.
+	 * @param capacity the most frames kept for each stream, however much of the budget it has.
+	 */
+	public SensorRecorder(long budget, int capacity) {
+		this.budget = budget;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return false if the memory budget is 0, so nothing is recorded.
+	 */
+	public boolean isRecording() {
+		return budget > 0;
+	}
+
+	/**
+	 * Record the frames in a {@link SensorFrames#MESSAGE_NAME} message.
+	 * @param msg the message.
+	 */
+	public void record(OSCMessage msg) {
+		if(!isRecording()) {
+			return;
+		}
+		SensorFrames frames = SensorFrames.fromMessage(msg);
+		String key = frames.device + "/" + frames.stream;
+		Recording recording;
+		synchronized (recordings) {
+			recording = recordings.get(key);
+			if(recording == null || recording.channels != frames.channels) {
+				if(recording != null) {
+					logger.warn("Stream {} from {} changed from {} to {} channels, starting a new recording", frames.stream, frames.device, recording.channels, frames.channels);
+				}
+				recording = new Recording(frames.device, frames.stream, frames.channels, 1);
+				recordings.put(key, recording);
+				shareBudget();
+			}
+		}
+		recording.append(frames);
+	}
+
+	/**
+	 * Give every recording an equal share of the budget.
+	 */
+	private void shareBudget() {
+		long share = budget / recordings.size();
+		for(Recording recording : recordings.values()) {
+			recording.setCapacity((int) Math.max(1, Math.min(capacity, share / recording.frameBytes())));
+		}
+	}
+
+	/**
+	 * @param device the name of a device.
+	 * @param stream the name of a stream.
+	 * @return the recording of the stream from the device, or null if none has arrived.
+	 */
+	public Recording getRecording(String device, String stream) {
+		return recordings.get(device + "/" + stream);
+	}
+
+	/**
+	 * @return every recording.
+	 */
+	public List<Recording> getRecordings() {
+		return new ArrayList<Recording>(recordings.values());
+	}
+
+	/**
+	 * Forget every recording.
+	 */
+	public void clear() {
+		synchronized (recordings) {
+			recordings.clear();
+		}
+	}
+}
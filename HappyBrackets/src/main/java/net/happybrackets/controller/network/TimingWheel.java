@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * A hashed timing wheel for expiring items whose deadline keeps moving, such as devices that are gone once they haven't
+ * been heard from for a while. Each item sits in the slot of the tick its deadline falls in. Moving the deadline later
+ * costs nothing, because the wheel reads the deadline again when the item's slot comes round and puts the item back if
+ * it isn't due yet. So each item is looked at about once per timeout, however often it is heard from, rather than
+ * every item being looked at on every check.
+ *
+ * Deadlines further ahead than the wheel goes round are looked at once each time round until they are due.
+ *
+ * @param <T> the type of the items.
+ */
+public class TimingWheel<T> {
+
+	private final long tick;
+	private final List<List<T>> slots;
+	private final ToLongFunction<T> deadline;
+	private long current;		//the last tick whose slot has been processed, which is the last tick to have ended
+	private int size;
+
+	/**
+	 * @param tick the length of a tick, in ms, which is how late an item can expire.
+	 * @param slotCount the number of slots, so the wheel goes round every tick * slotCount ms.
+	 * @param deadline gives the current deadline of an item, in ms.
+	 * @param timeNow the current time in ms.
+	 */
+	public TimingWheel(long tick, int slotCount, ToLongFunction<T> deadline, long timeNow) {
+		this.tick = tick;
+		this.deadline = deadline;
+		slots = new ArrayList<>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots.add(new ArrayList<>());
+		}
+		current = timeNow / tick - 1;
+	}
+
+	/**
+	 * Add an item, to expire at its deadline.
+	 *
+	 * @param item the item.
+	 */
+	public synchronized void add(T item) {
+		place(item);
+		size++;
+	}
+
+	/**
+	 * Move the wheel on to the given time.
+	 *
+	 * @param timeNow the current time in ms.
+	 * @return the items whose deadline has passed, which are no longer in the wheel.
+	 */
+	public synchronized List<T> advance(long timeNow) {
+		List<T> expired = new ArrayList<>();
+		//the slot of a tick is processed once the tick has ended
+		long target = timeNow / tick - 1;
+		//no need to go round more than once
+		long from = Math.max(current + 1, target - slots.size() + 1);
+		for (long t = from; t <= target; t++) {
+			List<T> slot = slots.get((int) (t % slots.size()));
+			if (slot.isEmpty()) {
+				continue;
+			}
+			List<T> items = new ArrayList<>(slot);
+			slot.clear();
+			current = t;
+			for (T item : items) {
+				if (deadline.applyAsLong(item) <= timeNow) {
+					expired.add(item);
+					size--;
+				} else {
+					place(item);
+				}
+			}
+		}
+		current = Math.max(current, target);
+		return expired;
+	}
+
+	/**
+	 * @return the number of items in the wheel.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private void place(T item) {
+		//in the slot of the tick the deadline falls in, but never one that has been processed or more than once round
+		long t = Math.min(Math.max(deadline.applyAsLong(item) / tick, current + 1), current + slots.size());
+		slots.get((int) (t % slots.size())).add(item);
+	}
+}
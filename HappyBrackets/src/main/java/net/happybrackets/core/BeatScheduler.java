@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs actions on the beats, bars and phrases of the fleet's {@link TempoMap}, for example to start something on the
+ * next bar on every device.
+ *
+ * Actions are scheduled for a beat rather than a time. The scheduler keeps the maps it has been given, including changes
+ * that have not taken effect yet, and works out the time of the beat from the map that applies to it. When a new map
+ * arrives, every action still waiting is moved to the new time of its beat, so a tempo change doesn't leave actions
+ * scheduled at the old tempo.
+ */
+public class BeatScheduler {
+
+	final static Logger logger = LoggerFactory.getLogger(BeatScheduler.class);
+
+	/**
+	 * Something that runs an action at a synchronized time, such as {@link Synchronizer#doAtTimeMicros(Runnable, long)}.
+	 */
+	public interface TimeScheduler {
+		EventScheduler.Handle doAtTimeMicros(Runnable runnable, long time);
+	}
+
+	/**
+	 * An action scheduled on a beat, which can be cancelled until it runs.
+	 */
+	public class Handle {
+		private final Runnable runnable;
+		private final double beat;
+		private EventScheduler.Handle scheduled;
+		private boolean cancelled;
+		private volatile boolean done;
+
+		private Handle(Runnable runnable, double beat) {
+			this.runnable = runnable;
+			this.beat = beat;
+		}
+
+		/**
+		 * @return the beat the action runs on.
+		 */
+		public double getBeat() {
+			return beat;
+		}
+
+		/**
+		 * Stop the action from running.
+		 *
+		 * @return true if the action was cancelled, false if it has already run or been cancelled.
+		 */
+		public boolean cancel() {
+			synchronized (BeatScheduler.this) {
+				if (cancelled || !scheduled.cancel()) {
+					return false;
+				}
+				cancelled = true;
+				pending.remove(this);
+				return true;
+			}
+		}
+
+		/**
+		 * @return true once the action has run, or started running.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		private void schedule() {
+			scheduled = timeScheduler.doAtTimeMicros(this::run, timeOf(beat));
+		}
+
+		private void run() {
+			synchronized (BeatScheduler.this) {
+				pending.remove(this);
+			}
+			done = true;
+			runnable.run();
+		}
+	}
+
+	private final LongSupplier clock;
+	private final TimeScheduler timeScheduler;
+	private final TreeMap<Long, TempoMap> maps = new TreeMap<>();		//by epoch, the one in effect now and any changes to come
+	private final List<Handle> pending = new ArrayList<>();
+
+	/**
+	 * Create a BeatScheduler on the fleet's synchronized time.
+	 *
+	 * @param synch the {@link Synchronizer}.
+	 * @param map the map to start with, until one arrives from the controller.
+	 */
+	public BeatScheduler(Synchronizer synch, TempoMap map) {
+		this(synch::correctedTimeMicros, synch::doAtTimeMicros, map);
+	}
+
+	/**
+	 * @param clock the synchronized time, in us.
+	 * @param timeScheduler what runs actions at synchronized times, in us.
+	 * @param map the map to start with.
+	 */
+	public BeatScheduler(LongSupplier clock, TimeScheduler timeScheduler, TempoMap map) {
+		this.clock = clock;
+		this.timeScheduler = timeScheduler;
+		maps.put(map.getEpoch(), map);
+	}
+
+	/**
+	 * Use a new map from its epoch on, replacing any maps that take effect at or after that time, and move every action
+	 * still waiting to the new time of its beat.
+	 *
+	 * @param map the new map.
+	 */
+	public synchronized void setTempoMap(TempoMap map) {
+		maps.tailMap(map.getEpoch(), true).clear();
+		maps.put(map.getEpoch(), map);
+		//forget maps that have been replaced by ones already in effect
+		Long current = maps.floorKey(clock.getAsLong());
+		if (current != null) {
+			maps.headMap(current, false).clear();
+		}
+		for (Handle handle : new ArrayList<>(pending)) {
+			if (handle.scheduled.cancel()) {
+				handle.schedule();
+			}
+		}
+		logger.debug("Tempo map is now {}", map);
+	}
+
+	/**
+	 * @return the map in effect now.
+	 */
+	public synchronized TempoMap getTempoMap() {
+		return mapAtTime(clock.getAsLong());
+	}
+
+	/**
+	 * @return the latest map, which may not have taken effect yet.
+	 */
+	public synchronized TempoMap getLatestTempoMap() {
+		return maps.lastEntry().getValue();
+	}
+
+	/**
+	 * @return the beat now, with the fraction of the way through it.
+	 */
+	public synchronized double beatNow() {
+		long now = clock.getAsLong();
+		return mapAtTime(now).beatAt(now);
+	}
+
+	/**
+	 * @param beat a beat, which may be fractional.
+	 * @return the synchronized time of the beat, in us, according to the map in effect at the time.
+	 */
+	public synchronized long timeOf(double beat) {
+		return mapAtBeat(beat).timeOf(beat);
+	}
+
+	/**
+	 * Run an action on the next boundary of a unit, for example the start of the next bar. If the current beat is
+	 * exactly on a boundary, the action runs on the one after.
+	 *
+	 * @param runnable the action.
+	 * @param unit the unit to quantize to.
+	 * @return a handle that can cancel the action.
+	 */
+	public synchronized Handle doOnNext(Runnable runnable, TempoMap.Unit unit) {
+		long now = clock.getAsLong();
+		TempoMap map = mapAtTime(now);
+		long beat = map.nextBoundary(map.beatAt(now), unit);
+		//a change of meter before the boundary moves the boundaries to the new meter's
+		for (TempoMap later : maps.tailMap(map.getEpoch(), false).values()) {
+			if (later.getBeatAtEpoch() > beat) {
+				break;
+			}
+			beat = later.boundaryAtOrAfter(later.getBeatAtEpoch(), unit);
+		}
+		return doAtBeat(runnable, beat);
+	}
+
+	/**
+	 * Run an action on a beat.
+	 *
+	 * @param runnable the action.
+	 * @param beat the beat, which may be fractional. Beats in the past run as soon as possible.
+	 * @return a handle that can cancel the action.
+	 */
+	public synchronized Handle doAtBeat(Runnable runnable, double beat) {
+		Handle handle = new Handle(runnable, beat);
+		pending.add(handle);
+		handle.schedule();
+		return handle;
+	}
+
+	/**
+	 * Cancel every action still waiting to run, for example when the composition that scheduled them is reset.
+	 */
+	public synchronized void clear() {
+		for (Handle handle : new ArrayList<>(pending)) {
+			handle.cancel();
+		}
+	}
+
+	/**
+	 * @return the number of actions waiting to run.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	private TempoMap mapAtTime(long time) {
+		Map.Entry<Long, TempoMap> entry = maps.floorEntry(time);
+		return entry == null ? maps.firstEntry().getValue() : entry.getValue();
+	}
+
+	private TempoMap mapAtBeat(double beat) {
+		TempoMap found = maps.firstEntry().getValue();
+		for (TempoMap map : maps.values()) {
+			if (map.getBeatAtEpoch() <= beat) {
+				found = map;
+			}
+		}
+		return found;
+	}
+}
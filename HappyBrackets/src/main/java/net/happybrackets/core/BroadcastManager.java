@@ -17,12 +17,18 @@
 package net.happybrackets.core;
 
 import de.sciss.net.*;
+import net.happybrackets.core.transport.Transport;
+import net.happybrackets.core.transport.UdpTransport;
 
 import java.io.IOException;
 import java.net.*;
-import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +36,8 @@ import org.slf4j.LoggerFactory;
 /**
  * This class manages broadcast communication - i.e., one to all comms. You would mainly use it to send broadcast messages and listen to broadcast messages. However, these functions are wrapped in the {@link net.happybrackets.device.HB} class and should be accessed there.
  *
+ * Messages can also be broadcast on a topic. Each topic is hashed onto one of a pool of multicast groups and a device only joins the groups of the topics it has listeners for, so the network and kernel drop topic traffic that a device has no interest in.
+ *
  * Created by ollie on 1/06/2016.
  *  Multiple interface behaviour add by Sam Gillespie on 11/08/2016.
  */
@@ -39,20 +47,66 @@ public class BroadcastManager {
 
     String                                        address;
     int                                           port;
+    Transport                                     transport;
     List<NetworkInterfacePair<OSCTransmitter>>    transmitters;
-    List<NetworkInterfacePair<OSCReceiver>>       receivers;
+    List<NetworkInterfacePair<Transport.MulticastEndpoint>> endpoints;
     List<OSCListener>                             listeners;
     List<OnListener>                              interfaceListeners; //listeners who care what interface the message arrived at.
     List<NetworkInterface>                        netInterfaces;
+    Map<String, List<OSCListener>>                topicListeners;
+    Map<InetAddress, Set<String>>                 topicsByGroup;  //topics with listeners, by the multicast group they hash to
+
+    String                                        topicAddress;
+    int                                           topicGroupCount;
 
     /**
-     * Create a new BroadcastManager.
+     * The name of broadcast messages relayed through the controller. The first argument is the name of the wrapped message.
+     */
+    public static final String RELAY_MESSAGE_NAME = "/hb/relay";
+
+    private volatile Relay relay;
+
+    /**
+     * The name of messages broadcast on a topic. The first argument is the topic and the second the name of the wrapped message.
+     */
+    public static final String TOPIC_MESSAGE_NAME = "/hb/topic";
+
+    /**
+     * Create a new BroadcastManager. Topic broadcasts share the main multicast group.
      *
      * @param address should be a multicast address.
      */
     public BroadcastManager(String address, int port) {
+        this(address, port, address, 0);
+    }
+
+    /**
+     * Create a new BroadcastManager.
+     *
+     * @param address should be a multicast address.
+     * @param port the port to broadcast on.
+     * @param topicAddress the first multicast address in the pool of groups used for topic broadcasts.
+     * @param topicGroupCount the number of multicast groups in the topic pool, 0 to send topics over the main group.
+     */
+    public BroadcastManager(String address, int port, String topicAddress, int topicGroupCount) {
+        this(address, port, topicAddress, topicGroupCount, UdpTransport.getInstance());
+    }
+
+    /**
+     * Create a new BroadcastManager on the given {@link Transport}.
+     *
+     * @param address should be a multicast address.
+     * @param port the port to broadcast on.
+     * @param topicAddress the first multicast address in the pool of groups used for topic broadcasts.
+     * @param topicGroupCount the number of multicast groups in the topic pool, 0 to send topics over the main group.
+     * @param transport the network to broadcast on.
+     */
+    public BroadcastManager(String address, int port, String topicAddress, int topicGroupCount, Transport transport) {
+        this.transport = transport;
         this.address = address;
         this.port = port;
+        this.topicAddress = topicAddress;
+        this.topicGroupCount = topicGroupCount;
         initBroadcaster(address, port);
         //automatically refresh the broadcaster every second
     }
@@ -82,9 +136,11 @@ public class BroadcastManager {
     private void initBroadcaster(String address, int port) {
         listeners               = new ArrayList<>();
         interfaceListeners      = new ArrayList<>();
-        receivers               = new ArrayList<>();
+        endpoints               = new ArrayList<>();
         transmitters            = new ArrayList<>();
         netInterfaces           = new ArrayList<>();
+        topicListeners          = new Hashtable<>();
+        topicsByGroup           = new HashMap<>();
         //  Defer the fiding of interfaces to the refresh cycle so that we don't block the thread loading the BroadcastManager
 //        netInterfaces           = Device.viableInterfaces();
 //        netInterfaces.forEach( ni -> {
@@ -133,8 +189,14 @@ public class BroadcastManager {
      */
     public void dispose() {
 //        These calls take an unusually long time and may not be necessary? Hammering the tests.
-        receivers.forEach(r -> r.value.dispose());
-        transmitters.forEach(t -> t.value.dispose());
+        endpoints.forEach(e -> e.value.dispose());
+    }
+
+    /**
+     * @return the {@link Transport} this BroadcastManager sends and receives on.
+     */
+    public Transport getTransport() {
+        return transport;
     }
 
     /**
@@ -172,7 +234,7 @@ public class BroadcastManager {
         List<NetworkInterface> toRemove = new ArrayList<>();
         netInterfaces.forEach( ni -> {
             String name = ni.getName();
-            if(!Device.isViableNetworkInterface(ni)) {
+            if(!transport.isViableNetworkInterface(ni)) {
                 toRemove.add(ni);
                 logger.debug("The network interface " + ni + " is no longer valid! Removing it!");
                 if(name.equals("en0")) {
@@ -182,19 +244,19 @@ public class BroadcastManager {
         });
         //we now have a to-remove list
         //clean up the removes
-        receivers.forEach(r -> {
-            if(toRemove.contains(r.networkInterface)) {
-                r.value.dispose();
-            }
-        });
-        transmitters.forEach(t -> {
-            if(toRemove.contains(t.networkInterface)) {
-                t.value.dispose();
-            }
-        });
+        synchronized (topicListeners) {
+            endpoints.removeIf(e -> {
+                if (toRemove.contains(e.networkInterface)) {
+                    e.value.dispose();
+                    return true;
+                }
+                return false;
+            });
+        }
+        transmitters.removeIf(t -> toRemove.contains(t.networkInterface));
         netInterfaces.removeAll(toRemove);
         //iterate through the viable interfaces to see if new interfaces have become viable.
-        List<NetworkInterface> tempInterfaces = Device.viableInterfaces();
+        List<NetworkInterface> tempInterfaces = transport.viableInterfaces();
         tempInterfaces.forEach(newInterface -> {
             boolean[] exists = new boolean[] {false};
             netInterfaces.forEach(existingInterface -> {
@@ -207,42 +269,21 @@ public class BroadcastManager {
                 try {
                     InetAddress group = InetAddress.getByName(address);
                     //set up a listener and receiver for our broadcast address on this interface
-                    DatagramChannel dc = null;
-                    // Try creating IPv6 channel first.
-                    try {
-                        dc = DatagramChannel.open(StandardProtocolFamily.INET6)
-                                .setOption(StandardSocketOptions.SO_REUSEADDR, true)
-                                .bind(new InetSocketAddress(port))
-                                .setOption(StandardSocketOptions.IP_MULTICAST_IF, newInterface);
-                        dc.join(group, newInterface);
-                    }
-
-                    catch (Exception ex) {
-                        // If creating IPv6 channel doesn't work try IPv4.
-                        logger.debug("IPv6 failed, falling back to IPv4 for interface {}", newInterface.getName());
-                        dc = DatagramChannel.open(StandardProtocolFamily.INET)
-                                .setOption(StandardSocketOptions.SO_REUSEADDR, true)
-                                .bind(new InetSocketAddress(port))
-                                .setOption(StandardSocketOptions.IP_MULTICAST_IF, newInterface);
-                        if(dc != null) {
-                            dc.join(group, newInterface);
+                    Transport.MulticastEndpoint endpoint = transport.openMulticast(newInterface, group, port);
+                    endpoint.addOSCListener(new MessageAggregator(newInterface));
+                    endpoint.startListening();
+                    transmitters.add(new NetworkInterfacePair<OSCTransmitter>(newInterface, endpoint.getTransmitter()));
+                    // join the groups of any topics we are already listening to
+                    synchronized (topicListeners) {
+                        NetworkInterfacePair<Transport.MulticastEndpoint> pair = new NetworkInterfacePair<>(newInterface, endpoint);
+                        endpoints.add(pair);
+                        for (InetAddress topicGroup : topicsByGroup.keySet()) {
+                            joinTopicGroup(pair, topicGroup);
                         }
                     }
 
-                    if (dc != null) {
-                        //add receivers
-                        OSCReceiver receiver = OSCReceiver.newUsing(dc);
-                        receiver.startListening();
-                        receiver.addOSCListener(new MessageAggregator(newInterface));
-                        receivers.add(new NetworkInterfacePair<OSCReceiver>(newInterface, receiver));
-                        // add transmitters
-                        OSCTransmitter transmitter = OSCTransmitter.newUsing(dc);
-                        transmitter.setTarget(new InetSocketAddress(group.getHostAddress(), port));
-                        transmitters.add(new NetworkInterfacePair<OSCTransmitter>(newInterface, transmitter));
-
-                        netInterfaces.add(newInterface);
-                        logger.debug("Broadcasting on interface: {}", newInterface.getName());
-                    }
+                    netInterfaces.add(newInterface);
+                    logger.debug("Broadcasting on interface: {}", newInterface.getName());
 
                 } catch (IOException e) {
                     logger.warn("BroadcastManager encountered an IO exception when creating a listener socket on interface {}! Trying again next refresh.", newInterface.getName());
@@ -260,15 +301,17 @@ public class BroadcastManager {
      */
     public void broadcast(String name, Object... args) {
         OSCMessage msg = new OSCMessage(name, args);
-        transmitters.stream().map(pair -> pair.value).forEach( transmitter -> {
+        if (relay != null) {
+            sendToRelay(msg);
+            return;
+        }
+        new ArrayList<>(transmitters).stream().map(pair -> pair.value).forEach( transmitter -> {
           try {
               transmitter.send(msg);
           } catch (IOException e) {
               logger.warn("Removing broadcaster interface due to error:", e);
-              transmitters.stream().filter(t -> transmitter.equals((OSCTransmitter) t.value)).forEach(match -> {
-                  netInterfaces.remove(match.networkInterface);
-                  transmitters.remove(match);
-                  match.value.dispose();
+              new ArrayList<>(transmitters).stream().filter(t -> transmitter.equals((OSCTransmitter) t.value)).forEach(match -> {
+                  removeInterface(match.networkInterface);
               });
 //              transmitters.remove(transmitter);
 //              netInterfaces.remove(transmitter)
@@ -277,24 +320,174 @@ public class BroadcastManager {
         });
     }
 
+    /**
+     * Send an {@link OSCMessage} to a single address rather than the whole multicast group, from the socket on the given interface. The message comes from the multicast port, so a reply to a broadcast message arrives at the sender's listeners like any other message. It is never relayed.
+     *
+     * @param ni the network interface to send from, usually the one the message being answered arrived on.
+     * @param target the address to send to.
+     * @param name the message string to send.
+     * @param args the args to the message.
+     */
+    public void sendTo(NetworkInterface ni, SocketAddress target, String name, Object... args) {
+        OSCMessage msg = new OSCMessage(name, args);
+        for (NetworkInterfacePair<OSCTransmitter> pair : new ArrayList<>(transmitters)) {
+            if (pair.networkInterface.equals(ni)) {
+                try {
+                    pair.value.send(msg, target);
+                } catch (IOException e) {
+                    logger.warn("Unable to send {} to {}", name, target, e);
+                }
+                return;
+            }
+        }
+        logger.debug("No transmitter on interface {} to send {} to {}", ni, name, target);
+    }
+
+    /**
+     * Broadcast an {@link OSCMessage} on the given topic. The message is sent to the multicast group the topic hashes to, so only devices listening to a topic in that group receive it.
+     *
+     * @param topic the topic to broadcast on.
+     * @param name the message string to send.
+     * @param args the args to the message.
+     */
+    public void broadcastToTopic(String topic, String name, Object... args) {
+        Object[] topicArgs = new Object[args.length + 2];
+        topicArgs[0] = topic;
+        topicArgs[1] = name;
+        System.arraycopy(args, 0, topicArgs, 2, args.length);
+        OSCMessage msg = new OSCMessage(TOPIC_MESSAGE_NAME, topicArgs);
+        if (relay != null) {
+            sendToRelay(msg);
+            return;
+        }
+        InetSocketAddress target;
+        try {
+            target = new InetSocketAddress(topicGroup(topic), port);
+        } catch (UnknownHostException e) {
+            logger.error("Unable to resolve the multicast group for topic {}", topic, e);
+            return;
+        }
+        forAllTransmitters((ni, transmitter) -> transmitter.send(msg, target));
+    }
+
+    /**
+     * Send broadcasts through a relay instead of the multicast group, or go back to multicast by passing null. Listeners are unaffected, messages arriving through the relay are passed to {@link #receiveRelayed(OSCMessage, SocketAddress, long)}.
+     *
+     * @param relay the relay to send broadcasts through, or null for multicast.
+     */
+    public void setRelay(Relay relay) {
+        this.relay = relay;
+    }
+
+    private void sendToRelay(OSCMessage msg) {
+        Object[] relayArgs = new Object[msg.getArgCount() + 1];
+        relayArgs[0] = msg.getName();
+        for (int i = 0; i < msg.getArgCount(); i++) {
+            relayArgs[i + 1] = msg.getArg(i);
+        }
+        try {
+            relay.send(new OSCMessage(RELAY_MESSAGE_NAME, relayArgs));
+        } catch (IOException e) {
+            logger.warn("Unable to send broadcast {} to relay", msg.getName(), e);
+        }
+    }
+
+    /**
+     * Pass a broadcast that arrived through a relay to the listeners, as if it had arrived over the multicast group. Listeners added with {@link #addOnMessage(OnListener)} are given the first interface this manager broadcasts on, or null if it has none, since a relayed message doesn't arrive on a multicast interface.
+     *
+     * @param relayed the {@link #RELAY_MESSAGE_NAME} message.
+     * @param sender the address the message came from.
+     * @param time the time the message arrived.
+     */
+    public void receiveRelayed(OSCMessage relayed, SocketAddress sender, long time) {
+        if (relayed.getArgCount() < 1 || !(relayed.getArg(0) instanceof String)) {
+            logger.debug("Ignoring malformed relay message from {}", sender);
+            return;
+        }
+        Object[] args = new Object[relayed.getArgCount() - 1];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = relayed.getArg(i + 1);
+        }
+        OSCMessage msg = new OSCMessage((String) relayed.getArg(0), args);
+        if (msg.getName().equals(TOPIC_MESSAGE_NAME)) {
+            deliverToTopic(msg, sender, time);
+        } else {
+            List<NetworkInterfacePair<OSCTransmitter>> current = new ArrayList<>(transmitters);
+            NetworkInterface ni = current.isEmpty() ? null : current.get(0).networkInterface;
+            listeners.forEach(l -> l.messageReceived(msg, sender, time));
+            interfaceListeners.forEach(l -> l.cb(ni, msg, sender, time));
+        }
+    }
+
+    /**
+     * Get the multicast group a topic is broadcast on.
+     *
+     * @param topic the topic.
+     * @return the multicast group for the topic.
+     * @throws UnknownHostException if the configured topic address is not valid.
+     */
+    public InetAddress topicGroup(String topic) throws UnknownHostException {
+        return topicGroup(topic, address, topicAddress, topicGroupCount);
+    }
+
+    /**
+     * Hash a topic onto a pool of multicast groups. The pool is made up of groupCount consecutive IPv4 multicast addresses starting at topicAddress. The hash only depends on the topic string so every device agrees on the group.
+     *
+     * @param topic the topic.
+     * @param address the main multicast group, used when the pool is empty.
+     * @param topicAddress the first address of the pool.
+     * @param groupCount the size of the pool.
+     * @return the multicast group for the topic.
+     * @throws UnknownHostException if one of the addresses is not valid.
+     */
+    public static InetAddress topicGroup(String topic, String address, String topicAddress, int groupCount) throws UnknownHostException {
+        if (groupCount <= 0) {
+            return InetAddress.getByName(address);
+        }
+        byte[] group = InetAddress.getByName(topicAddress).getAddress();
+        int offset = Math.floorMod(topic.hashCode(), groupCount);
+        //add the offset to the address, carrying into the higher bytes
+        for (int i = group.length - 1; i >= 0 && offset > 0; i--) {
+            int sum = (group[i] & 0xFF) + offset;
+            group[i] = (byte) sum;
+            offset = sum >> 8;
+        }
+        return InetAddress.getByAddress(group);
+    }
+
     /**
      * Execute onTransmitter.cb(NetworkInterface, OSCTransmitter) for all transmitters.
      * @param onTransmitter
      */
     public void forAllTransmitters(OnTransmitter onTransmitter) {
-        transmitters.forEach(pair -> {
+        new ArrayList<>(transmitters).forEach(pair -> {
             try {
                 onTransmitter.cb(pair.networkInterface, pair.value);
             } catch (Exception e) {
                 logger.error("Error executing call back on transmitter for interface {}, removing interface", pair.networkInterface.getDisplayName(), e);
 
-                netInterfaces.remove(pair.networkInterface);
-                transmitters.remove(pair);
-                pair.value.dispose();
+                removeInterface(pair.networkInterface);
             }
         });
     }
 
+    /**
+     * Stop using an interface that has failed. It is added again by the next refresh if it becomes viable.
+     */
+    private void removeInterface(NetworkInterface ni) {
+        netInterfaces.remove(ni);
+        transmitters.removeIf(t -> t.networkInterface.equals(ni));
+        synchronized (topicListeners) {
+            endpoints.removeIf(e -> {
+                if (e.networkInterface.equals(ni)) {
+                    e.value.dispose();
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
     /**
      * Add a new {@link OSCListener}.
      *
@@ -305,6 +498,107 @@ public class BroadcastManager {
         // receiver.addOSCListener(bl);
     }
 
+    /**
+     * Add a new {@link OSCListener} for messages broadcast on the given topic. The first listener for a topic causes this device to join the multicast group of that topic.
+     *
+     * @param topic the topic to listen to.
+     * @param bl the new {@link OSCListener}.
+     */
+    public void addBroadcastListener(String topic, OSCListener bl) {
+        InetAddress group;
+        try {
+            group = topicGroup(topic);
+        } catch (UnknownHostException e) {
+            logger.error("Unable to resolve the multicast group for topic {}", topic, e);
+            return;
+        }
+        synchronized (topicListeners) {
+            List<OSCListener> listenersForTopic = topicListeners.get(topic);
+            if (listenersForTopic == null) {
+                listenersForTopic = new ArrayList<>();
+                topicListeners.put(topic, listenersForTopic);
+            }
+            listenersForTopic.add(bl);
+            Set<String> topics = topicsByGroup.get(group);
+            if (topics == null) {
+                topics = new HashSet<>();
+                topicsByGroup.put(group, topics);
+                endpoints.forEach(e -> joinTopicGroup(e, group));
+            }
+            topics.add(topic);
+        }
+    }
+
+    /**
+     * Remove the given {@link OSCListener} from a topic. When no topic in a multicast group has any listeners left this device leaves the group.
+     *
+     * @param topic the topic the listener was added to.
+     * @param bl the {@link OSCListener} to remove.
+     */
+    public void removeBroadcastListener(String topic, OSCListener bl) {
+        synchronized (topicListeners) {
+            List<OSCListener> listenersForTopic = topicListeners.get(topic);
+            if (listenersForTopic == null) {
+                return;
+            }
+            listenersForTopic.remove(bl);
+            if (listenersForTopic.isEmpty()) {
+                topicListeners.remove(topic);
+                try {
+                    InetAddress group = topicGroup(topic);
+                    Set<String> topics = topicsByGroup.get(group);
+                    if (topics != null) {
+                        topics.remove(topic);
+                        if (topics.isEmpty()) {
+                            topicsByGroup.remove(group);
+                            endpoints.forEach(e -> leaveTopicGroup(e, group));
+                        }
+                    }
+                } catch (UnknownHostException e) {
+                    logger.error("Unable to resolve the multicast group for topic {}", topic, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unwrap a topic message and pass it to the listeners of its topic. Topics sharing a multicast group still arrive here, so filter on the topic name.
+     */
+    private void deliverToTopic(OSCMessage msg, SocketAddress sender, long time) {
+        if (msg.getArgCount() < 2 || !(msg.getArg(0) instanceof String) || !(msg.getArg(1) instanceof String)) {
+            logger.debug("Ignoring malformed topic message from {}", sender);
+            return;
+        }
+        List<OSCListener> toNotify;
+        synchronized (topicListeners) {
+            List<OSCListener> listenersForTopic = topicListeners.get(msg.getArg(0));
+            if (listenersForTopic == null) {
+                return;
+            }
+            toNotify = new ArrayList<>(listenersForTopic);
+        }
+        Object[] args = new Object[msg.getArgCount() - 2];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = msg.getArg(i + 2);
+        }
+        OSCMessage topicMsg = new OSCMessage((String) msg.getArg(1), args);
+        toNotify.forEach(l -> l.messageReceived(topicMsg, sender, time));
+    }
+
+    private void joinTopicGroup(NetworkInterfacePair<Transport.MulticastEndpoint> endpoint, InetAddress group) {
+        try {
+            endpoint.value.join(group);
+            logger.debug("Joined topic group {} on interface {}", group, endpoint.networkInterface.getName());
+        } catch (IOException e) {
+            logger.warn("Unable to join topic group {} on interface {}", group, endpoint.networkInterface.getName(), e);
+        }
+    }
+
+    private void leaveTopicGroup(NetworkInterfacePair<Transport.MulticastEndpoint> endpoint, InetAddress group) {
+        endpoint.value.leave(group);
+        logger.debug("Left topic group {} on interface {}", group, endpoint.networkInterface.getName());
+    }
+
     /**
      * Add a new interface aware listener
      */
@@ -330,6 +624,11 @@ public class BroadcastManager {
         //     receiver.removeOSCListener(listener);
         // }
         listeners.clear();
+        synchronized (topicListeners) {
+            topicListeners.clear();
+            topicsByGroup.keySet().forEach(group -> endpoints.forEach(e -> leaveTopicGroup(e, group)));
+            topicsByGroup.clear();
+        }
     }
 
     private class NetworkInterfacePair<T> {
@@ -361,6 +660,10 @@ public class BroadcastManager {
                 }
                 logger.trace("Received broadcast message {} with {} args [{}] from {}", new Object[]{msg.getName(), msg.getArgCount(), args, sender.toString()});
             }
+            if (msg.getName().equals(TOPIC_MESSAGE_NAME)) {
+                deliverToTopic(msg, sender, time);
+                return;
+            }
             listeners.forEach(l -> l.messageReceived(msg, sender, time));
             interfaceListeners.forEach(l -> l.cb(networkInterface, msg, sender, time));
         }
@@ -373,6 +676,13 @@ public class BroadcastManager {
         void cb(NetworkInterface ni, OSCTransmitter transmitter) throws IOException;
     }
 
+    /**
+     * Call back interface for sending broadcasts through a relay rather than the multicast group
+     */
+    public interface Relay {
+        void send(OSCMessage msg) throws IOException;
+    }
+
     /**
      * Call back interface for listening to all interfaces where the specific interface matters
      */
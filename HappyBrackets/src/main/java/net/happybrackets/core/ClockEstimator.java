@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the offset and drift of a remote clock from round trip measurements.
+ *
+ * Each sample is a request sent at a local time, a reply received at a local time, and the remote clock's time when it
+ * replied. The remote time is assumed to correspond to the midpoint of the round trip, which is only true when the
+ * network delay is the same both ways. Queuing on Wi-Fi breaks that assumption often, but it only ever adds delay, so
+ * the samples with the shortest round trips are the most trustworthy. The estimator keeps a window of recent samples
+ * in ring buffers, picks the fastest of them and fits a straight line through their offsets, giving the offset at any
+ * local time and the drift rate between the two clocks.
+ *
+ * If the remote clock is stepped, for example when it first synchronizes to another device, samples from before the
+ * step would spoil the fit. A sample whose offset differs from the previous one by more than the jump threshold, on top
+ * of what the two round trips can explain, is taken as a step and the window starts again from it.
+ *
+ * All times can be in any unit as long as it is the same for every sample.
+ */
+public class ClockEstimator {
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * The fraction of the window, by shortest round trip, used for the fit.
+	 */
+	public static final double SELECTED_FRACTION = 0.25;
+
+	/**
+	 * The fewest samples used for a fit, if there are that many.
+	 */
+	public static final int MIN_SELECTED = 4;
+
+	private final long[] midpoints;
+	private final long[] offsets;
+	private final long[] roundTrips;
+	private final long[] sortScratch;
+	private final long jumpThreshold;
+	private int next = 0;
+	private int count = 0;
+
+	private boolean valid = false;
+	private long referenceTime;
+	private double offset;
+	private double drift;
+	private long roundTripThreshold;
+	private int selected;
+
+	public ClockEstimator() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the number of recent samples to keep.
+	 */
+	public ClockEstimator(int capacity) {
+		this(capacity, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param capacity the number of recent samples to keep.
+	 * @param jumpThreshold how far the offset can move between samples, beyond the uncertainty of their round trips,
+	 *                      before the remote clock is taken to have been stepped.
+	 */
+	public ClockEstimator(int capacity, long jumpThreshold) {
+		this.jumpThreshold = jumpThreshold;
+		midpoints = new long[capacity];
+		offsets = new long[capacity];
+		roundTrips = new long[capacity];
+		sortScratch = new long[capacity];
+	}
+
+	/**
+	 * Add a round trip measurement, replacing the oldest if the window is full. Measurements with a negative round trip
+	 * are ignored.
+	 *
+	 * @param sendTime the local time the request was sent.
+	 * @param receiveTime the local time the reply was received.
+	 * @param remoteTime the remote clock's time when it replied.
+	 */
+	public synchronized void addSample(long sendTime, long receiveTime, long remoteTime) {
+		long roundTrip = receiveTime - sendTime;
+		if (roundTrip < 0) {
+			return;
+		}
+		long midpoint = sendTime + roundTrip / 2;
+		long sampleOffset = remoteTime - midpoint;
+		if (count > 0) {
+			int last = (next - 1 + midpoints.length) % midpoints.length;
+			long uncertainty = (roundTrip + roundTrips[last]) / 2;
+			if (Math.abs(sampleOffset - offsets[last]) - uncertainty > jumpThreshold) {
+				next = 0;
+				count = 0;
+			}
+		}
+		midpoints[next] = midpoint;
+		offsets[next] = sampleOffset;
+		roundTrips[next] = roundTrip;
+		next = (next + 1) % midpoints.length;
+		count = Math.min(count + 1, midpoints.length);
+		valid = false;
+	}
+
+	/**
+	 * Forget every sample, for example after the local clock has been stepped.
+	 */
+	public synchronized void clear() {
+		next = 0;
+		count = 0;
+		valid = false;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Fit the offset and drift to the current samples.
+	 *
+	 * @return false if there are no samples.
+	 */
+	public synchronized boolean update() {
+		if (count == 0) {
+			valid = false;
+			return false;
+		}
+		//the round trip time that separates the fastest samples from the rest
+		System.arraycopy(roundTrips, 0, sortScratch, 0, count);
+		Arrays.sort(sortScratch, 0, count);
+		int wanted = Math.min(count, Math.max(MIN_SELECTED, (int) Math.ceil(count * SELECTED_FRACTION)));
+		roundTripThreshold = sortScratch[wanted - 1];
+		//measure time from the newest sample to keep the numbers small
+		referenceTime = midpoints[(next - 1 + midpoints.length) % midpoints.length];
+		double sumX = 0, sumY = 0;
+		selected = 0;
+		for (int i = 0; i < count; i++) {
+			if (roundTrips[i] <= roundTripThreshold) {
+				sumX += midpoints[i] - referenceTime;
+				sumY += offsets[i];
+				selected++;
+			}
+		}
+		double meanX = sumX / selected;
+		double meanY = sumY / selected;
+		double sxx = 0, sxy = 0;
+		for (int i = 0; i < count; i++) {
+			if (roundTrips[i] <= roundTripThreshold) {
+				double dx = midpoints[i] - referenceTime - meanX;
+				sxx += dx * dx;
+				sxy += dx * (offsets[i] - meanY);
+			}
+		}
+		//with too few samples or too short a span the slope is noise, so assume no drift
+		if (selected < 2 || sxx == 0) {
+			drift = 0;
+			offset = meanY;
+		} else {
+			drift = sxy / sxx;
+			offset = meanY - drift * meanX;
+		}
+		valid = true;
+		return true;
+	}
+
+	/**
+	 * @return true if {@link #update()} has fitted the current samples.
+	 */
+	public synchronized boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * @param localTime a local time.
+	 * @return the estimated remote time minus the local time, at the given local time.
+	 */
+	public synchronized double getOffset(long localTime) {
+		return offset + drift * (localTime - referenceTime);
+	}
+
+	/**
+	 * @return how much faster the remote clock runs than the local one, for example 0.00005 for 50 parts per million.
+	 */
+	public synchronized double getDrift() {
+		return drift;
+	}
+
+	/**
+	 * @return the longest round trip among the samples used for the fit.
+	 */
+	public synchronized long getRoundTripThreshold() {
+		return roundTripThreshold;
+	}
+
+	/**
+	 * @return the number of samples used for the fit.
+	 */
+	public synchronized int getSelectedCount() {
+		return selected;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Acknowledgement of commands sent by the controller. To find out whether a device got a command, and how long it
+ * took, the controller sends the command in a bundle followed by a {@link #REQUEST_MESSAGE_NAME} message carrying a
+ * correlation id. Both arrive in the same packet, so a device that gets the request got the command too, and because
+ * built-in commands are run in order the device answers with a {@link #MESSAGE_NAME} message once the command has run.
+ *
+ * Devices running older versions just ignore the request, so the command itself still works.
+ */
+public class CommandAck {
+
+	/**
+	 * The name of the message asking a device to acknowledge the commands before it. Its only argument is the id.
+	 */
+	public static final String REQUEST_MESSAGE_NAME = "/device/ack_request";
+
+	/**
+	 * The name of the message devices acknowledge commands with. Its arguments are the device name and the id.
+	 */
+	public static final String MESSAGE_NAME = "/device/ack";
+
+	/**
+	 * The names of the built-in commands, the only messages a device's command registry runs.
+	 */
+	private static final Set<String> COMMANDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+			"/device/set_id",
+			"/device/get_logs",
+			"/device/sync",
+			TempoMap.MESSAGE_NAME,
+			"/device/reboot",
+			"/device/shutdown",
+			"/device/gain",
+			"/device/reset",
+			"/device/reset_sounding",
+			"/device/clearsound",
+			"/device/fadeout_reset",
+			"/device/fadeout_clearsound",
+			"/device/bleep",
+			"/device/config/wifi",
+			DeviceHeartbeat.ALIVE_MESSAGE_NAME,
+			DeviceHeartbeat.MESSAGE_NAME,
+			DeviceHeartbeat.RESYNC_MESSAGE_NAME,
+			REQUEST_MESSAGE_NAME
+	)));
+
+	/**
+	 * @param msgName a message name.
+	 * @return true if devices run messages with the name as built-in commands. A device acknowledges a command once it
+	 * has run it, but other messages, even ones under /device/, are left to the listeners of compositions, which may not
+	 * have run by the time the device acknowledges them.
+	 */
+	public static boolean isCommand(String msgName) {
+		return COMMANDS.contains(msgName);
+	}
+
+	/**
+	 * @param command the command.
+	 * @param id the correlation id.
+	 * @return a bundle of the command and the request to acknowledge it.
+	 */
+	public static OSCBundle request(OSCMessage command, int id) {
+		OSCBundle bundle = new OSCBundle(OSCBundle.NOW);
+		bundle.addPacket(command);
+		bundle.addPacket(new OSCMessage(REQUEST_MESSAGE_NAME, new Object[] {id}));
+		return bundle;
+	}
+
+	/**
+	 * @param deviceName the name of the device acknowledging.
+	 * @param request the {@link #REQUEST_MESSAGE_NAME} message.
+	 * @return the acknowledgement.
+	 */
+	public static OSCMessage ack(String deviceName, OSCMessage request) {
+		return new OSCMessage(MESSAGE_NAME, new Object[] {deviceName, request.getArg(0)});
+	}
+}
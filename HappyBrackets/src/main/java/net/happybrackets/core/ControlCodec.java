@@ -0,0 +1,327 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
+import de.sciss.net.OSCPacketCodec;
+import net.happybrackets.core.transport.Transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An {@link OSCPacketCodec} that also understands a compact binary encoding of the built-in HappyBrackets control
+ * messages. Instead of a padded OSC address string each built-in message is sent as a numeric opcode, with varint
+ * framing and typed fields, so that longs go over the wire as longs rather than as decimal strings.
+ *
+ * A binary packet starts with {@link #MAGIC}, which can never start an OSC packet (those start with '/' or '#').
+ * Decoding turns binary packets back into ordinary {@link OSCMessage}s, so listeners see no difference. Only messages
+ * created as a {@link CompactMessage} are encoded in binary, everything else, including all user messages, is encoded
+ * as OSC. Binary is only sent to devices that advertise support for {@link #VERSION} in their /device/alive messages.
+ *
+ * Frame layout: MAGIC, version, varint opcode, varint field count, then for each field a type tag followed by the
+ * value. Tags are 'i' (zigzag varint int), 'h' (zigzag varint long), 'f' (float), 'd' (double), 's' (varint length and
+ * UTF-8 bytes) and 'b' (varint length and bytes).
+ */
+public class ControlCodec extends OSCPacketCodec {
+
+	public static final byte MAGIC = (byte) 0xC7;
+	public static final int VERSION = 1;
+
+	/**
+	 * The built-in messages, in opcode order. Opcodes are the index into this array plus one, so new messages must
+	 * only ever be appended.
+	 */
+	private static final String[] BUILT_IN_MESSAGES = {
+			"/device/set_id",
+			"/device/get_logs",
+			"/device/sync",
+			"/device/reboot",
+			"/device/shutdown",
+			"/device/gain",
+			"/device/reset",
+			"/device/reset_sounding",
+			"/device/clearsound",
+			"/device/fadeout_reset",
+			"/device/fadeout_clearsound",
+			"/device/bleep"
+	};
+
+	private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+	static {
+		for (int i = 0; i < BUILT_IN_MESSAGES.length; i++) {
+			OPCODES.put(BUILT_IN_MESSAGES[i], i + 1);
+		}
+	}
+
+	/**
+	 * Create a codec in {@link Transport#CODEC_MODE}, so longs in ordinary OSC messages are written as int64.
+	 */
+	public ControlCodec() {
+		super(Transport.CODEC_MODE);
+	}
+
+	/**
+	 * An {@link OSCMessage} that a {@link ControlCodec} encodes in the compact binary form. The message must be one
+	 * of the built-in messages.
+	 */
+	public static class CompactMessage extends OSCMessage {
+		public CompactMessage(String name, Object[] args) {
+			super(name, args);
+			if (!isBuiltIn(name)) {
+				throw new IllegalArgumentException("Not a built-in control message: " + name);
+			}
+		}
+	}
+
+	/**
+	 * @param name the message name.
+	 * @return true if the message has a binary opcode.
+	 */
+	public static boolean isBuiltIn(String name) {
+		return OPCODES.containsKey(name);
+	}
+
+	@Override
+	public OSCPacket decode(ByteBuffer b) throws IOException {
+		if (b.remaining() > 0 && b.get(b.position()) == MAGIC) {
+			return decodeCompact(b);
+		}
+		return super.decode(b);
+	}
+
+	@Override
+	public void encode(OSCPacket p, ByteBuffer b) throws IOException {
+		if (p instanceof CompactMessage) {
+			encodeCompact((CompactMessage) p, b);
+		} else {
+			super.encode(p, b);
+		}
+	}
+
+	@Override
+	public int getSize(OSCPacket p) throws IOException {
+		if (p instanceof CompactMessage) {
+			return compactSize((CompactMessage) p);
+		}
+		if (p instanceof OSCBundle && containsCompact((OSCBundle) p)) {
+			//OSC strings are padded from the start of the buffer, so a message after a compact one may take a few
+			//extra bytes, which is easiest to count by encoding the bundle
+			ByteBuffer b = ByteBuffer.allocate(super.getSize(p) + 4 * ((OSCBundle) p).getPacketCount());
+			encode(p, b);
+			return b.position();
+		}
+		return super.getSize(p);
+	}
+
+	private static boolean containsCompact(OSCBundle bundle) {
+		for (int i = 0; i < bundle.getPacketCount(); i++) {
+			OSCPacket p = bundle.getPacket(i);
+			if (p instanceof CompactMessage || (p instanceof OSCBundle && containsCompact((OSCBundle) p))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Encode a built-in message in the compact binary form.
+	 *
+	 * @param msg the message.
+	 * @param b the buffer to write to.
+	 * @throws IOException if an argument has a type that cannot be encoded.
+	 */
+	public static void encodeCompact(OSCMessage msg, ByteBuffer b) throws IOException {
+		Integer opcode = OPCODES.get(msg.getName());
+		if (opcode == null) {
+			throw new IOException("Not a built-in control message: " + msg.getName());
+		}
+		b.put(MAGIC);
+		b.put((byte) VERSION);
+		putVarint(b, opcode);
+		putVarint(b, msg.getArgCount());
+		for (int i = 0; i < msg.getArgCount(); i++) {
+			Object arg = msg.getArg(i);
+			if (arg instanceof Integer) {
+				b.put((byte) 'i');
+				putVarint(b, zigzag((Integer) arg));
+			} else if (arg instanceof Long) {
+				b.put((byte) 'h');
+				putVarint(b, zigzag((Long) arg));
+			} else if (arg instanceof Float) {
+				b.put((byte) 'f');
+				b.putFloat((Float) arg);
+			} else if (arg instanceof Double) {
+				b.put((byte) 'd');
+				b.putDouble((Double) arg);
+			} else if (arg instanceof String) {
+				byte[] bytes = ((String) arg).getBytes(StandardCharsets.UTF_8);
+				b.put((byte) 's');
+				putVarint(b, bytes.length);
+				b.put(bytes);
+			} else if (arg instanceof byte[]) {
+				byte[] bytes = (byte[]) arg;
+				b.put((byte) 'b');
+				putVarint(b, bytes.length);
+				b.put(bytes);
+			} else {
+				throw new IOException("Unsupported argument type for control message: " + (arg == null ? null : arg.getClass()));
+			}
+		}
+	}
+
+	/**
+	 * Decode a packet in the compact binary form.
+	 *
+	 * @param b the buffer, positioned at {@link #MAGIC}.
+	 * @return the decoded message.
+	 * @throws IOException if the packet is malformed or from an unknown version.
+	 */
+	public static OSCMessage decodeCompact(ByteBuffer b) throws IOException {
+		try {
+			if (b.get() != MAGIC) {
+				throw new IOException("Not a compact control packet");
+			}
+			int version = b.get();
+			if (version != VERSION) {
+				throw new IOException("Unsupported control protocol version " + version);
+			}
+			long opcode = getVarint(b);
+			if (opcode < 1 || opcode > BUILT_IN_MESSAGES.length) {
+				throw new IOException("Unknown control opcode " + opcode);
+			}
+			int argCount = (int) getVarint(b);
+			if (argCount > b.remaining()) {
+				throw new IOException("Bad control argument count " + argCount);
+			}
+			Object[] args = new Object[argCount];
+			for (int i = 0; i < argCount; i++) {
+				byte tag = b.get();
+				switch (tag) {
+					case 'i':
+						args[i] = (int) unzigzag(getVarint(b));
+						break;
+					case 'h':
+						args[i] = unzigzag(getVarint(b));
+						break;
+					case 'f':
+						args[i] = b.getFloat();
+						break;
+					case 'd':
+						args[i] = b.getDouble();
+						break;
+					case 's': {
+						byte[] bytes = new byte[(int) getVarint(b)];
+						b.get(bytes);
+						args[i] = new String(bytes, StandardCharsets.UTF_8);
+						break;
+					}
+					case 'b': {
+						byte[] bytes = new byte[(int) getVarint(b)];
+						b.get(bytes);
+						args[i] = bytes;
+						break;
+					}
+					default:
+						throw new IOException("Unknown control argument type " + tag);
+				}
+			}
+			return new OSCMessage(BUILT_IN_MESSAGES[(int) opcode - 1], args);
+		} catch (RuntimeException e) {
+			//buffer underflows and negative lengths from truncated or corrupt packets
+			throw new IOException("Malformed control packet", e);
+		}
+	}
+
+	/**
+	 * @param msg a built-in message.
+	 * @return the number of bytes the message takes in the compact binary form.
+	 * @throws IOException if an argument has a type that cannot be encoded.
+	 */
+	public static int compactSize(OSCMessage msg) throws IOException {
+		Integer opcode = OPCODES.get(msg.getName());
+		if (opcode == null) {
+			throw new IOException("Not a built-in control message: " + msg.getName());
+		}
+		int size = 2 + varintSize(opcode) + varintSize(msg.getArgCount());
+		for (int i = 0; i < msg.getArgCount(); i++) {
+			Object arg = msg.getArg(i);
+			size += 1;
+			if (arg instanceof Integer) {
+				size += varintSize(zigzag((Integer) arg));
+			} else if (arg instanceof Long) {
+				size += varintSize(zigzag((Long) arg));
+			} else if (arg instanceof Float) {
+				size += 4;
+			} else if (arg instanceof Double) {
+				size += 8;
+			} else if (arg instanceof String) {
+				int length = ((String) arg).getBytes(StandardCharsets.UTF_8).length;
+				size += varintSize(length) + length;
+			} else if (arg instanceof byte[]) {
+				int length = ((byte[]) arg).length;
+				size += varintSize(length) + length;
+			} else {
+				throw new IOException("Unsupported argument type for control message: " + (arg == null ? null : arg.getClass()));
+			}
+		}
+		return size;
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static void putVarint(ByteBuffer b, long value) {
+		while ((value & ~0x7FL) != 0) {
+			b.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		b.put((byte) value);
+	}
+
+	static long getVarint(ByteBuffer b) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte next = b.get();
+			value |= (long) (next & 0x7F) << shift;
+			if ((next & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Varint too long");
+	}
+
+	static int varintSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			size++;
+			value >>>= 7;
+		}
+		return size;
+	}
+}
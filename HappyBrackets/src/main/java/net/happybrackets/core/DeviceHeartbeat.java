@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The compact keep-alive of a device. Instead of repeating its name, hostname, IP and status string in every
+ * /device/alive message, a device picks a random token when it starts and numbers each version of its status. Its
+ * keep-alives are then just a {@link #MESSAGE_NAME} message carrying the token and the version, and the full
+ * /device/alive message, which now ends with the token and version too, is only sent when the status changes, when
+ * someone asks for it with a {@link #RESYNC_MESSAGE_NAME} message, or every {@link #FULL_STATUS_INTERVAL} so that
+ * nobody stays out of date for long if a resync is lost.
+ *
+ * A controller or peer that hears a heartbeat for a token it doesn't know, or for a version other than the one it has,
+ * has missed a full status and asks the device for it again. Otherwise the heartbeat only tells it the device is still
+ * there, which needs no string comparisons.
+ *
+ * This class keeps the device's side of the protocol, and has the helpers for reading the token and version out of
+ * either message.
+ */
+public class DeviceHeartbeat {
+
+	/**
+	 * The name of the full status message.
+	 */
+	public static final String ALIVE_MESSAGE_NAME = "/device/alive";
+
+	/**
+	 * The name of the compact keep-alive message, whose arguments are the token and the status version.
+	 */
+	public static final String MESSAGE_NAME = "/device/heartbeat";
+
+	/**
+	 * The name of the message that asks the device with the token in its only argument to send its full status.
+	 */
+	public static final String RESYNC_MESSAGE_NAME = "/device/resync";
+
+	/**
+	 * The position of the token in a full status message. The version follows it.
+	 */
+	public static final int ALIVE_TOKEN_ARG = 9;
+
+	/**
+	 * The longest time between full status messages, in ms.
+	 */
+	public static final long FULL_STATUS_INTERVAL = 30000;
+
+	private final int token;
+	private int version;
+	private Object[] lastStatus;
+	private boolean resyncRequested = true;
+	private long lastFullStatus;
+
+	/**
+	 * Create a heartbeat with a new random token.
+	 */
+	public DeviceHeartbeat() {
+		this(new Random());
+	}
+
+	/**
+	 * @param random the source of the token.
+	 */
+	public DeviceHeartbeat(Random random) {
+		int t;
+		do {
+			t = random.nextInt();
+		} while (t == 0);		//0 is what devices that don't send a token look like
+		token = t;
+	}
+
+	public int getToken() {
+		return token;
+	}
+
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Give the heartbeat the current status, everything the full status message says that others keep. If anything is
+	 * different from last time the version goes up.
+	 *
+	 * @param status the status fields, compared with {@link Object#equals(Object)}.
+	 * @return true if the status changed.
+	 */
+	public synchronized boolean update(Object... status) {
+		if (Arrays.equals(status, lastStatus)) {
+			return false;
+		}
+		lastStatus = status.clone();
+		version++;
+		resyncRequested = true;
+		return true;
+	}
+
+	/**
+	 * Ask for the full status to be sent next time, because someone has missed it.
+	 */
+	public synchronized void requestResync() {
+		resyncRequested = true;
+	}
+
+	/**
+	 * @param timeNow the current time in ms.
+	 * @return true if the next keep-alive should be the full status rather than a heartbeat.
+	 */
+	public synchronized boolean needsFullStatus(long timeNow) {
+		return resyncRequested || timeNow - lastFullStatus >= FULL_STATUS_INTERVAL;
+	}
+
+	/**
+	 * Note that the full status has just been sent.
+	 *
+	 * @param timeNow the current time in ms.
+	 */
+	public synchronized void sentFullStatus(long timeNow) {
+		resyncRequested = false;
+		lastFullStatus = timeNow;
+	}
+
+	/**
+	 * @param aliveArgs the arguments of the full status message, without the token and version.
+	 * @return the arguments with the token and version added at {@link #ALIVE_TOKEN_ARG}.
+	 */
+	public synchronized Object[] withToken(Object[] aliveArgs) {
+		Object[] args = Arrays.copyOf(aliveArgs, ALIVE_TOKEN_ARG + 2);
+		args[ALIVE_TOKEN_ARG] = token;
+		args[ALIVE_TOKEN_ARG + 1] = version;
+		return args;
+	}
+
+	/**
+	 * @return the heartbeat as a {@link #MESSAGE_NAME} message.
+	 */
+	public synchronized OSCMessage toMessage() {
+		return new OSCMessage(MESSAGE_NAME, new Object[] {token, version});
+	}
+
+	/**
+	 * @param msg a {@link #MESSAGE_NAME} or {@link #ALIVE_MESSAGE_NAME} message.
+	 * @return the token in the message, or 0 if it doesn't have one, as from devices running older versions.
+	 */
+	public static int tokenOf(OSCMessage msg) {
+		int arg = msg.getName().equals(MESSAGE_NAME) ? 0 : ALIVE_TOKEN_ARG;
+		if (msg.getArgCount() < arg + 2 || !(msg.getArg(arg) instanceof Integer)) {
+			return 0;
+		}
+		return (Integer) msg.getArg(arg);
+	}
+
+	/**
+	 * @param msg a {@link #MESSAGE_NAME} or {@link #ALIVE_MESSAGE_NAME} message with a token.
+	 * @return the status version in the message.
+	 */
+	public static int versionOf(OSCMessage msg) {
+		int arg = msg.getName().equals(MESSAGE_NAME) ? 1 : ALIVE_TOKEN_ARG + 1;
+		return ((Number) msg.getArg(arg)).intValue();
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs events at given times on a single thread. Times are given according to a clock supplied by the owner, such as
+ * the synchronized clock of the {@link Synchronizer}, and are converted to deadlines on {@link System#nanoTime()}.
+ * The thread sleeps until shortly before the next deadline and then spins for the remainder, so events fire within
+ * microseconds of their deadline rather than at the mercy of {@link Thread#sleep(long)}.
+ *
+ * When the owner's clock is corrected it calls {@link #clockChanged()} so every pending event is moved to its new
+ * deadline.
+ *
+ * Events run one at a time on the scheduler thread, so an event that takes a long time delays the ones after it.
+ * Long running work should be handed to another thread.
+ */
+public class EventScheduler {
+
+	final static Logger logger = LoggerFactory.getLogger(EventScheduler.class);
+
+	/**
+	 * How long before a deadline the thread stops sleeping and starts spinning, in ns.
+	 */
+	public static final long DEFAULT_SPIN_NANOS = 1000000;
+
+	/**
+	 * A scheduled event, which can be cancelled until it runs.
+	 */
+	public class Handle implements Comparable<Handle> {
+		private final Runnable runnable;
+		private final long time;
+		private final long sequence;
+		private volatile long deadline;
+		private volatile boolean cancelled;
+		private volatile boolean done;
+
+		private Handle(Runnable runnable, long time, long sequence) {
+			this.runnable = runnable;
+			this.time = time;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Stop the event from running.
+		 *
+		 * @return true if the event was cancelled, false if it has already run or been cancelled.
+		 */
+		public boolean cancel() {
+			synchronized (EventScheduler.this) {
+				if (done || cancelled) {
+					return false;
+				}
+				cancelled = true;
+				queue.remove(this);
+				EventScheduler.this.notifyAll();
+				return true;
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * @return true once the event has run, or started running.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * @return the time the event is scheduled for, according to the scheduler's clock, in ns.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public int compareTo(Handle other) {
+			if (deadline != other.deadline) {
+				return deadline < other.deadline ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final LongSupplier clock;
+	private final long spinNanos;
+	private final PriorityQueue<Handle> queue = new PriorityQueue<>();
+	private long sequence = 0;
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Create a new EventScheduler and start its thread.
+	 *
+	 * @param clock the clock event times are given in, in ns.
+	 */
+	public EventScheduler(LongSupplier clock) {
+		this(clock, DEFAULT_SPIN_NANOS);
+	}
+
+	/**
+	 * Create a new EventScheduler and start its thread.
+	 *
+	 * @param clock the clock event times are given in, in ns.
+	 * @param spinNanos how long before each deadline to start spinning, in ns. 0 relies on sleeping alone.
+	 */
+	public EventScheduler(LongSupplier clock, long spinNanos) {
+		this.clock = clock;
+		this.spinNanos = spinNanos;
+		running = true;
+		thread = new Thread("EventScheduler") {
+			public void run() {
+				runEvents();
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Schedule an event.
+	 *
+	 * @param runnable the event.
+	 * @param time the time to run the event, according to the scheduler's clock, in ns. Times in the past run as soon as possible.
+	 * @return a handle that can cancel the event.
+	 */
+	public synchronized Handle schedule(Runnable runnable, long time) {
+		Handle handle = new Handle(runnable, time, sequence++);
+		handle.deadline = System.nanoTime() + (time - clock.getAsLong());
+		queue.add(handle);
+		notifyAll();
+		return handle;
+	}
+
+	/**
+	 * Move every pending event to its deadline according to the current value of the clock. Call this whenever the
+	 * clock is corrected.
+	 */
+	public synchronized void clockChanged() {
+		if (queue.isEmpty()) {
+			return;
+		}
+		long offset = System.nanoTime() - clock.getAsLong();
+		List<Handle> pending = new ArrayList<>(queue);
+		queue.clear();
+		for (Handle handle : pending) {
+			handle.deadline = handle.time + offset;
+		}
+		queue.addAll(pending);
+		notifyAll();
+	}
+
+	/**
+	 * @return the number of events waiting to run.
+	 */
+	public synchronized int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Stop the scheduler thread. Pending events are never run.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		queue.clear();
+		notifyAll();
+	}
+
+	private void runEvents() {
+		while (running) {
+			Handle next;
+			synchronized (this) {
+				next = queue.peek();
+				if (next == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						logger.debug("EventScheduler interrupted", e);
+					}
+					continue;
+				}
+				long sleep = next.deadline - System.nanoTime() - spinNanos;
+				if (sleep > 0) {
+					try {
+						wait(sleep / 1000000, (int) (sleep % 1000000));
+					} catch (InterruptedException e) {
+						logger.debug("EventScheduler interrupted", e);
+					}
+					//events may have been added, cancelled or moved while waiting
+					continue;
+				}
+			}
+			//spin without holding the lock so events can still be scheduled and cancelled
+			while (running && !next.cancelled && System.nanoTime() < next.deadline) {
+				Thread.yield();
+			}
+			synchronized (this) {
+				if (queue.peek() != next || System.nanoTime() < next.deadline) {
+					continue;
+				}
+				queue.poll();
+				next.done = true;
+			}
+			try {
+				next.runnable.run();
+			} catch (Exception e) {
+				logger.error("Error running scheduled event", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses which device leads clock synch, so that the choice stays put while the fleet changes.
+ *
+ * Devices are ranked by their configured priority and then by id. The ranking only decides the leader when there is
+ * no leader yet. After that:
+ * <ul>
+ *     <li>the leader keeps the role for as long as it is heard from, however many higher ranked devices join;</li>
+ *     <li>a device with a strictly higher priority than the leader takes over, but only after being heard from for
+ *     {@link #getHoldoff()} without a break, and, if it is this device, only once it has synced to the old leader, so
+ *     the fleet's time carries on from where it was;</li>
+ *     <li>a device that starts or loses its leader adopts the leader that the other devices report following, and only
+ *     falls back to the ranking if none of them is reachable;</li>
+ *     <li>a leader that finds most devices following another leader of at least its priority joins them, which settles
+ *     who leads when devices start together or two groups of devices merge;</li>
+ *     <li>a device whose leader reports having joined another leader treats its leader as lost, as it no longer answers
+ *     its followers.</li>
+ * </ul>
+ *
+ * Times are passed in so that the election can be simulated.
+ */
+public class LeaderElection {
+
+	final static Logger logger = LoggerFactory.getLogger(LeaderElection.class);
+
+	private static class Candidate {
+		int priority;
+		String reportedLeader;
+		long lastHeard;
+	}
+
+	private final Map<String, Candidate> candidates = new Hashtable<String, Candidate>();
+	private final long timeout;
+	private final long holdoff;
+	private String myId;
+	private int myPriority;
+	private String leader;
+	private String challenger;
+	private long challengerSince;
+
+	/**
+	 * @param myId the id of this device.
+	 * @param myPriority the priority of this device.
+	 * @param timeout how long since a device was last heard before it is gone.
+	 * @param holdoff how long a higher priority device must be heard from before it takes over.
+	 */
+	public LeaderElection(String myId, int myPriority, long timeout, long holdoff) {
+		this.myId = myId;
+		this.myPriority = myPriority;
+		this.timeout = timeout;
+		this.holdoff = holdoff;
+	}
+
+	public synchronized void setMyId(String myId) {
+		if (myId.equals(leader) || this.myId.equals(leader)) {
+			leader = myId;
+		}
+		this.myId = myId;
+	}
+
+	public synchronized String getMyId() {
+		return myId;
+	}
+
+	public synchronized int getMyPriority() {
+		return myPriority;
+	}
+
+	public long getHoldoff() {
+		return holdoff;
+	}
+
+	/**
+	 * Record a message from another device.
+	 *
+	 * @param id the device.
+	 * @param priority its priority.
+	 * @param reportedLeader the leader it follows, or null if it didn't say.
+	 * @param time the time now.
+	 */
+	public synchronized void heard(String id, int priority, String reportedLeader, long time) {
+		if (id.equals(myId)) {
+			return;
+		}
+		Candidate candidate = candidates.get(id);
+		if (candidate == null) {
+			candidate = new Candidate();
+			candidates.put(id, candidate);
+		}
+		candidate.priority = priority;
+		candidate.reportedLeader = reportedLeader;
+		candidate.lastHeard = time;
+	}
+
+	/**
+	 * Choose the leader.
+	 *
+	 * @param time the time now.
+	 * @param synced true if this device has synced to the current leader, which it must have before it takes over.
+	 * @return the leader, which may be this device.
+	 */
+	public synchronized String update(long time, boolean synced) {
+		Iterator<Map.Entry<String, Candidate>> it = candidates.entrySet().iterator();
+		while (it.hasNext()) {
+			if (time - it.next().getValue().lastHeard > timeout) {
+				it.remove();
+			}
+		}
+		if (leader != null && !leader.equals(myId) && !candidates.containsKey(leader)) {
+			logger.info("Lost clock leader {}", leader);
+			leader = null;
+		} else if (leader != null && !leader.equals(myId) && hasJoinedAnother(leader)) {
+			//it has joined another leader, so it no longer answers this device
+			logger.info("Clock leader {} has stood down", leader);
+			leader = null;
+		}
+		if (leader == null) {
+			leader = reportedLeader(null);
+			if (leader == null) {
+				leader = best(true);
+			}
+			challenger = null;
+			logger.info("Clock leader is {}", leader);
+			return leader;
+		}
+		if (leader.equals(myId)) {
+			String reported = reportedLeader(myId);
+			if (reported != null && !reported.equals(myId) && priority(reported) >= myPriority) {
+				logger.info("Clock leader {} joining {}", myId, reported);
+				leader = reported;
+				challenger = null;
+				return leader;
+			}
+		}
+		String best = best(synced || leader.equals(myId));
+		if (priority(best) > priority(leader)) {
+			if (!best.equals(challenger)) {
+				challenger = best;
+				challengerSince = time;
+			} else if (time - challengerSince >= holdoff) {
+				logger.info("Clock leader {} handing over to {}", leader, best);
+				leader = best;
+				challenger = null;
+			}
+		} else {
+			challenger = null;
+		}
+		return leader;
+	}
+
+	public synchronized String getLeader() {
+		return leader;
+	}
+
+	public synchronized boolean isLeader() {
+		return myId.equals(leader);
+	}
+
+	/**
+	 * @param myVote the leader this device follows, or null to leave it out of the count.
+	 * @return the live leader reported by most of the devices, ties going to the highest ranked, or null if none.
+	 */
+	private String reportedLeader(String myVote) {
+		Map<String, Integer> votes = new HashMap<String, Integer>();
+		if (myVote != null) {
+			votes.put(myVote, 1);
+		}
+		for (Candidate candidate : candidates.values()) {
+			String reported = candidate.reportedLeader;
+			if (reported != null && (reported.equals(myId) || candidates.containsKey(reported))) {
+				votes.merge(reported, 1, Integer::sum);
+			}
+		}
+		String chosen = null;
+		int most = 0;
+		for (Map.Entry<String, Integer> vote : votes.entrySet()) {
+			if (vote.getValue() > most || (vote.getValue() == most && outranks(vote.getKey(), chosen))) {
+				chosen = vote.getKey();
+				most = vote.getValue();
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * @return true if the given device reports following another device of at least its priority, as a leader does when
+	 * it joins another. A device of higher priority taking over still reports the old leader until it has synced.
+	 */
+	private boolean hasJoinedAnother(String id) {
+		Candidate candidate = candidates.get(id);
+		return candidate != null && candidate.reportedLeader != null && !candidate.reportedLeader.equals(id)
+				&& priority(candidate.reportedLeader) >= candidate.priority;
+	}
+
+	private String best(boolean includeMe) {
+		String best = includeMe ? myId : null;
+		for (String id : candidates.keySet()) {
+			if (best == null || outranks(id, best)) {
+				best = id;
+			}
+		}
+		return best == null ? myId : best;
+	}
+
+	private boolean outranks(String a, String b) {
+		if (b == null) {
+			return true;
+		}
+		int pa = priority(a), pb = priority(b);
+		return pa != pb ? pa > pb : a.compareTo(b) > 0;
+	}
+
+	private int priority(String id) {
+		if (id.equals(myId)) {
+			return myPriority;
+		}
+		Candidate candidate = candidates.get(id);
+		return candidate == null ? Integer.MIN_VALUE : candidate.priority;
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
+import de.sciss.net.OSCPacketCodec;
+import net.happybrackets.core.transport.Transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs messages sent within a short window of each other into a single {@link OSCBundle}, so that a burst of
+ * messages, such as a device's synch reports or a stream of sensor values, goes out as one datagram instead of many.
+ *
+ * The first message added starts the window. When the window closes, or sooner if the next message would take the
+ * bundle over {@link #getMaxBytes()}, everything waiting is sent: a lone message on its own, more than one as a bundle
+ * that is to be acted on straight away. Receivers built on {@link de.sciss.net.OSCReceiver} unpack bundles and pass
+ * the messages to their listeners one by one, so they need no changes.
+ *
+ * The batcher keeps count of how many messages go in each datagram and how long messages wait to be sent, so the
+ * window can be tuned against the latency it adds.
+ */
+public class MessageBatcher {
+
+	final static Logger logger = LoggerFactory.getLogger(MessageBatcher.class);
+
+	/**
+	 * The default largest bundle, in bytes, which fits in one Ethernet or Wi-Fi frame.
+	 */
+	public static final int DEFAULT_MAX_BYTES = 1400;
+
+	/**
+	 * Sends a message or bundle.
+	 */
+	public interface Sender {
+		void send(OSCPacket packet) throws IOException;
+	}
+
+	private final long window;
+	private final int maxBytes;
+	private final Sender sender;
+	private final OSCPacketCodec codec;		//measures messages as the sender encodes them
+	private final List<OSCMessage> pending = new ArrayList<>();
+	private int pendingBytes;
+	private long windowStart;		//ns, when the first pending message was added
+	private long pendingAddedSum;	//ns, the sum of the times the pending messages were added
+	private Thread thread;
+	private volatile boolean running;
+
+	//metrics
+	private long batches;
+	private long messages;
+	private int maxBatch;
+	private long totalWait;			//ns
+	private long maxWait;			//ns
+
+	/**
+	 * Create a new MessageBatcher for a sender that encodes in {@link Transport#CODEC_MODE}, and start its thread.
+	 *
+	 * @param window how long to wait for more messages after the first, in ms.
+	 * @param maxBytes the largest bundle to send, in bytes.
+	 * @param sender sends the messages and bundles, on the batcher's thread or the thread adding a message.
+	 */
+	public MessageBatcher(double window, int maxBytes, Sender sender) {
+		this(window, maxBytes, sender, Transport.newCodec());
+	}
+
+	/**
+	 * Create a new MessageBatcher and start its thread.
+	 *
+	 * @param window how long to wait for more messages after the first, in ms.
+	 * @param maxBytes the largest bundle to send, in bytes.
+	 * @param sender sends the messages and bundles, on the batcher's thread or the thread adding a message.
+	 * @param codec a codec that encodes messages the way the sender does, so that bundles are measured in the bytes
+	 *              actually sent.
+	 */
+	public MessageBatcher(double window, int maxBytes, Sender sender, OSCPacketCodec codec) {
+		this.window = (long) (window * 1000000);
+		this.maxBytes = maxBytes;
+		this.sender = sender;
+		this.codec = codec;
+		running = true;
+		thread = new Thread("MessageBatcher") {
+			public void run() {
+				runFlushes();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Add a message to the current batch.
+	 *
+	 * @param msg the message.
+	 */
+	public void add(OSCMessage msg) {
+		int size = sizeOf(msg);
+		Batch full = null;
+		synchronized (this) {
+			if (!pending.isEmpty() && pendingBytes + size > maxBytes) {
+				full = takePending();
+			}
+			long now = System.nanoTime();
+			if (pending.isEmpty()) {
+				windowStart = now;
+				//the bundle header and time tag
+				pendingBytes = 16;
+				notifyAll();
+			}
+			pending.add(msg);
+			pendingBytes += size + 4;
+			pendingAddedSum += now;
+		}
+		if (full != null) {
+			send(full);
+		}
+	}
+
+	/**
+	 * Send everything waiting now.
+	 */
+	public void flush() {
+		Batch batch;
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = takePending();
+		}
+		send(batch);
+	}
+
+	/**
+	 * Send everything waiting and stop the batcher's thread.
+	 */
+	public void close() {
+		running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		flush();
+	}
+
+	/**
+	 * @return the window, in ms.
+	 */
+	public double getWindow() {
+		return window / 1e6;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the number of datagrams sent.
+	 */
+	public synchronized long getBatchCount() {
+		return batches;
+	}
+
+	/**
+	 * @return the number of messages sent.
+	 */
+	public synchronized long getMessageCount() {
+		return messages;
+	}
+
+	/**
+	 * @return the mean number of messages in a datagram.
+	 */
+	public synchronized double getMeanBatchSize() {
+		return batches == 0 ? 0 : (double) messages / batches;
+	}
+
+	/**
+	 * @return the most messages sent in one datagram.
+	 */
+	public synchronized int getMaxBatchSize() {
+		return maxBatch;
+	}
+
+	/**
+	 * @return the mean time a message has waited to be sent, in ms.
+	 */
+	public synchronized double getMeanWait() {
+		return messages == 0 ? 0 : totalWait / 1e6 / messages;
+	}
+
+	/**
+	 * @return the longest a message has waited to be sent, in ms.
+	 */
+	public synchronized double getMaxWait() {
+		return maxWait / 1e6;
+	}
+
+	/**
+	 * The messages taken from the window to be sent together.
+	 */
+	private static class Batch {
+		final List<OSCMessage> messages;
+		final long start;
+		final long addedSum;
+
+		Batch(List<OSCMessage> messages, long start, long addedSum) {
+			this.messages = messages;
+			this.start = start;
+			this.addedSum = addedSum;
+		}
+	}
+
+	private Batch takePending() {
+		Batch batch = new Batch(new ArrayList<>(pending), windowStart, pendingAddedSum);
+		pending.clear();
+		pendingAddedSum = 0;
+		return batch;
+	}
+
+	private void send(Batch batch) {
+		int count = batch.messages.size();
+		long sentAt = System.nanoTime();
+		try {
+			if (count == 1) {
+				sender.send(batch.messages.get(0));
+			} else {
+				OSCBundle bundle = new OSCBundle(OSCBundle.NOW);
+				for (OSCMessage msg : batch.messages) {
+					bundle.addPacket(msg);
+				}
+				sender.send(bundle);
+			}
+		} catch (IOException e) {
+			logger.error("Error sending a batch of {} messages", count, e);
+		}
+		synchronized (this) {
+			batches++;
+			messages += count;
+			maxBatch = Math.max(maxBatch, count);
+			totalWait += sentAt * count - batch.addedSum;
+			maxWait = Math.max(maxWait, sentAt - batch.start);
+		}
+	}
+
+	private void runFlushes() {
+		while (running) {
+			synchronized (this) {
+				long wait = pending.isEmpty() ? 0 : windowStart + window - System.nanoTime();
+				if (pending.isEmpty() || wait > 0) {
+					try {
+						if (pending.isEmpty()) {
+							wait();
+						} else {
+							wait(wait / 1000000, (int) (wait % 1000000));
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+			}
+			flush();
+		}
+	}
+
+	private int sizeOf(OSCMessage msg) {
+		try {
+			return codec.getSize(msg);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
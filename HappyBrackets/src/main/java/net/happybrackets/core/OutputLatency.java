@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+
+/**
+ * A device's estimate of its output latency, the time between the audio for a moment being calculated and it coming out
+ * of the speaker, which devices report to the controller. The estimate is made of the audio buffered on its way to the
+ * sound card, the measured jitter of the audio thread, and any extra latency of the driver and converters set by hand.
+ * The device triggers synchronized events early by the total, so that devices with different buffer settings are heard
+ * together.
+ *
+ * All times are in us.
+ */
+public class OutputLatency {
+
+	/**
+	 * The name of the message devices report their output latency to the controller with.
+	 */
+	public static final String MESSAGE_NAME = "/device/latency";
+
+	public final long buffered;
+	public final long jitter;
+	public final long extra;
+	public final long total;
+
+	/**
+	 * @param buffered the latency of the audio buffers.
+	 * @param jitter the measured jitter of the audio thread.
+	 * @param extra the extra latency of the driver and converters.
+	 * @param total the latency events are compensated for, which is the sum of the others unless it has been set by
+	 *              hand.
+	 */
+	public OutputLatency(long buffered, long jitter, long extra, long total) {
+		this.buffered = buffered;
+		this.jitter = jitter;
+		this.extra = extra;
+		this.total = total;
+	}
+
+	/**
+	 * @param deviceName the name of the device the latency belongs to.
+	 * @return the latency as a {@link #MESSAGE_NAME} message.
+	 */
+	public OSCMessage toMessage(String deviceName) {
+		return new OSCMessage(MESSAGE_NAME, new Object[] {deviceName, total, buffered, jitter, extra});
+	}
+
+	/**
+	 * @param msg a {@link #MESSAGE_NAME} message.
+	 * @return the latency in the message. The name of the device that sent it is the message's first argument.
+	 */
+	public static OutputLatency fromMessage(OSCMessage msg) {
+		return new OutputLatency(
+				((Number) msg.getArg(2)).longValue(),
+				((Number) msg.getArg(3)).longValue(),
+				((Number) msg.getArg(4)).longValue(),
+				((Number) msg.getArg(1)).longValue()
+		);
+	}
+
+	/**
+	 * @return a short summary, in ms, for display.
+	 */
+	public String summary() {
+		return String.format("%.1fms (buffers %.1fms jitter %.1fms extra %.1fms)", total / 1000.0, buffered / 1000.0, jitter / 1000.0, extra / 1000.0);
+	}
+
+	@Override
+	public String toString() {
+		return "output latency " + summary();
+	}
+}
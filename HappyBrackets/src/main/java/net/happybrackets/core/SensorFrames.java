@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A run of sensor frames from one device, packed into a single message for streaming to the controller.
+ *
+ * Every frame of a stream has the same layout: the synchronized time the frame was read, as us after the time of the
+ * first frame in the message, followed by one 32 bit float for each channel, all big-endian. The frames go in one OSC
+ * blob, so a message of many frames costs little more than its data, where sending each value in a message of its own
+ * would cost a message, a type tag and a boxed number each. The message's arguments are the device name, the stream
+ * name, the number of channels, the synchronized time of the first frame in us, a sequence number that goes up by one
+ * with each message of the stream so the receiver can count lost messages, and the blob.
+ */
+public class SensorFrames {
+
+	/**
+	 * The name of the message devices stream sensor frames to the controller with.
+	 */
+	public static final String MESSAGE_NAME = "/device/sensor_frames";
+
+	public final String device;
+	public final String stream;
+	public final int channels;
+	public final long baseTime;
+	public final int sequence;
+	private final ByteBuffer data;
+
+	private SensorFrames(String device, String stream, int channels, long baseTime, int sequence, ByteBuffer data) {
+		this.device = device;
+		this.stream = stream;
+		this.channels = channels;
+		this.baseTime = baseTime;
+		this.sequence = sequence;
+		this.data = data;
+	}
+
+	/**
+	 * @param channels the number of channels.
+	 * @return the size of a frame, in bytes.
+	 */
+	public static int frameBytes(int channels) {
+		return 4 + 4 * channels;
+	}
+
+	/**
+	 * @return the number of frames.
+	 */
+	public int size() {
+		return data.limit() / frameBytes(channels);
+	}
+
+	/**
+	 * @param frame a frame.
+	 * @return the synchronized time the frame was read, in us.
+	 */
+	public long getTime(int frame) {
+		return baseTime + data.getInt(frame * frameBytes(channels));
+	}
+
+	/**
+	 * @param frame a frame.
+	 * @param channel a channel.
+	 * @return the value of the channel in the frame.
+	 */
+	public float getValue(int frame, int channel) {
+		return data.getFloat(frame * frameBytes(channels) + 4 + 4 * channel);
+	}
+
+	/**
+	 * @param msg a {@link #MESSAGE_NAME} message.
+	 * @return the frames in the message.
+	 * @throws IllegalArgumentException if the blob is not a whole number of frames.
+	 */
+	public static SensorFrames fromMessage(OSCMessage msg) {
+		int channels = ((Number) msg.getArg(2)).intValue();
+		byte[] blob = (byte[]) msg.getArg(5);
+		if (channels <= 0 || blob.length % frameBytes(channels) != 0) {
+			throw new IllegalArgumentException("Sensor frames don't match their channel count");
+		}
+		return new SensorFrames(
+				(String) msg.getArg(0),
+				(String) msg.getArg(1),
+				channels,
+				((Number) msg.getArg(3)).longValue(),
+				((Number) msg.getArg(4)).intValue(),
+				ByteBuffer.wrap(blob)
+		);
+	}
+
+	/**
+	 * Packs frames for a stream, to be sent as a {@link #MESSAGE_NAME} message.
+	 */
+	public static class Writer {
+		private final String stream;
+		private final int channels;
+		private final ByteBuffer data;
+		private long baseTime;
+
+		/**
+		 * @param stream the name of the stream.
+		 * @param channels the number of channels.
+		 * @param maxFrames the most frames a message holds.
+		 */
+		public Writer(String stream, int channels, int maxFrames) {
+			this.stream = stream;
+			this.channels = channels;
+			data = ByteBuffer.allocate(frameBytes(channels) * maxFrames);
+		}
+
+		/**
+		 * Add a frame.
+		 * @param time the synchronized time the frame was read, in us.
+		 * @param values the value of each channel.
+		 * @throws IllegalStateException if the writer is full, or the frame is more than 35 minutes from the first.
+		 */
+		public void add(long time, float[] values) {
+			if (isFull()) {
+				throw new IllegalStateException("Sensor frame writer is full");
+			}
+			if (data.position() == 0) {
+				baseTime = time;
+			}
+			long offset = time - baseTime;
+			if (offset > Integer.MAX_VALUE || offset < Integer.MIN_VALUE) {
+				throw new IllegalStateException("Sensor frame is too far from the first frame");
+			}
+			data.putInt((int) offset);
+			for (int i = 0; i < channels; i++) {
+				data.putFloat(values[i]);
+			}
+		}
+
+		public boolean isEmpty() {
+			return data.position() == 0;
+		}
+
+		public boolean isFull() {
+			return data.remaining() < frameBytes(channels);
+		}
+
+		/**
+		 * @return the number of frames added since the writer was last cleared.
+		 */
+		public int size() {
+			return data.position() / frameBytes(channels);
+		}
+
+		/**
+		 * @return the synchronized time of the first frame, in us.
+		 */
+		public long getBaseTime() {
+			return baseTime;
+		}
+
+		/**
+		 * @param device the name of the device.
+		 * @param sequence the sequence number of the message.
+		 * @return the frames added so far as a {@link #MESSAGE_NAME} message.
+		 */
+		public OSCMessage toMessage(String device, int sequence) {
+			byte[] blob = new byte[data.position()];
+			System.arraycopy(data.array(), 0, blob, 0, blob.length);
+			return new OSCMessage(MESSAGE_NAME, new Object[] {device, stream, channels, baseTime, sequence, blob});
+		}
+
+		/**
+		 * Remove every frame.
+		 */
+		public void clear() {
+			data.clear();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+/**
+ * A correction to add to a local clock that changes linearly with time, so that errors are slewed out gradually rather
+ * than stepped. Each update aims the correction at a target offset, running at the target's drift rate plus a bounded
+ * extra rate that removes the remaining error over {@link #SLEW_TIME}.
+ *
+ * The correction is read without locking, so it can be used on every clock reading.
+ *
+ * Times are in ms by default. Use {@link #SlewingCorrection(long)} for clocks that count in finer units.
+ */
+public class SlewingCorrection {
+
+	/**
+	 * The most a correction can change the speed of the clock by, on top of tracking drift.
+	 */
+	public static final double MAX_SLEW_RATE = 0.0005;
+
+	/**
+	 * How long the correction takes to remove an error, in ms, if that doesn't need a faster slew than
+	 * {@link #MAX_SLEW_RATE}.
+	 */
+	public static final long SLEW_TIME = 10000;
+
+	/**
+	 * Errors bigger than this, in ms, are corrected with a step, as slewing them out would take too long.
+	 */
+	public static final long STEP_THRESHOLD = 1000;
+
+	private static class Line {
+		final double base;
+		final long baseTime;
+		final double rate;
+
+		Line(double base, long baseTime, double rate) {
+			this.base = base;
+			this.baseTime = baseTime;
+			this.rate = rate;
+		}
+
+		double at(long localTime) {
+			return base + rate * (localTime - baseTime);
+		}
+	}
+
+	private final long slewTime;
+	private final long stepThreshold;
+	private volatile Line line = new Line(0, 0, 0);
+	private boolean synced = false;
+	private double error = 0;
+
+	public SlewingCorrection() {
+		this(1);
+	}
+
+	/**
+	 * @param unitsPerMs how many units of the local clock make up a ms, for example 1000 for a clock in us.
+	 */
+	public SlewingCorrection(long unitsPerMs) {
+		slewTime = SLEW_TIME * unitsPerMs;
+		stepThreshold = STEP_THRESHOLD * unitsPerMs;
+	}
+
+	/**
+	 * @param localTime the local time.
+	 * @return the correction at that time.
+	 */
+	public double at(long localTime) {
+		return line.at(localTime);
+	}
+
+	/**
+	 * Stop slewing and keep the correction where it is, for example because this device is the leader.
+	 *
+	 * @param localTime the local time now.
+	 */
+	public synchronized void hold(long localTime) {
+		line = new Line(line.at(localTime), localTime, 0);
+		error = 0;
+	}
+
+	/**
+	 * Aim the correction at a new target. The first target, and any target more than {@link #STEP_THRESHOLD} away, is
+	 * stepped to.
+	 *
+	 * @param localTime the local time now.
+	 * @param target the offset the correction should have now.
+	 * @param drift the rate the target offset changes at.
+	 * @return the size of the step taken, 0 when slewing.
+	 */
+	public synchronized double follow(long localTime, double target, double drift) {
+		double applied = line.at(localTime);
+		double difference = target - applied;
+		if (!synced || Math.abs(difference) > stepThreshold) {
+			line = new Line(target, localTime, drift);
+			synced = true;
+			error = 0;
+			return difference;
+		}
+		double slew = Math.max(-MAX_SLEW_RATE, Math.min(MAX_SLEW_RATE, difference / slewTime));
+		line = new Line(applied, localTime, drift + slew);
+		error = difference;
+		return 0;
+	}
+
+	/**
+	 * @return true once the correction has been aimed at a target.
+	 */
+	public synchronized boolean isSynced() {
+		return synced;
+	}
+
+	/**
+	 * @return the error still being slewed out, as of the last update.
+	 */
+	public synchronized double getError() {
+		return error;
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How well this device is synched to one other device: a histogram of round trip times, the jitter in the round trips,
+ * the estimated offset of the other device's clock and when the last round trip was. The {@link Synchronizer} keeps
+ * one for each device it has had a round trip to, and devices send a {@link Report} of each to the controller.
+ *
+ * Recording never locks, so it can be done from the network threads without holding anything up. Jitter is kept the
+ * way RFC 3550 keeps it, as a running average of the change between consecutive round trips, in fixed point.
+ *
+ * All times are in us except the time of the last update, which is in ms.
+ */
+public class SynchStats {
+
+	/**
+	 * The upper limits of the round trip histogram buckets, in us. The last bucket holds everything longer.
+	 */
+	public static final long[] ROUND_TRIP_BUCKETS = {250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000};
+
+	/**
+	 * The name of the message devices send their reports to the controller with.
+	 */
+	public static final String MESSAGE_NAME = "/device/synch_stats";
+
+	private final AtomicLongArray histogram = new AtomicLongArray(ROUND_TRIP_BUCKETS.length + 1);
+	private final AtomicLong samples = new AtomicLong();
+	private final AtomicLong lastRoundTrip = new AtomicLong(-1);
+	private final AtomicLong scaledJitter = new AtomicLong();		//16 times the jitter, as in RFC 3550
+	private volatile long offset = 0;
+	private volatile long lastUpdate = 0;
+
+	/**
+	 * @param roundTrip a round trip time, in us.
+	 * @return the histogram bucket it belongs in.
+	 */
+	public static int bucket(long roundTrip) {
+		for (int i = 0; i < ROUND_TRIP_BUCKETS.length; i++) {
+			if (roundTrip <= ROUND_TRIP_BUCKETS[i]) {
+				return i;
+			}
+		}
+		return ROUND_TRIP_BUCKETS.length;
+	}
+
+	/**
+	 * Record a round trip.
+	 *
+	 * @param roundTrip the round trip time, in us.
+	 * @param time the local time now, in ms.
+	 */
+	public void recordRoundTrip(long roundTrip, long time) {
+		histogram.incrementAndGet(bucket(roundTrip));
+		samples.incrementAndGet();
+		long previous = lastRoundTrip.getAndSet(roundTrip);
+		if (previous >= 0) {
+			long difference = Math.abs(roundTrip - previous);
+			scaledJitter.getAndUpdate(j -> j + difference - ((j + 8) >> 4));
+		}
+		lastUpdate = time;
+	}
+
+	/**
+	 * @param offset the latest estimate of the other device's clock minus this device's, in us.
+	 */
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the jitter in round trip times, in us.
+	 */
+	public long getJitter() {
+		return scaledJitter.get() >> 4;
+	}
+
+	public long getSampleCount() {
+		return samples.get();
+	}
+
+	/**
+	 * @return the local time of the last round trip, in ms, or 0 if there hasn't been one.
+	 */
+	public long getLastUpdate() {
+		return lastUpdate;
+	}
+
+	/**
+	 * @return a copy of the round trip histogram, with a count for each of {@link #ROUND_TRIP_BUCKETS} and one for
+	 * everything longer.
+	 */
+	public long[] getRoundTripHistogram() {
+		long[] copy = new long[histogram.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = histogram.get(i);
+		}
+		return copy;
+	}
+
+	/**
+	 * @param peer the id of the other device.
+	 * @param role {@link Report#LEADER} if the other device is the leader this device follows, otherwise
+	 *             {@link Report#PEER}.
+	 * @param correctionError the error this device is still slewing out towards the other device, in us, which is 0
+	 *                        unless the other device is its leader.
+	 * @param time the local time now, in ms.
+	 * @return a report of the stats as they are now.
+	 */
+	public Report report(String peer, int role, long correctionError, long time) {
+		return new Report(peer, role, offset, correctionError, getJitter(), lastUpdate == 0 ? -1 : time - lastUpdate, getSampleCount(), getRoundTripHistogram());
+	}
+
+	/**
+	 * A snapshot of a device's {@link SynchStats} for another device, as sent to the controller.
+	 */
+	public static class Report {
+
+		/**
+		 * The role of a report's peer: a device that is not the leader, the leader, or this device, which is the leader.
+		 */
+		public static final int PEER = 0, LEADER = 1, SELF = 2;
+
+		public final String peer;
+		public final int role;
+		public final long offset;
+		public final long correctionError;
+		public final long jitter;
+		public final long age;
+		public final long samples;
+		private final long[] histogram;
+
+		/**
+		 * @param peer the id of the other device.
+		 * @param role one of {@link #PEER}, {@link #LEADER} and {@link #SELF}.
+		 * @param offset the other device's clock minus this device's, in us.
+		 * @param correctionError the error still being slewed out, in us, which is 0 for a {@link #PEER}.
+		 * @param jitter the jitter in round trip times, in us.
+		 * @param age the time since the last round trip, in ms, or -1 if there hasn't been one.
+		 * @param samples the number of round trips.
+		 * @param histogram the round trip histogram.
+		 */
+		public Report(String peer, int role, long offset, long correctionError, long jitter, long age, long samples, long[] histogram) {
+			this.peer = peer;
+			this.role = role;
+			this.offset = offset;
+			this.correctionError = correctionError;
+			this.jitter = jitter;
+			this.age = age;
+			this.samples = samples;
+			this.histogram = histogram.clone();
+		}
+
+		public long[] getRoundTripHistogram() {
+			return histogram.clone();
+		}
+
+		/**
+		 * @param fraction the fraction of round trips, for example 0.9.
+		 * @return the upper limit of the histogram bucket that fraction of the round trips fall within, in us, or -1 if
+		 * that is the last bucket, which has no limit.
+		 */
+		public long roundTripPercentile(double fraction) {
+			long total = 0;
+			for (long count : histogram) {
+				total += count;
+			}
+			long wanted = (long) Math.ceil(total * fraction);
+			long seen = 0;
+			for (int i = 0; i < ROUND_TRIP_BUCKETS.length; i++) {
+				seen += histogram[i];
+				if (seen >= wanted) {
+					return ROUND_TRIP_BUCKETS[i];
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @param deviceName the name of the device sending the report.
+		 * @return the report as a {@link #MESSAGE_NAME} message.
+		 */
+		public OSCMessage toMessage(String deviceName) {
+			Object[] args = new Object[8 + histogram.length];
+			args[0] = deviceName;
+			args[1] = peer;
+			args[2] = role;
+			args[3] = offset;
+			args[4] = correctionError;
+			args[5] = jitter;
+			args[6] = age;
+			args[7] = samples;
+			for (int i = 0; i < histogram.length; i++) {
+				args[8 + i] = histogram[i];
+			}
+			return new OSCMessage(MESSAGE_NAME, args);
+		}
+
+		/**
+		 * @param msg a {@link #MESSAGE_NAME} message.
+		 * @return the report in the message. The name of the device that sent it is the message's first argument.
+		 */
+		public static Report fromMessage(OSCMessage msg) {
+			long[] histogram = new long[msg.getArgCount() - 8];
+			for (int i = 0; i < histogram.length; i++) {
+				histogram[i] = ((Number) msg.getArg(8 + i)).longValue();
+			}
+			return new Report(
+					(String) msg.getArg(1),
+					((Number) msg.getArg(2)).intValue(),
+					((Number) msg.getArg(3)).longValue(),
+					((Number) msg.getArg(4)).longValue(),
+					((Number) msg.getArg(5)).longValue(),
+					((Number) msg.getArg(6)).longValue(),
+					((Number) msg.getArg(7)).longValue(),
+					histogram
+			);
+		}
+
+		/**
+		 * @return false if the report shows a device that has not heard from its leader for a while, or is still
+		 * slewing out an error bigger than {@link Synchronizer#RESAMPLE_ERROR}.
+		 */
+		public boolean isWellSynched() {
+			return role == SELF || (age >= 0 && age <= Synchronizer.LEADER_TIMEOUT && Math.abs(correctionError) <= Synchronizer.RESAMPLE_ERROR);
+		}
+
+		/**
+		 * @return a short summary, in ms, for display.
+		 */
+		public String summary() {
+			if (role == SELF) {
+				return "clock leader";
+			}
+			long p90 = roundTripPercentile(0.9);
+			return String.format("%s offset %.2fms%s jitter %.2fms rtt90 %s age %s",
+					peer,
+					offset / 1000.0,
+					role == PEER ? "" : String.format(" err %.2fms", correctionError / 1000.0),
+					jitter / 1000.0,
+					p90 < 0 ? ">" + ROUND_TRIP_BUCKETS[ROUND_TRIP_BUCKETS.length - 1] / 1000 + "ms" : String.format("%.2fms", p90 / 1000.0),
+					age < 0 ? "never" : age + "ms");
+		}
+	}
+}
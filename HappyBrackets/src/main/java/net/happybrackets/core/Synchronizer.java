@@ -22,9 +22,13 @@ import net.happybrackets.core.config.LoadableConfig;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.function.LongSupplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,31 +38,80 @@ import org.slf4j.LoggerFactory;
  * We keep this independent of the audio system because the audio system start-time needs to be synched.
  *
  * Each synchronizer sends regular pulses every interval with the syntax:
- * s MAC1 timeMS
+ * s MAC1 timeUS
  *
- * An s means send. Upon receiving an s, each synchronizer also responds with
- * r MAC1 timeMS MAC2 timeMS
+ * An s means send. Upon receiving an s, the leader responds, straight to the sender rather than to the whole group, with
+ * r MAC1 timeUS MAC2 timeUS
  *
- * This volley of broadcasts and responses allows each synchronizer to calculate network round-trips and average these over time. The device with the first MAC address, in alphanumeric order, is considered the master timer.
+ * Times are sent as OSC int64 in us. The local clock is {@link System#nanoTime()}, anchored to the wall clock once
+ * when the Synchronizer starts, so it has us resolution and never jumps when NTP or the user sets the system time.
+ *
+ * This volley of broadcasts and responses allows each synchronizer to calculate network round-trips to the leader and average these over time. As only the leader responds, a round of synch takes one multicast pulse and one unicast response per device, so traffic grows linearly with the number of devices. Pulses are paced by a {@link TrickleTimer}: a device that is getting in synch sends them every {@link #MIN_PULSE_INTERVAL} on average, and once it is in synch they back off to {@link #MAX_PULSE_INTERVAL}. Every message also carries the sender's leader priority and the leader it follows, so that a {@link LeaderElection} can agree on a leader that stays put as devices come and go.
+ *
+ * Responses from the leader are fed into a {@link ClockEstimator}, which fits the leader's offset and drift to the responses with the shortest round trips. The correction is then slewed towards that fit at a bounded rate by a {@link SlewingCorrection} rather than stepped, so the synchronized time never jumps once it has been set the first time, including when the leader changes.
  */
 public class Synchronizer {
 
 	final static Logger logger = LoggerFactory.getLogger(Synchronizer.class);
     final static String oscPath = "/hb/synchonizer";
 
-    private BroadcastManager broadcast;
+    private final BroadcastManager broadcast;
+
+	/**
+	 * How long since a device was last heard before it can no longer be the leader, in ms.
+	 */
+	public static final long LEADER_TIMEOUT = 5000;
+
+	/**
+	 * How long a device with a higher leader priority must be heard from before it takes over as leader, in ms.
+	 */
+	public static final long LEADER_HOLDOFF = 10000;
 
-	private String myMAC = "0"; //how to uniquely identify this machine
-	private long timeCorrection = 0;			//add this to current time to getInstance the REAL current time
-	private long stableTimeCorrection = 0;
+	/**
+	 * A change in another device's offset bigger than this, in ms, beyond what the round trip explains, means its clock has been stepped.
+	 */
+	public static final long JUMP_THRESHOLD = 100;
+
+	/**
+	 * The shortest interval between synch pulses, used while a device is getting in synch, in ms.
+	 */
+	public static final long MIN_PULSE_INTERVAL = 250;
+
+	/**
+	 * The longest interval between synch pulses, used once a device is in synch, in ms. This must be well below {@link #LEADER_TIMEOUT}, as the pulses are how devices know each other are there.
+	 */
+	public static final long MAX_PULSE_INTERVAL = 2000;
+
+	/**
+	 * The fewest round trips to the leader a device needs before it slows down its pulses.
+	 */
+	public static final int MIN_SAMPLES = 16;
+
+	/**
+	 * A follower whose slewing error is bigger than this, in us, goes back to sending pulses at {@link #MIN_PULSE_INTERVAL}.
+	 */
+	public static final long RESAMPLE_ERROR = 1000;
+
+	private volatile long timeCorrection = 0;			//the error still being slewed out as of the last update, in us
+	private volatile long stableTimeCorrection = 0;		//the correction as of the last update, in us
+	private final SlewingCorrection correction = new SlewingCorrection(1000);		//add this to the local time in us to get the REAL current time
+	private final LeaderElection election;
+	private volatile double lastStep = 0;
 	private long lastTick;
-	private int stabilityCount = 0;
+	private final LongSupplier clock;		//the uncorrected local time in ns since 1st Jan 1970
+	private final boolean pulseThread;		//false if pulses are only sent from poll()
+	private final EventScheduler scheduler = new EventScheduler(this::correctedTimeNanos);
+	private final TrickleTimer pulseTimer;
+	private final Map<String, Boolean> myMACs = new Hashtable<String, Boolean>();		//the MACs this device has sent pulses from
+	private String lastLeader;
+	private Runnable pulse;
 
 	private boolean on = true;
 	private boolean verbose = false;
 	private boolean timedebug = false;
 
-	private Map<Long, Map<String, long[]>> log;		//first referenced by message send time, then by respodent's name, with the time the respondent replied and the current time
+	private final Map<String, ClockEstimator> estimators = new Hashtable<String, ClockEstimator>();		//round trip samples, by respondent's MAC
+	private final Map<String, SynchStats> stats = new Hashtable<String, SynchStats>();		//synch quality, by respondent's MAC
 
 	static Synchronizer singletonSynchronizer;
 
@@ -77,10 +130,36 @@ public class Synchronizer {
 		return getInstance().correctedTimeNow();
 	}
 
+	/**
+	 * The same as {@link #time()}, in us.
+	 * @return time in us since Jan 1st 1970.
+	 */
+	public static long timeMicros() {
+		return getInstance().correctedTimeMicros();
+	}
+
 	private Synchronizer() {
-		//basics
-		log = new Hashtable<Long, Map<String, long[]>>();
-        broadcast = new BroadcastManager(LoadableConfig.getInstance().getMulticastAddr(), LoadableConfig.getInstance().getClockSynchPort());
+		this(new BroadcastManager(LoadableConfig.getInstance().getMulticastAddr(), LoadableConfig.getInstance().getClockSynchPort()),
+				systemClock(), LoadableConfig.getInstance().getClockLeaderPriority(), new Random(), true);
+	}
+
+	/**
+	 * Create a Synchronizer other than the one for this device, so that several can run in one JVM, for example to simulate a network of devices. It has no thread of its own sending synch pulses: they are only sent from {@link #poll()}, so a simulation can run it in virtual time.
+	 * @param broadcast the {@link BroadcastManager} to send and receive synch messages on, usually one on an {@link net.happybrackets.core.transport.InMemoryTransport}.
+	 * @param clock the uncorrected local time in ns since 1st Jan 1970. It must only move forwards.
+	 * @param leaderPriority the priority of this device in leader elections, as {@link LoadableConfig#getClockLeaderPriority()}.
+	 * @param random the source of the random times pulses are sent at.
+	 */
+	public Synchronizer(BroadcastManager broadcast, LongSupplier clock, int leaderPriority, Random random) {
+		this(broadcast, clock, leaderPriority, random, false);
+	}
+
+	private Synchronizer(BroadcastManager broadcast, LongSupplier clock, int leaderPriority, Random random, boolean pulseThread) {
+		this.broadcast = broadcast;
+		this.clock = clock;
+		this.pulseThread = pulseThread;
+		election = new LeaderElection("0", leaderPriority, LEADER_TIMEOUT, LEADER_HOLDOFF);
+		pulseTimer = new TrickleTimer(MIN_PULSE_INTERVAL, MAX_PULSE_INTERVAL, 0, random);
 		try {
 			//start listening
 			setupListener();
@@ -96,19 +175,52 @@ public class Synchronizer {
 	}
 
 	/**
-	 * Returns the time corrected with long-term correction. This should be accurate over longer periods of synch but not so sensitive to recent synch changes.
+	 * @return {@link System#nanoTime()}, anchored to the wall clock once, so it has the resolution of nanoTime and never jumps when NTP or the user sets the system time.
+	 */
+	private static LongSupplier systemClock() {
+		final long nanoTimeToEpochNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+		return () -> System.nanoTime() + nanoTimeToEpochNanos;
+	}
+
+	/**
+	 * Returns the time corrected with the correction as of the last update, ignoring any slewing since. This changes in small steps each update, so {@link Synchronizer#correctedTimeNow()} is usually a better choice.
 	 * @return time in ms since Jan 1st 1970.
 	 */
 	public long stableTimeNow() {
-		return System.currentTimeMillis() + stableTimeCorrection;
+		return Math.floorDiv(localTimeMicros() + stableTimeCorrection, 1000);
 	}
 
 	/**
-	 * Returns the time corrected with short-term correction. This is more sensitive to recent synch changes but is not as reliable in the long-term as {@link Synchronizer#stableTimeNow()}.
+	 * Returns the time corrected with the slewing correction. This follows the leader's clock, including its drift, and changes smoothly.
 	 * @return time in ms since Jan 1st 1970.
 	 */
 	public long correctedTimeNow() {
-		return stableTimeNow() + timeCorrection;
+		return Math.floorDiv(correctedTimeMicros(), 1000);
+	}
+
+	/**
+	 * Returns the same time as {@link Synchronizer#correctedTimeNow()} in us.
+	 * @return time in us since Jan 1st 1970.
+	 */
+	public long correctedTimeMicros() {
+		long localTime = localTimeMicros();
+		return localTime + Math.round(correction.at(localTime));
+	}
+
+	/**
+	 * Returns the same time as {@link Synchronizer#correctedTimeNow()} in ns.
+	 * @return time in ns since Jan 1st 1970.
+	 */
+	public long correctedTimeNanos() {
+		long localNanos = clock.getAsLong();
+		return localNanos + Math.round(correction.at(Math.floorDiv(localNanos, 1000)) * 1000);
+	}
+
+	/**
+	 * @return the uncorrected local time in us since Jan 1st 1970, which only moves forwards.
+	 */
+	private long localTimeMicros() {
+		return Math.floorDiv(clock.getAsLong(), 1000);
 	}
 
 	public void displayClock() {
@@ -121,7 +233,7 @@ public class Synchronizer {
 						//display
 						Date d = new Date(timeNow);
 						// This looks like it shouldn't be logged?
-						System.out.println("The time is: " + d.getHours() + ":" + d.getMinutes() + ":" + d.getSeconds() + " (short correction = " + timeCorrection + "ms, long correction = " + stableTimeCorrection + "ms)");
+						System.out.println("The time is: " + d.getHours() + ":" + d.getMinutes() + ":" + d.getSeconds() + " (short correction = " + timeCorrection + "us, long correction = " + stableTimeCorrection + "us)");
 						lastTick = tick;
 					}
 					try {
@@ -142,11 +254,11 @@ public class Synchronizer {
 				if (!msg.getName().equals(oscPath)) {
                     return;
                 }
-                else if(msg.getArgCount() != 5) {
-                    logger.debug("Received sync message with {} args, expected 5", msg.getArgCount());
+                else if(msg.getArgCount() < 5) {
+                    logger.debug("Received sync message with {} args, expected at least 5", msg.getArgCount());
                     return;
                 }
-                String myMAC = Device.selectMAC(ni);
+                String myMAC = broadcast.getTransport().selectMAC(ni);
                 if (logger.isTraceEnabled()) {
                     String logMessage = msg.getName() + " args:\n";
                     Object[] logArgs = new Object[msg.getArgCount() * 2];
@@ -159,30 +271,38 @@ public class Synchronizer {
                 }
                 String action           = (String) msg.getArg(0);
                 String sourceMAC        = (String) msg.getArg(1);
-                long timeOriginallySent = Long.parseLong((String) msg.getArg(2));
+                long timeOriginallySent = readTime(msg.getArg(2));
                 String otherMAC         = (String) msg.getArg(3);
-                long timeReturnSent     = Long.parseLong((String) msg.getArg(4));
+                long timeReturnSent     = readTime(msg.getArg(4));
+                //devices from before leader election don't send a priority or leader
+                int priority            = msg.getArgCount() > 5 && msg.getArg(5) instanceof Number ? ((Number) msg.getArg(5)).intValue() : 0;
+                String leader           = msg.getArgCount() > 6 && !"".equals(msg.getArg(6)) ? (String) msg.getArg(6) : null;
+                long now                = localTimeMicros();
                 if(action.equals("s")) {
                     //an original send message
-                    //respond if you were not the sender
-                    if(!sourceMAC.equals(myMAC)) {
-                        //ensure our long values are strings so we can upack them at the other side
-                        // by default longs become ints when packed for OSC :( probably a comparability feature for max the ancient dinosaur.
-                        broadcast.broadcast(oscPath, "r", sourceMAC, ""+timeOriginallySent, myMAC, ""+stableTimeNow());
+                    //the leader responds if it was not the sender
+                    if(!myMACs.containsKey(sourceMAC)) {
+                        election.heard(sourceMAC, priority, leader, now / 1000);
+                        if(election.isLeader()) {
+                            broadcast.sendTo(ni, sender, oscPath, "r", sourceMAC, msg.getArg(2), myMAC, correctedTimeMicros(), election.getMyPriority(), currentLeader());
+                        }
                     }
                 }
                 else if(action.equals("r")) {
                     //a response message
-                    //respond only if you WERE the sender
-                    if(sourceMAC.equals(myMAC)) {
+                    if(!myMACs.containsKey(otherMAC)) {
+                        election.heard(otherMAC, priority, leader, now / 1000);
+                    }
+                    //respond only if you WERE the sender, which may have been on another interface
+                    if(myMACs.containsKey(sourceMAC)) {
                         //find out how long the return trip was
-                        long currentTime = stableTimeNow();
-                        log(timeOriginallySent, otherMAC, timeReturnSent, currentTime);
+                        long currentTime = now;
+                        addSample(timeOriginallySent, otherMAC, timeReturnSent, currentTime);
                         if(verbose) {
                             long returnTripTime = currentTime - timeOriginallySent;
                             long timeAheadOfOther = (currentTime - (returnTripTime / 2)) - timeReturnSent;	//+ve if this unit is ahead of other unit
-                            System.out.println("Return trip from " + myMAC + " to " + otherMAC + " took " + returnTripTime + "ms");
-                            System.out.println("This machine (" + myMAC + ") is " + (timeAheadOfOther > 0 ? "ahead of" : "behind") + " " + otherMAC + " by " + Math.abs(timeAheadOfOther) + "ms");
+                            System.out.println("Return trip from " + myMAC + " to " + otherMAC + " took " + returnTripTime + "us");
+                            System.out.println("This machine (" + myMAC + ") is " + (timeAheadOfOther > 0 ? "ahead of" : "behind") + " " + otherMAC + " by " + Math.abs(timeAheadOfOther) + "us");
                         }
                     }
                 }
@@ -191,63 +311,83 @@ public class Synchronizer {
 	}
 
 	/**
-	 * Cause an event to happen at the given time.
+	 * @param arg a time from a synch message.
+	 * @return the time in us. Devices from before us timestamps sent ms as decimal strings.
+	 */
+	private static long readTime(Object arg) {
+		if(arg instanceof Number) {
+			return ((Number) arg).longValue();
+		}
+		return Long.parseLong((String) arg) * 1000;
+	}
+
+	/**
+	 * Cause an event to happen at the given time. Events run one at a time on a single scheduler thread, and are moved
+	 * if the time correction changes before they run.
 	 * @param r the {@link Runnable} to run at the given time.
 	 * @param time the synchronized time to enact the event, in ms since 1st Jan 1970.
+	 * @return a handle that can cancel the event.
 	 */
-	public void doAtTime(final Runnable r, long time) {
-		final long waitTime = time - correctedTimeNow();
-		if(waitTime <= 0) {				//either run immediately
-			r.run();
-		} else {						//or wait the required time
-			//create a new thread just in order to run this incoming thread
-			new Thread() {
-				public void run() {
-					try {
-						Thread.sleep(waitTime);
-					} catch (InterruptedException e) {
-						logger.error("Interupted while waiting to execute action in Synchronizer.doAtTime!", e);
-					}
-					r.run();
-				}
-			}.start();
+	public EventScheduler.Handle doAtTime(final Runnable r, long time) {
+		return scheduler.schedule(r, time * 1000000L);
+	}
 
-		}
+	/**
+	 * The same as {@link #doAtTime(Runnable, long)}, with the time in us.
+	 * @param r the {@link Runnable} to run at the given time.
+	 * @param timeMicros the synchronized time to enact the event, in us since 1st Jan 1970.
+	 * @return a handle that can cancel the event.
+	 */
+	public EventScheduler.Handle doAtTimeMicros(final Runnable r, long timeMicros) {
+		return scheduler.schedule(r, timeMicros * 1000L);
 	}
 
 	private void startSending() {
-		Thread t = new Thread() {
-			public void run() {
-                BroadcastManager.OnTransmitter sync = new BroadcastManager.OnTransmitter() {
-                    @Override
-                    public void cb(NetworkInterface ni, OSCTransmitter transmitter) throws IOException {
-                        String myMac = Device.selectMAC(ni);
-                        transmitter.send(
-                                new OSCMessage(
-                                        oscPath,
-                                        new Object[] {"s", myMac, ""+stableTimeNow(), myMac, ""+stableTimeNow() }
-                                )
-                        );
-                    }
-                };
-				while(on) {
-                    broadcast.forAllTransmitters(sync);
-					try {
-						Thread.sleep(500 + (int)(100 * Math.random()));	//randomise send time to break network send patterns
-					} catch (InterruptedException e) {
-						logger.error("Interupted while waiting to receive Synchronizer messages!", e);
-					}
-					//now that all of the responses have come back...
-					calculateTimeCorrection();
-					try {
-						Thread.sleep(500 + (int)(100 * Math.random()));	//randomise send time to break network send patterns
-					} catch (InterruptedException e) {
-						logger.error("Interupted while waiting to send Synchronizer message!", e);
-					}
-				}
+        BroadcastManager.OnTransmitter sync = new BroadcastManager.OnTransmitter() {
+            @Override
+            public void cb(NetworkInterface ni, OSCTransmitter transmitter) throws IOException {
+                String myMac = broadcast.getTransport().selectMAC(ni);
+                myMACs.put(myMac, true);
+                election.setMyId(myMac);
+                //the send time is only read by this device, when the responses come back, so it is in local time
+                long localTime = localTimeMicros();
+                transmitter.send(
+                        new OSCMessage(
+                                oscPath,
+                                new Object[] {"s", myMac, localTime, myMac, localTime, election.getMyPriority(), currentLeader() }
+                        )
+                );
+            }
+        };
+		pulse = () -> {
+			if(on) {
+				//the responses to the last pulse have come back by now
+				calculateTimeCorrection();
+				broadcast.forAllTransmitters(sync);
 			}
 		};
-		t.start();
+		//the timer sends each pulse at a random time in its interval, which breaks up network send patterns
+		if(pulseThread) {
+			pulseTimer.startThread(pulse);
+		} else {
+			pulseTimer.start(pulseTimerNow());
+		}
+	}
+
+	/**
+	 * Send a synch pulse if one is due, by this Synchronizer's clock. Only Synchronizers created with {@link #Synchronizer(BroadcastManager, LongSupplier, int, Random)} need this, as they have no thread of their own to send pulses.
+	 */
+	public void poll() {
+		if(!pulseThread && pulseTimer.poll(pulseTimerNow())) {
+			pulse.run();
+		}
+	}
+
+	/**
+	 * @return the time the pulse timer runs on, in ms: the timer thread's own clock, or this Synchronizer's clock if pulses are sent from {@link #poll()}.
+	 */
+	private long pulseTimerNow() {
+		return pulseThread ? System.nanoTime() / 1000000 : clock.getAsLong() / 1000000;
 	}
 
 	/**
@@ -255,46 +395,74 @@ public class Synchronizer {
 	 */
 	public void close() {
 		on = false;
+		pulseTimer.stopThread();
+		scheduler.shutdown();
 		broadcast.dispose();
 	}
 
 	/**
 	 * Estimates the difference between this devices clock and the clock of the "leader" device.
-	 * This method modifies the value of the timeCorrection field, and less frequently updates the stableTimeCorrection field.
+	 * This method aims the slewing correction at the leader, and updates the timeCorrection and stableTimeCorrection fields.
 	 */
 	private void calculateTimeCorrection() {
-		for(Long sendTime : log.keySet()) {
-			Map<String, long[]> responses = log.get(sendTime);
-			//find the leader
-			String theLeader = myMAC;
-			if(timedebug) System.out.println("At send time = " + sendTime);
-			for(String mac : responses.keySet()) {
-				if(timedebug) System.out.println("          Response from: " + mac + " return sent: " + responses.get(mac)[0] + ", received: " + responses.get(mac)[1]);
-				if(theLeader.compareTo(mac) < 0) {
-					theLeader = mac;
-				}
+		long now = localTimeMicros();
+		String theLeader = election.update(now / 1000, correction.isSynced());
+		if(timedebug) System.out.println("Leader is " + theLeader);
+		ClockEstimator estimator = election.isLeader() ? null : estimators.get(theLeader);
+		if(estimator == null || !estimator.update()) {
+			//the leader, or a device with nothing from its leader yet, holds its current correction so its clock doesn't jump
+			correction.hold(now);
+		} else {
+			double step = correction.follow(now, estimator.getOffset(now), estimator.getDrift());
+			if(step != 0) {
+				logger.debug("Stepped time correction by {}ms", step / 1000);
+				lastStep = step / 1000;
 			}
-			if(timedebug) System.out.println("Leader is " + theLeader);
-			if(theLeader != myMAC) {
-				//if you are not the leader then make a time adjustment
-				long[] times = responses.get(theLeader);
-				long leaderResponseTime = times[0];
-				long receiveTime = times[1];
-				long roundTripTime = receiveTime - sendTime;
-				long messageTime = roundTripTime / 2;
-				long receiveTimeAccordingToLeader = leaderResponseTime + messageTime;
-				timeCorrection = receiveTimeAccordingToLeader - receiveTime;
-				if(timedebug) System.out.println("time correction: " + timeCorrection + ", message time: " + messageTime + ", response sent: " + leaderResponseTime + ", response received: " + receiveTime);
+			SynchStats leaderStats = stats.get(theLeader);
+			if(leaderStats != null) {
+				leaderStats.setOffset(Math.round(estimator.getOffset(now)));
 			}
+			if(timedebug) System.out.println("target correction: " + estimator.getOffset(now) + ", applied: " + correction.at(now) + ", drift: " + estimator.getDrift() + ", round trip threshold: " + estimator.getRoundTripThreshold());
 		}
-		//finally, clear the log (for now - we might make the log last longer later)
-		log.clear();
-		//stability count
-		if(stabilityCount++ == 20) {
-			stabilityCount = 0;
-			stableTimeCorrection += timeCorrection;
-			timeCorrection = 0;
+		stableTimeCorrection = Math.round(correction.at(now));
+		timeCorrection = Math.round(correction.getError());
+		scheduler.clockChanged();
+		//sample quickly until the estimate of the leader's clock is good, and again whenever the leader changes
+		if(!theLeader.equals(lastLeader) || (!election.isLeader() && needsSamples(estimator, correction.getError()))) {
+			pulseTimer.reset(pulseTimerNow());
 		}
+		lastLeader = theLeader;
+	}
+
+	/**
+	 * @param estimator the estimator for the leader's clock, or null if there are no round trips to the leader yet.
+	 * @param error the error still being slewed out, in us.
+	 * @return true if a follower should send pulses at {@link #MIN_PULSE_INTERVAL}.
+	 */
+	public static boolean needsSamples(ClockEstimator estimator, double error) {
+		return estimator == null || estimator.size() < MIN_SAMPLES || Math.abs(error) > RESAMPLE_ERROR;
+	}
+
+	/**
+	 * @return the leader this device follows, or an empty string if it hasn't chosen one yet.
+	 */
+	private String currentLeader() {
+		String leader = election.getLeader();
+		return leader == null ? "" : leader;
+	}
+
+	/**
+	 * @return the leader this device follows, which may be itself, or null if it hasn't chosen one yet.
+	 */
+	public String getLeader() {
+		return election.getLeader();
+	}
+
+	/**
+	 * @return the size of the last step in the time correction, in ms. Steps only happen on the first synch and for errors over {@link SlewingCorrection#STEP_THRESHOLD}.
+	 */
+	public double getLastStep() {
+		return lastStep;
 	}
 
 	/**
@@ -305,22 +473,51 @@ public class Synchronizer {
 		if(stableTimeCorrection == 0) {
 			return 0;
 		} else {
-			return (float)(timeCorrection / stableTimeCorrection);
+			return Math.abs((float) timeCorrection / stableTimeCorrection);
+		}
+	}
+
+	/**
+	 * Report how well this device is synched to each device it has had round trips to, which since only the leader responds to synch pulses is usually just the current and past leaders.
+	 * @return a report for each device, the leader first. If this device is the leader the first report is for itself, with no round trips. Only the leader's report has a correction error, since this device only slews towards its leader; it is 0 in the others.
+	 */
+	public List<SynchStats.Report> getSynchReports() {
+		long now = localTimeMicros() / 1000;
+		String leader = election.getLeader();
+		List<SynchStats.Report> reports = new ArrayList<SynchStats.Report>();
+		if(election.isLeader()) {
+			reports.add(new SynchStats.Report(leader, SynchStats.Report.SELF, 0, 0, 0, 0, 0, new long[SynchStats.ROUND_TRIP_BUCKETS.length + 1]));
 		}
+		for(Map.Entry<String, SynchStats> entry : new ArrayList<Map.Entry<String, SynchStats>>(stats.entrySet())) {
+			if(entry.getKey().equals(leader)) {
+				reports.add(0, entry.getValue().report(entry.getKey(), SynchStats.Report.LEADER, timeCorrection, now));
+			} else if(!myMACs.containsKey(entry.getKey())) {
+				reports.add(entry.getValue().report(entry.getKey(), SynchStats.Report.PEER, 0, now));
+			}
+		}
+		return reports;
 	}
 
 	/**
-	 *
-	 * @param timeOriginallySent
-	 * @param otherMAC
-	 * @param timeReturnSent
-	 * @param currentTime
+	 * Record a round trip to another device.
+	 * @param timeOriginallySent the local time the pulse was sent, in us.
+	 * @param otherMAC the device that responded.
+	 * @param timeReturnSent the other device's synchronized time when it responded, in us.
+	 * @param currentTime the local time the response arrived, in us.
 	 */
-	private void log(long timeOriginallySent, String otherMAC, long timeReturnSent, long currentTime) {
-		if(!log.containsKey(timeOriginallySent)) {
-			log.put(timeOriginallySent, new Hashtable<String, long[]>());
+	private void addSample(long timeOriginallySent, String otherMAC, long timeReturnSent, long currentTime) {
+		ClockEstimator estimator = estimators.get(otherMAC);
+		if(estimator == null) {
+			estimator = new ClockEstimator(ClockEstimator.DEFAULT_CAPACITY, JUMP_THRESHOLD * 1000);
+			estimators.put(otherMAC, estimator);
+		}
+		estimator.addSample(timeOriginallySent, currentTime, timeReturnSent);
+		SynchStats peerStats = stats.get(otherMAC);
+		if(peerStats == null) {
+			peerStats = new SynchStats();
+			stats.put(otherMAC, peerStats);
 		}
-		log.get(timeOriginallySent).put(otherMAC, new long[] {timeReturnSent, currentTime});
+		peerStats.recordRoundTrip(currentTime - timeOriginallySent, currentTime / 1000);
 	}
 
 	public static void main(String[] args) {
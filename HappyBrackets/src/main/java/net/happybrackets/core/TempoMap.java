@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+
+/**
+ * A beat grid shared by the whole fleet, laid over synchronized time: a tempo, a meter, and the synchronized time of one
+ * beat. Given the same TempoMap, every device agrees on which beat it is and when each bar starts, so actions quantized
+ * to the grid start together to within the synch error.
+ *
+ * Beats are numbered from the epoch of the first map. A change of tempo or meter makes a new map that carries on the
+ * numbering from the old one, taking effect on a beat or bar boundary, so nothing jumps. Bars and phrases are counted
+ * from the bar origin, the beat the current meter started on.
+ *
+ * Everything is kept as whole numbers, the beat length in us, so that a map sent to devices in a message arrives exactly
+ * as it was sent and every device works from the same grid. Times are synchronized time in us since 1st Jan 1970.
+ */
+public class TempoMap {
+
+	/**
+	 * The name of the message the controller sends the tempo map to devices with.
+	 */
+	public static final String MESSAGE_NAME = "/device/tempo";
+
+	/**
+	 * The boundaries actions can be quantized to.
+	 */
+	public enum Unit {
+		BEAT, BAR, PHRASE
+	}
+
+	/**
+	 * The map every device uses until the controller sends one: 120 BPM, 4 beats a bar and 4 bars a phrase, with beat 0
+	 * at midnight on 1st Jan 1970, so devices agree on the grid even without a controller.
+	 */
+	public static final TempoMap DEFAULT = create(120, 4, 4, 0);
+
+	private final long epoch;
+	private final long beatAtEpoch;
+	private final long beatLength;
+	private final int beatsPerBar;
+	private final int barsPerPhrase;
+	private final long barOrigin;
+
+	/**
+	 * @param epoch the synchronized time of beat beatAtEpoch, in us.
+	 * @param beatAtEpoch the number of the beat at the epoch.
+	 * @param beatLength the length of a beat, in us.
+	 * @param beatsPerBar the number of beats in a bar.
+	 * @param barsPerPhrase the number of bars in a phrase.
+	 * @param barOrigin a beat that starts a bar and a phrase.
+	 */
+	public TempoMap(long epoch, long beatAtEpoch, long beatLength, int beatsPerBar, int barsPerPhrase, long barOrigin) {
+		if (beatLength <= 0 || beatsPerBar <= 0 || barsPerPhrase <= 0) {
+			throw new IllegalArgumentException("Beat length, beats per bar and bars per phrase must be positive");
+		}
+		this.epoch = epoch;
+		this.beatAtEpoch = beatAtEpoch;
+		this.beatLength = beatLength;
+		this.beatsPerBar = beatsPerBar;
+		this.barsPerPhrase = barsPerPhrase;
+		this.barOrigin = barOrigin;
+	}
+
+	/**
+	 * Create a new beat grid, starting with beat 0.
+	 *
+	 * @param bpm the tempo, in beats per minute.
+	 * @param beatsPerBar the number of beats in a bar.
+	 * @param barsPerPhrase the number of bars in a phrase.
+	 * @param epoch the synchronized time of beat 0, in us.
+	 * @return the map.
+	 */
+	public static TempoMap create(double bpm, int beatsPerBar, int barsPerPhrase, long epoch) {
+		return new TempoMap(epoch, 0, beatLength(bpm), beatsPerBar, barsPerPhrase, 0);
+	}
+
+	private static long beatLength(double bpm) {
+		if (!(bpm > 0)) {
+			throw new IllegalArgumentException("Tempo must be positive");
+		}
+		return Math.round(60000000 / bpm);
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getBeatAtEpoch() {
+		return beatAtEpoch;
+	}
+
+	/**
+	 * @return the length of a beat, in us.
+	 */
+	public long getBeatLength() {
+		return beatLength;
+	}
+
+	public double getBPM() {
+		return 60000000.0 / beatLength;
+	}
+
+	public int getBeatsPerBar() {
+		return beatsPerBar;
+	}
+
+	public int getBarsPerPhrase() {
+		return barsPerPhrase;
+	}
+
+	public long getBarOrigin() {
+		return barOrigin;
+	}
+
+	/**
+	 * @param unit a unit.
+	 * @return the length of the unit, in beats.
+	 */
+	public long beats(Unit unit) {
+		switch (unit) {
+			case BAR:
+				return beatsPerBar;
+			case PHRASE:
+				return (long) beatsPerBar * barsPerPhrase;
+			default:
+				return 1;
+		}
+	}
+
+	/**
+	 * @param time a synchronized time, in us.
+	 * @return the beat at that time, with the fraction of the way through it.
+	 */
+	public double beatAt(long time) {
+		return beatAtEpoch + (double) (time - epoch) / beatLength;
+	}
+
+	/**
+	 * @param beat a beat, which may be fractional.
+	 * @return the synchronized time of the beat, in us.
+	 */
+	public long timeOf(double beat) {
+		double beats = beat - beatAtEpoch;
+		long whole = (long) Math.floor(beats);
+		return epoch + whole * beatLength + Math.round((beats - whole) * beatLength);
+	}
+
+	/**
+	 * @param beat a beat, which may be fractional.
+	 * @param unit the unit.
+	 * @return the first boundary of the unit strictly after the beat.
+	 */
+	public long nextBoundary(double beat, Unit unit) {
+		long length = beats(unit);
+		return barOrigin + ((long) Math.floor((beat - barOrigin) / length) + 1) * length;
+	}
+
+	/**
+	 * @param beat a beat, which may be fractional.
+	 * @param unit the unit.
+	 * @return the first boundary of the unit at or after the beat.
+	 */
+	public long boundaryAtOrAfter(double beat, Unit unit) {
+		long length = beats(unit);
+		return barOrigin + (long) Math.ceil((beat - barOrigin) / length) * length;
+	}
+
+	/**
+	 * Change the tempo on the first beat at or after the given time.
+	 *
+	 * @param bpm the new tempo, in beats per minute.
+	 * @param time the earliest synchronized time for the change, in us.
+	 * @return the new map, which agrees with this one up to the change.
+	 */
+	public TempoMap withTempo(double bpm, long time) {
+		long beat = boundaryAtOrAfter(beatAt(time), Unit.BEAT);
+		return new TempoMap(timeOf(beat), beat, beatLength(bpm), beatsPerBar, barsPerPhrase, barOrigin);
+	}
+
+	/**
+	 * Change the meter on the first bar boundary at or after the given time, which starts the first bar and phrase of
+	 * the new meter.
+	 *
+	 * @param beatsPerBar the new number of beats in a bar.
+	 * @param barsPerPhrase the new number of bars in a phrase.
+	 * @param time the earliest synchronized time for the change, in us.
+	 * @return the new map, which agrees with this one up to the change.
+	 */
+	public TempoMap withMeter(int beatsPerBar, int barsPerPhrase, long time) {
+		long beat = boundaryAtOrAfter(beatAt(time), Unit.BAR);
+		return new TempoMap(timeOf(beat), beat, beatLength, beatsPerBar, barsPerPhrase, beat);
+	}
+
+	/**
+	 * @return the arguments of a {@link #MESSAGE_NAME} message for the map.
+	 */
+	public Object[] toArgs() {
+		return new Object[] {epoch, beatAtEpoch, beatLength, beatsPerBar, barsPerPhrase, barOrigin};
+	}
+
+	/**
+	 * @return the map as a {@link #MESSAGE_NAME} message.
+	 */
+	public OSCMessage toMessage() {
+		return new OSCMessage(MESSAGE_NAME, toArgs());
+	}
+
+	/**
+	 * @param msg a {@link #MESSAGE_NAME} message.
+	 * @return the map in the message.
+	 */
+	public static TempoMap fromMessage(OSCMessage msg) {
+		return new TempoMap(
+				((Number) msg.getArg(0)).longValue(),
+				((Number) msg.getArg(1)).longValue(),
+				((Number) msg.getArg(2)).longValue(),
+				((Number) msg.getArg(3)).intValue(),
+				((Number) msg.getArg(4)).intValue(),
+				((Number) msg.getArg(5)).longValue()
+		);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TempoMap)) {
+			return false;
+		}
+		TempoMap other = (TempoMap) o;
+		return epoch == other.epoch && beatAtEpoch == other.beatAtEpoch && beatLength == other.beatLength
+				&& beatsPerBar == other.beatsPerBar && barsPerPhrase == other.barsPerPhrase && barOrigin == other.barOrigin;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(epoch) * 31 + Long.hashCode(beatAtEpoch);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%.2f BPM, %d beats a bar, %d bars a phrase, from beat %d at %dus", getBPM(), beatsPerBar, barsPerPhrase, beatAtEpoch, epoch);
+	}
+}
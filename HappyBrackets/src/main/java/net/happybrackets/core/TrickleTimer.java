@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An adaptive timer for periodic announcements, following the Trickle algorithm (RFC 6206). The interval starts at a
+ * minimum and doubles each time it expires, up to a maximum, so a stable network hears less and less chatter. Calling
+ * {@link #reset(long)} when something changes, such as a new device appearing, drops the interval straight back to
+ * the minimum so the change is announced quickly. Within each interval the transmission happens at a random time in
+ * the second half of the interval, and is suppressed if {@link #hearConsistent()} has been called at least redundancy
+ * times since the interval started, meaning enough other nodes have just said the same thing.
+ *
+ * The timing logic takes the current time as an argument so that it can be driven in virtual time by simulations.
+ * {@link #startThread(Runnable)} runs it in real time.
+ */
+public class TrickleTimer {
+
+	final static Logger logger = LoggerFactory.getLogger(TrickleTimer.class);
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final int redundancy;
+	private final Random random;
+
+	private long interval;
+	private long intervalStart;
+	private long fireTime;
+	private int counter;
+	private boolean fired;
+	private boolean forced;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Create a new TrickleTimer.
+	 *
+	 * @param minInterval the shortest interval, in ms.
+	 * @param maxInterval the longest interval, in ms.
+	 * @param redundancy the number of consistent messages heard in an interval that suppresses this node's
+	 *                   transmission, or 0 to never suppress.
+	 */
+	public TrickleTimer(long minInterval, long maxInterval, int redundancy) {
+		this(minInterval, maxInterval, redundancy, new Random());
+	}
+
+	/**
+	 * Create a new TrickleTimer.
+	 *
+	 * @param minInterval the shortest interval, in ms.
+	 * @param maxInterval the longest interval, in ms.
+	 * @param redundancy the number of consistent messages heard in an interval that suppresses this node's
+	 *                   transmission, or 0 to never suppress.
+	 * @param random the source of the random transmission times.
+	 */
+	public TrickleTimer(long minInterval, long maxInterval, int redundancy, Random random) {
+		this.minInterval = minInterval;
+		this.maxInterval = Math.max(minInterval, maxInterval);
+		this.redundancy = redundancy;
+		this.random = random;
+	}
+
+	/**
+	 * Start the first interval, at the minimum length.
+	 *
+	 * @param timeNow the current time in ms.
+	 */
+	public synchronized void start(long timeNow) {
+		interval = minInterval;
+		beginInterval(timeNow);
+	}
+
+	private void beginInterval(long timeNow) {
+		intervalStart = timeNow;
+		fireTime = timeNow + interval / 2 + (long) (random.nextDouble() * (interval - interval / 2));
+		counter = 0;
+		fired = false;
+		forced = false;
+		notifyAll();
+	}
+
+	/**
+	 * Advance the timer to the given time.
+	 *
+	 * @param timeNow the current time in ms.
+	 * @return true if this node should transmit now.
+	 */
+	public synchronized boolean poll(long timeNow) {
+		boolean transmit = false;
+		while (true) {
+			if (!fired && timeNow >= fireTime) {
+				fired = true;
+				transmit = forced || redundancy <= 0 || counter < redundancy;
+			}
+			long intervalEnd = intervalStart + interval;
+			if (timeNow < intervalEnd) {
+				return transmit;
+			}
+			interval = Math.min(interval * 2, maxInterval);
+			beginInterval(intervalEnd);
+		}
+	}
+
+	/**
+	 * @return the time in ms at which {@link #poll(long)} next needs to be called.
+	 */
+	public synchronized long getNextEventTime() {
+		return fired ? intervalStart + interval : fireTime;
+	}
+
+	/**
+	 * Record that another node has just sent the same information this node would send.
+	 */
+	public synchronized void hearConsistent() {
+		counter++;
+	}
+
+	/**
+	 * Record that something has changed, which shortens the interval to the minimum. Does nothing if the interval is
+	 * already at the minimum, so repeated resets cannot hold off a transmission.
+	 *
+	 * @param timeNow the current time in ms.
+	 */
+	public synchronized void reset(long timeNow) {
+		if (interval > minInterval) {
+			interval = minInterval;
+			beginInterval(timeNow);
+		}
+	}
+
+	/**
+	 * Record that another node has just sent information that is out of date. This resets the timer like
+	 * {@link #reset(long)}, and also makes sure this node transmits in the current interval however many consistent
+	 * messages it hears, as the out of date node may not hear those.
+	 *
+	 * @param timeNow the current time in ms.
+	 */
+	public synchronized void hearInconsistent(long timeNow) {
+		reset(timeNow);
+		forced = true;
+	}
+
+	/**
+	 * {@link #hearInconsistent(long)} using the same clock as {@link #startThread(Runnable)}.
+	 */
+	public void hearInconsistent() {
+		hearInconsistent(now());
+	}
+
+	/**
+	 * {@link #reset(long)} using the same clock as {@link #startThread(Runnable)}.
+	 */
+	public void reset() {
+		reset(now());
+	}
+
+	/**
+	 * @return the length of the current interval in ms.
+	 */
+	public synchronized long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Run the timer in real time on its own thread.
+	 *
+	 * @param transmit called, on the timer thread, each time this node should transmit.
+	 */
+	public synchronized void startThread(Runnable transmit) {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		start(now());
+		thread = new Thread() {
+			public void run() {
+				while (running) {
+					boolean transmitNow;
+					synchronized (TrickleTimer.this) {
+						long timeNow = now();
+						transmitNow = poll(timeNow);
+						if (!transmitNow) {
+							try {
+								TrickleTimer.this.wait(Math.max(1, getNextEventTime() - timeNow));
+							} catch (InterruptedException e) {
+								logger.debug("Trickle timer interrupted", e);
+							}
+							continue;
+						}
+					}
+					try {
+						transmit.run();
+					} catch (Exception e) {
+						logger.error("Error transmitting from trickle timer", e);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the thread started by {@link #startThread(Runnable)}.
+	 */
+	public synchronized void stopThread() {
+		running = false;
+		thread = null;
+		notifyAll();
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
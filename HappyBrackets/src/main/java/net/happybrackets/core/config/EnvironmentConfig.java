@@ -31,6 +31,8 @@ public interface EnvironmentConfig {
 //	default public String getMyHostName() 					{ return Device.getInstance().myHostname;}
 //  default public String getMyAddress()					{ return Device.getInstance().myIP; }
 	default public String getMulticastAddr()				{ return "::FFFF:225.2.2.5"; }		//multicast address used for both synch and broadcast messages
+	default public String getTopicMulticastAddr()			{ return "::FFFF:225.2.3.0"; }		//first address of the pool of multicast groups used for topic broadcasts
+	default public int getTopicGroupCount()					{ return 8; }						//number of multicast groups that topics are spread over
 	default public int getBroadcastPort() 					{ return 2222; }					//broadcast port (not currently OSC)
 	default public int getStatusFromDevicePort()			{ return 2223; }					//OSC status messages from device to controller
 	default public int getClockSynchPort()					{ return 2224; }					//synch messages over multicast
@@ -40,6 +42,12 @@ public interface EnvironmentConfig {
 	default public int getControllerHTTPPort()				{ return 2228; }					//http requests from device to controller
 	//how often the PI sends an alive message to the server
 	default public int getAliveInterval() 					{ return 1000; }
+	//longest interval between alive messages once the network is stable, they are sent every getAliveInterval() after a change
+	default public int getAliveIntervalMax() 				{ return 4000; }
+	//how long without an alive message before a device is considered gone
+	default public int getAliveTimeout()					{ return Math.max(getAliveInterval() * 5, getAliveIntervalMax() * 3); }
+	//devices with a higher priority are preferred as the leader of clock synch, ties are broken by the highest MAC address
+	default public int getClockLeaderPriority()				{ return 0; }
 	//places
 	default public String getWorkingDir()					{ return "."; }
 	default public String getAudioDir()						{ return getWorkingDir() + "/audio"; }
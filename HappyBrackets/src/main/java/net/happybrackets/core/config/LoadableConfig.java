@@ -46,6 +46,8 @@ public abstract class LoadableConfig implements EnvironmentConfig {
 
 	//use Integer instead of int so we can delegate to the interface default value on null
 	private String 	multicastAddr;
+	private String 	topicMulticastAddr;
+	private Integer topicGroupCount;
 	private Integer broadcastOSCPort;
 	private Integer statusFromDevicePort;
 	private Integer clockSynchPort;
@@ -56,6 +58,10 @@ public abstract class LoadableConfig implements EnvironmentConfig {
 
 	//how often the PI sends an alive message to the server
 	private Integer aliveInterval;
+	private Integer aliveIntervalMax;
+
+	//preference for leading clock synch
+	private Integer clockLeaderPriority;
 
 	// Shared key used for encryption of class files sent from controller to device.
 	private String encryptionKey;
@@ -133,6 +139,22 @@ public abstract class LoadableConfig implements EnvironmentConfig {
 		    return EnvironmentConfig.super.getMulticastAddr();
 		}
 	}
+	public String getTopicMulticastAddr() {
+		if (topicMulticastAddr != null) {
+		    return topicMulticastAddr;
+		}
+		else {
+		    return EnvironmentConfig.super.getTopicMulticastAddr();
+		}
+	}
+	public int getTopicGroupCount() {
+		if (topicGroupCount != null) {
+		    return topicGroupCount;
+		}
+		else {
+		    return EnvironmentConfig.super.getTopicGroupCount();
+		}
+	}
 	public int getBroadcastPort() {
 		if (broadcastOSCPort != null) {
 		    return broadcastOSCPort;
@@ -189,6 +211,22 @@ public abstract class LoadableConfig implements EnvironmentConfig {
 		    return EnvironmentConfig.super.getAliveInterval();
 		}
 	}
+	public int getAliveIntervalMax() {
+		if (aliveIntervalMax != null) {
+		    return aliveIntervalMax;
+		}
+		else {
+		    return EnvironmentConfig.super.getAliveIntervalMax();
+		}
+	}
+	public int getClockLeaderPriority() {
+		if (clockLeaderPriority != null) {
+		    return clockLeaderPriority;
+		}
+		else {
+		    return EnvironmentConfig.super.getClockLeaderPriority();
+		}
+	}
 
 	public String getAudioDir() {
 		if (audioDir != null) {
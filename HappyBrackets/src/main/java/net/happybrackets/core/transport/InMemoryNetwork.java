@@ -0,0 +1,443 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.transport;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simulated network shared by any number of {@link InMemoryTransport} nodes in one JVM. Packets are copied, not
+ * shared, and delivered after a configurable delay with optional jitter, loss, reordering and a per node bandwidth cap.
+ * Multicast packets are serialised once on the sender's link and then delayed and dropped independently for each
+ * member of the group, including the sender, as with multicast loopback on a real socket.
+ *
+ * All random decisions come from a single seeded {@link Random}, so the same seed and the same sequence of sends gives
+ * the same losses and delays. The network either runs in real time on its own dispatcher thread after {@link #start()}
+ * is called, or in virtual time, where nothing is delivered until {@link #runUntil(long)} is called, which makes a
+ * simulation fully deterministic.
+ *
+ * Packets are delivered one at a time, so a slow listener delays every later packet on the network.
+ */
+public class InMemoryNetwork {
+
+	final static Logger logger = LoggerFactory.getLogger(InMemoryNetwork.class);
+
+	/**
+	 * Something bound to an address on the network.
+	 */
+	public interface Receiver {
+		void receive(ByteBuffer packet, InetSocketAddress sender);
+	}
+
+	/**
+	 * A distribution of one way delays.
+	 */
+	public interface DelayDistribution {
+		/**
+		 * @param random the network's source of random numbers, which must be the only one used.
+		 * @return a delay, in ns.
+		 */
+		long sample(Random random);
+	}
+
+	private static class Delivery implements Comparable<Delivery> {
+		final long time;
+		final long sequence;
+		final Receiver receiver;
+		final byte[] data;
+		final InetSocketAddress sender;
+
+		Delivery(long time, long sequence, Receiver receiver, byte[] data, InetSocketAddress sender) {
+			this.time = time;
+			this.sequence = sequence;
+			this.receiver = receiver;
+			this.data = data;
+			this.sender = sender;
+		}
+
+		@Override
+		public int compareTo(Delivery other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private static NetworkInterface simulatedInterface;
+
+	private final Random random;
+	private DelayDistribution delay = random -> 0;
+	private double lossProbability = 0;
+	private double reorderProbability = 0;
+	private long reorderHoldNanos = 0;
+	private long bytesPerSecond = 0;
+	private long lookupDelayNanos = 0;
+
+	private final Map<InetSocketAddress, Set<Receiver>> bindings = new HashMap<>();
+	private final Map<InetAddress, Long> linkFreeAt = new HashMap<>();
+	private final Map<String, InetAddress> hosts = new HashMap<>();
+	private final PriorityQueue<Delivery> pending = new PriorityQueue<>();
+	private long sequence = 0;
+	private int nextHost = 1;
+	private int nextPort = 40000;
+	private long virtualTime = 0;
+	private Thread dispatcher;
+	private volatile boolean running;
+
+	private long packetsSent;
+	private long bytesSent;
+	private long packetsDelivered;
+	private long packetsDropped;
+
+	/**
+	 * Create a perfect network, with no delay or loss.
+	 *
+	 * @param seed the seed for all random decisions.
+	 */
+	public InMemoryNetwork(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * @param delayMs the one way delay of every packet.
+	 * @param jitterMs the maximum extra delay, chosen uniformly for each packet.
+	 * @return this network.
+	 */
+	public synchronized InMemoryNetwork setDelay(double delayMs, double jitterMs) {
+		long delayNanos = (long) (delayMs * 1e6);
+		long jitterNanos = (long) (jitterMs * 1e6);
+		delay = random -> jitterNanos > 0 ? delayNanos + (long) (random.nextDouble() * jitterNanos) : delayNanos;
+		return this;
+	}
+
+	/**
+	 * @param distribution the distribution each packet's delay is drawn from, for each receiver. This replaces the delay
+	 *                     set by {@link #setDelay(double, double)}.
+	 * @return this network.
+	 */
+	public synchronized InMemoryNetwork setDelay(DelayDistribution distribution) {
+		delay = distribution;
+		return this;
+	}
+
+	/**
+	 * @param probability the probability that a packet is lost, independently for each receiver.
+	 * @return this network.
+	 */
+	public synchronized InMemoryNetwork setLoss(double probability) {
+		lossProbability = probability;
+		return this;
+	}
+
+	/**
+	 * @param probability the probability that a packet is held back so later packets overtake it.
+	 * @param holdMs how long a held back packet is delayed on top of the normal delay.
+	 * @return this network.
+	 */
+	public synchronized InMemoryNetwork setReordering(double probability, double holdMs) {
+		reorderProbability = probability;
+		reorderHoldNanos = (long) (holdMs * 1e6);
+		return this;
+	}
+
+	/**
+	 * @param bytesPerSecond the rate each node can send at, 0 for no limit. Packets queue on the sender's link when it is busy.
+	 * @return this network.
+	 */
+	public synchronized InMemoryNetwork setBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		return this;
+	}
+
+	/**
+	 * @param unknownHostMs how long looking up a name that isn't on the network takes to fail, in real time, like a
+	 *                      DNS or mDNS query that times out.
+	 * @return this network.
+	 */
+	public synchronized InMemoryNetwork setLookupDelay(double unknownHostMs) {
+		lookupDelayNanos = (long) (unknownHostMs * 1e6);
+		return this;
+	}
+
+	/**
+	 * Deliver packets in real time on a dispatcher thread.
+	 */
+	public synchronized void start() {
+		if (dispatcher != null) {
+			return;
+		}
+		running = true;
+		dispatcher = new Thread("InMemoryNetwork dispatcher") {
+			public void run() {
+				while (running) {
+					Delivery delivery = null;
+					synchronized (InMemoryNetwork.this) {
+						while (running && delivery == null) {
+							Delivery next = pending.peek();
+							long wait = next == null ? Long.MAX_VALUE : next.time - now();
+							if (wait <= 0) {
+								delivery = pending.poll();
+							} else {
+								try {
+									if (next == null) {
+										InMemoryNetwork.this.wait();
+									} else {
+										InMemoryNetwork.this.wait(wait / 1000000, (int) (wait % 1000000));
+									}
+								} catch (InterruptedException e) {
+									return;
+								}
+							}
+						}
+					}
+					if (delivery != null) {
+						deliver(delivery);
+					}
+				}
+			}
+		};
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Stop the dispatcher thread. Undelivered packets stay queued.
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = dispatcher;
+			dispatcher = null;
+			notifyAll();
+		}
+		if (t != null) {
+			try {
+				t.join(1000);
+			} catch (InterruptedException e) {
+				logger.error("Interrupted while stopping the network", e);
+			}
+		}
+	}
+
+	/**
+	 * In virtual time, deliver every packet due up to the given time, in order, on the calling thread. Packets sent
+	 * while delivering are delivered too if they are due in time.
+	 *
+	 * @param timeNanos the virtual time to run until, in ns.
+	 */
+	public void runUntil(long timeNanos) {
+		while (true) {
+			Delivery delivery;
+			synchronized (this) {
+				if (running) {
+					throw new IllegalStateException("The network is running in real time");
+				}
+				Delivery next = pending.peek();
+				if (next == null || next.time > timeNanos) {
+					virtualTime = Math.max(virtualTime, timeNanos);
+					return;
+				}
+				delivery = pending.poll();
+				virtualTime = Math.max(virtualTime, delivery.time);
+			}
+			deliver(delivery);
+		}
+	}
+
+	/**
+	 * @return the current time of the network in ns, which is {@link System#nanoTime()} in real time.
+	 */
+	public synchronized long now() {
+		return running ? System.nanoTime() : virtualTime;
+	}
+
+	private void deliver(Delivery delivery) {
+		try {
+			delivery.receiver.receive(ByteBuffer.wrap(delivery.data), delivery.sender);
+		} catch (Exception e) {
+			logger.error("Error delivering packet from {}", delivery.sender, e);
+		}
+		synchronized (this) {
+			packetsDelivered++;
+		}
+	}
+
+	/**
+	 * Send a packet.
+	 *
+	 * @param packet the packet, from its position to its limit. The buffer is copied and its position is not changed.
+	 * @param sender the address of the sending socket.
+	 * @param target a unicast address or a multicast group.
+	 */
+	public synchronized void send(ByteBuffer packet, InetSocketAddress sender, InetSocketAddress target) {
+		byte[] data = new byte[packet.remaining()];
+		packet.duplicate().get(data);
+		packetsSent++;
+		bytesSent += data.length;
+		long now = now();
+		long departure = now;
+		if (bytesPerSecond > 0) {
+			Long free = linkFreeAt.get(sender.getAddress());
+			departure = Math.max(now, free == null ? now : free) + data.length * 1000000000L / bytesPerSecond;
+			linkFreeAt.put(sender.getAddress(), departure);
+		}
+		Set<Receiver> receivers = bindings.get(target);
+		if (receivers == null || receivers.isEmpty()) {
+			packetsDropped++;
+			return;
+		}
+		for (Receiver receiver : receivers) {
+			if (lossProbability > 0 && random.nextDouble() < lossProbability) {
+				packetsDropped++;
+				continue;
+			}
+			long time = departure + delay.sample(random);
+			if (reorderProbability > 0 && random.nextDouble() < reorderProbability) {
+				time += reorderHoldNanos;
+			}
+			pending.add(new Delivery(time, sequence++, receiver, data, sender));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Bind a receiver to a unicast address or multicast group. Several receivers can share an address, as with
+	 * SO_REUSEADDR.
+	 */
+	synchronized void bind(InetSocketAddress address, Receiver receiver) {
+		Set<Receiver> receivers = bindings.get(address);
+		if (receivers == null) {
+			//keep the order receivers were bound in so the random decisions for each send are repeatable
+			receivers = new LinkedHashSet<>();
+			bindings.put(address, receivers);
+		}
+		receivers.add(receiver);
+	}
+
+	synchronized void unbind(InetSocketAddress address, Receiver receiver) {
+		Set<Receiver> receivers = bindings.get(address);
+		if (receivers != null) {
+			receivers.remove(receiver);
+			if (receivers.isEmpty()) {
+				bindings.remove(address);
+			}
+		}
+	}
+
+	synchronized int allocatePort() {
+		return nextPort++;
+	}
+
+	/**
+	 * Give a new node an address in 10.0.0.0/8 and register its names.
+	 */
+	synchronized InetAddress addHost(String... names) {
+		int n = nextHost++;
+		InetAddress address;
+		try {
+			address = InetAddress.getByAddress(new byte[] {10, (byte) (n >> 16), (byte) (n >> 8), (byte) n});
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+		hosts.put(address.getHostAddress(), address);
+		for (String name : names) {
+			hosts.put(name, address);
+		}
+		return address;
+	}
+
+	InetAddress lookup(String host) {
+		InetAddress address;
+		long delay;
+		synchronized (this) {
+			address = hosts.get(host);
+			delay = lookupDelayNanos;
+		}
+		if (address == null && delay > 0) {
+			//wait outside the lock, so a failing lookup only holds up its caller
+			try {
+				Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return address;
+	}
+
+	/**
+	 * Nodes need a {@link NetworkInterface} to hand to code written for real interfaces, but one cannot be created, so
+	 * every node shares one of the real interfaces of this machine as a token. Nothing is ever sent on it.
+	 */
+	static synchronized NetworkInterface getSimulatedInterface() {
+		if (simulatedInterface == null) {
+			try {
+				simulatedInterface = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+				if (simulatedInterface == null) {
+					Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+					if (interfaces != null && interfaces.hasMoreElements()) {
+						simulatedInterface = Collections.list(interfaces).get(0);
+					}
+				}
+			} catch (SocketException e) {
+				logger.error("Unable to find a network interface to stand in for the simulated one", e);
+			}
+		}
+		return simulatedInterface;
+	}
+
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/**
+	 * @return the number of bytes sent, counting each multicast packet once.
+	 */
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return the number of packets delivered, counting each member of a multicast group separately.
+	 */
+	public synchronized long getPacketsDelivered() {
+		return packetsDelivered;
+	}
+
+	/**
+	 * @return the number of packets lost, counting each member of a multicast group separately, plus packets sent to an address nothing is bound to.
+	 */
+	public synchronized long getPacketsDropped() {
+		return packetsDropped;
+	}
+}
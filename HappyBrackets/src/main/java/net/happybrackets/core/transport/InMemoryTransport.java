@@ -0,0 +1,382 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.transport;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCListener;
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
+import de.sciss.net.OSCPacketCodec;
+import de.sciss.net.OSCServer;
+import de.sciss.net.OSCTransmitter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node on an {@link InMemoryNetwork}. Each node has its own address and name and a single simulated network
+ * interface, so many devices and a controller can run in one JVM.
+ */
+public class InMemoryTransport implements Transport {
+
+	final static Logger logger = LoggerFactory.getLogger(InMemoryTransport.class);
+
+	private final InMemoryNetwork network;
+	private final String deviceName;
+	private final InetAddress address;
+
+	/**
+	 * Add a new node to the network.
+	 *
+	 * @param network the network.
+	 * @param deviceName the name of the node, which other nodes can also resolve as deviceName.local.
+	 */
+	public InMemoryTransport(InMemoryNetwork network, String deviceName) {
+		this.network = network;
+		this.deviceName = deviceName;
+		this.address = network.addHost(deviceName, deviceName + ".local");
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	@Override
+	public String getDeviceName() {
+		return deviceName;
+	}
+
+	@Override
+	public List<NetworkInterface> viableInterfaces() {
+		NetworkInterface ni = InMemoryNetwork.getSimulatedInterface();
+		return ni == null ? new ArrayList<>() : new ArrayList<>(Collections.singletonList(ni));
+	}
+
+	@Override
+	public boolean isViableNetworkInterface(NetworkInterface ni) {
+		return ni != null && ni.equals(InMemoryNetwork.getSimulatedInterface());
+	}
+
+	@Override
+	public String selectHostname(NetworkInterface ni) {
+		return deviceName;
+	}
+
+	@Override
+	public String selectIP(NetworkInterface ni) {
+		return address.getHostAddress();
+	}
+
+	@Override
+	public String selectMAC(NetworkInterface ni) {
+		//a locally administered address made from the IP address, so it is unique on the network
+		byte[] ip = address.getAddress();
+		return String.format("0200%02x%02x%02x%02x", ip[0], ip[1], ip[2], ip[3]);
+	}
+
+	@Override
+	public InetSocketAddress resolve(String host, int port) {
+		InetAddress resolved = network.lookup(host);
+		if (resolved == null) {
+			return InetSocketAddress.createUnresolved(host, port);
+		}
+		return new InetSocketAddress(resolved, port);
+	}
+
+	@Override
+	public MulticastEndpoint openMulticast(NetworkInterface ni, InetAddress group, int port) throws IOException {
+		return new InMemoryMulticastEndpoint(group, port);
+	}
+
+	@Override
+	public OSCServer openServer(OSCPacketCodec codec, int port) throws IOException {
+		return new InMemoryOSCServer(codec, port == 0 ? network.allocatePort() : port);
+	}
+
+	@Override
+	public PacketSender openSender() throws IOException {
+		InetSocketAddress local = new InetSocketAddress(address, network.allocatePort());
+		return new PacketSender() {
+			@Override
+			public boolean send(ByteBuffer packet, SocketAddress target) throws IOException {
+				network.send(packet, local, checkTarget(target));
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private static InetSocketAddress checkTarget(SocketAddress target) throws IOException {
+		if (!(target instanceof InetSocketAddress) || ((InetSocketAddress) target).isUnresolved()) {
+			throw new IOException("Unresolved address " + target);
+		}
+		return (InetSocketAddress) target;
+	}
+
+	private static void send(InMemoryNetwork network, OSCPacketCodec codec, OSCPacket packet, InetSocketAddress local, SocketAddress target, int bufferSize) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(bufferSize);
+		codec.encode(packet, b);
+		b.flip();
+		network.send(b, local, checkTarget(target));
+	}
+
+	private static void dispatch(OSCPacket packet, SocketAddress sender, long time, List<OSCListener> listeners) {
+		if (packet instanceof OSCMessage) {
+			for (OSCListener listener : listeners) {
+				try {
+					listener.messageReceived((OSCMessage) packet, sender, time);
+				} catch (Exception e) {
+					logger.error("Error in OSC listener", e);
+				}
+			}
+		} else if (packet instanceof OSCBundle) {
+			OSCBundle bundle = (OSCBundle) packet;
+			for (int i = 0; i < bundle.getPacketCount(); i++) {
+				dispatch(bundle.getPacket(i), sender, bundle.getTimeTag(), listeners);
+			}
+		}
+	}
+
+	private static void decodeAndDispatch(OSCPacketCodec codec, ByteBuffer data, SocketAddress sender, List<OSCListener> listeners) {
+		try {
+			dispatch(codec.decode(data), sender, System.currentTimeMillis(), listeners);
+		} catch (IOException e) {
+			logger.debug("Ignoring undecodable packet from {}", sender, e);
+		}
+	}
+
+	/**
+	 * A transmitter that hands encoded packets to the network.
+	 */
+	private class InMemoryTransmitter extends OSCTransmitter {
+
+		InMemoryTransmitter(InetSocketAddress localAddress) {
+			super(Transport.newCodec(), UDP, localAddress, false);
+		}
+
+		@Override
+		public InetSocketAddress getLocalAddress() {
+			return localAddress;
+		}
+
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public void send(OSCPacketCodec codec, OSCPacket packet, SocketAddress target) throws IOException {
+			InMemoryTransport.send(network, codec, packet, localAddress, target, getBufferSize());
+		}
+
+		@Override
+		public void send(OSCPacketCodec codec, OSCPacket packet) throws IOException {
+			send(codec, packet, target);
+		}
+
+		@Override
+		protected SelectableChannel getChannel() {
+			return null;
+		}
+	}
+
+	private class InMemoryMulticastEndpoint implements MulticastEndpoint, InMemoryNetwork.Receiver {
+		final int port;
+		final InetSocketAddress local;
+		final InetSocketAddress mainMembership;
+		final InMemoryTransmitter transmitter;
+		final OSCPacketCodec codec = Transport.newCodec();
+		final List<OSCListener> listeners = new CopyOnWriteArrayList<>();
+		final Set<InetSocketAddress> memberships = new HashSet<>();
+		boolean listening;
+
+		InMemoryMulticastEndpoint(InetAddress group, int port) {
+			this.port = port;
+			local = new InetSocketAddress(address, port);
+			transmitter = new InMemoryTransmitter(local);
+			transmitter.setTarget(new InetSocketAddress(group, port));
+			mainMembership = new InetSocketAddress(group, port);
+			memberships.add(mainMembership);
+		}
+
+		@Override
+		public OSCTransmitter getTransmitter() {
+			return transmitter;
+		}
+
+		@Override
+		public void addOSCListener(OSCListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public synchronized void startListening() {
+			if (listening) {
+				return;
+			}
+			listening = true;
+			network.bind(local, this);
+			memberships.forEach(m -> network.bind(m, this));
+		}
+
+		@Override
+		public synchronized void join(InetAddress group) {
+			InetSocketAddress membership = new InetSocketAddress(group, port);
+			if (memberships.add(membership) && listening) {
+				network.bind(membership, this);
+			}
+		}
+
+		@Override
+		public synchronized void leave(InetAddress group) {
+			InetSocketAddress membership = new InetSocketAddress(group, port);
+			if (membership.equals(mainMembership)) {
+				return;
+			}
+			if (memberships.remove(membership) && listening) {
+				network.unbind(membership, this);
+			}
+		}
+
+		@Override
+		public synchronized void dispose() {
+			if (listening) {
+				network.unbind(local, this);
+				memberships.forEach(m -> network.unbind(m, this));
+				listening = false;
+			}
+		}
+
+		@Override
+		public void receive(ByteBuffer packet, InetSocketAddress sender) {
+			decodeAndDispatch(codec, packet, sender, listeners);
+		}
+	}
+
+	private class InMemoryOSCServer extends OSCServer implements InMemoryNetwork.Receiver {
+		final InetSocketAddress local;
+		final List<OSCListener> listeners = new CopyOnWriteArrayList<>();
+		int bufferSize = 8192;
+		boolean active;
+
+		InMemoryOSCServer(OSCPacketCodec codec, int port) {
+			super(codec, UDP);
+			local = new InetSocketAddress(address, port);
+		}
+
+		@Override
+		public InetSocketAddress getLocalAddress() {
+			return local;
+		}
+
+		@Override
+		public void send(OSCPacket packet, SocketAddress target) throws IOException {
+			InMemoryTransport.send(network, getCodec(), packet, local, target, bufferSize);
+		}
+
+		@Override
+		public void addOSCListener(OSCListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public void removeOSCListener(OSCListener listener) {
+			listeners.remove(listener);
+		}
+
+		@Override
+		public synchronized void start() {
+			if (!active) {
+				active = true;
+				network.bind(local, this);
+			}
+		}
+
+		@Override
+		public synchronized boolean isActive() {
+			return active;
+		}
+
+		@Override
+		public synchronized void stop() {
+			if (active) {
+				active = false;
+				network.unbind(local, this);
+			}
+		}
+
+		@Override
+		public void setBufferSize(int size) {
+			bufferSize = size;
+		}
+
+		@Override
+		public int getBufferSize() {
+			return bufferSize;
+		}
+
+		@Override
+		public void setCodec(OSCPacketCodec codec, SocketAddress target) {
+			setCodec(codec);
+		}
+
+		@Override
+		public OSCPacketCodec getCodec(SocketAddress target) {
+			return getCodec();
+		}
+
+		@Override
+		public void dumpIncomingOSC(int mode, PrintStream stream) {
+		}
+
+		@Override
+		public void dumpOutgoingOSC(int mode, PrintStream stream) {
+		}
+
+		@Override
+		public void dispose() {
+			stop();
+		}
+
+		@Override
+		public void receive(ByteBuffer packet, InetSocketAddress sender) {
+			decodeAndDispatch(getCodec(), packet, sender, listeners);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.transport;
+
+import de.sciss.net.OSCListener;
+import de.sciss.net.OSCPacketCodec;
+import de.sciss.net.OSCServer;
+import de.sciss.net.OSCTransmitter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The network underneath {@link net.happybrackets.core.BroadcastManager}, {@link net.happybrackets.device.network.NetworkCommunication}
+ * and {@link net.happybrackets.controller.network.DeviceConnection}. Everything these classes need from sockets and
+ * network interfaces goes through a Transport, so they can run over real UDP and multicast ({@link UdpTransport}) or
+ * over a simulated network shared by many nodes in one JVM ({@link InMemoryTransport}).
+ */
+public interface Transport {
+
+	/**
+	 * The mode of the codecs used for HappyBrackets messages. It is the default mode, except that longs are written as
+	 * OSC int64 rather than cut down to int32, so that timestamps can be sent as numbers.
+	 */
+	int CODEC_MODE = (OSCPacketCodec.MODE_GRACEFUL & ~OSCPacketCodec.MODE_WRITE_LONG_AS_INTEGER) | OSCPacketCodec.MODE_WRITE_LONG;
+
+	/**
+	 * @return a new codec in {@link #CODEC_MODE}.
+	 */
+	static OSCPacketCodec newCodec() {
+		return new OSCPacketCodec(CODEC_MODE);
+	}
+
+	/**
+	 * @return the name this node identifies itself by in /device/alive messages.
+	 */
+	String getDeviceName();
+
+	/**
+	 * @return the network interfaces that can currently be used for multicast.
+	 */
+	List<NetworkInterface> viableInterfaces();
+
+	/**
+	 * @param ni a network interface returned by {@link #viableInterfaces()}.
+	 * @return true if the interface can still be used.
+	 */
+	boolean isViableNetworkInterface(NetworkInterface ni);
+
+	/**
+	 * @param ni the network interface.
+	 * @return the host name to advertise on the given interface.
+	 */
+	String selectHostname(NetworkInterface ni);
+
+	/**
+	 * @param ni the network interface.
+	 * @return the IP address to advertise on the given interface.
+	 */
+	String selectIP(NetworkInterface ni);
+
+	/**
+	 * @param ni the network interface.
+	 * @return the MAC address of the given interface.
+	 */
+	String selectMAC(NetworkInterface ni);
+
+	/**
+	 * Resolve a host name or address as advertised by another node.
+	 *
+	 * @param host the host name or address.
+	 * @param port the port.
+	 * @return the address, which is unresolved if the host is unknown.
+	 */
+	InetSocketAddress resolve(String host, int port);
+
+	/**
+	 * Open a socket on the given interface that is bound to the given port and a member of the given multicast group.
+	 *
+	 * @param ni the network interface.
+	 * @param group the multicast group.
+	 * @param port the port.
+	 * @return the endpoint, which has not started listening yet.
+	 * @throws IOException if the socket could not be opened or the group could not be joined.
+	 */
+	MulticastEndpoint openMulticast(NetworkInterface ni, InetAddress group, int port) throws IOException;
+
+	/**
+	 * Open an OSC server for unicast messages.
+	 *
+	 * @param codec the codec for the server.
+	 * @param port the port to listen on, 0 for any free port.
+	 * @return the server, which has not been started yet.
+	 * @throws IOException if the port could not be bound.
+	 */
+	OSCServer openServer(OSCPacketCodec codec, int port) throws IOException;
+
+	/**
+	 * Open a sender for packets that have already been encoded, so the same packet can be sent to many targets without
+	 * encoding it again. Sending never blocks, so it is safe from threads that must stay responsive.
+	 *
+	 * @return the sender.
+	 * @throws IOException if the socket could not be opened.
+	 */
+	PacketSender openSender() throws IOException;
+
+	/**
+	 * A socket that is a member of a multicast group.
+	 */
+	interface MulticastEndpoint {
+
+		/**
+		 * @return a transmitter that sends to the multicast group by default.
+		 */
+		OSCTransmitter getTransmitter();
+
+		void addOSCListener(OSCListener listener);
+
+		void startListening() throws IOException;
+
+		/**
+		 * Also receive messages sent to another multicast group on the same port.
+		 *
+		 * @param group the group to join.
+		 * @throws IOException if the group could not be joined.
+		 */
+		void join(InetAddress group) throws IOException;
+
+		/**
+		 * Stop receiving messages from a group joined with {@link #join(InetAddress)}.
+		 *
+		 * @param group the group to leave.
+		 */
+		void leave(InetAddress group);
+
+		void dispose();
+	}
+
+	/**
+	 * A socket for sending packets that have already been encoded.
+	 */
+	interface PacketSender {
+
+		/**
+		 * Send a packet without waiting. The position of the buffer is not changed, so the same buffer can be sent again.
+		 *
+		 * @param packet the packet, from its position to its limit.
+		 * @param target where to send it.
+		 * @return true if the packet was sent, false if it was dropped because the socket's send buffer was full.
+		 * @throws IOException if the packet could not be sent.
+		 */
+		boolean send(ByteBuffer packet, SocketAddress target) throws IOException;
+
+		void close();
+	}
+}
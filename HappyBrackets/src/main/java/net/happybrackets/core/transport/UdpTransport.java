@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.transport;
+
+import de.sciss.net.OSCListener;
+import de.sciss.net.OSCPacketCodec;
+import de.sciss.net.OSCReceiver;
+import de.sciss.net.OSCServer;
+import de.sciss.net.OSCTransmitter;
+import net.happybrackets.core.Device;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The real network: UDP sockets, multicast groups and the network interfaces of this machine, as described by
+ * {@link Device}.
+ */
+public class UdpTransport implements Transport {
+
+	final static Logger logger = LoggerFactory.getLogger(UdpTransport.class);
+
+	private static UdpTransport singletonUdpTransport;
+
+	/**
+	 * The size of the send buffer of a {@link PacketSender}, in bytes.
+	 */
+	public static final int SENDER_BUFFER_SIZE = 1 << 20;
+
+	private String deviceName;
+
+	public synchronized static UdpTransport getInstance() {
+		if (singletonUdpTransport == null) {
+			singletonUdpTransport = new UdpTransport();
+		}
+		return singletonUdpTransport;
+	}
+
+	private UdpTransport() {
+	}
+
+	@Override
+	public synchronized String getDeviceName() {
+		//reading the device name may run a shell command, so only do it once
+		if (deviceName == null) {
+			deviceName = Device.getDeviceName();
+		}
+		return deviceName;
+	}
+
+	@Override
+	public List<NetworkInterface> viableInterfaces() {
+		return Device.viableInterfaces();
+	}
+
+	@Override
+	public boolean isViableNetworkInterface(NetworkInterface ni) {
+		return Device.isViableNetworkInterface(ni);
+	}
+
+	@Override
+	public String selectHostname(NetworkInterface ni) {
+		return Device.selectHostname(ni);
+	}
+
+	@Override
+	public String selectIP(NetworkInterface ni) {
+		return Device.selectIP(ni);
+	}
+
+	@Override
+	public String selectMAC(NetworkInterface ni) {
+		return Device.selectMAC(ni);
+	}
+
+	@Override
+	public InetSocketAddress resolve(String host, int port) {
+		return new InetSocketAddress(host, port);
+	}
+
+	@Override
+	public MulticastEndpoint openMulticast(NetworkInterface ni, InetAddress group, int port) throws IOException {
+		DatagramChannel dc;
+		// Try creating IPv6 channel first.
+		try {
+			dc = DatagramChannel.open(StandardProtocolFamily.INET6)
+					.setOption(StandardSocketOptions.SO_REUSEADDR, true)
+					.bind(new InetSocketAddress(port))
+					.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+			dc.join(group, ni);
+		}
+		catch (Exception ex) {
+			// If creating IPv6 channel doesn't work try IPv4.
+			logger.debug("IPv6 failed, falling back to IPv4 for interface {}", ni.getName());
+			dc = DatagramChannel.open(StandardProtocolFamily.INET)
+					.setOption(StandardSocketOptions.SO_REUSEADDR, true)
+					.bind(new InetSocketAddress(port))
+					.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+			dc.join(group, ni);
+		}
+		return new UdpMulticastEndpoint(ni, group, port, dc);
+	}
+
+	@Override
+	public OSCServer openServer(OSCPacketCodec codec, int port) throws IOException {
+		return OSCServer.newUsing(codec, OSCServer.UDP, port);
+	}
+
+	@Override
+	public PacketSender openSender() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		//room for a command to every device in a large fleet at once
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, SENDER_BUFFER_SIZE);
+		return new PacketSender() {
+			@Override
+			public boolean send(ByteBuffer packet, SocketAddress target) throws IOException {
+				return channel.send(packet.duplicate(), target) > 0;
+			}
+
+			@Override
+			public void close() {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.error("Error closing packet sender", e);
+				}
+			}
+		};
+	}
+
+	private static class UdpMulticastEndpoint implements MulticastEndpoint {
+		final NetworkInterface networkInterface;
+		final InetAddress mainGroup;
+		final DatagramChannel channel;
+		final OSCReceiver receiver;
+		final OSCTransmitter transmitter;
+		final Map<InetAddress, MembershipKey> memberships = new HashMap<>();
+
+		UdpMulticastEndpoint(NetworkInterface networkInterface, InetAddress group, int port, DatagramChannel channel) throws IOException {
+			this.networkInterface = networkInterface;
+			this.mainGroup = group;
+			this.channel = channel;
+			receiver = OSCReceiver.newUsing(Transport.newCodec(), channel);
+			transmitter = OSCTransmitter.newUsing(Transport.newCodec(), channel);
+			transmitter.setTarget(new InetSocketAddress(group.getHostAddress(), port));
+		}
+
+		@Override
+		public OSCTransmitter getTransmitter() {
+			return transmitter;
+		}
+
+		@Override
+		public void addOSCListener(OSCListener listener) {
+			receiver.addOSCListener(listener);
+		}
+
+		@Override
+		public void startListening() throws IOException {
+			receiver.startListening();
+		}
+
+		@Override
+		public synchronized void join(InetAddress group) throws IOException {
+			if (group.equals(mainGroup) || memberships.containsKey(group)) {
+				return;
+			}
+			memberships.put(group, channel.join(group, networkInterface));
+		}
+
+		@Override
+		public synchronized void leave(InetAddress group) {
+			MembershipKey key = memberships.remove(group);
+			if (key != null) {
+				key.drop();
+			}
+		}
+
+		@Override
+		public void dispose() {
+			receiver.dispose();
+			transmitter.dispose();
+		}
+	}
+}
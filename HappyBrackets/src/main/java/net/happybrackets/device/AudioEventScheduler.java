@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.Bead;
+import net.beadsproject.beads.core.TimeStamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Triggers {@link Bead}s from inside the audio callback at synchronized times, and tells them the exact frame within
+ * the buffer the time falls on.
+ *
+ * Before each buffer is calculated the scheduler reads the synchronized clock and feeds the reading into a delay-locked
+ * loop, which smooths out the jitter in when the audio thread happens to run and tracks the rate of the sound card
+ * against the clock. The loop gives the synchronized time of the first and last frame of the buffer, so every event
+ * due within the buffer is messaged with the scheduler as the message, and {@link #getFrameOffset()} and
+ * {@link #getTimeStamp()} give the frame the event belongs on. Beads that can act part way through a buffer, such as
+ * {@link SampleAccurateStart}, use the offset so that the same event lines up to the sample on every device. Other
+ * Beads still act at the start of the buffer that contains the event.
+ *
+ * A buffer is heard some time after it is calculated, once it has worked its way through the sound card's buffers.
+ * With {@link #setOutputLatency(long)} the scheduler adds that delay to the clock readings, so buffer times are the
+ * times the buffer will be heard and an event scheduled for a time is heard at that time, however big the buffers on
+ * this device are. The loop also measures how early the audio thread runs compared with its smoothed timeline, which
+ * shows the extra buffering of a driver that takes audio in bigger blocks than the audio context calculates.
+ */
+public class AudioEventScheduler extends Bead {
+
+	final static Logger logger = LoggerFactory.getLogger(AudioEventScheduler.class);
+
+	/**
+	 * The bandwidth of the delay-locked loop, in Hz. Lower values smooth out more jitter but take longer to settle.
+	 */
+	public static final double DEFAULT_BANDWIDTH = 0.5;
+
+	/**
+	 * An error bigger than this many buffers, such as after an underrun or a clock jump, restarts the loop.
+	 */
+	private static final int RESTART_BUFFERS = 8;
+
+	/**
+	 * How long it takes the measured jitter of the audio thread to halve once the thread runs evenly again, in ns.
+	 */
+	private static final double JITTER_HALF_LIFE = 10e9;
+
+	/**
+	 * A scheduled event, which can be cancelled until it runs.
+	 */
+	public class Handle implements Comparable<Handle> {
+		private final Bead bead;
+		private final long time;
+		private final long sequence;
+		private volatile boolean cancelled;
+		private volatile boolean done;
+
+		private Handle(Bead bead, long time, long sequence) {
+			this.bead = bead;
+			this.time = time;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Stop the event from running.
+		 *
+		 * @return true if the event was cancelled, false if it has already run or been cancelled.
+		 */
+		public boolean cancel() {
+			synchronized (AudioEventScheduler.this) {
+				if (done || cancelled) {
+					return false;
+				}
+				cancelled = true;
+				queue.remove(this);
+				return true;
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * @return the synchronized time of the event, in ns.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public int compareTo(Handle other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final AudioContext ac;
+	private final LongSupplier clock;
+	private final double bandwidth;
+	private final PriorityQueue<Handle> queue = new PriorityQueue<>();
+	private long sequence = 0;
+
+	//delay-locked loop state, only touched on the audio thread
+	private boolean locked = false;
+	private double bufferStartTime;
+	private double nextBufferStartTime;
+	private double bufferPeriod;
+	private long appliedLatency = 0;
+
+	private volatile long outputLatency = 0;
+	private volatile double callbackJitter = 0;
+
+	//the event being messaged, only valid on the audio thread while messaging
+	private int frameOffset;
+	private TimeStamp timeStamp;
+
+	/**
+	 * Create a new AudioEventScheduler and attach it to the audio context.
+	 *
+	 * @param ac the {@link AudioContext}.
+	 * @param clock the synchronized clock, in ns.
+	 */
+	public AudioEventScheduler(AudioContext ac, LongSupplier clock) {
+		this(ac, clock, DEFAULT_BANDWIDTH);
+	}
+
+	/**
+	 * Create a new AudioEventScheduler and attach it to the audio context.
+	 *
+	 * @param ac the {@link AudioContext}.
+	 * @param clock the synchronized clock, in ns.
+	 * @param bandwidth the bandwidth of the delay-locked loop, in Hz.
+	 */
+	public AudioEventScheduler(AudioContext ac, LongSupplier clock, double bandwidth) {
+		this.ac = ac;
+		this.clock = clock;
+		this.bandwidth = bandwidth;
+		ac.invokeBeforeEveryFrame(this);
+	}
+
+	/**
+	 * Schedule a {@link Bead} to be messaged at a synchronized time. The message is the scheduler itself, so the Bead
+	 * can ask for {@link #getFrameOffset()}.
+	 *
+	 * @param bead the Bead to message.
+	 * @param time the synchronized time, in ns. Times in the past trigger at the start of the next buffer.
+	 * @return a handle that can cancel the event.
+	 */
+	public synchronized Handle schedule(Bead bead, long time) {
+		Handle handle = new Handle(bead, time, sequence++);
+		queue.add(handle);
+		return handle;
+	}
+
+	/**
+	 * Cancel every pending event.
+	 */
+	public synchronized void clear() {
+		queue.clear();
+	}
+
+	public synchronized int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * @return while an event is being messaged, the frame within the current buffer it belongs on.
+	 */
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * @return while an event is being messaged, the {@link TimeStamp} of the frame it belongs on.
+	 */
+	public TimeStamp getTimeStamp() {
+		return timeStamp;
+	}
+
+	/**
+	 * @return the estimated synchronized time of the first frame of the current buffer, in ns.
+	 */
+	public long getBufferStartTime() {
+		return (long) bufferStartTime;
+	}
+
+	/**
+	 * @return the estimated length of a buffer in synchronized time, in ns, which differs slightly from the nominal
+	 * length when the sound card runs fast or slow.
+	 */
+	public double getBufferPeriod() {
+		return bufferPeriod;
+	}
+
+	/**
+	 * Set the delay between a buffer being calculated and it being heard. From the next buffer on, events are triggered
+	 * that much earlier, so that they are heard at their scheduled time.
+	 *
+	 * @param latency the output latency, in ns.
+	 */
+	public void setOutputLatency(long latency) {
+		outputLatency = latency;
+	}
+
+	/**
+	 * @return the output latency events are triggered early by, in ns.
+	 */
+	public long getOutputLatency() {
+		return outputLatency;
+	}
+
+	/**
+	 * @return the recent peak of how early the audio thread has run compared with the smoothed buffer times, in ns.
+	 */
+	public double getCallbackJitter() {
+		return callbackJitter;
+	}
+
+	@Override
+	protected void messageReceived(Bead message) {
+		long latency = outputLatency;
+		if (latency != appliedLatency) {
+			//move the loop with the latency, so the change is not taken for jitter
+			bufferStartTime += latency - appliedLatency;
+			nextBufferStartTime += latency - appliedLatency;
+			appliedLatency = latency;
+		}
+		updateLoop(clock.getAsLong() + latency);
+		List<Handle> due = new ArrayList<>();
+		synchronized (this) {
+			while (!queue.isEmpty() && queue.peek().time < nextBufferStartTime) {
+				Handle handle = queue.poll();
+				handle.done = true;
+				due.add(handle);
+			}
+		}
+		int bufferSize = ac.getBufferSize();
+		for (Handle handle : due) {
+			int offset = (int) Math.floor((handle.time - bufferStartTime) * bufferSize / (nextBufferStartTime - bufferStartTime));
+			frameOffset = Math.max(0, Math.min(bufferSize - 1, offset));
+			timeStamp = ac.generateTimeStamp(frameOffset);
+			try {
+				handle.bead.message(this);
+			} catch (Exception e) {
+				logger.error("Error triggering scheduled audio event", e);
+			}
+		}
+		frameOffset = 0;
+		timeStamp = null;
+	}
+
+	/**
+	 * A second order delay-locked loop, as described by Fons Adriaensen in "Using a DLL to filter time".
+	 */
+	private void updateLoop(long timeNow) {
+		double nominalPeriod = ac.samplesToMs(ac.getBufferSize()) * 1e6;
+		double error = timeNow - nextBufferStartTime;
+		if (!locked || Math.abs(error) > RESTART_BUFFERS * nominalPeriod) {
+			if (locked) {
+				logger.debug("Audio clock out by {} ms, restarting", error / 1e6);
+			}
+			locked = true;
+			callbackJitter = 0;
+			bufferPeriod = nominalPeriod;
+			bufferStartTime = timeNow;
+			nextBufferStartTime = timeNow + bufferPeriod;
+			return;
+		}
+		callbackJitter = Math.max(-error, callbackJitter * Math.pow(0.5, nominalPeriod / JITTER_HALF_LIFE));
+		double omega = 2 * Math.PI * bandwidth * nominalPeriod / 1e9;
+		bufferStartTime = nextBufferStartTime;
+		nextBufferStartTime += Math.sqrt(2) * omega * error + bufferPeriod;
+		bufferPeriod += omega * omega * error;
+	}
+}
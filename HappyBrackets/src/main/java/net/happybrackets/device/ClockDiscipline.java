@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.Bead;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.ugens.Clock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a {@link Clock} phase-locked to synchronized time, so that devices whose sound cards run at slightly different
+ * rates keep ticking together.
+ *
+ * A Clock counts audio samples, so on its own it follows the sound card's crystal rather than the synchronized clock.
+ * Before each buffer the discipline works out where the Clock should be: the number of ticks the interval asks for
+ * over the synchronized time that has passed since the Clock was anchored, using the buffer times from the
+ * {@link AudioEventScheduler}. The difference from where the Clock actually is gives the phase error. The discipline
+ * then stretches the Clock's interval by a tiny factor, made of the measured rate of the sound card against
+ * synchronized time plus a share of the phase error, and never by more than {@link #MAX_ADJUSTMENT}.
+ *
+ * The discipline sits between the interval envelope and the Clock, so it stops working if the Clock is given another
+ * interval envelope with {@link Clock#setIntervalEnvelope(UGen)}. Change the envelope it was created with instead.
+ */
+public class ClockDiscipline extends Bead {
+
+	final static Logger logger = LoggerFactory.getLogger(ClockDiscipline.class);
+
+	/**
+	 * The most the discipline stretches or shrinks the interval by, as a fraction.
+	 */
+	public static final double MAX_ADJUSTMENT = 0.005;
+
+	/**
+	 * How long the discipline aims to take to remove a phase error, in ms, if that doesn't need a bigger adjustment than
+	 * {@link #MAX_ADJUSTMENT}.
+	 */
+	public static final double CORRECTION_TIME = 2000;
+
+	private final AudioContext ac;
+	private final Clock clock;
+	private final UGen interval;
+	private final AudioEventScheduler scheduler;
+	private final UGen adjustedInterval;
+	private volatile boolean enabled = true;
+	private volatile long pendingAnchor = Long.MIN_VALUE;
+
+	//loop state, only touched on the audio thread
+	private boolean locked = false;
+	private double expectedPosition;
+	private double lastPosition;
+	private double tickNanos = 0;		//the length of a tick the interval asked for in the last buffer, 0 until the clock has run
+	private double factor = 1;
+
+	//metrics, read from other threads
+	private volatile double phaseError = 0;
+	private volatile double adjustment = 0;
+
+	/**
+	 * Create a new ClockDiscipline, put it between the clock and its interval envelope, and attach it to the audio
+	 * context.
+	 *
+	 * @param ac the {@link AudioContext}.
+	 * @param clock the {@link Clock} to discipline.
+	 * @param interval the envelope that sets the clock's interval, in ms per beat.
+	 * @param scheduler the scheduler that gives the synchronized time of each buffer. It must be attached to the audio
+	 *                  context before the discipline is, so that its times are up to date.
+	 */
+	public ClockDiscipline(AudioContext ac, Clock clock, UGen interval, AudioEventScheduler scheduler) {
+		this.ac = ac;
+		this.clock = clock;
+		this.interval = interval;
+		this.scheduler = scheduler;
+		adjustedInterval = new UGen(ac, 0, 1) {
+			@Override
+			public void calculateBuffer() {
+				interval.update();
+				float[] out = bufOut[0];
+				float scale = (float) factor;
+				for (int i = 0; i < bufferSize; i++) {
+					out[i] = interval.getValue(0, i) * scale;
+				}
+				//the same limit the clock puts on the length of a tick
+				tickNanos = Math.max(1, Math.abs(interval.getValue(0, bufferSize - 1)) / clock.getTicksPerBeat()) * 1e6;
+			}
+		};
+		clock.setIntervalEnvelope(adjustedInterval);
+		ac.invokeBeforeEveryFrame(this);
+	}
+
+	/**
+	 * Tell the discipline that the clock was reset at a synchronized time, so that it is brought to where it would be had
+	 * the reset happened at exactly that time. Without an anchor the discipline locks to wherever the clock is when it
+	 * starts or is reset, which stops it drifting but does not line it up with other devices.
+	 *
+	 * @param time the synchronized time of the reset, in ns.
+	 */
+	public void anchor(long time) {
+		pendingAnchor = time;
+	}
+
+	/**
+	 * @param enabled false to let the clock run at the interval it is given, without correction.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return how far the clock is ahead of where it should be, as of the start of the current buffer, in ms. Negative
+	 * when it is behind.
+	 */
+	public double getPhaseError() {
+		return phaseError;
+	}
+
+	/**
+	 * @return the fraction the interval is currently stretched by, negative when it is shrunk.
+	 */
+	public double getAdjustment() {
+		return adjustment;
+	}
+
+	@Override
+	protected void messageReceived(Bead message) {
+		if (!enabled || clock.getIntervalUGen() != adjustedInterval) {
+			factor = 1;
+			locked = false;
+			adjustment = 0;
+			return;
+		}
+		double position = clock.getSubTickNow();
+		if (tickNanos == 0) {
+			//the clock hasn't run yet
+			return;
+		}
+		double bufferStart = scheduler.getBufferStartTime();
+		long anchorTime = pendingAnchor;
+		if (anchorTime != Long.MIN_VALUE) {
+			pendingAnchor = Long.MIN_VALUE;
+			expectedPosition = (bufferStart - anchorTime) / tickNanos;
+			locked = true;
+		} else if (!locked || position < lastPosition) {
+			//started, or reset without an anchor
+			expectedPosition = position;
+			locked = true;
+		} else {
+			//the ticks the last buffer should have moved the clock on by, in synchronized time
+			expectedPosition += scheduler.getBufferPeriod() / tickNanos;
+		}
+		lastPosition = position;
+		double error = (position - expectedPosition) * tickNanos / 1e6;
+		phaseError = error;
+		//how much longer a buffer lasts in synchronized time than in samples
+		double nominalPeriod = ac.samplesToMs(ac.getBufferSize()) * 1e6;
+		double rate = scheduler.getBufferPeriod() > 0 ? nominalPeriod / scheduler.getBufferPeriod() : 1;
+		double target = rate * (1 + error / CORRECTION_TIME) - 1;
+		adjustment = Math.max(-MAX_ADJUSTMENT, Math.min(MAX_ADJUSTMENT, target));
+		factor = 1 + adjustment;
+	}
+}
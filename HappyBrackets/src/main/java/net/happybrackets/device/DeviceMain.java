@@ -58,6 +58,13 @@ public class DeviceMain {
 		for(String s : args) {
 			if(s.startsWith("start=")) {
 				autostart = !s.split("[=]")[1].toLowerCase().startsWith("f");
+			} else if(s.startsWith("latency=")) {
+				//the output latency of the driver and converters, in ms, on top of the buffers
+				try {
+					hb.latency.setExtraLatency(Double.parseDouble(s.split("[=]")[1]));
+				} catch (NumberFormatException e) {
+					logger.error("Error setting output latency from command line, expected ms.");
+				}
 			} else if(!s.contains("=")) {
 				hb.attemptHBActionFromClassName(s);
 			}
@@ -33,6 +33,7 @@ import de.sciss.net.OSCMessage;
 import net.beadsproject.beads.core.AudioContext;
 import net.beadsproject.beads.core.Bead;
 import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.core.io.JavaSoundAudioIO;
 import net.beadsproject.beads.data.Buffer;
 import net.beadsproject.beads.events.KillTrigger;
 import net.beadsproject.beads.ugens.Clock;
@@ -126,13 +127,38 @@ public class HB {
 	/**
 	 * The {@link BroadcastManager}object used to communicate with other devices using 1-many broadcasts. The important methods are provided directly from {@link HB}, e.g., {@link HB#broadcast(String, Object...)} and {@link HB#addBroadcastListener(OSCListener)}.
 	 */
-	public static BroadcastManager broadcast = new BroadcastManager(DeviceConfig.getInstance().getMulticastAddr(), DeviceConfig.getInstance().getBroadcastPort());
+	public static BroadcastManager broadcast = new BroadcastManager(
+			DeviceConfig.getInstance().getMulticastAddr(),
+			DeviceConfig.getInstance().getBroadcastPort(),
+			DeviceConfig.getInstance().getTopicMulticastAddr(),
+			DeviceConfig.getInstance().getTopicGroupCount()
+	);
 
 	/**
 	 * The {@link Synchronizer} object used to manage time synch between devices. The important methods are provided directly from {@link HB}, e.g., {@link HB#doAtTime(Runnable, long)} and {@link HB#getSynchTime()}.
 	 */
 	public final Synchronizer synch;
 
+	/**
+	 * The {@link AudioEventScheduler} used to trigger {@link Bead}s on the audio thread at synchronized times. Use {@link HB#triggerAtTime(Bead, long)}.
+	 */
+	public final AudioEventScheduler audioScheduler;
+
+	/**
+	 * The {@link LatencyCompensation} that estimates how long this device's audio takes to reach the speaker, and makes {@link HB#doAtTime(Runnable, long)}, {@link HB#triggerAtTime(Bead, long)} and the beat scheduling act that much early, so that devices with different buffer sizes are heard together. Set the latency of the driver and converters with {@link LatencyCompensation#setExtraLatency(double)}, or a measured latency with {@link LatencyCompensation#setOverride(double)}.
+	 */
+	public final LatencyCompensation latency;
+
+	/**
+	 * The {@link ClockDiscipline} that keeps {@link #clock} phase-locked to synchronized time, so that clocks started with {@link #syncAudioStart(long)} keep ticking together however long they run. Its phase error shows how well it is doing.
+	 */
+	public final ClockDiscipline clockDiscipline;
+
+	/**
+	 * The {@link BeatScheduler} that runs actions on the beats and bars of the fleet's {@link TempoMap}, which the controller sets. The important methods are provided directly from {@link HB}, e.g., {@link HB#doOnNext(Runnable, TempoMap.Unit)}.
+	 */
+	public final BeatScheduler beats;
+
 	private AccessMode accessMode;
 
 	/**
@@ -172,6 +198,11 @@ public class HB {
 		controller = new NetworkCommunication(this);
 		System.out.print(".");
 		synch = Synchronizer.getInstance();
+		audioScheduler = new AudioEventScheduler(ac, synch::correctedTimeNanos);
+		//AudioSetup gives the JavaSound line the same buffer size as the audio context
+		latency = new LatencyCompensation(ac, audioScheduler, ac.getAudioIO() instanceof JavaSoundAudioIO ? ac.getBufferSize() : 0);
+		clockDiscipline = new ClockDiscipline(ac, clock, clockInterval, audioScheduler);
+		beats = new BeatScheduler(synch::correctedTimeMicros, (runnable, time) -> synch.doAtTimeMicros(runnable, time - latency.getMicros()), TempoMap.DEFAULT);
 		System.out.print(".");
 		DeviceConfig.getInstance().listenForController(broadcast);
 		System.out.print(".");
@@ -199,6 +230,17 @@ public class HB {
 		broadcast.broadcast(string, args);
 	}
 
+	/**
+	 * Broadcast an {@link OSCMessage} msg on a topic. Only devices that have added a listener for the topic with {@link #addBroadcastListener(String, OSCListener)} receive the message, and devices that are not listening to any topic sharing its multicast group never see it at all.
+	 *
+	 * @param topic the topic to broadcast on.
+	 * @param string the message string to send.
+	 * @param args the args to the message.
+	 */
+	public void broadcastToTopic(String topic, String string, Object... args) {
+		broadcast.broadcastToTopic(topic, string, args);
+	}
+
 	/**
 	 * Send an {@link OSCMessage} to the controller. The controller already responds to certain OSCMessages that are already generated automatically. Best not to interefere with these. This function is only really useful if you are going to modify your controller program.
 	 *
@@ -208,6 +250,37 @@ public class HB {
 	public void sendToController(String string, Object... args) {
 		controller.send(string, args);
 	}
+	/**
+	 * Send an {@link OSCMessage} directly to another device. Unlike {@link #broadcast(String, Object...)} the message goes only to the given device, by unicast, so it does not use up network airtime on every other device. The device must have been seen on the network recently for its address to be known.
+	 *
+	 * @param id the ID of the device to send to, as assigned by the controller.
+	 * @param string the message string to send.
+	 * @param args the args of the message.
+	 * @return true if the device is known and the message was sent.
+	 */
+	public boolean sendToDevice(int id, String string, Object... args) {
+		return controller.sendToPeer(id, string, args);
+	}
+
+	/**
+	 * Add a new {@link OSCListener}, listening to messages sent directly to this device by the device with the given ID using {@link #sendToDevice(int, String, Object...)}.
+	 *
+	 * @param id the ID of the sending device.
+	 * @param listener the new {@link OSCListener}.
+	 */
+	public void addDeviceListener(int id, OSCListener listener) {
+		controller.addPeerListener(id, listener);
+	}
+
+	/**
+	 * Add a new {@link OSCListener}, listening to messages sent directly to this device by any other device using {@link #sendToDevice(int, String, Object...)}.
+	 *
+	 * @param listener the new {@link OSCListener}.
+	 */
+	public void addDeviceListener(OSCListener listener) {
+		controller.addPeerListener(listener);
+	}
+
 	/**
 	 * Add a new {@link OSCListener}, listening to broadcasts.
 	 *
@@ -217,6 +290,26 @@ public class HB {
 		broadcast.addBroadcastListener(listener);
 	}
 
+	/**
+	 * Add a new {@link OSCListener}, listening to broadcasts on the given topic. See {@link #broadcastToTopic(String, String, Object...)}.
+	 *
+	 * @param topic the topic to listen to.
+	 * @param listener the new {@link OSCListener}.
+	 */
+	public void addBroadcastListener(String topic, OSCListener listener) {
+		broadcast.addBroadcastListener(topic, listener);
+	}
+
+	/**
+	 * Remove an {@link OSCListener} from the given topic.
+	 *
+	 * @param topic the topic the listener was added to.
+	 * @param listener the {@link OSCListener} to remove.
+	 */
+	public void removeBroadcastListener(String topic, OSCListener listener) {
+		broadcast.removeBroadcastListener(topic, listener);
+	}
+
 	/**
 	 * Add a new {@link OSCListener}, listening to incoming messages from the controller.
 	 * @param listener the new listener.
@@ -226,7 +319,7 @@ public class HB {
 	}
 
 	/**
-	 * Causes the audio to start at a given synchronised time on all devices.
+	 * Causes the audio to start at a given synchronised time on all devices. The {@link #clock} is reset at the same time, and {@link #clockDiscipline} keeps it in phase with the other devices from then on.
 	 *
 	 * @param time time at which to sync, according to the agreed clock time
      */
@@ -235,6 +328,7 @@ public class HB {
 			public void run() {
 				startAudio();
 				clock.reset();		//if audio is already running, we just reset the clock
+				clockDiscipline.anchor(time * 1000000L);
 			}
 		}, time);
 	}
@@ -249,12 +343,79 @@ public class HB {
 	}
 
 	/**
-	 * Causes an action to be implemented at the given, synchronized time.
+	 * Returns the same time as {@link #getSynchTime()} in microseconds. The time has microsecond resolution.
+	 *
+	 * @return corrected time as long, in microseconds since 1st Jan 1970.
+	 */
+	public long getSynchTimeMicros() {
+		return synch.correctedTimeMicros();
+	}
+
+	/**
+	 * Returns the same time as {@link #getSynchTime()} in nanoseconds, for comparing with times in the {@link AudioEventScheduler}.
+	 *
+	 * @return corrected time as long, in nanoseconds since 1st Jan 1970.
+	 */
+	public long getSynchTimeNanos() {
+		return synch.correctedTimeNanos();
+	}
+
+	/**
+	 * Causes an action to be implemented at the given, synchronized time. The action runs early by this device's output latency (see {@link #latency}), so that a sound it starts is heard at the given time on every device.
 	 * @param runnable the action to perform.
 	 * @param time the time at which to perform the action, in millseconds since 1st Jan 1970.
+	 * @return a handle that can cancel the action.
      */
-	public void doAtTime(Runnable runnable, long time) {
-		synch.doAtTime(runnable, time);
+	public EventScheduler.Handle doAtTime(Runnable runnable, long time) {
+		return synch.doAtTimeMicros(runnable, time * 1000 - latency.getMicros());
+	}
+
+	/**
+	 * Causes an action to be implemented at the start of the next beat, bar or phrase of the fleet's tempo map, so that it happens at the same time on every device. If the tempo changes before then, the action moves with the beat.
+	 * @param runnable the action to perform.
+	 * @param unit {@link TempoMap.Unit#BEAT}, {@link TempoMap.Unit#BAR} or {@link TempoMap.Unit#PHRASE}.
+	 * @return a handle that can cancel the action.
+	 */
+	public BeatScheduler.Handle doOnNext(Runnable runnable, TempoMap.Unit unit) {
+		return beats.doOnNext(runnable, unit);
+	}
+
+	/**
+	 * Causes an action to be implemented on the given beat of the fleet's tempo map.
+	 * @param runnable the action to perform.
+	 * @param beat the beat, which may be fractional, counted from the start of the tempo map.
+	 * @return a handle that can cancel the action.
+	 */
+	public BeatScheduler.Handle doAtBeat(Runnable runnable, double beat) {
+		return beats.doAtBeat(runnable, beat);
+	}
+
+	/**
+	 * Returns the current beat of the fleet's tempo map.
+	 *
+	 * @return the beat, with the fraction of the way through it.
+	 */
+	public double getBeat() {
+		return beats.beatNow();
+	}
+
+	/**
+	 * Returns the fleet's tempo map, with its tempo and meter.
+	 *
+	 * @return the map in effect now.
+	 */
+	public TempoMap getTempoMap() {
+		return beats.getTempoMap();
+	}
+
+	/**
+	 * Triggers a {@link Bead} on the audio thread at the given, synchronized time. Unlike {@link #doAtTime(Runnable, long)} the trigger happens in the audio buffer that contains the time, and the Bead can find the exact frame from {@link AudioEventScheduler#getFrameOffset()}. Use a {@link SampleAccurateStart} to start a sound on that frame.
+	 * @param bead the Bead to trigger.
+	 * @param time the time at which to trigger the Bead, in millseconds since 1st Jan 1970.
+	 * @return a handle that can cancel the trigger.
+	 */
+	public AudioEventScheduler.Handle triggerAtTime(Bead bead, long time) {
+		return audioScheduler.schedule(bead, time * 1000000L);
 	}
 
 	/**
@@ -425,7 +586,7 @@ public class HB {
 								// this means we're done with the sequence, time to recreate
 								// the classloader to avoid duplicate errors
 								loader = new DynamicClassLoader(ClassLoader.getSystemClassLoader());
-								status = "Last HBAction: " + incomingClass.getCanonicalName();
+								setStatus("Last HBAction: " + incomingClass.getCanonicalName());
 							} else {
 								logger.debug("new object (not HBAction) >> " + c.getName());
 							}
@@ -488,6 +649,32 @@ public class HB {
 		return result;
 	}
 
+	/**
+	 * Creates a {@link SensorStream} that streams frames of values to the controller in packed messages, stamped with synchronized time. Add frames with {@link SensorStream#addFrame(double...)}. The controller keeps them in its {@link net.happybrackets.controller.network.SensorRecorder}.
+	 *
+	 * @param name the name of the stream.
+	 * @param channels the number of values in each frame.
+	 * @return the stream.
+	 */
+	public SensorStream createSensorStream(String name, int channels) {
+		return new SensorStream(broadcast.getTransport().getDeviceName(), name, channels, SensorStream.DEFAULT_FRAMES_PER_MESSAGE, SensorStream.DEFAULT_MAX_DELAY, synch::correctedTimeMicros, controller::send);
+	}
+
+	/**
+	 * Streams every reading of a motion sensor to the controller: the accelerometer, gyroscope and magnetometer axes the sensor has, as one frame per reading. See {@link #createSensorStream(String, int)}.
+	 *
+	 * @param name the name of the stream.
+	 * @param sensor the sensor, e.g. from {@link #getSensor(Class)}.
+	 * @param decimation the number of readings to average into each frame, 1 to send every reading.
+	 * @return the stream.
+	 */
+	public SensorStream streamSensor(String name, Sensor sensor, int decimation) {
+		SensorStream stream = createSensorStream(name, SensorStream.channelsOf(sensor));
+		stream.setDecimation(decimation);
+		sensor.addListener(() -> stream.addFrame(SensorStream.read(sensor)));
+		return stream;
+	}
+
 	/**
 	 * Puts an {@link Object} into the global memory store with a given name. This overwrites any object that was previously stored with the given name.
 	 *
@@ -628,6 +815,8 @@ public class HB {
 		clock.clearInputConnections();
 		clock.clearDependents();
 		pl.clearDependents();
+		audioScheduler.clear();
+		beats.clear();
 		//clear data store
 		share.clear();
 		//clear mu listeners
@@ -636,6 +825,7 @@ public class HB {
 		}
 		//clear osc listeners
 		controller.clearListeners();
+		controller.clearPeerListeners();
 		//clear broadcast listeners
 		broadcast.clearBroadcastListeners();
 	}
@@ -705,7 +895,12 @@ public class HB {
 	 * @param s the status of the device.
      */
 	public void setStatus(String s) {
+		boolean changed = s == null ? status != null : !s.equals(status);
 		status = s;
+		//controller is null while the constructor is still setting up the network
+		if (changed && controller != null) {
+			controller.aliveInformationChanged();
+		}
 	}
 
 	/**
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.Bead;
+import net.happybrackets.core.OutputLatency;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates this device's output latency and tells the {@link AudioEventScheduler} to trigger events early by that
+ * much, so that a sound scheduled for a synchronized time leaves every device's speaker at that time rather than just
+ * starting to be calculated then.
+ *
+ * The estimate is the audio buffered between the audio context and the sound card, worked out from the buffer size and
+ * sample rate, plus the recent peak of how early the audio thread runs compared with its smoothed timeline, as measured
+ * by the scheduler, plus an extra latency for the driver and converters, which can't be measured from software and is
+ * set by hand. The estimate is checked about once a second and only applied when it has moved by more than
+ * {@link #CHANGE_THRESHOLD}, so events don't shift with every small change in jitter.
+ *
+ * An output latency measured another way, for example by recording every device with one microphone, can be set with
+ * {@link #setOverride(double)}, which then replaces the estimate.
+ */
+public class LatencyCompensation extends Bead {
+
+	final static Logger logger = LoggerFactory.getLogger(LatencyCompensation.class);
+
+	/**
+	 * How far the estimate has to move before it is applied, in us.
+	 */
+	public static final long CHANGE_THRESHOLD = 500;
+
+	/**
+	 * How often the estimate is checked, in ms.
+	 */
+	private static final double UPDATE_INTERVAL = 1000;
+
+	private final AudioContext ac;
+	private final AudioEventScheduler scheduler;
+	private final int bufferedFrames;
+	private volatile long extra = 0;
+	private volatile long override = -1;
+	private volatile OutputLatency latency;
+	private double sinceUpdate = 0;		//ms, only touched on the audio thread
+
+	/**
+	 * Create a new LatencyCompensation, apply the latency of the buffers straight away, and attach it to the audio
+	 * context.
+	 *
+	 * @param ac the {@link AudioContext}.
+	 * @param scheduler the scheduler to compensate, which also measures the jitter of the audio thread.
+	 * @param bufferedFrames the number of frames buffered between the audio context and the sound card, not counting
+	 *                       the buffer being calculated.
+	 */
+	public LatencyCompensation(AudioContext ac, AudioEventScheduler scheduler, int bufferedFrames) {
+		this.ac = ac;
+		this.scheduler = scheduler;
+		this.bufferedFrames = bufferedFrames;
+		update(true);
+		ac.invokeBeforeEveryFrame(this);
+	}
+
+	/**
+	 * Set the latency of the driver and converters, which is added to the estimate.
+	 *
+	 * @param ms the extra latency, in ms.
+	 */
+	public void setExtraLatency(double ms) {
+		extra = Math.round(ms * 1000);
+		update(true);
+	}
+
+	/**
+	 * Use a measured output latency in place of the estimate.
+	 *
+	 * @param ms the output latency, in ms.
+	 */
+	public void setOverride(double ms) {
+		if (ms < 0) {
+			throw new IllegalArgumentException("Output latency can't be negative");
+		}
+		override = Math.round(ms * 1000);
+		update(true);
+	}
+
+	/**
+	 * Go back to using the estimate.
+	 */
+	public void clearOverride() {
+		override = -1;
+		update(true);
+	}
+
+	/**
+	 * @return the output latency being compensated for, and what it is made of.
+	 */
+	public OutputLatency getOutputLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return the output latency being compensated for, in us.
+	 */
+	public long getMicros() {
+		return latency.total;
+	}
+
+	@Override
+	protected void messageReceived(Bead message) {
+		sinceUpdate += ac.samplesToMs(ac.getBufferSize());
+		if (sinceUpdate >= UPDATE_INTERVAL) {
+			sinceUpdate = 0;
+			update(false);
+		}
+	}
+
+	private synchronized void update(boolean force) {
+		long buffered = Math.round(ac.samplesToMs(bufferedFrames) * 1000);
+		long jitter = Math.round(scheduler.getCallbackJitter() / 1000);
+		long total = override >= 0 ? override : buffered + jitter + extra;
+		OutputLatency previous = latency;
+		if (!force && previous != null && Math.abs(total - previous.total) <= CHANGE_THRESHOLD) {
+			return;
+		}
+		latency = new OutputLatency(buffered, jitter, extra, total);
+		scheduler.setOutputLatency(total * 1000);
+		if (previous == null || previous.total != total) {
+			logger.debug("Compensating for {}", latency);
+		}
+	}
+}
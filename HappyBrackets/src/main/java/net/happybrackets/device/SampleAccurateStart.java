@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.Bead;
+import net.beadsproject.beads.core.UGen;
+
+import java.util.Arrays;
+
+/**
+ * Holds a sound back until it is triggered, then starts it on the exact frame given by the
+ * {@link AudioEventScheduler}. The sound is silent and is not updated until the trigger; from then on its output is
+ * delayed by the frame offset so that its first frame lands on the scheduled frame.
+ *
+ * For example, to start a sample at the same moment on every device:
+ * <pre>
+ * SampleAccurateStart start = new SampleAccurateStart(hb.ac, samplePlayer);
+ * hb.sound(start);
+ * hb.triggerAtTime(start, time);
+ * </pre>
+ */
+public class SampleAccurateStart extends UGen {
+
+	private final UGen source;
+	private boolean started = false;
+	private int delay;
+	private float[][] carry;
+	private float[] scratch;
+
+	/**
+	 * @param ac the {@link AudioContext}.
+	 * @param source the sound to start.
+	 */
+	public SampleAccurateStart(AudioContext ac, UGen source) {
+		super(ac, 0, source.getOuts());
+		this.source = source;
+	}
+
+	public boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * Start the sound. If the message is from an {@link AudioEventScheduler} the sound starts at its frame offset,
+	 * otherwise at the start of the next buffer.
+	 */
+	@Override
+	protected void messageReceived(Bead message) {
+		if (started) {
+			return;
+		}
+		delay = message instanceof AudioEventScheduler ? ((AudioEventScheduler) message).getFrameOffset() : 0;
+		carry = new float[outs][delay];
+		started = true;
+	}
+
+	@Override
+	public void calculateBuffer() {
+		if (!started) {
+			for (int i = 0; i < outs; i++) {
+				Arrays.fill(bufOut[i], 0);
+			}
+			return;
+		}
+		if (source.isDeleted()) {
+			kill();
+			return;
+		}
+		source.update();
+		for (int i = 0; i < outs; i++) {
+			float[] in = source.getOutBuffer(i);
+			if (in == null) {
+				//some UGens, such as Static, only provide values one at a time
+				if (scratch == null) {
+					scratch = new float[bufferSize];
+				}
+				for (int j = 0; j < bufferSize; j++) {
+					scratch[j] = source.getValue(i, j);
+				}
+				in = scratch;
+			}
+			float[] out = bufOut[i];
+			System.arraycopy(carry[i], 0, out, 0, delay);
+			System.arraycopy(in, 0, out, delay, bufferSize - delay);
+			System.arraycopy(in, bufferSize - delay, carry[i], 0, delay);
+		}
+	}
+}
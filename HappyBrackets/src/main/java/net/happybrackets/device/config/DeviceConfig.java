@@ -31,6 +31,8 @@ public class DeviceConfig extends LoadableConfig implements ControllerDiscoverer
 
 	private int polyLimit = 4;
 	private String logFilePath = "stdout";
+	private String broadcastMode = "multicast";	//"multicast", or "relay" to send broadcasts by unicast through the controller
+	private double sendBatchWindow = 0;			//ms to wait for more messages to the controller before sending them as one bundle, 0 to send each straight away
 	private DeviceController controller = new DeviceController("", "", 0);
 
 	public String getControllerHostname() {
@@ -41,6 +43,14 @@ public class DeviceConfig extends LoadableConfig implements ControllerDiscoverer
 	  return controller.getAddress();
 	}
 
+	/**
+	 * Listen for changes to the controller's hostname or address, as advertised by the controller.
+	 * @param listener the listener.
+	 */
+	public void addControllerListener(DeviceController.ChangeListener listener) {
+		controller.addChangeListener(listener);
+	}
+
 	public void listenForController(BroadcastManager broadcastManager) {
 		ControllerDiscoverer.super.listenForController(controller, broadcastManager, logger);
 	}
@@ -55,6 +65,22 @@ public class DeviceConfig extends LoadableConfig implements ControllerDiscoverer
 
 	public String getLogFilePath() {return logFilePath; };
 
+	/**
+	 * Whether broadcasts from this device should be relayed through the controller by unicast instead of being sent to the multicast group. Relaying helps on access points that send multicast at the lowest basic rate.
+	 * @return true if the broadcast mode is "relay".
+	 */
+	public boolean useBroadcastRelay() {
+		return "relay".equalsIgnoreCase(broadcastMode);
+	}
+
+	/**
+	 * How long to wait for more messages to the controller before sending them together as one bundle. Batching cuts the number of datagrams a device sends when it sends many small messages, at the cost of up to this much delay.
+	 * @return the window in ms, or 0 to send each message straight away.
+	 */
+	public double getSendBatchWindow() {
+		return sendBatchWindow;
+	}
+
 	public static DeviceConfig getInstance() {
 		return (DeviceConfig)(LoadableConfig.getInstance());
 	}
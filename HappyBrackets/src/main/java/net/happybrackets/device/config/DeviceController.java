@@ -16,13 +16,25 @@
 
 package net.happybrackets.device.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A small class to keep our host controller's hostname and address together
  */
 public class DeviceController {
+
+    /**
+     * Told when the controller's hostname or address changes.
+     */
+    public interface ChangeListener {
+        void controllerChanged(DeviceController controller);
+    }
+
     private String hostname;
     private String address;
     private int    deviceId;
+    private transient List<ChangeListener> listeners;
 
     public int getDeviceId() {
         return deviceId;
@@ -53,5 +65,33 @@ public class DeviceController {
     public void setHostname(String hostname) {
         this.hostname = hostname;
     }
+
+    /**
+     * Change the hostname and address together, and tell the listeners if either has changed.
+     * @param hostname the new hostname.
+     * @param address the new address.
+     */
+    public void set(String hostname, String address) {
+        List<ChangeListener> toNotify;
+        synchronized (this) {
+            if (hostname.equals(this.hostname) && address.equals(this.address)) {
+                return;
+            }
+            this.hostname = hostname;
+            this.address = address;
+            toNotify = listeners == null ? new ArrayList<>() : new ArrayList<>(listeners);
+        }
+        for (ChangeListener listener : toNotify) {
+            listener.controllerChanged(this);
+        }
+    }
+
+    public synchronized void addChangeListener(ChangeListener listener) {
+        //not set when the controller was loaded from a config file
+        if (listeners == null) {
+            listeners = new ArrayList<>();
+        }
+        listeners.add(listener);
+    }
 }
 
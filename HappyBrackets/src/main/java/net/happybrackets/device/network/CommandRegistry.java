@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device.network;
+
+import de.sciss.net.OSCListener;
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.CommandAck;
+
+import java.net.SocketAddress;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The built-in commands a device responds to, such as /device/reset and /device/gain, looked up by message name.
+ *
+ * Commands run in the order they arrive on a thread of their own, the command lane, which runs at the highest priority
+ * and never runs user code, so a command is acted on straight away however busy the listeners added by compositions
+ * are. Messages that aren't commands are left to the caller, which passes them to a {@link ListenerDispatcher}.
+ */
+public class CommandRegistry {
+
+	final static Logger logger = LoggerFactory.getLogger(CommandRegistry.class);
+
+	private final Map<String, OSCListener> commands = new Hashtable<String, OSCListener>();
+	private final LinkedList<Runnable> lane = new LinkedList<Runnable>();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * Create a new CommandRegistry and start its command lane.
+	 */
+	public CommandRegistry() {
+		thread = new Thread("HB commands") {
+			public void run() {
+				runCommands();
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Add a command, replacing any command already registered with the same name.
+	 * @param name the message name, e.g. /device/reset, which must be one of the built-in commands listed in {@link CommandAck}, so that the controller knows to ask for it to be acknowledged.
+	 * @param command what to do with the message.
+	 * @throws IllegalArgumentException if the name isn't a built-in command.
+	 */
+	public void register(String name, OSCListener command) {
+		if(!CommandAck.isCommand(name)) {
+			throw new IllegalArgumentException("Not a built-in command: " + name);
+		}
+		commands.put(name, command);
+	}
+
+	/**
+	 * @param name a message name.
+	 * @return true if there is a command for messages with the name.
+	 */
+	public boolean isCommand(String name) {
+		return commands.containsKey(name);
+	}
+
+	/**
+	 * Queue a message on the command lane if it is a command.
+	 * @param msg the message.
+	 * @param src where the message came from.
+	 * @param time the time the message was received.
+	 * @return true if the message is a command, false if the caller should deal with it.
+	 */
+	public boolean dispatch(OSCMessage msg, SocketAddress src, long time) {
+		OSCListener command = commands.get(msg.getName());
+		if(command == null) {
+			return false;
+		}
+		synchronized (lane) {
+			lane.add(() -> command.messageReceived(msg, src, time));
+			lane.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Stop the command lane. Commands still queued are not run.
+	 */
+	public void close() {
+		running = false;
+		synchronized (lane) {
+			lane.clear();
+			lane.notifyAll();
+		}
+	}
+
+	private void runCommands() {
+		while(running) {
+			Runnable next;
+			synchronized (lane) {
+				while(running && lane.isEmpty()) {
+					try {
+						lane.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if(!running) {
+					return;
+				}
+				next = lane.removeFirst();
+			}
+			try {
+				next.run();
+			} catch (Exception e) {
+				logger.error("Error running command!", e);
+			}
+		}
+	}
+}
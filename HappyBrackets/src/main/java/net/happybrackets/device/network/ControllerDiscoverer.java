@@ -34,8 +34,7 @@ public interface ControllerDiscoverer {
                     String advertisedAddress = (String) msg.getArg(1);
                     String advertisedHostname = (String) msg.getArg(0);
                     if (!( controller.getAddress().equals(advertisedAddress) && controller.getHostname().equals(advertisedHostname) )) {
-                        controller.setAddress(advertisedAddress);
-                        controller.setHostname(advertisedHostname);
+                        controller.set(advertisedHostname, advertisedAddress);
                         logger.debug("Updated controller to {} at {}", controller.getHostname(), controller.getAddress());
                     }
 				}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device.network;
+
+import de.sciss.net.OSCListener;
+import de.sciss.net.OSCMessage;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passes incoming messages to the {@link OSCListener}s added by compositions, on a thread of its own, so that the
+ * thread receiving messages from the network never waits for user code.
+ *
+ * Messages wait in a queue of at most {@link #getCapacity()} messages. When listeners fall so far behind that the queue
+ * is full, new messages are dropped and counted rather than held, so a composition that can't keep up loses messages
+ * instead of building up an ever longer delay. The time each listener takes is recorded, and listeners that take longer
+ * than {@link #SLOW_LISTENER} are logged, so the cause of a backlog can be found.
+ */
+public class ListenerDispatcher {
+
+	final static Logger logger = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+	/**
+	 * The default number of messages that can wait for the listeners.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * A listener that takes longer than this to handle a message is logged, in ns.
+	 */
+	public static final long SLOW_LISTENER = 20000000;
+
+	/**
+	 * How long a listener has taken to handle messages.
+	 */
+	public static class ListenerStats {
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+
+		private synchronized void add(long nanos) {
+			count++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+
+		/**
+		 * @return the number of messages the listener has handled.
+		 */
+		public synchronized long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the mean time the listener has taken to handle a message, in ns.
+		 */
+		public synchronized long getMeanNanos() {
+			return count == 0 ? 0 : totalNanos / count;
+		}
+
+		/**
+		 * @return the longest the listener has taken to handle a message, in ns.
+		 */
+		public synchronized long getMaxNanos() {
+			return maxNanos;
+		}
+	}
+
+	private static class Delivery {
+		final List<OSCListener> listeners;
+		final OSCMessage msg;
+		final SocketAddress src;
+		final long time;
+		final long generation;
+
+		Delivery(List<OSCListener> listeners, OSCMessage msg, SocketAddress src, long time, long generation) {
+			this.listeners = listeners;
+			this.msg = msg;
+			this.src = src;
+			this.time = time;
+			this.generation = generation;
+		}
+	}
+
+	private final int capacity;
+	private final LinkedList<Delivery> queue = new LinkedList<Delivery>();
+	private final Map<OSCListener, ListenerStats> stats = new Hashtable<OSCListener, ListenerStats>();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private long dropped = 0;
+	//removals, so messages queued before a listener was removed are never passed to it. Guarded by queue.
+	private long generation = 0;						//bumped by each clear() and forget()
+	private long clearedAt = 0;							//the generation of the last clear()
+	private final Map<OSCListener, Long> forgottenAt = new HashMap<OSCListener, Long>();
+
+	/**
+	 * Create a new ListenerDispatcher with the default capacity and start its thread.
+	 */
+	public ListenerDispatcher() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a new ListenerDispatcher and start its thread.
+	 * @param capacity the number of messages that can wait for the listeners.
+	 */
+	public ListenerDispatcher(int capacity) {
+		this.capacity = capacity;
+		thread = new Thread("HB listeners") {
+			public void run() {
+				runListeners();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue a message for some listeners.
+	 * @param listeners the listeners to pass the message to, which are copied.
+	 * @param msg the message.
+	 * @param src where the message came from.
+	 * @param time the time the message was received.
+	 * @return false if the queue is full and the message was dropped.
+	 */
+	public boolean dispatch(Collection<OSCListener> listeners, OSCMessage msg, SocketAddress src, long time) {
+		List<OSCListener> targets;
+		synchronized (listeners) {
+			if(listeners.isEmpty()) {
+				return true;
+			}
+			targets = new ArrayList<OSCListener>(listeners);
+		}
+		synchronized (queue) {
+			if(queue.size() >= capacity) {
+				dropped++;
+				if(dropped == 1 || dropped % 100 == 0) {
+					logger.warn("Listeners are too slow to keep up, {} messages dropped so far", dropped);
+				}
+				return false;
+			}
+			queue.add(new Delivery(targets, msg, src, time, generation));
+			queue.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Drop every message still waiting for the listeners, and forget how long they have taken. No listener is called
+	 * with a message dispatched before this, including the rest of the listeners for a message being handled now.
+	 */
+	public void clear() {
+		synchronized (queue) {
+			queue.clear();
+			clearedAt = ++generation;
+			forgottenAt.clear();
+			stats.clear();
+		}
+	}
+
+	/**
+	 * Forget a listener once it has been removed: it is not called with any message dispatched before this, and how
+	 * long it has taken is forgotten.
+	 * @param listener the listener.
+	 */
+	public void forget(OSCListener listener) {
+		synchronized (queue) {
+			forgottenAt.put(listener, ++generation);
+			stats.remove(listener);
+		}
+	}
+
+	/**
+	 * @return false if the listener has been removed since the message was dispatched.
+	 */
+	private boolean isLive(Delivery delivery, OSCListener listener) {
+		synchronized (queue) {
+			Long forgotten = forgottenAt.get(listener);
+			return delivery.generation >= clearedAt && (forgotten == null || delivery.generation >= forgotten);
+		}
+	}
+
+	/**
+	 * @param listener a listener.
+	 * @return how long the listener has taken to handle messages, or null if it hasn't had any.
+	 */
+	public ListenerStats getStats(OSCListener listener) {
+		return stats.get(listener);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of messages waiting for the listeners.
+	 */
+	public int getQueueLength() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * @return the number of messages dropped because the queue was full.
+	 */
+	public long getDroppedCount() {
+		synchronized (queue) {
+			return dropped;
+		}
+	}
+
+	/**
+	 * Stop the dispatcher thread. Messages still queued are not delivered.
+	 */
+	public void close() {
+		running = false;
+		synchronized (queue) {
+			queue.clear();
+			queue.notifyAll();
+		}
+	}
+
+	private void runListeners() {
+		while(running) {
+			Delivery next;
+			synchronized (queue) {
+				while(running && queue.isEmpty()) {
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if(!running) {
+					return;
+				}
+				next = queue.removeFirst();
+			}
+			for(OSCListener listener : next.listeners) {
+				if(!isLive(next, listener)) {
+					continue;
+				}
+				long start = System.nanoTime();
+				try {
+					listener.messageReceived(next.msg, next.src, next.time);
+				} catch (Exception e) {
+					logger.error("Error delegating OSC message!", e);
+				}
+				long taken = System.nanoTime() - start;
+				synchronized (queue) {
+					//not for a listener removed while it was running
+					if(isLive(next, listener)) {
+						ListenerStats listenerStats = stats.get(listener);
+						if(listenerStats == null) {
+							listenerStats = new ListenerStats();
+							stats.put(listener, listenerStats);
+						}
+						listenerStats.add(taken);
+					}
+				}
+				if(taken > SLOW_LISTENER) {
+					logger.warn("Listener {} took {} ms to handle {}", listener, taken / 1000000, next.msg.getName());
+				}
+			}
+		}
+	}
+}
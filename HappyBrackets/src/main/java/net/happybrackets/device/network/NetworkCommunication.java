@@ -18,12 +18,20 @@ package net.happybrackets.device.network;
 
 import de.sciss.net.OSCTransmitter;
 import net.happybrackets.core.BroadcastManager;
-import net.happybrackets.core.Device;
+import net.happybrackets.core.CommandAck;
+import net.happybrackets.core.ControlCodec;
+import net.happybrackets.core.DeviceHeartbeat;
+import net.happybrackets.core.MessageBatcher;
+import net.happybrackets.core.transport.Transport;
 import net.happybrackets.device.LogSender;
 import net.happybrackets.device.config.DeviceConfig;
+import net.happybrackets.core.SynchStats;
+import net.happybrackets.core.TempoMap;
 import net.happybrackets.core.Synchronizer;
+import net.happybrackets.core.TrickleTimer;
 import de.sciss.net.OSCListener;
 import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
 import de.sciss.net.OSCServer;
 import net.happybrackets.device.HB;
 import net.happybrackets.device.config.LocalConfigManagement;
@@ -32,10 +40,17 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,10 +64,45 @@ public class NetworkCommunication {
 
 	private int myID;							//ID assigned by the controller
 	private OSCServer oscServer;				//The OSC server
-	private InetSocketAddress controller, broadcastAddress;		//The network details of the controller
+	private final AtomicReference<InetSocketAddress> controller = new AtomicReference<>();
+																//The resolved address of the controller, swapped when the controller moves
+	private final AtomicBoolean resolvingController = new AtomicBoolean();
+																//Whether the controller is being looked up in the background
+	private volatile long lastControllerLookup;					//When the last background lookup of the controller finished
+	private final Executor resolver = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "HB controller resolver");
+		t.setDaemon(true);
+		return t;
+	});															//Looks up the controller's address off the sending threads
+	private InetSocketAddress broadcastAddress;
+	private MessageBatcher batcher;				//Packs messages to the controller into bundles, if batching is on
 	private Set<OSCListener> listeners = Collections.synchronizedSet(new HashSet<OSCListener>());
 																//Listeners to incoming OSC messages
+	private final PeerTable peers;				//Other devices we can talk to directly
+	private final Map<Integer, Set<OSCListener>> peerListeners = new Hashtable<>();
+																//Listeners to messages from other devices, by sender ID
+	private final Set<OSCListener> anyPeerListeners = Collections.synchronizedSet(new HashSet<OSCListener>());
+																//Listeners to messages from any other device
+	private final CommandRegistry commands = new CommandRegistry();
+																//The built-in commands, run on the command lane
+	private final ListenerDispatcher dispatcher = new ListenerDispatcher();
+																//Runs the listeners off the receive thread
+
+	/**
+	 * Messages sent directly between devices have their name prefixed with this path and carry the sender's ID as their first argument.
+	 */
+	public static final String PEER_MESSAGE_PREFIX = "/hb/peer";
+
+	/**
+	 * The least time between lookups of a controller address that couldn't be resolved, in ms.
+	 */
+	public static final long CONTROLLER_LOOKUP_INTERVAL = 1000;
 	final private HB hb;
+	private final TrickleTimer keepAliveTimer;
+	private final DeviceHeartbeat heartbeat = new DeviceHeartbeat();
+	private volatile String lastAdvertisedController;
+	final private BroadcastManager broadcast;
+	final private Transport transport;
 
 	private final LogSender logSender;
 
@@ -63,11 +113,23 @@ public class NetworkCommunication {
 	 * @throws IOException thrown if there is a problem opening the {@link OSCServer}, likely due to the port already being in use.
      */
 	public NetworkCommunication(HB _hb) throws IOException {
+		this(_hb, HB.broadcast);
+	}
+
+	/**
+	 * Instantiate a new {@link NetworkCommunication} object that communicates on the same {@link Transport} as the given {@link BroadcastManager}.
+	 * @param _hb the {@link HB} object this object is attached to.
+	 * @param broadcast the {@link BroadcastManager} to send /device/alive messages on.
+	 * @throws IOException thrown if there is a problem opening the {@link OSCServer}, likely due to the port already being in use.
+	 */
+	public NetworkCommunication(HB _hb, BroadcastManager broadcast) throws IOException {
 		this.hb = _hb;
+		this.broadcast = broadcast;
+		this.transport = broadcast.getTransport();
 		//init the OSCServer
 		logger.info("Setting up OSC server");
 		try {
-			oscServer = OSCServer.newUsing(OSCServer.UDP, DeviceConfig.getInstance().getControlToDevicePort());
+			oscServer = transport.openServer(new ControlCodec(), DeviceConfig.getInstance().getControlToDevicePort());
 			oscServer.start();
 		} catch (IOException e) {
 			logger.error("Error creating OSC server!", e);
@@ -77,6 +139,8 @@ public class NetworkCommunication {
 		// Create log sender.
 		logSender = new LogSender(this,  DeviceConfig.getInstance().getLogFilePath());
 
+		//built-in commands run on their own lane, user listeners on a bounded queue, so neither holds up the receive thread
+		registerCommands();
 		//add a single master listener that forwards listening to delegates
 		oscServer.addOSCListener(new OSCListener() {
 			@Override
@@ -91,105 +155,209 @@ public class NetworkCommunication {
 //				System.out.println("Mesage received: " + msg.getName());
                 logger.debug("Recieved message to: {} from {}", msg.getName(), src.toString());
 
-				if(msg.getName().equals("/device/set_id")) {
-					myID = (Integer)msg.getArg(0);
-					logger.info("I have been given an ID by the controller: {}", myID);
-					hb.setStatus("ID " + myID);
-				} else if(msg.getName().equals("/device/get_logs")) {
-					boolean sendLogs = ((Integer) msg.getArg(0)) == 1;
-					logger.info("I have been requested to " + (sendLogs ? "start" : "stop") + " sending logs to the controller.");
-					sendLogs(sendLogs);
-				} else {
-					//master commands...
-					if(msg.getName().equals("/device/sync")) {
-						long timeToAct = 1000;
-						if(msg.getArgCount() > 0) {
-							timeToAct = (Integer)msg.getArg(0);
-						}
-						hb.syncAudioStart(timeToAct);
-					} else if(msg.getName().equals("/device/reboot")) {
-						HB.rebootDevice();
-					} else if(msg.getName().equals("/device/shutdown")) {
-						HB.shutdownDevice();
-					} else if(msg.getName().equals("/device/gain")) {
-						hb.masterGainEnv.addSegment((Float)msg.getArg(0), (Float)msg.getArg(1));
-					} else if(msg.getName().equals("/device/reset")) {
-						hb.reset();
-					} else if(msg.getName().equals("/device/reset_sounding")) {
-						hb.resetLeaveSounding();
-					} else if(msg.getName().equals("/device/clearsound")) {
-						hb.clearSound();
-					} else if(msg.getName().equals("/device/fadeout_reset")) {
-						hb.fadeOutReset((Float)msg.getArg(0));
-					} else if(msg.getName().equals("/device/fadeout_clearsound")) {
-						hb.fadeOutClearSound((Float)msg.getArg(0));
-					} else if(msg.getName().equals("/device/bleep")) {
-						hb.testBleep();
-					} else if ( msg.getName().equals("/device/config/wifi") && msg.getArgCount() == 2) {
-                        //TODO: add interfaces path to device config
-                        boolean status = LocalConfigManagement.updateInterfaces(
-                                "/etc/network/interfaces",
-                                (String) msg.getArg(0),
-                                (String) msg.getArg(1)
-                        );
-                        if (status) logger.info("Updated interfaces file");
-                        else logger.error("Unable to update interfaces file");
-					} else if (msg.getName().equals("/device/alive")) {
-						//ignore
-					} else {
-						//all other messages getInstance forwarded to delegate listeners
-						synchronized (listeners) {
-							Iterator<OSCListener> i = listeners.iterator();
-							while (i.hasNext()) {
-								try {
-									i.next().messageReceived(msg, src, time);
-								} catch (Exception e) {
-									logger.error("Error delegating OSC message!", e);
-								}
-							}
-						}
-					}
+				if(msg.getName().startsWith(PEER_MESSAGE_PREFIX)) {
+					receiveFromPeer(msg, src, time);
+				} else if(msg.getName().equals(BroadcastManager.RELAY_MESSAGE_NAME)) {
+					//a broadcast from a device, fanned out to us by the controller
+					broadcast.receiveRelayed(msg, src, time);
+				} else if(!commands.dispatch(msg, src, time)) {
+					//all other messages get forwarded to delegate listeners
+					dispatcher.dispatch(listeners, msg, src, time);
 				}
 			}
 		});
 		//set up the controller address
 		String hostname = DeviceConfig.getInstance().getControllerHostname();
 		logger.info( "Setting up controller: {}", hostname );
-		controller = new InetSocketAddress(
-				DeviceConfig.getInstance().getControllerAddress(),
-				DeviceConfig.getInstance().getStatusFromDevicePort()
-		);
-		logger.debug( "Controller resolved to address: {}", controller );
-		//set up an indefinite thread to ping the controller
-        new Thread() {
-            public void run() {
-            BroadcastManager.OnTransmitter keepAlive = new BroadcastManager.OnTransmitter() {
-                @Override
-                public void cb(NetworkInterface ni, OSCTransmitter transmitter) throws IOException {
-                    transmitter.send(
-                        new OSCMessage(
-                            "/device/alive",
-                            new Object[] {
-									Device.getDeviceName(),
-                                    Device.selectHostname(ni),
-                                    Device.selectIP(ni),
-                                    Synchronizer.time(),
-                                    hb.getStatus()
-                            }
-                        )
-                    );
-                }
-            };
-            while(true) {
-                hb.broadcast.forAllTransmitters(keepAlive);
-                try {
-                    Thread.sleep(DeviceConfig.getInstance().getAliveInterval());
-                } catch (InterruptedException e) {
-                    logger.error("/device/alive message send interval interupted!", e);
-                }
-            }
+		controller.set(resolveController());
+		logger.debug( "Controller resolved to address: {}", controller.get() );
+		//resolve the controller once each time it moves, rather than for every message
+		DeviceConfig.getInstance().addControllerListener(changed -> {
+			InetSocketAddress address = resolveController();
+			controller.set(address);
+			logger.info("Controller moved to {}", address);
+		});
+		double batchWindow = DeviceConfig.getInstance().getSendBatchWindow();
+		if(batchWindow > 0) {
+			logger.info("Batching messages to the controller over {} ms", batchWindow);
+			batcher = new MessageBatcher(batchWindow, MessageBatcher.DEFAULT_MAX_BYTES, this::sendNow, new ControlCodec());
+		}
+		//send broadcasts through the controller if multicast is unreliable on this network
+		if(DeviceConfig.getInstance().useBroadcastRelay()) {
+			logger.info("Relaying broadcasts through the controller");
+			broadcast.setRelay(relayMsg -> send(relayMsg));
+		}
+		//send alive messages on a trickle timer, which backs off while nothing changes
+		keepAliveTimer = new TrickleTimer(DeviceConfig.getInstance().getAliveInterval(), DeviceConfig.getInstance().getAliveIntervalMax(), 0);
+		//build the peer table from the alive messages of other devices
+		peers = new PeerTable(transport.getDeviceName());
+		broadcast.addOnMessage(new BroadcastManager.OnListener() {
+			@Override
+			public void cb(NetworkInterface ni, OSCMessage msg, SocketAddress sender, long time) {
+				if(msg.getName().equals(DeviceHeartbeat.ALIVE_MESSAGE_NAME)) {
+					if(peers.update(msg, sender, System.currentTimeMillis())) {
+						keepAliveTimer.reset();
+					}
+				} else if(msg.getName().equals(DeviceHeartbeat.MESSAGE_NAME)) {
+					//a peer we don't know yet, or whose status we missed, is asked for its full status
+					int token = DeviceHeartbeat.tokenOf(msg);
+					if(token != 0 && token != heartbeat.getToken() && !peers.heartbeat(msg, System.currentTimeMillis())) {
+						broadcast.sendTo(ni, sender, DeviceHeartbeat.RESYNC_MESSAGE_NAME, token);
+					}
+				} else if(msg.getName().equals(DeviceHeartbeat.RESYNC_MESSAGE_NAME)) {
+					resync(msg);
+				} else if(msg.getName().equals("/hb/controller") && msg.getArgCount() > 1) {
+					String advertisedController = msg.getArg(0) + "@" + msg.getArg(1);
+					if(!advertisedController.equals(lastAdvertisedController)) {
+						lastAdvertisedController = advertisedController;
+						keepAliveTimer.reset();
+					}
+				}
+			}
+		});
+		BroadcastManager.OnTransmitter keepAlive = new BroadcastManager.OnTransmitter() {
+			@Override
+			public void cb(NetworkInterface ni, OSCTransmitter transmitter) throws IOException {
+				transmitter.send(
+					new OSCMessage(
+						DeviceHeartbeat.ALIVE_MESSAGE_NAME,
+						heartbeat.withToken(new Object[] {
+								transport.getDeviceName(),
+								transport.selectHostname(ni),
+								transport.selectIP(ni),
+								Synchronizer.time(),
+								hb.getStatus(),
+								myID,
+								DeviceConfig.getInstance().getControlToDevicePort(),
+								ControlCodec.VERSION,
+								DeviceConfig.getInstance().getControllerAddress()
+						})
+					)
+				);
+			}
+		};
+		keepAliveTimer.startThread(() -> {
+			sendKeepAlive(keepAlive);
+			sendSynchReports();
+			if(peers.removeStalePeers(System.currentTimeMillis(), DeviceConfig.getInstance().getAliveTimeout()) > 0) {
+				keepAliveTimer.reset();
 			}
-		}.start();
+		});
+	}
+
+	/**
+	 * Register the built-in /device/* commands.
+	 */
+	private void registerCommands() {
+		commands.register("/device/set_id", (msg, src, time) -> {
+			myID = (Integer)msg.getArg(0);
+			logger.info("I have been given an ID by the controller: {}", myID);
+			hb.setStatus("ID " + myID);
+		});
+		commands.register("/device/get_logs", (msg, src, time) -> {
+			boolean sendLogs = ((Integer) msg.getArg(0)) == 1;
+			logger.info("I have been requested to " + (sendLogs ? "start" : "stop") + " sending logs to the controller.");
+			sendLogs(sendLogs);
+		});
+		//master commands...
+		commands.register("/device/sync", (msg, src, time) -> {
+			long timeToAct = 1000;
+			if(msg.getArgCount() > 0) {
+				//the controller sends a long to devices using the binary protocol and a string otherwise
+				Object arg = msg.getArg(0);
+				if(arg instanceof Number) {
+					timeToAct = ((Number) arg).longValue();
+				} else {
+					timeToAct = Long.parseLong(arg.toString());
+				}
+			}
+			hb.syncAudioStart(timeToAct);
+		});
+		commands.register(TempoMap.MESSAGE_NAME, (msg, src, time) -> hb.beats.setTempoMap(TempoMap.fromMessage(msg)));
+		commands.register("/device/reboot", (msg, src, time) -> HB.rebootDevice());
+		commands.register("/device/shutdown", (msg, src, time) -> HB.shutdownDevice());
+		commands.register("/device/gain", (msg, src, time) -> hb.masterGainEnv.addSegment((Float)msg.getArg(0), (Float)msg.getArg(1)));
+		commands.register("/device/reset", (msg, src, time) -> hb.reset());
+		commands.register("/device/reset_sounding", (msg, src, time) -> hb.resetLeaveSounding());
+		commands.register("/device/clearsound", (msg, src, time) -> hb.clearSound());
+		commands.register("/device/fadeout_reset", (msg, src, time) -> hb.fadeOutReset((Float)msg.getArg(0)));
+		commands.register("/device/fadeout_clearsound", (msg, src, time) -> hb.fadeOutClearSound((Float)msg.getArg(0)));
+		commands.register("/device/bleep", (msg, src, time) -> hb.testBleep());
+		commands.register("/device/config/wifi", (msg, src, time) -> {
+			if(msg.getArgCount() != 2) {
+				logger.warn("Ignoring /device/config/wifi without an SSID and a password");
+				return;
+			}
+			//TODO: add interfaces path to device config
+			boolean status = LocalConfigManagement.updateInterfaces(
+					"/etc/network/interfaces",
+					(String) msg.getArg(0),
+					(String) msg.getArg(1)
+			);
+			if (status) logger.info("Updated interfaces file");
+			else logger.error("Unable to update interfaces file");
+		});
+		commands.register("/device/alive", (msg, src, time) -> {
+			//ignore
+		});
+		commands.register(DeviceHeartbeat.MESSAGE_NAME, (msg, src, time) -> {
+			//ignore
+		});
+		commands.register(DeviceHeartbeat.RESYNC_MESSAGE_NAME, (msg, src, time) -> resync(msg));
+		//runs on the command lane after the commands sent with it
+		commands.register(CommandAck.REQUEST_MESSAGE_NAME, (msg, src, time) -> send(CommandAck.ack(transport.getDeviceName(), msg)));
+	}
+
+	/**
+	 * Send the full /device/alive message soon if a {@link DeviceHeartbeat#RESYNC_MESSAGE_NAME} message is for this device.
+	 */
+	private void resync(OSCMessage msg) {
+		if(msg.getArgCount() > 0 && Integer.valueOf(heartbeat.getToken()).equals(msg.getArg(0))) {
+			logger.debug("Resending full status on request");
+			heartbeat.requestResync();
+			keepAliveTimer.reset();
+		}
+	}
+
+	/**
+	 * Send the full /device/alive message if the status has changed or someone has asked for it, and otherwise just a
+	 * {@link DeviceHeartbeat}.
+	 * @param keepAlive sends the full /device/alive message on an interface.
+	 */
+	private void sendKeepAlive(BroadcastManager.OnTransmitter keepAlive) {
+		List<String> addresses = new ArrayList<>();
+		broadcast.forAllTransmitters((ni, transmitter) -> {
+			addresses.add(transport.selectHostname(ni));
+			addresses.add(transport.selectIP(ni));
+		});
+		heartbeat.update(hb.getStatus(), myID, DeviceConfig.getInstance().getControlToDevicePort(), DeviceConfig.getInstance().getControllerAddress(), addresses);
+		long timeNow = System.currentTimeMillis();
+		if(heartbeat.needsFullStatus(timeNow)) {
+			heartbeat.sentFullStatus(timeNow);
+			broadcast.forAllTransmitters(keepAlive);
+		} else {
+			OSCMessage msg = heartbeat.toMessage();
+			broadcast.forAllTransmitters((ni, transmitter) -> transmitter.send(msg));
+		}
+	}
+
+	/**
+	 * Tell the controller how well this device is synched, so that poorly synched devices show up in the controller GUI, and the output latency it is compensating for.
+	 */
+	private void sendSynchReports() {
+		for(SynchStats.Report report : Synchronizer.getInstance().getSynchReports()) {
+			send(report.toMessage(transport.getDeviceName()));
+		}
+		if(hb != null && hb.latency != null) {
+			send(hb.latency.getOutputLatency().toMessage(transport.getDeviceName()));
+		}
+	}
+
+	/**
+	 * Send a /device/alive message soon, because something the controller or other devices should know about has changed.
+	 */
+	public void aliveInformationChanged() {
+		keepAliveTimer.reset();
 	}
 
 	/**
@@ -198,21 +366,189 @@ public class NetworkCommunication {
 	 * @param args the message arguments.
      */
 	public void send(String msg, Object[] args) {
+		send(new OSCMessage(msg, args));
+	}
+
+	/**
+	 * Send an OSC message to the controller.
+	 * @param msg the message.
+	 */
+	public void send(OSCMessage msg) {
+		if(batcher != null) {
+			batcher.add(msg);
+			return;
+		}
 		try {
-			oscServer.send(
-			new OSCMessage(msg, args),
-			new InetSocketAddress(
-						DeviceConfig.getInstance().getControllerAddress(),
-						DeviceConfig.getInstance().getStatusFromDevicePort()
-				)
-			);
+			sendNow(msg);
 		} catch (IOException e) {
 			logger.error("Error sending OSC message to Server!", e);
 		}
 	}
 
 	/**
-	 * Add a @{@link OSCListener} that will respond to incoming OSC messages from the controller. Note that this will not listen to broadcast messages from other devices, for which you should use TODO!.
+	 * Send a message or bundle to the controller straight away. If the controller's address couldn't be resolved, the packet is dropped and the address is looked up again in the background, so sending never waits for a name lookup.
+	 */
+	private void sendNow(OSCPacket packet) throws IOException {
+		InetSocketAddress address = controller.get();
+		if(address.isUnresolved()) {
+			resolveControllerInBackground(address);
+			logger.debug("Controller {} is not resolved, dropped a message to it", address);
+			return;
+		}
+		oscServer.send(packet, address);
+	}
+
+	/**
+	 * Look up the controller again on the resolver thread, at most once every {@link #CONTROLLER_LOOKUP_INTERVAL} ms.
+	 * @param unresolved the address that couldn't be resolved, which is only replaced if the controller hasn't moved since.
+	 */
+	private void resolveControllerInBackground(InetSocketAddress unresolved) {
+		if(System.currentTimeMillis() - lastControllerLookup < CONTROLLER_LOOKUP_INTERVAL || !resolvingController.compareAndSet(false, true)) {
+			return;
+		}
+		resolver.execute(() -> {
+			try {
+				InetSocketAddress resolved = resolveController();
+				if(controller.compareAndSet(unresolved, resolved) && !resolved.isUnresolved()) {
+					logger.info("Controller resolved to {}", resolved);
+				}
+			} finally {
+				lastControllerLookup = System.currentTimeMillis();
+				resolvingController.set(false);
+			}
+		});
+	}
+
+	private InetSocketAddress resolveController() {
+		return transport.resolve(
+				DeviceConfig.getInstance().getControllerAddress(),
+				DeviceConfig.getInstance().getStatusFromDevicePort()
+		);
+	}
+
+	/**
+	 * @return the {@link MessageBatcher} that packs messages to the controller into bundles, with its batch size and latency metrics, or null if batching is off. Set the window with sendBatchWindow in the device config.
+	 */
+	public MessageBatcher getBatcher() {
+		return batcher;
+	}
+
+	/**
+	 * Send an OSC message directly to another device, by unicast rather than over the multicast group. The other device is looked up by ID in the table of peers built from the /device/alive messages of other devices.
+	 * @param id the ID of the device to send to.
+	 * @param msg the message name.
+	 * @param args the message arguments.
+	 * @return true if the device was known and the message was sent.
+     */
+	public boolean sendToPeer(int id, String msg, Object[] args) {
+		PeerTable.Peer peer = peers.getPeer(id);
+		if(peer == null) {
+			logger.warn("Unable to send {} to device {}, no such device is known.", msg, id);
+			return false;
+		}
+		Object[] peerArgs = new Object[args.length + 1];
+		peerArgs[0] = myID;
+		System.arraycopy(args, 0, peerArgs, 1, args.length);
+		try {
+			oscServer.send(new OSCMessage(PEER_MESSAGE_PREFIX + msg, peerArgs), peer.getSocketAddress());
+			return true;
+		} catch (IOException e) {
+			logger.error("Error sending OSC message to device {}!", id, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Unwrap a message sent by another device with {@link #sendToPeer(int, String, Object[])} and pass it to the listeners for that device.
+	 */
+	private void receiveFromPeer(OSCMessage msg, SocketAddress src, long time) {
+		if(msg.getArgCount() < 1 || !(msg.getArg(0) instanceof Integer)) {
+			logger.debug("Ignoring peer message {} without sender ID", msg.getName());
+			return;
+		}
+		int senderID = (Integer) msg.getArg(0);
+		Object[] args = new Object[msg.getArgCount() - 1];
+		for(int i = 0; i < args.length; i++) {
+			args[i] = msg.getArg(i + 1);
+		}
+		OSCMessage peerMsg = new OSCMessage(msg.getName().substring(PEER_MESSAGE_PREFIX.length()), args);
+		List<OSCListener> toNotify = new ArrayList<>();
+		//a sender without an ID could be any of the devices still waiting for one, so only listeners to any device hear it
+		synchronized (peerListeners) {
+			Set<OSCListener> senderListeners = senderID == PeerTable.UNASSIGNED_ID ? null : peerListeners.get(senderID);
+			if(senderListeners != null) {
+				toNotify.addAll(senderListeners);
+			}
+		}
+		synchronized (anyPeerListeners) {
+			toNotify.addAll(anyPeerListeners);
+		}
+		dispatcher.dispatch(toNotify, peerMsg, src, time);
+	}
+
+	/**
+	 * Add a @{@link OSCListener} that will respond to messages sent directly to this device by the device with the given ID.
+	 * @param id the ID of the sending device.
+	 * @param l the listener.
+     */
+	public void addPeerListener(int id, OSCListener l) {
+		synchronized (peerListeners) {
+			Set<OSCListener> senderListeners = peerListeners.get(id);
+			if(senderListeners == null) {
+				senderListeners = new HashSet<>();
+				peerListeners.put(id, senderListeners);
+			}
+			senderListeners.add(l);
+		}
+	}
+
+	/**
+	 * Add a @{@link OSCListener} that will respond to messages sent directly to this device by any other device.
+	 * @param l the listener.
+     */
+	public void addPeerListener(OSCListener l) {
+		anyPeerListeners.add(l);
+	}
+
+	/**
+	 * Remove the given {@link OSCListener} from the listeners to other devices.
+	 * @param l the listener to remove.
+     */
+	public void removePeerListener(OSCListener l) {
+		synchronized (peerListeners) {
+			for(Set<OSCListener> senderListeners : peerListeners.values()) {
+				senderListeners.remove(l);
+			}
+		}
+		anyPeerListeners.remove(l);
+		dispatcher.forget(l);
+	}
+
+	/**
+	 * Clear all @{@link OSCListener}s listening to other devices.
+	 */
+	public void clearPeerListeners() {
+		List<OSCListener> removed = new ArrayList<>();
+		synchronized (peerListeners) {
+			peerListeners.values().forEach(removed::addAll);
+			peerListeners.clear();
+		}
+		synchronized (anyPeerListeners) {
+			removed.addAll(anyPeerListeners);
+			anyPeerListeners.clear();
+		}
+		removed.forEach(dispatcher::forget);
+	}
+
+	/**
+	 * @return the table of other devices known to this device.
+     */
+	public PeerTable getPeers() {
+		return peers;
+	}
+
+	/**
+	 * Add a @{@link OSCListener} that will respond to incoming OSC messages from the controller. Note that this will not listen to broadcast messages from other devices, for which you should use TODO!. Listeners are called one message at a time on a thread of their own rather than the thread receiving messages, see {@link ListenerDispatcher}.
 	 * @param l the listener.
      */
 	public void addListener(OSCListener l) {
@@ -225,13 +561,29 @@ public class NetworkCommunication {
      */
 	public void removeListener(OSCListener l) {
 		listeners.remove(l);
+		dispatcher.forget(l);
 	}
 
 	/**
-	 * Clear all @{@link OSCListener}s.
+	 * Clear all @{@link OSCListener}s, and drop any messages still waiting for them.
 	 */
 	public void clearListeners() {
 		listeners.clear();
+		dispatcher.clear();
+	}
+
+	/**
+	 * @return the registry of built-in commands, to which further commands that should run on the command lane can be added.
+	 */
+	public CommandRegistry getCommands() {
+		return commands;
+	}
+
+	/**
+	 * @return the {@link ListenerDispatcher} that runs the listeners, which records how long each takes and how many messages have been dropped.
+	 */
+	public ListenerDispatcher getDispatcher() {
+		return dispatcher;
 	}
 
 	/**
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device.network;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.DeviceHeartbeat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the other devices on the network so that messages can be sent directly from one device to another
+ * instead of over the multicast group. The table is filled from the /device/alive messages that every device already
+ * broadcasts, which carry the device name, its controller assigned ID and the port its {@link de.sciss.net.OSCServer}
+ * listens on.
+ *
+ * Entries are keyed by device name because the ID of a device can change when the controller reassigns IDs. A device
+ * the controller hasn't given an ID yet advertises {@link #UNASSIGNED_ID}, and can only be found by name until it has
+ * one, as every such device advertises the same ID. Devices that send a {@link DeviceHeartbeat} token are also found
+ * by their token, so that their heartbeats keep them in the table without a full /device/alive message.
+ */
+public class PeerTable {
+
+	final static Logger logger = LoggerFactory.getLogger(PeerTable.class);
+
+	/**
+	 * The ID a device advertises before the controller has assigned it one.
+	 */
+	public static final int UNASSIGNED_ID = 0;
+
+	/**
+	 * A single known peer device.
+	 */
+	public static class Peer {
+		public final String deviceName;
+		private int id;
+		private InetSocketAddress socketAddress;
+		private long lastTimeSeen;
+		private int token;
+		private int version;
+
+		Peer(String deviceName) {
+			this.deviceName = deviceName;
+		}
+
+		public int getID() {
+			return id;
+		}
+
+		public InetSocketAddress getSocketAddress() {
+			return socketAddress;
+		}
+
+		public long getLastTimeSeen() {
+			return lastTimeSeen;
+		}
+	}
+
+	private final String myDeviceName;
+	private final Map<String, Peer> peersByName = new Hashtable<>();
+	private final Map<Integer, Peer> peersByID = new Hashtable<>();
+	private final Map<Integer, Peer> peersByToken = new Hashtable<>();
+
+	/**
+	 * Create a new {@link PeerTable}.
+	 * @param myDeviceName the name of this device, alive messages from this device are ignored.
+     */
+	public PeerTable(String myDeviceName) {
+		this.myDeviceName = myDeviceName;
+	}
+
+	/**
+	 * Update the table from a /device/alive message. Messages from devices that do not advertise an ID and port (older
+	 * versions of HappyBrackets) are ignored.
+	 *
+	 * @param msg the /device/alive message.
+	 * @param sender the address the message was received from, used in preference to the advertised IP because it
+	 *               includes the scope of link local addresses.
+	 * @param timeNow the current time in ms.
+     * @return true if this message introduced a new peer or changed the details of a known peer.
+     */
+	public synchronized boolean update(OSCMessage msg, SocketAddress sender, long timeNow) {
+		if (msg.getArgCount() < 7) {
+			return false;
+		}
+		String deviceName;
+		int id;
+		int port;
+		try {
+			deviceName = (String) msg.getArg(0);
+			id = (Integer) msg.getArg(5);
+			port = (Integer) msg.getArg(6);
+		} catch (ClassCastException e) {
+			logger.debug("Ignoring malformed alive message from {}", sender);
+			return false;
+		}
+		if (deviceName.equals(myDeviceName)) {
+			return false;
+		}
+		InetAddress address;
+		if (sender instanceof InetSocketAddress && ((InetSocketAddress) sender).getAddress() != null) {
+			address = ((InetSocketAddress) sender).getAddress();
+		} else {
+			return false;
+		}
+		boolean changed = false;
+		Peer peer = peersByName.get(deviceName);
+		if (peer == null) {
+			peer = new Peer(deviceName);
+			peersByName.put(deviceName, peer);
+			changed = true;
+			logger.debug("New peer {} with ID {} at {}:{}", deviceName, id, address, port);
+		}
+		if (!changed && peer.id != id) {
+			changed = true;
+		}
+		if (peersByID.get(peer.id) == peer) {
+			peersByID.remove(peer.id);
+		}
+		peer.id = id;
+		if (id != UNASSIGNED_ID) {
+			peersByID.put(id, peer);
+		}
+		if (peer.socketAddress == null || !peer.socketAddress.getAddress().equals(address) || peer.socketAddress.getPort() != port) {
+			peer.socketAddress = new InetSocketAddress(address, port);
+			changed = true;
+		}
+		int token = DeviceHeartbeat.tokenOf(msg);
+		if (token != peer.token) {
+			if (peersByToken.get(peer.token) == peer) {
+				peersByToken.remove(peer.token);
+			}
+			peer.token = token;
+			if (token != 0) {
+				peersByToken.put(token, peer);
+			}
+		}
+		if (token != 0) {
+			peer.version = DeviceHeartbeat.versionOf(msg);
+		}
+		peer.lastTimeSeen = timeNow;
+		return changed;
+	}
+
+	/**
+	 * Update the table from a {@link DeviceHeartbeat#MESSAGE_NAME} message.
+	 *
+	 * @param msg the heartbeat message.
+	 * @param timeNow the current time in ms.
+	 * @return true if the heartbeat is from a known peer whose status is up to date, false if the peer should be asked
+	 * to resync because it is unknown or its status has changed since its last /device/alive message.
+	 */
+	public synchronized boolean heartbeat(OSCMessage msg, long timeNow) {
+		Peer peer = peersByToken.get(DeviceHeartbeat.tokenOf(msg));
+		if (peer == null || peer.version != DeviceHeartbeat.versionOf(msg)) {
+			return false;
+		}
+		peer.lastTimeSeen = timeNow;
+		return true;
+	}
+
+	/**
+	 * Get the peer currently holding the given ID.
+	 * @param id the ID of the peer.
+	 * @return the peer, or null if no peer with that ID is known. Peers without an assigned ID are never returned.
+     */
+	public synchronized Peer getPeer(int id) {
+		return peersByID.get(id);
+	}
+
+	/**
+	 * Get the peer with the given device name.
+	 * @param deviceName the name of the peer.
+	 * @return the peer, or null if no peer with that name is known.
+     */
+	public synchronized Peer getPeer(String deviceName) {
+		return peersByName.get(deviceName);
+	}
+
+	/**
+	 * @return a snapshot of all currently known peers.
+     */
+	public synchronized List<Peer> getPeers() {
+		return new ArrayList<>(peersByName.values());
+	}
+
+	/**
+	 * Remove any peer that has not been heard from within the given timeout.
+	 * @param timeNow the current time in ms.
+	 * @param timeout the time in ms after which a silent peer is considered gone.
+	 * @return the number of peers removed.
+     */
+	public synchronized int removeStalePeers(long timeNow, long timeout) {
+		List<Peer> toRemove = new ArrayList<>();
+		for (Peer peer : peersByName.values()) {
+			if (timeNow - peer.lastTimeSeen > timeout) {
+				toRemove.add(peer);
+			}
+		}
+		for (Peer peer : toRemove) {
+			peersByName.remove(peer.deviceName);
+			if (peersByID.get(peer.id) == peer) {
+				peersByID.remove(peer.id);
+			}
+			if (peersByToken.get(peer.token) == peer) {
+				peersByToken.remove(peer.token);
+			}
+			logger.debug("Removed peer {}", peer.deviceName);
+		}
+		return toRemove.size();
+	}
+
+	/**
+	 * @return the number of known peers.
+     */
+	public synchronized int size() {
+		return peersByName.size();
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device.sensors;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.SensorFrames;
+import net.happybrackets.device.sensors.sensor_types.AccelerometerSensor;
+import net.happybrackets.device.sensors.sensor_types.GyroscopeSensor;
+import net.happybrackets.device.sensors.sensor_types.MagnetometerSensor;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Streams frames of sensor values to the controller, where a recorder keeps them, without a message for every value.
+ *
+ * Each frame is stamped with the synchronized time it was added, so frames from different devices can be lined up.
+ * Frames are packed into {@link SensorFrames} messages, and a message is sent once it holds the set number of frames or
+ * its first frame is older than the set delay, whichever comes first. The delay is checked as frames are added, so call
+ * {@link #flush()} to send the last frames when a stream stops.
+ *
+ * To lower the rate, set a decimation factor with {@link #setDecimation(int)}. The stream then sends the mean of every
+ * so many frames, which smooths the values rather than just skipping frames.
+ */
+public class SensorStream {
+
+    /**
+     * The default number of frames in a message.
+     */
+    public static final int DEFAULT_FRAMES_PER_MESSAGE = 10;
+
+    /**
+     * The default longest a frame waits to be sent, in ms.
+     */
+    public static final double DEFAULT_MAX_DELAY = 100;
+
+    private final String deviceName;
+    private final LongSupplier clock;
+    private final Consumer<OSCMessage> sender;
+    private final int channels;
+    private final long maxDelay;
+    private final SensorFrames.Writer writer;
+    private final double[] sums;
+    private final float[] means;
+    private int decimation = 1;
+    private int summed = 0;
+    private long summedTime = 0;
+    private int sequence = 0;
+
+    /**
+     * @param deviceName the name of this device.
+     * @param name the name of the stream.
+     * @param channels the number of values in a frame.
+     * @param framesPerMessage the most frames sent in a message.
+     * @param maxDelay the longest a frame waits to be sent, in ms.
+     * @param clock the synchronized time, in us.
+     * @param sender sends messages to the controller.
+     */
+    public SensorStream(String deviceName, String name, int channels, int framesPerMessage, double maxDelay, LongSupplier clock, Consumer<OSCMessage> sender) {
+        if (channels <= 0 || framesPerMessage <= 0) {
+            throw new IllegalArgumentException("A sensor stream needs at least one channel and one frame per message");
+        }
+        this.deviceName = deviceName;
+        this.channels = channels;
+        this.maxDelay = (long) (maxDelay * 1000);
+        this.clock = clock;
+        this.sender = sender;
+        writer = new SensorFrames.Writer(name, channels, framesPerMessage);
+        sums = new double[channels];
+        means = new float[channels];
+    }
+
+    /**
+     * Send the mean of every so many frames, rather than every frame. Frames added since the last mean was sent are
+     * dropped.
+     * @param decimation the number of frames to average, 1 to send every frame.
+     */
+    public synchronized void setDecimation(int decimation) {
+        if (decimation <= 0) {
+            throw new IllegalArgumentException("Decimation must be positive");
+        }
+        this.decimation = decimation;
+        Arrays.fill(sums, 0);
+        summed = 0;
+        summedTime = 0;
+    }
+
+    public synchronized int getDecimation() {
+        return decimation;
+    }
+
+    /**
+     * Add a frame, stamped with the synchronized time now.
+     * @param values the value of each channel.
+     */
+    public void addFrame(double... values) {
+        addFrame(clock.getAsLong(), values);
+    }
+
+    /**
+     * Add a frame.
+     * @param time the synchronized time the values were read, in us.
+     * @param values the value of each channel.
+     */
+    public synchronized void addFrame(long time, double... values) {
+        if (values.length != channels) {
+            throw new IllegalArgumentException("Expected " + channels + " values, got " + values.length);
+        }
+        for (int i = 0; i < channels; i++) {
+            sums[i] += values[i];
+        }
+        summedTime += time;
+        if (++summed < decimation) {
+            return;
+        }
+        for (int i = 0; i < channels; i++) {
+            means[i] = (float) (sums[i] / summed);
+            sums[i] = 0;
+        }
+        long meanTime = summedTime / summed;
+        summed = 0;
+        summedTime = 0;
+        writer.add(meanTime, means);
+        if (writer.isFull() || time - writer.getBaseTime() >= maxDelay) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the frames waiting now.
+     */
+    public synchronized void flush() {
+        if (writer.isEmpty()) {
+            return;
+        }
+        OSCMessage msg = writer.toMessage(deviceName, sequence++);
+        writer.clear();
+        sender.accept(msg);
+    }
+
+    /**
+     * @param sensor a sensor.
+     * @return the number of values {@link #read(Sensor)} gives for the sensor.
+     */
+    public static int channelsOf(Sensor sensor) {
+        return read(sensor).length;
+    }
+
+    /**
+     * Read the motion axes of a sensor into one frame: the accelerometer, gyroscope and magnetometer, for those the sensor
+     * has, in that order.
+     * @param sensor the sensor.
+     * @return the values.
+     */
+    public static double[] read(Sensor sensor) {
+        double[][] parts = new double[3][];
+        if (sensor instanceof AccelerometerSensor) {
+            parts[0] = ((AccelerometerSensor) sensor).getAccelerometerData();
+        }
+        if (sensor instanceof GyroscopeSensor) {
+            parts[1] = ((GyroscopeSensor) sensor).getGyroscopeData();
+        }
+        if (sensor instanceof MagnetometerSensor) {
+            parts[2] = ((MagnetometerSensor) sensor).getMagnetometerData();
+        }
+        int length = 0;
+        for (double[] part : parts) {
+            length += part == null ? 0 : part.length;
+        }
+        double[] values = new double[length];
+        int position = 0;
+        for (double[] part : parts) {
+            if (part != null) {
+                System.arraycopy(part, 0, values, position, part.length);
+                position += part.length;
+            }
+        }
+        return values;
+    }
+}
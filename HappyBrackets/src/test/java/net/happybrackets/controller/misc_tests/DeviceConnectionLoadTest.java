@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.misc_tests;
+
+import de.sciss.net.OSCMessage;
+import javafx.collections.ListChangeListener;
+import net.happybrackets.controller.config.ControllerConfig;
+import net.happybrackets.controller.network.DeviceConnection;
+import net.happybrackets.core.BroadcastManager;
+import net.happybrackets.core.ControlCodec;
+import net.happybrackets.core.DeviceHeartbeat;
+import net.happybrackets.core.transport.InMemoryNetwork;
+import net.happybrackets.core.transport.InMemoryTransport;
+import net.happybrackets.core.transport.Transport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link DeviceConnection} on an {@link InMemoryNetwork} in real time with hundreds of simulated devices, to
+ * see what the device registry costs the controller. Each device announces itself with a full /device/alive message
+ * and then sends a {@link DeviceHeartbeat} every second. Every second a few devices change their status, which sends
+ * a full status again, and a few go quiet for longer than the alive timeout and come back restarted, with a new token,
+ * so devices are removed and added throughout.
+ *
+ * The GUI thread is a plain executor that counts the tasks it is given and the change events of the device list.
+ * Every packet is decoded and handled on the network's dispatcher thread, so its CPU time is the controller's cost of
+ * receiving from the devices. The maintenance time is that of the thread that expires devices and batches GUI changes.
+ *
+ * Usage: DeviceConnectionLoadTest [devices] [seconds]
+ */
+public class DeviceConnectionLoadTest {
+
+	static final double CHANGES_PER_SECOND = 0.01;		//the fraction of devices whose status changes each second
+	static final double RESTARTS_PER_SECOND = 0.005;	//the fraction of devices that go away and come back each second
+
+	static class Device {
+		final String name;
+		final Transport.PacketSender sender;
+		int token;
+		int version = 1;
+		long quietUntil;
+
+		Device(String name, Transport.PacketSender sender, int token) {
+			this.name = name;
+			this.sender = sender;
+			this.token = token;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int deviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		ControllerConfig config = new ControllerConfig();
+		InMemoryNetwork network = new InMemoryNetwork(1).setDelay(1, 0.5);
+		network.start();
+		BroadcastManager broadcast = new BroadcastManager("225.2.2.5", 2225, "225.2.3.0", 0, new InMemoryTransport(network, "controller"));
+		broadcast.refreshBroadcaster();
+		AtomicLong guiTasks = new AtomicLong();
+		AtomicLong listChanges = new AtomicLong();
+		ExecutorService gui = Executors.newSingleThreadExecutor();
+		DeviceConnection connection = new DeviceConnection(config, broadcast, task -> {
+			guiTasks.incrementAndGet();
+			gui.execute(task);
+		});
+		connection.getDevices().addListener((ListChangeListener<Object>) change -> listChanges.incrementAndGet());
+		InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("225.2.2.5"), 2225);
+		ControlCodec codec = new ControlCodec();
+		Random random = new Random(3);
+		List<Device> devices = new ArrayList<>();
+		for (int i = 0; i < deviceCount; i++) {
+			devices.add(new Device("hb-" + i, new InMemoryTransport(network, "hb-" + i).openSender(), random.nextInt() | 1));
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long start = System.currentTimeMillis();
+		long[] lastCpu = {0, 0};
+		long lastGuiTasks = 0, lastListChanges = 0;
+		long fullMessages = 0, heartbeats = 0;
+		System.out.println(String.format("%5s %8s %10s %10s %14s %12s %12s %10s", "s", "devices", "alive/s", "beats/s", "receive cpu %", "upkeep cpu %", "gui tasks/s", "changes/s"));
+		for (int second = 0; second < seconds; second++) {
+			long now = System.currentTimeMillis();
+			int alive = 0, beats = 0;
+			for (Device device : devices) {
+				if (device.quietUntil > now) {
+					continue;
+				}
+				boolean full = second == 0 || device.quietUntil != 0;
+				if (device.quietUntil != 0) {
+					//back from a restart
+					device.quietUntil = 0;
+					device.token = random.nextInt() | 1;
+					device.version = 1;
+				} else if (second > 0 && random.nextDouble() < RESTARTS_PER_SECOND) {
+					device.quietUntil = now + config.getAliveTimeout() + 2000;
+					continue;
+				} else if (second > 0 && random.nextDouble() < CHANGES_PER_SECOND) {
+					device.version++;
+					full = true;
+				}
+				OSCMessage msg = full
+						? new OSCMessage(DeviceHeartbeat.ALIVE_MESSAGE_NAME, new Object[] {device.name, device.name, device.name, now, "status " + device.version,
+								0, 2226, ControlCodec.VERSION, "controller", device.token, device.version})
+						: new OSCMessage(DeviceHeartbeat.MESSAGE_NAME, new Object[] {device.token, device.version});
+				ByteBuffer b = ByteBuffer.allocate(1024);
+				codec.encode(msg, b);
+				b.flip();
+				device.sender.send(b, group);
+				if (full) {
+					alive++;
+				} else {
+					beats++;
+				}
+			}
+			fullMessages += alive;
+			heartbeats += beats;
+			Thread.sleep(Math.max(0, start + (second + 1) * 1000L - System.currentTimeMillis()));
+			long[] cpu = {threadCpu(threads, "InMemoryNetwork dispatcher"), threadCpu(threads, "HB device list")};
+			if (second == 0 || second % 5 == 4 || second == seconds - 1) {
+				System.out.println(String.format("%5d %8d %10d %10d %14.2f %12.3f %12d %10d", second + 1, connection.getDevices().size(), alive, beats,
+						(cpu[0] - lastCpu[0]) / 1e7, (cpu[1] - lastCpu[1]) / 1e7, guiTasks.get() - lastGuiTasks, listChanges.get() - lastListChanges));
+			}
+			lastCpu = cpu;
+			lastGuiTasks = guiTasks.get();
+			lastListChanges = listChanges.get();
+		}
+		System.out.println(String.format("%d full status and %d heartbeat messages, %d packets delivered, %.1f gui tasks/s", fullMessages, heartbeats,
+				network.getPacketsDelivered(), guiTasks.get() / (double) seconds));
+		connection.dispose();
+		network.stop();
+		gui.shutdown();
+	}
+
+	static long threadCpu(ThreadMXBean threads, String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name)) {
+				return threads.getThreadCpuTime(thread.getId());
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.network;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CoalescingListUpdaterTest {
+
+    private final List<String> list = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final CoalescingListUpdater<String> updater = new CoalescingListUpdater<>(list, tasks::add);
+
+    private void runTasks() {
+        List<Runnable> toRun = new ArrayList<>(tasks);
+        tasks.clear();
+        toRun.forEach(Runnable::run);
+    }
+
+    @Test
+    public void appliesChangesInOneBatch() {
+        for (int i = 0; i < 100; i++) {
+            updater.add("hb-" + i);
+        }
+        updater.remove("hb-5");
+        assertTrue(list.isEmpty());
+        updater.flush();
+        //a flush while the last one is waiting doesn't ask again
+        updater.add("hb-100");
+        updater.flush();
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(100, list.size());
+        assertFalse(list.contains("hb-5"));
+        assertTrue(list.contains("hb-100"));
+        assertEquals(1, updater.getBatchCount());
+        //nothing to do
+        updater.flush();
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void onlyTheLastChangeCounts() {
+        updater.add("a");
+        updater.add("b");
+        updater.flush();
+        runTasks();
+        updater.remove("a");
+        updater.add("a");
+        updater.remove("b");
+        updater.add("b");
+        updater.remove("b");
+        updater.add("c");
+        updater.flush();
+        runTasks();
+        assertEquals(Arrays.asList("a", "c"), list);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.network;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.CommandAck;
+import net.happybrackets.core.ControlCodec;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CommandTrackerTest {
+
+    private static final long MS = 1000000;
+
+    private long now = 0;
+    private final CommandTracker tracker = new CommandTracker(() -> now, 2000);
+
+    @Test
+    public void recordsWhoAcknowledgedAndHowLongItTook() throws InterruptedException {
+        Map<String, CommandTracker.Stats> updates = new HashMap<>();
+        tracker.setListener(updates::put);
+        CommandTracker.Command command = tracker.track("/device/gain", Arrays.asList("pi1", "pi2"));
+        now = 3 * MS;
+        assertTrue(tracker.acknowledged("pi1", command.id));
+        //a repeat, or an acknowledgement from a device that wasn't sent the command
+        assertFalse(tracker.acknowledged("pi1", command.id));
+        assertFalse(tracker.acknowledged("pi3", command.id));
+        assertEquals(3000, (long) command.getRoundTrips().get("pi1"));
+        assertEquals(1, command.getWaiting().size());
+        assertFalse(command.await(1));
+        assertEquals(3000, updates.get("pi1").median);
+
+        now = 2001 * MS;
+        assertEquals(1, tracker.expire());
+        assertTrue(command.isComplete());
+        assertTrue(command.await(1));
+        assertEquals(1, command.getLost().size());
+        assertEquals(1, updates.get("pi2").lost);
+        assertEquals(0, tracker.getPendingCount());
+        //too late
+        assertFalse(tracker.acknowledged("pi2", command.id));
+    }
+
+    @Test
+    public void showsConsistentlySlowDevices() {
+        for (int i = 0; i < 20; i++) {
+            CommandTracker.Command command = tracker.track("/device/reset", Arrays.asList("fast", "slow"));
+            now += 2 * MS;
+            tracker.acknowledged("fast", command.id);
+            //one slow response doesn't make a device slow
+            now += (i == 0 ? 200 : 80) * MS;
+            tracker.acknowledged("slow", command.id);
+            now += 1000 * MS;
+        }
+        CommandTracker.Stats fast = tracker.getStats("fast");
+        assertEquals(20, fast.acknowledged);
+        assertEquals(2000, fast.median);
+        assertFalse(fast.isSlow());
+        CommandTracker.Stats slow = tracker.getStats("slow");
+        assertEquals(82000, slow.median);
+        assertEquals(202000, slow.max);
+        assertTrue(slow.isSlow());
+        tracker.forget("slow");
+        assertEquals(0, tracker.getStats("slow").samples);
+    }
+
+    @Test
+    public void requestsTravelWithTheCommand() throws IOException {
+        ControlCodec codec = new ControlCodec();
+        OSCBundle request = CommandAck.request(new ControlCodec.CompactMessage("/device/gain", new Object[] {0.5f, 50f}), 42);
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        codec.encode(request, b);
+        assertEquals(codec.getSize(request), b.position());
+        b.flip();
+        OSCBundle bundle = (OSCBundle) codec.decode(b);
+        assertEquals(2, bundle.getPacketCount());
+        OSCMessage command = (OSCMessage) bundle.getPacket(0);
+        assertEquals("/device/gain", command.getName());
+        assertEquals(0.5f, (Float) command.getArg(0), 0);
+        OSCMessage ack = CommandAck.ack("pi1", (OSCMessage) bundle.getPacket(1));
+        assertEquals(CommandAck.MESSAGE_NAME, ack.getName());
+        assertEquals("pi1", ack.getArg(0));
+        assertEquals(42, ack.getArg(1));
+    }
+}
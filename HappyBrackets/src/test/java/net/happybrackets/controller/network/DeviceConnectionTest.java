@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.happybrackets.controller.network;
+
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCServer;
+import net.happybrackets.controller.config.ControllerConfig;
+import net.happybrackets.core.BroadcastManager;
+import net.happybrackets.core.CommandAck;
+import net.happybrackets.core.ControlCodec;
+import net.happybrackets.core.DeviceHeartbeat;
+import net.happybrackets.core.transport.InMemoryNetwork;
+import net.happybrackets.core.transport.InMemoryTransport;
+import net.happybrackets.core.transport.Transport;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeviceConnectionTest {
+
+    //a long that doesn't fit in an int, which has to be relayed as int64
+    private static final Long TIMESTAMP = 1700000000000L;
+
+    private final ControllerConfig config = new ControllerConfig();
+    private final InMemoryNetwork network = new InMemoryNetwork(1);
+    private final Transport.PacketSender announcer;
+    private DeviceConnection connection;
+    private InetSocketAddress controller;
+
+    public DeviceConnectionTest() throws IOException {
+        network.start();
+        announcer = new InMemoryTransport(network, "announcer").openSender();
+    }
+
+    @After
+    public void tearDown() {
+        connection.dispose();
+        network.stop();
+    }
+
+    private void startController() {
+        InMemoryTransport transport = new InMemoryTransport(network, "controller");
+        controller = new InetSocketAddress(transport.getAddress(), config.getStatusFromDevicePort());
+        BroadcastManager broadcast = new BroadcastManager("225.2.2.5", 2225, "225.2.3.0", 0, transport);
+        broadcast.refreshBroadcaster();
+        connection = new DeviceConnection(config, broadcast, Runnable::run);
+    }
+
+    /**
+     * Announce a device to the controller. The device can only be reached if a node with its name has been added to the network.
+     */
+    private void announce(String name, int controlVersion) throws IOException {
+        send(new OSCMessage(DeviceHeartbeat.ALIVE_MESSAGE_NAME, new Object[] {name, name, name, System.currentTimeMillis(), "ok",
+                0, config.getControlToDevicePort(), controlVersion, "controller", name.hashCode() | 1, 1}),
+                new InetSocketAddress(InetAddress.getByName("225.2.2.5"), 2225));
+    }
+
+    private void send(OSCMessage msg, InetSocketAddress target) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1024);
+        new ControlCodec().encode(msg, b);
+        b.flip();
+        announcer.send(b, target);
+    }
+
+    private LocalDeviceRepresentation device(String name) {
+        for (LocalDeviceRepresentation device : connection.getDevices()) {
+            if (device.deviceName.equals(name)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start a device's control server, which counts down the latch for each message with that name.
+     */
+    private void listen(String name, Map<String, CountDownLatch> latches) throws IOException {
+        OSCServer server = new InMemoryTransport(network, name).openServer(new ControlCodec(), config.getControlToDevicePort());
+        server.addOSCListener((msg, sender, time) -> {
+            CountDownLatch latch = latches.get(msg.getName());
+            if (latch != null) {
+                latch.countDown();
+            }
+        });
+        server.start();
+    }
+
+    private void awaitDevices(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && connection.getDevices().size() < count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, connection.getDevices().size());
+    }
+
+    @Test
+    public void fanOutDoesNotWaitForDevicesThatDoNotResolve() throws Exception {
+        //every name of the ghost takes half a second to fail
+        network.setLookupDelay(500);
+        startController();
+        CountDownLatch ids = new CountDownLatch(2);
+        CountDownLatch gains = new CountDownLatch(2);
+        Map<String, CountDownLatch> latches = new HashMap<>();
+        latches.put("/device/set_id", ids);
+        latches.put("/device/gain", gains);
+        listen("hb-1", latches);
+        listen("hb-2", latches);
+        //one device uses the binary control messages and one OSC, so the command is encoded both ways
+        announce("hb-1", ControlCodec.VERSION);
+        announce("hb-2", 0);
+        announce("ghost", 0);
+        awaitDevices(3);
+        assertTrue(ids.await(1, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        CommandTracker.Command command = connection.sendToAllDevices("/device/gain", 0.5f, 100f);
+        long elapsed = System.nanoTime() - start;
+        assertTrue("took " + elapsed / 1000 + "us", elapsed < 100000000);
+        assertEquals(3, command.getWaiting().size());
+        assertTrue(gains.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void onlyAsksForAcknowledgementOfBuiltInCommands() throws Exception {
+        startController();
+        CountDownLatch ids = new CountDownLatch(1);
+        CountDownLatch plays = new CountDownLatch(1);
+        CountDownLatch gains = new CountDownLatch(1);
+        CountDownLatch ackRequests = new CountDownLatch(2);
+        Map<String, CountDownLatch> latches = new HashMap<>();
+        latches.put("/device/set_id", ids);
+        latches.put("/composition/play", plays);
+        latches.put("/device/gain", gains);
+        latches.put(CommandAck.REQUEST_MESSAGE_NAME, ackRequests);
+        listen("hb-1", latches);
+        announce("hb-1", ControlCodec.VERSION);
+        connection.createTestDevice();
+        awaitDevices(2);
+        assertTrue(ids.await(1, TimeUnit.SECONDS));
+
+        //a message for the listeners of a composition isn't acknowledged
+        CommandTracker.Command play = connection.sendToAllDevices("/composition/play");
+        assertTrue(play.getWaiting().isEmpty());
+        assertTrue(plays.await(1, TimeUnit.SECONDS));
+        //nor is one under /device/ that the device has no command for
+        assertTrue(connection.sendToAllDevices("/device/custom").getWaiting().isEmpty());
+        //the virtual test device is never sent the command, so isn't waited on
+        CommandTracker.Command gain = connection.sendToAllDevices("/device/gain", 0.5f, 100f);
+        assertEquals(Collections.singleton("hb-1"), gain.getWaiting());
+        assertTrue(gains.await(1, TimeUnit.SECONDS));
+        assertFalse(ackRequests.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, ackRequests.getCount());
+    }
+
+    @Test
+    public void neverResolvesOrSendsToVirtualDevices() {
+        startController();
+        //a virtual test device's hostname isn't its name
+        LocalDeviceRepresentation virtual = new LocalDeviceRepresentation("Virtual Test Device #1", "myHostname!", "127.0.0.1", 1,
+                null, config, new InMemoryTransport(network, "controller"), r -> fail("looked up a virtual device"));
+        virtual.send("/device/gain", 0.5f, 100f);
+        virtual.sendWithAck(1, "/device/gain", 0.5f, 100f);
+        virtual.send(new Transport.PacketSender() {
+            @Override
+            public boolean send(ByteBuffer packet, SocketAddress target) {
+                fail("sent to a virtual device");
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, ByteBuffer.allocate(4));
+        assertNull(virtual.getSocketAddress());
+    }
+
+    @Test
+    public void resolvesAgainAfterFailing() throws Exception {
+        startController();
+        announce("late", 0);
+        awaitDevices(1);
+        //the device's name only resolves once it has joined the network
+        CountDownLatch gains = new CountDownLatch(1);
+        listen("late", Collections.singletonMap("/device/gain", gains));
+        for (int i = 0; i < 20 && gains.getCount() > 0; i++) {
+            connection.sendToDeviceList(new String[] {"late"}, "/device/gain", 0.5f, 100f);
+            gains.await(100, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(0, gains.getCount());
+    }
+
+    @Test
+    public void relaysBroadcastsToEveryDevice() throws Exception {
+        startController();
+        CountDownLatch heard = new CountDownLatch(2);
+        CountDownLatch heardOnInterface = new CountDownLatch(2);
+        List<BroadcastManager> devices = new ArrayList<>();
+        for (String name : new String[] {"hb-1", "hb-2"}) {
+            //a device in relay mode, as NetworkCommunication sets it up
+            InMemoryTransport transport = new InMemoryTransport(network, name);
+            BroadcastManager broadcast = new BroadcastManager("225.2.2.5", 2225, "225.2.3.0", 0, transport);
+            broadcast.refreshBroadcaster();
+            Transport.PacketSender toController = transport.openSender();
+            ControlCodec codec = new ControlCodec();
+            broadcast.setRelay(msg -> {
+                ByteBuffer b = ByteBuffer.allocate(1024);
+                codec.encode(msg, b);
+                b.flip();
+                toController.send(b, controller);
+            });
+            broadcast.addBroadcastListener((msg, sender, time) -> {
+                if (msg.getName().equals("/test") && TIMESTAMP.equals(msg.getArg(0))) {
+                    heard.countDown();
+                }
+            });
+            broadcast.addOnMessage((ni, msg, sender, time) -> {
+                if (msg.getName().equals("/test")) {
+                    heardOnInterface.countDown();
+                }
+            });
+            OSCServer server = transport.openServer(new ControlCodec(), config.getControlToDevicePort());
+            server.addOSCListener((msg, sender, time) -> {
+                if (msg.getName().equals(BroadcastManager.RELAY_MESSAGE_NAME)) {
+                    broadcast.receiveRelayed(msg, sender, time);
+                }
+            });
+            server.start();
+            devices.add(broadcast);
+            announce(name, 0);
+        }
+        awaitDevices(2);
+        devices.get(0).broadcast("/test", TIMESTAMP);
+        //the controller sends it back to every device, the sender included
+        assertTrue(heard.await(1, TimeUnit.SECONDS));
+        assertTrue(heardOnInterface.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void routesLogOutputByID() throws Exception {
+        startController();
+        announce("hb-1", 0);
+        announce("hb-2", 0);
+        awaitDevices(2);
+        LocalDeviceRepresentation first = device("hb-1");
+        LocalDeviceRepresentation second = device("hb-2");
+        CountDownLatch logs = new CountDownLatch(2);
+        first.addLogListener(output -> logs.countDown());
+        second.addLogListener(output -> logs.countDown());
+        send(new OSCMessage("/device/log", new Object[] {second.getID(), "from hb-2"}), controller);
+        //devices that have been given new IDs get the log output sent with them, and nothing sent with the old ones
+        int[] oldIDs = {first.getID(), second.getID()};
+        connection.setKnownDevices(new String[] {"hb-1 7", "hb-2 8"});
+        assertEquals(7, first.getID());
+        for (int id : oldIDs) {
+            send(new OSCMessage("/device/log", new Object[] {id, "to nobody"}), controller);
+        }
+        send(new OSCMessage("/device/log", new Object[] {7, "from hb-1"}), controller);
+        assertTrue(logs.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals("\nfrom hb-1", first.getDeviceLog());
+        assertEquals("\nfrom hb-2", second.getDeviceLog());
+    }
+}
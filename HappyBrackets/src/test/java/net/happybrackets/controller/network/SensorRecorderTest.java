@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.network;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.ControlCodec;
+import net.happybrackets.device.sensors.SensorStream;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SensorRecorderTest {
+
+    private final ControlCodec codec = new ControlCodec();
+    private final List<OSCMessage> sent = new ArrayList<>();
+    private long now = 1500000000000000L;
+
+    //what the controller receives, after the message has been through the codec
+    private void send(OSCMessage msg) {
+        try {
+            ByteBuffer b = ByteBuffer.allocate(8192);
+            codec.encode(msg, b);
+            b.flip();
+            sent.add((OSCMessage) codec.decode(b));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private SensorStream stream(int framesPerMessage, double maxDelay) {
+        return new SensorStream("hb-1", "imu", 3, framesPerMessage, maxDelay, () -> now, this::send);
+    }
+
+    @Test
+    public void recordsFramesInColumns() {
+        SensorStream stream = stream(4, 1000);
+        for (int i = 0; i < 10; i++) {
+            stream.addFrame(now, i, -i, 0.5);
+            now += 10000;
+        }
+        //two full messages, and two frames waiting
+        assertEquals(2, sent.size());
+        stream.flush();
+        assertEquals(3, sent.size());
+        SensorRecorder recorder = new SensorRecorder();
+        sent.forEach(recorder::record);
+        SensorRecorder.Recording recording = recorder.getRecording("hb-1", "imu");
+        assertEquals(3, recording.channels);
+        assertEquals(10, recording.size());
+        assertEquals(1500000000000000L + 90000, recording.getTime(9));
+        assertEquals(-7, recording.getValue(7, 1), 0);
+        float[] first = recording.getColumn(0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, first[i], 0);
+        }
+        assertEquals(0, recording.getLostMessages());
+    }
+
+    @Test
+    public void sendsAfterTheDelay() {
+        SensorStream stream = stream(100, 50);
+        for (int i = 0; i < 6; i++) {
+            stream.addFrame(now, 1, 2, 3);
+            now += 10000;
+        }
+        //the sixth frame is 50 ms after the first
+        assertEquals(1, sent.size());
+        assertEquals(6, ((byte[]) sent.get(0).getArg(5)).length / 16);
+    }
+
+    @Test
+    public void averagesWhenDecimating() {
+        SensorStream stream = stream(1, 1000);
+        stream.setDecimation(4);
+        for (int i = 0; i < 8; i++) {
+            stream.addFrame(now, i, 0, 0);
+            now += 10000;
+        }
+        SensorRecorder recorder = new SensorRecorder();
+        sent.forEach(recorder::record);
+        SensorRecorder.Recording recording = recorder.getRecording("hb-1", "imu");
+        assertEquals(2, recording.size());
+        assertEquals(1.5, recording.getValue(0, 0), 1e-6);
+        assertEquals(5.5, recording.getValue(1, 0), 1e-6);
+        assertEquals(1500000000000000L + 15000, recording.getTime(0));
+    }
+
+    @Test
+    public void changingDecimationStartsANewMean() {
+        SensorStream stream = stream(1, 1000);
+        stream.setDecimation(4);
+        stream.addFrame(now, 100, 0, 0);
+        stream.addFrame(now + 10000, 100, 0, 0);
+        now += 50000;
+        stream.setDecimation(2);
+        stream.addFrame(now, 1, 0, 0);
+        stream.addFrame(now + 10000, 2, 0, 0);
+        assertEquals(1, sent.size());
+        SensorRecorder recorder = new SensorRecorder();
+        recorder.record(sent.get(0));
+        SensorRecorder.Recording recording = recorder.getRecording("hb-1", "imu");
+        assertEquals(1.5, recording.getValue(0, 0), 1e-6);
+        assertEquals(now + 5000, recording.getTime(0));
+    }
+
+    @Test
+    public void keepsTheLatestFramesAndCountsLostMessages() throws IOException {
+        SensorStream stream = stream(1, 1000);
+        for (int i = 0; i < 3000; i++) {
+            stream.addFrame(now, i, 0, 0);
+            now += 1000;
+        }
+        //a frame of three channels takes 20 bytes
+        SensorRecorder recorder = new SensorRecorder(2000 * 20);
+        for (int i = 0; i < sent.size(); i++) {
+            //every tenth message is lost
+            if (i % 10 != 5) {
+                recorder.record(sent.get(i));
+            }
+        }
+        SensorRecorder.Recording recording = recorder.getRecording("hb-1", "imu");
+        assertEquals(2000, recording.size());
+        assertEquals(300, recording.getLostMessages());
+        assertEquals(2999, recording.getValue(1999, 0), 0);
+        assertEquals(recording.getTime(1999), recording.getTimes()[1999]);
+        StringWriter csv = new StringWriter();
+        recording.writeCSV(csv);
+        String[] lines = csv.toString().split("\n");
+        assertEquals(2000, lines.length);
+        assertEquals(recording.getTime(0) + "," + recording.getValue(0, 0) + ",0.0,0.0", lines[0]);
+    }
+
+    @Test
+    public void sharesTheBudgetBetweenStreams() {
+        SensorStream stream = stream(1, 1000);
+        for (int i = 0; i < 3000; i++) {
+            stream.addFrame(now, i, 0, 0);
+            now += 1000;
+        }
+        SensorRecorder recorder = new SensorRecorder(2000 * 20);
+        sent.forEach(recorder::record);
+        SensorRecorder.Recording first = recorder.getRecording("hb-1", "imu");
+        assertEquals(2000, first.size());
+        sent.clear();
+        new SensorStream("hb-2", "imu", 3, 1, 1000, () -> now, this::send).addFrame(now, 1, 2, 3);
+        recorder.record(sent.get(0));
+        //the first stream gives up half its share, keeping its latest frames
+        assertEquals(1000, first.size());
+        assertEquals(2000, first.getValue(0, 0), 0);
+        assertEquals(2999, first.getValue(999, 0), 0);
+        assertEquals(1, recorder.getRecording("hb-2", "imu").size());
+    }
+
+    @Test
+    public void recordsNothingWithoutABudget() {
+        SensorStream stream = stream(1, 1000);
+        stream.addFrame(now, 1, 2, 3);
+        SensorRecorder recorder = new SensorRecorder(0);
+        sent.forEach(recorder::record);
+        assertFalse(recorder.isRecording());
+        assertNull(recorder.getRecording("hb-1", "imu"));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.controller.network;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private final Map<String, Long> deadlines = new HashMap<>();
+    //a 100ms tick, round in a second
+    private final TimingWheel<String> wheel = new TimingWheel<>(100, 10, deadlines::get, 0);
+
+    private void add(String item, long deadline) {
+        deadlines.put(item, deadline);
+        wheel.add(item);
+    }
+
+    @Test
+    public void expiresItemsWithinATickOfTheirDeadline() {
+        add("a", 250);
+        add("b", 720);
+        assertEquals(Collections.emptyList(), wheel.advance(249));
+        assertEquals(Collections.emptyList(), wheel.advance(299));
+        assertEquals(Arrays.asList("a"), wheel.advance(300));
+        assertEquals(Collections.emptyList(), wheel.advance(799));
+        assertEquals(Arrays.asList("b"), wheel.advance(800));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void movedDeadlinesAreFollowed() {
+        add("a", 250);
+        //heard from again, later, without touching the wheel
+        deadlines.put("a", 650L);
+        assertEquals(Collections.emptyList(), wheel.advance(300));
+        assertEquals(1, wheel.size());
+        assertEquals(Arrays.asList("a"), wheel.advance(700));
+    }
+
+    @Test
+    public void deadlinesFurtherThanOnceRoundWait() {
+        add("a", 3450);
+        for (long t = 0; t < 3400; t += 100) {
+            assertEquals(Collections.emptyList(), wheel.advance(t));
+        }
+        assertEquals(Arrays.asList("a"), wheel.advance(3500));
+        //a late tick still finds everything due, even after more than once round
+        add("b", 4000);
+        add("c", 4200);
+        List<String> expired = new ArrayList<>(wheel.advance(10000));
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("b", "c"), expired);
+    }
+}
@@ -124,7 +124,7 @@ public class BroadcastTest {
 
         void simulateInterfaceDisconnection() {
             transmitters.clear();
-            receivers.clear();
+            endpoints.clear();
             netInterfaces.clear();
         }
     }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockEstimatorTest {
+
+    private static final double OFFSET = 123456;
+    private static final double DRIFT = 0.00005;
+
+    private static long remoteTime(double localTime) {
+        return Math.round(localTime + OFFSET + DRIFT * localTime);
+    }
+
+    @Test
+    public void emptyEstimatorHasNoFit() {
+        ClockEstimator estimator = new ClockEstimator();
+        assertFalse(estimator.update());
+        assertFalse(estimator.isValid());
+    }
+
+    @Test
+    public void fitsOffsetAndDriftFromSymmetricRoundTrips() {
+        //in microseconds, as any unit will do
+        ClockEstimator estimator = new ClockEstimator(16);
+        for (long t = 0; t < 100000000; t += 1000000) {
+            estimator.addSample(t, t + 10000, remoteTime(t + 5000));
+        }
+        assertTrue(estimator.update());
+        assertEquals(16, estimator.size());
+        assertEquals(OFFSET + DRIFT * 100000000, estimator.getOffset(100000000), 1);
+        assertEquals(DRIFT, estimator.getDrift(), 0.000001);
+    }
+
+    @Test
+    public void ignoresDelayedReplies() {
+        //replies queue on Wi-Fi for up to 80ms on either leg, which a single round trip would halve into the offset
+        Random random = new Random(3);
+        ClockEstimator estimator = new ClockEstimator();
+        double worstSingleSample = 0;
+        long t = 0;
+        for (int i = 0; i < 200; i++) {
+            t += 1000 + random.nextInt(200);
+            double outbound = 2 + (random.nextDouble() < 0.5 ? random.nextDouble() * 80 : 0);
+            double inbound = 2 + (random.nextDouble() < 0.5 ? random.nextDouble() * 80 : 0);
+            long receive = Math.round(t + outbound + inbound);
+            estimator.addSample(t, receive, remoteTime(t + outbound));
+            double singleSampleOffset = remoteTime(t + outbound) - (t + receive) / 2.0;
+            worstSingleSample = Math.max(worstSingleSample, Math.abs(singleSampleOffset - (OFFSET + DRIFT * (t + receive) / 2.0)));
+        }
+        assertTrue(estimator.update());
+        double error = Math.abs(estimator.getOffset(t) - (OFFSET + DRIFT * t));
+        assertTrue("error " + error + "ms", error < 2);
+        assertTrue("single samples are out by up to " + worstSingleSample + "ms", worstSingleSample > 20);
+        assertTrue(estimator.getRoundTripThreshold() < 40);
+    }
+
+    @Test
+    public void startsAgainWhenTheRemoteClockSteps() {
+        ClockEstimator estimator = new ClockEstimator(64, 100);
+        for (long t = 0; t < 20000; t += 1000) {
+            estimator.addSample(t, t + 10, t + 5 + 2000);
+        }
+        //small changes within the round trip and the threshold are kept
+        estimator.addSample(20000, 20050, 20025 + 2030);
+        assertEquals(21, estimator.size());
+        estimator.addSample(21000, 21010, 21005 - 500);
+        assertEquals(1, estimator.size());
+        estimator.update();
+        assertEquals(-500, estimator.getOffset(21005), 0.001);
+    }
+
+    @Test
+    public void windowIsBounded() {
+        ClockEstimator estimator = new ClockEstimator(8);
+        //old samples with a different offset are forgotten
+        for (long t = 0; t < 8000; t += 1000) {
+            estimator.addSample(t, t + 10, t + 5 + 500);
+        }
+        for (long t = 8000; t < 16000; t += 1000) {
+            estimator.addSample(t, t + 10, t + 5 + 100);
+        }
+        estimator.update();
+        assertEquals(8, estimator.size());
+        assertEquals(100, estimator.getOffset(16000), 0.001);
+        estimator.clear();
+        assertEquals(0, estimator.size());
+    }
+}
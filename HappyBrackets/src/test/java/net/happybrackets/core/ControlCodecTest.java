@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
+import de.sciss.net.OSCServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ControlCodecTest {
+
+    private OSCMessage roundTrip(OSCMessage msg) throws IOException {
+        ControlCodec codec = new ControlCodec();
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        codec.encode(msg, b);
+        assertEquals(codec.getSize(msg), b.position());
+        b.flip();
+        OSCPacket decoded = codec.decode(b);
+        assertFalse(b.hasRemaining());
+        return (OSCMessage) decoded;
+    }
+
+    @Test
+    public void roundTripsAllFieldTypes() throws IOException {
+        byte[] blob = {1, 2, 3};
+        OSCMessage decoded = roundTrip(new ControlCodec.CompactMessage("/device/sync",
+                new Object[] {-5, 1234567890123L, 0.25f, Math.PI, "h\u00e9llo", blob, Integer.MIN_VALUE, Long.MAX_VALUE}));
+        assertEquals("/device/sync", decoded.getName());
+        assertEquals(-5, decoded.getArg(0));
+        assertEquals(1234567890123L, decoded.getArg(1));
+        assertEquals(0.25f, decoded.getArg(2));
+        assertEquals(Math.PI, decoded.getArg(3));
+        assertEquals("h\u00e9llo", decoded.getArg(4));
+        assertArrayEquals(blob, (byte[]) decoded.getArg(5));
+        assertEquals(Integer.MIN_VALUE, decoded.getArg(6));
+        assertEquals(Long.MAX_VALUE, decoded.getArg(7));
+    }
+
+    @Test
+    public void isSmallerThanOSC() throws IOException {
+        OSCMessage osc = new OSCMessage("/device/gain", new Object[] {0.5f, 100f});
+        ControlCodec.CompactMessage compact = new ControlCodec.CompactMessage("/device/gain", new Object[] {0.5f, 100f});
+        assertTrue(ControlCodec.compactSize(compact) < osc.getSize());
+        assertEquals(0, roundTrip(new ControlCodec.CompactMessage("/device/reboot", new Object[0])).getArgCount());
+    }
+
+    @Test
+    public void leavesOtherMessagesAsOSC() throws IOException {
+        OSCMessage decoded = roundTrip(new OSCMessage("/my/message", new Object[] {3, "x"}));
+        assertEquals("/my/message", decoded.getName());
+        assertEquals(3, decoded.getArg(0));
+        try {
+            new ControlCodec.CompactMessage("/my/message", new Object[0]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void sendsLongsInOSCAsInt64() throws IOException {
+        long micros = 1500000000123456L;
+        OSCMessage decoded = roundTrip(new OSCMessage("/hb/synchonizer", new Object[] {"s", micros, 7}));
+        assertEquals(micros, decoded.getArg(1));
+        assertEquals(7, decoded.getArg(2));
+    }
+
+    @Test
+    public void rejectsMalformedPackets() {
+        byte[][] bad = {
+                {ControlCodec.MAGIC},                               //truncated
+                {ControlCodec.MAGIC, 9, 1, 0},                      //unknown version
+                {ControlCodec.MAGIC, ControlCodec.VERSION, 100, 0}, //unknown opcode
+                {ControlCodec.MAGIC, ControlCodec.VERSION, 1, 1, 's', 10, 'a'}, //short string
+        };
+        for (byte[] packet : bad) {
+            try {
+                new ControlCodec().decode(ByteBuffer.wrap(packet));
+                fail();
+            } catch (IOException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void sendsBinaryThroughOSCServer() throws IOException, InterruptedException {
+        OSCServer receiver = OSCServer.newUsing(new ControlCodec(), OSCServer.UDP, 0, true);
+        OSCServer sender = OSCServer.newUsing(new ControlCodec(), OSCServer.UDP, 0, true);
+        BlockingQueue<OSCMessage> received = new ArrayBlockingQueue<>(2);
+        receiver.addOSCListener((msg, src, time) -> received.add(msg));
+        receiver.start();
+        sender.start();
+        try {
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalAddress().getPort());
+            sender.send(new ControlCodec.CompactMessage("/device/sync", new Object[] {1234567890123L}), target);
+            sender.send(new OSCMessage("/device/sync", new Object[] {"1234567890123"}), target);
+            OSCMessage binary = received.poll(2, TimeUnit.SECONDS);
+            OSCMessage osc = received.poll(2, TimeUnit.SECONDS);
+            assertNotNull(binary);
+            assertNotNull(osc);
+            assertEquals(1234567890123L, binary.getArg(0));
+            assertEquals("1234567890123", osc.getArg(0));
+        } finally {
+            sender.dispose();
+            receiver.dispose();
+        }
+    }
+}
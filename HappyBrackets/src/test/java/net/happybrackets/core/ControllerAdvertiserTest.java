@@ -33,6 +33,7 @@ public class ControllerAdvertiserTest {
 	public void setUp() throws Exception {
 		env 				= new ControllerConfig();
 		env 				= env.load("src/test/config/test-controller-config.json", env);
+		broadcastManager	= new BroadcastManager(env.getMulticastAddr(), env.getBroadcastPort());
 		advertiser 			= new ControllerAdvertiser(broadcastManager);
 		advertiser.start();
 	}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeviceHeartbeatTest {
+
+    private final DeviceHeartbeat heartbeat = new DeviceHeartbeat(new Random(3));
+
+    private OSCMessage decode(OSCMessage msg) throws IOException {
+        ControlCodec codec = new ControlCodec();
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        codec.encode(msg, b);
+        b.flip();
+        return (OSCMessage) codec.decode(b);
+    }
+
+    @Test
+    public void versionChangesOnlyWithTheStatus() {
+        assertNotEquals(0, heartbeat.getToken());
+        assertTrue(heartbeat.update("ID 1", 1, "10.0.0.2"));
+        assertEquals(1, heartbeat.getVersion());
+        assertFalse(heartbeat.update("ID 1", 1, "10.0.0.2"));
+        assertEquals(1, heartbeat.getVersion());
+        assertTrue(heartbeat.update("ID 1", 1, "10.0.0.3"));
+        assertEquals(2, heartbeat.getVersion());
+    }
+
+    @Test
+    public void sendsTheFullStatusWhenNeeded() {
+        heartbeat.update("status");
+        assertTrue(heartbeat.needsFullStatus(1000));
+        heartbeat.sentFullStatus(1000);
+        assertFalse(heartbeat.needsFullStatus(2000));
+        heartbeat.requestResync();
+        assertTrue(heartbeat.needsFullStatus(2000));
+        heartbeat.sentFullStatus(2000);
+        heartbeat.update("new status");
+        assertTrue(heartbeat.needsFullStatus(3000));
+        heartbeat.sentFullStatus(3000);
+        //however quiet things are, the full status goes out now and then
+        assertFalse(heartbeat.needsFullStatus(3000 + DeviceHeartbeat.FULL_STATUS_INTERVAL - 1));
+        assertTrue(heartbeat.needsFullStatus(3000 + DeviceHeartbeat.FULL_STATUS_INTERVAL));
+    }
+
+    @Test
+    public void tokensSurviveTheControlCodec() throws IOException {
+        heartbeat.update("status");
+        Object[] aliveArgs = {"hb-1", "hb-1.local", "10.0.0.2", 0L, "status", 1, 2226, ControlCodec.VERSION, "controller"};
+        OSCMessage alive = new OSCMessage(DeviceHeartbeat.ALIVE_MESSAGE_NAME, heartbeat.withToken(aliveArgs));
+        OSCMessage beat = heartbeat.toMessage();
+        for (OSCMessage msg : new OSCMessage[] {decode(alive), decode(beat)}) {
+            assertEquals(heartbeat.getToken(), DeviceHeartbeat.tokenOf(msg));
+            assertEquals(1, DeviceHeartbeat.versionOf(msg));
+        }
+        //the old arguments are where they were
+        assertEquals("controller", decode(alive).getArg(8));
+        assertTrue(beat.getSize() * 3 < alive.getSize());
+        //devices running older versions have no token
+        assertEquals(0, DeviceHeartbeat.tokenOf(new OSCMessage(DeviceHeartbeat.ALIVE_MESSAGE_NAME, aliveArgs)));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class EventSchedulerTest {
+
+    private static final long MS = 1000000;
+
+    private AtomicLong correction;
+    private EventScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        correction = new AtomicLong();
+        scheduler = new EventScheduler(() -> System.nanoTime() + correction.get());
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    private long now() {
+        return System.nanoTime() + correction.get();
+    }
+
+    @Test
+    public void runsEventsInTimeOrder() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        long start = now();
+        scheduler.schedule(() -> { order.add(3); latch.countDown(); }, start + 60 * MS);
+        scheduler.schedule(() -> { order.add(1); latch.countDown(); }, start + 20 * MS);
+        scheduler.schedule(() -> { order.add(2); latch.countDown(); }, start + 40 * MS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(1, (int) order.get(0));
+        assertEquals(2, (int) order.get(1));
+        assertEquals(3, (int) order.get(2));
+    }
+
+    @Test
+    public void firesCloseToTheDeadline() throws InterruptedException {
+        AtomicLong late = new AtomicLong();
+        CountDownLatch latch = new CountDownLatch(1);
+        long time = now() + 50 * MS;
+        scheduler.schedule(() -> { late.set(now() - time); latch.countDown(); }, time);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(late.get() >= 0);
+        assertTrue("late by " + late.get() + "ns", late.get() < 5 * MS);
+    }
+
+    @Test
+    public void cancelledEventsDoNotRun() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        EventScheduler.Handle handle = scheduler.schedule(ran::countDown, now() + 30 * MS);
+        assertTrue(handle.cancel());
+        assertFalse(handle.cancel());
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(handle.isDone());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void clockCorrectionMovesPendingEvents() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        EventScheduler.Handle handle = scheduler.schedule(ran::countDown, now() + 10000 * MS);
+        //the clock jumps forward to just before the event
+        correction.addAndGet(9980 * MS);
+        scheduler.clockChanged();
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertTrue(handle.isDone());
+    }
+}
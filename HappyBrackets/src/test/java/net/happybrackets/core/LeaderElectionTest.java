@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LeaderElectionTest {
+
+    private static final long TIMEOUT = 5000;
+    private static final long HOLDOFF = 10000;
+
+    @Test
+    public void startsWithTheHighestRankedDevice() {
+        LeaderElection election = new LeaderElection("b", 0, TIMEOUT, HOLDOFF);
+        election.heard("a", 0, null, 0);
+        election.heard("c", 0, null, 0);
+        assertEquals("c", election.update(0, false));
+        //a higher priority beats a higher id
+        election = new LeaderElection("b", 0, TIMEOUT, HOLDOFF);
+        election.heard("a", 1, null, 0);
+        election.heard("c", 0, null, 0);
+        assertEquals("a", election.update(0, false));
+    }
+
+    @Test
+    public void keepsTheLeaderWhenAHigherIdJoins() {
+        LeaderElection election = new LeaderElection("b", 0, TIMEOUT, HOLDOFF);
+        election.heard("c", 0, "c", 0);
+        assertEquals("c", election.update(0, true));
+        for (long t = 1000; t < 30000; t += 1000) {
+            election.heard("c", 0, "c", t);
+            election.heard("z", 0, "c", t);
+            assertEquals("c", election.update(t, true));
+        }
+    }
+
+    @Test
+    public void joiningDeviceAdoptsTheReportedLeader() {
+        LeaderElection election = new LeaderElection("z", 0, TIMEOUT, HOLDOFF);
+        assertEquals("z", election.update(0, false));
+        election.heard("a", 0, "c", 1000);
+        election.heard("b", 0, "c", 1000);
+        election.heard("c", 0, "c", 1000);
+        assertEquals("c", election.update(1000, false));
+        assertFalse(election.isLeader());
+    }
+
+    @Test
+    public void higherPriorityTakesOverAfterTheHoldoff() {
+        LeaderElection election = new LeaderElection("b", 0, TIMEOUT, HOLDOFF);
+        election.heard("c", 0, "c", 0);
+        assertEquals("c", election.update(0, true));
+        for (long t = 1000; t < HOLDOFF + 1000; t += 1000) {
+            election.heard("c", 0, "c", t);
+            election.heard("p", 1, "c", t);
+            assertEquals("c", election.update(t, true));
+        }
+        election.heard("c", 0, "c", HOLDOFF + 1000);
+        election.heard("p", 1, "c", HOLDOFF + 1000);
+        assertEquals("p", election.update(HOLDOFF + 1000, true));
+    }
+
+    @Test
+    public void thisDeviceOnlyTakesOverOnceSynced() {
+        LeaderElection election = new LeaderElection("p", 1, TIMEOUT, HOLDOFF);
+        election.heard("c", 0, "c", 0);
+        election.heard("b", 0, "c", 0);
+        assertEquals("c", election.update(0, false));
+        for (long t = 1000; t < 3 * HOLDOFF; t += 1000) {
+            election.heard("c", 0, "c", t);
+            election.heard("b", 0, "c", t);
+            assertEquals("c", election.update(t, false));
+        }
+        long t = 3 * HOLDOFF;
+        for (; t < 5 * HOLDOFF && !election.isLeader(); t += 1000) {
+            election.heard("c", 0, "c", t);
+            election.heard("b", 0, "c", t);
+            election.update(t, true);
+        }
+        assertTrue(election.isLeader());
+        assertTrue(t - 3 * HOLDOFF >= HOLDOFF);
+    }
+
+    @Test
+    public void lostLeaderIsReplaced() {
+        LeaderElection election = new LeaderElection("b", 0, TIMEOUT, HOLDOFF);
+        election.heard("c", 0, "c", 0);
+        election.heard("a", 0, "c", 0);
+        assertEquals("c", election.update(0, true));
+        election.heard("a", 0, "c", 6000);
+        assertEquals("b", election.update(6000, true));
+        assertTrue(election.isLeader());
+    }
+
+    @Test
+    public void followsTheLeaderItsLeaderJoins() {
+        LeaderElection election = new LeaderElection("b", 0, TIMEOUT, HOLDOFF);
+        election.heard("c", 0, "c", 0);
+        election.heard("a", 0, "a", 0);
+        assertEquals("c", election.update(0, true));
+        //c finds everyone else following a and joins it, but is still heard from
+        election.heard("c", 0, "a", 1000);
+        election.heard("a", 0, "a", 1000);
+        assertEquals("a", election.update(1000, true));
+        assertFalse(election.isLeader());
+    }
+
+    @Test
+    public void keepsAHigherPriorityLeaderThatHasNotSyncedYet() {
+        LeaderElection election = new LeaderElection("b", 0, TIMEOUT, HOLDOFF);
+        election.heard("c", 0, "c", 0);
+        election.heard("p", 1, "c", 0);
+        assertEquals("c", election.update(0, true));
+        long t = 1000;
+        for (; t <= HOLDOFF + 1000; t += 1000) {
+            election.heard("c", 0, "c", t);
+            election.heard("p", 1, "c", t);
+            election.update(t, true);
+        }
+        assertEquals("p", election.getLeader());
+        //p still reports c until it takes over itself
+        election.heard("c", 0, "c", t);
+        election.heard("p", 1, "c", t);
+        assertEquals("p", election.update(t, true));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageBatcherTest {
+
+    private final List<OSCPacket> sent = new ArrayList<>();
+    private MessageBatcher batcher;
+
+    private synchronized void record(OSCPacket packet) {
+        sent.add(packet);
+    }
+
+    private synchronized List<OSCPacket> sent() {
+        return new ArrayList<>(sent);
+    }
+
+    @After
+    public void tearDown() {
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
+    @Test
+    public void packsABurstIntoOneBundle() throws Exception {
+        batcher = new MessageBatcher(50, MessageBatcher.DEFAULT_MAX_BYTES, this::record);
+        for (int i = 0; i < 5; i++) {
+            batcher.add(new OSCMessage("/device/sensor", new Object[] {i}));
+        }
+        assertTrue(sent().isEmpty());
+        Thread.sleep(200);
+        assertEquals(1, sent().size());
+        OSCBundle bundle = (OSCBundle) sent().get(0);
+        assertEquals(5, bundle.getPacketCount());
+        assertEquals(4, ((OSCMessage) bundle.getPacket(4)).getArg(0));
+        assertEquals(1, batcher.getBatchCount());
+        assertEquals(5, batcher.getMessageCount());
+        assertEquals(5, batcher.getMaxBatchSize());
+        assertTrue(batcher.getMaxWait() >= 50);
+        assertTrue(batcher.getMeanWait() <= batcher.getMaxWait());
+        //the bundle survives the control codec
+        ControlCodec codec = new ControlCodec();
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        codec.encode(bundle, b);
+        b.flip();
+        assertEquals(5, ((OSCBundle) codec.decode(b)).getPacketCount());
+    }
+
+    @Test
+    public void sendsALoneMessageAsItIs() throws Exception {
+        batcher = new MessageBatcher(10, MessageBatcher.DEFAULT_MAX_BYTES, this::record);
+        batcher.add(new OSCMessage("/device/alive"));
+        Thread.sleep(100);
+        assertEquals(1, sent().size());
+        assertTrue(sent().get(0) instanceof OSCMessage);
+    }
+
+    @Test
+    public void startsANewBundleWhenOneIsFull() {
+        batcher = new MessageBatcher(60000, 230, this::record);
+        OSCMessage msg = new OSCMessage("/device/sensor", new Object[] {"0123456789012345678901234567890123456789"});
+        for (int i = 0; i < 7; i++) {
+            batcher.add(msg);
+        }
+        //with the bundle header and a size before each, three 64 byte messages fill a 230 byte bundle
+        assertEquals(2, sent().size());
+        for (OSCPacket packet : sent()) {
+            assertEquals(3, ((OSCBundle) packet).getPacketCount());
+        }
+        batcher.flush();
+        assertEquals(3, sent().size());
+        assertEquals(7, batcher.getMessageCount());
+        assertEquals(7.0 / 3, batcher.getMeanBatchSize(), 1e-9);
+    }
+
+    @Test
+    public void measuresLongsAsTheControlCodecWritesThem() throws Exception {
+        ControlCodec codec = new ControlCodec();
+        batcher = new MessageBatcher(60000, 400, this::record, codec);
+        Object[] args = new Object[10];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = 1700000000000L + i;
+        }
+        for (int i = 0; i < 10; i++) {
+            batcher.add(new OSCMessage("/device/synch", args));
+        }
+        batcher.flush();
+        int messages = 0;
+        for (OSCPacket packet : sent()) {
+            //each long takes 8 bytes, so only three messages fit in a bundle
+            assertTrue(codec.getSize(packet) <= 400);
+            messages += packet instanceof OSCBundle ? ((OSCBundle) packet).getPacketCount() : 1;
+        }
+        assertEquals(10, messages);
+        assertEquals(4, sent().size());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SynchStatsTest {
+
+    @Test
+    public void bucketsRoundTrips() {
+        assertEquals(0, SynchStats.bucket(0));
+        assertEquals(0, SynchStats.bucket(250));
+        assertEquals(1, SynchStats.bucket(251));
+        assertEquals(4, SynchStats.bucket(3000));
+        assertEquals(SynchStats.ROUND_TRIP_BUCKETS.length, SynchStats.bucket(10000000));
+
+        SynchStats stats = new SynchStats();
+        stats.recordRoundTrip(100, 1000);
+        stats.recordRoundTrip(200, 1001);
+        stats.recordRoundTrip(3000, 1002);
+        stats.recordRoundTrip(10000000, 1003);
+        long[] histogram = stats.getRoundTripHistogram();
+        assertEquals(SynchStats.ROUND_TRIP_BUCKETS.length + 1, histogram.length);
+        assertEquals(2, histogram[0]);
+        assertEquals(1, histogram[4]);
+        assertEquals(1, histogram[histogram.length - 1]);
+        assertEquals(4, stats.getSampleCount());
+        assertEquals(1003, stats.getLastUpdate());
+    }
+
+    @Test
+    public void jitterConvergesOnTheChangeBetweenRoundTrips() {
+        SynchStats stats = new SynchStats();
+        assertEquals(0, stats.getJitter());
+        for (int i = 0; i < 500; i++) {
+            stats.recordRoundTrip(i % 2 == 0 ? 1000 : 3000, i);
+        }
+        assertEquals(2000, stats.getJitter(), 20);
+
+        //steady round trips bring it back down
+        for (int i = 0; i < 500; i++) {
+            stats.recordRoundTrip(1000, i);
+        }
+        assertEquals(0, stats.getJitter(), 20);
+    }
+
+    @Test
+    public void reportsSurviveTheControlCodec() throws IOException {
+        SynchStats stats = new SynchStats();
+        for (int i = 0; i < 100; i++) {
+            stats.recordRoundTrip(i < 90 ? 400 : 20000, 5000000000L + i);
+        }
+        stats.setOffset(-3000000000L);
+        SynchStats.Report report = stats.report("leader-mac", SynchStats.Report.LEADER, 150, 5000000099L + 40);
+        assertEquals(40, report.age);
+        assertEquals(500, report.roundTripPercentile(0.9));
+        assertEquals(32000, report.roundTripPercentile(1));
+
+        ControlCodec codec = new ControlCodec();
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        codec.encode(report.toMessage("hb-01"), b);
+        b.flip();
+        OSCPacket decoded = codec.decode(b);
+        OSCMessage msg = (OSCMessage) decoded;
+        assertEquals(SynchStats.MESSAGE_NAME, msg.getName());
+        assertEquals("hb-01", msg.getArg(0));
+
+        SynchStats.Report received = SynchStats.Report.fromMessage(msg);
+        assertEquals("leader-mac", received.peer);
+        assertEquals(SynchStats.Report.LEADER, received.role);
+        assertEquals(-3000000000L, received.offset);
+        assertEquals(150, received.correctionError);
+        assertEquals(report.jitter, received.jitter);
+        assertEquals(40, received.age);
+        assertEquals(100, received.samples);
+        assertArrayEquals(report.getRoundTripHistogram(), received.getRoundTripHistogram());
+        assertTrue(received.isWellSynched());
+    }
+
+    @Test
+    public void flagsLostOrUnsettledSynch() {
+        long[] histogram = new long[SynchStats.ROUND_TRIP_BUCKETS.length + 1];
+        assertFalse(new SynchStats.Report("a", SynchStats.Report.LEADER, 0, 0, 0, -1, 0, histogram).isWellSynched());
+        assertFalse(new SynchStats.Report("a", SynchStats.Report.LEADER, 0, 0, 0, Synchronizer.LEADER_TIMEOUT + 1, 1, histogram).isWellSynched());
+        assertFalse(new SynchStats.Report("a", SynchStats.Report.LEADER, 0, -Synchronizer.RESAMPLE_ERROR - 1, 0, 100, 1, histogram).isWellSynched());
+        assertTrue(new SynchStats.Report("me", SynchStats.Report.SELF, 0, 0, 0, -1, 0, histogram).isWellSynched());
+        assertEquals("clock leader", new SynchStats.Report("me", SynchStats.Report.SELF, 0, 0, 0, -1, 0, histogram).summary());
+        //only the leader has a correction error
+        assertFalse(new SynchStats.Report("a", SynchStats.Report.PEER, 0, 0, 0, 100, 1, histogram).summary().contains("err"));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import net.happybrackets.core.transport.InMemoryNetwork;
+import net.happybrackets.core.transport.InMemoryTransport;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SynchronizerTest {
+
+    private static final long MS = 1000000;
+    private static final long EPOCH = 1500000000000L * MS;
+
+    private final InMemoryNetwork network = new InMemoryNetwork(3).setDelay(1, 2).setLoss(0.01);
+    private final List<Synchronizer> devices = new ArrayList<>();
+    private long now = 0;
+
+    private void addDevices(int count) {
+        Random random = new Random(5);
+        for (int i = 0; i < count; i++) {
+            long offset = (long) ((random.nextDouble() - 0.5) * 1000 * MS);
+            double drift = (random.nextDouble() - 0.5) * 1e-4;
+            BroadcastManager broadcast = new BroadcastManager("225.2.2.5", 2225, "225.2.3.0", 0, new InMemoryTransport(network, "hb-" + i));
+            broadcast.refreshBroadcaster();
+            devices.add(new Synchronizer(broadcast, () -> EPOCH + offset + (long) (network.now() * (1 + drift)), 0, new Random(i)));
+        }
+    }
+
+    private void runFor(long ms) {
+        for (long end = now + ms * MS; now < end; now += MS) {
+            network.runUntil(now);
+            for (Synchronizer device : devices) {
+                device.poll();
+            }
+        }
+    }
+
+    private long spread() {
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (Synchronizer device : devices) {
+            long time = device.correctedTimeMicros();
+            min = Math.min(min, time);
+            max = Math.max(max, time);
+        }
+        return max - min;
+    }
+
+    @After
+    public void tearDown() {
+        devices.forEach(Synchronizer::close);
+    }
+
+    @Test
+    public void devicesConvergeOnOneLeader() {
+        addDevices(6);
+        assertTrue(spread() > 100000);
+        runFor(60000);
+        String leader = devices.get(0).getLeader();
+        assertNotNull(leader);
+        for (Synchronizer device : devices) {
+            assertEquals(leader, device.getLeader());
+        }
+        assertTrue("spread " + spread() + "us", spread() < 1000);
+    }
+
+    @Test
+    public void followersStayTogetherWhenTheLeaderGoes() {
+        addDevices(6);
+        runFor(60000);
+        String leader = devices.get(0).getLeader();
+        for (Synchronizer device : new ArrayList<>(devices)) {
+            if (device.getSynchReports().get(0).role == SynchStats.Report.SELF) {
+                devices.remove(device);
+                device.close();
+            }
+        }
+        assertEquals(5, devices.size());
+        List<Double> steps = new ArrayList<>();
+        for (Synchronizer device : devices) {
+            steps.add(device.getLastStep());
+        }
+        //the followers slew to the new leader rather than step
+        runFor(60000);
+        for (int i = 0; i < devices.size(); i++) {
+            assertEquals(steps.get(i), devices.get(i).getLastStep(), 0);
+        }
+        String newLeader = devices.get(0).getLeader();
+        assertNotEquals(leader, newLeader);
+        for (Synchronizer device : devices) {
+            assertEquals(newLeader, device.getLeader());
+            //the old leader is now just a peer, which this device isn't slewing towards
+            for (SynchStats.Report report : device.getSynchReports()) {
+                if (report.role == SynchStats.Report.PEER) {
+                    assertEquals(0, report.correctionError);
+                }
+            }
+        }
+        assertTrue("spread " + spread() + "us", spread() < 1000);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import de.sciss.net.OSCMessage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TempoMapTest {
+
+    private static final long EPOCH = 1000000000L;
+
+    //events are scheduled far enough ahead of this scheduler's clock that they never run during a test
+    private final EventScheduler events = new EventScheduler(() -> 0);
+    private final List<Long> times = new ArrayList<>();
+    private final List<Runnable> runnables = new ArrayList<>();
+    private final List<EventScheduler.Handle> handles = new ArrayList<>();
+    private long now = EPOCH;
+
+    private BeatScheduler beats(TempoMap map) {
+        return new BeatScheduler(() -> now, (runnable, time) -> {
+            times.add(time);
+            runnables.add(runnable);
+            handles.add(events.schedule(runnable, time * 1000));
+            return handles.get(handles.size() - 1);
+        }, map);
+    }
+
+    /**
+     * Move the clock on, running the actions that are due on the way, as the scheduler thread would.
+     */
+    private void advanceTo(long time) {
+        for (long next = nextDue(); next <= time; next = nextDue()) {
+            now = next;
+            for (int i = 0; i < times.size(); i++) {
+                if (times.get(i) == next && handles.get(i).cancel()) {
+                    runnables.get(i).run();
+                }
+            }
+        }
+        now = time;
+    }
+
+    private long nextDue() {
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < times.size(); i++) {
+            if (!handles.get(i).isCancelled()) {
+                next = Math.min(next, times.get(i));
+            }
+        }
+        return next;
+    }
+
+    @After
+    public void tearDown() {
+        events.shutdown();
+    }
+
+    @Test
+    public void mapsBeatsToTimes() {
+        TempoMap map = TempoMap.create(120, 4, 2, EPOCH);
+        assertEquals(500000, map.getBeatLength());
+        assertEquals(120, map.getBPM(), 1e-9);
+        assertEquals(0, map.beatAt(EPOCH), 1e-9);
+        assertEquals(2.5, map.beatAt(EPOCH + 1250000), 1e-9);
+        assertEquals(EPOCH + 1250000, map.timeOf(2.5));
+        assertEquals(EPOCH - 500000, map.timeOf(-1));
+        assertEquals(4, map.nextBoundary(2.5, TempoMap.Unit.BAR));
+        assertEquals(8, map.nextBoundary(4, TempoMap.Unit.BAR));
+        assertEquals(4, map.boundaryAtOrAfter(4, TempoMap.Unit.BAR));
+        assertEquals(8, map.nextBoundary(0, TempoMap.Unit.PHRASE));
+        assertEquals(3, map.nextBoundary(2.5, TempoMap.Unit.BEAT));
+    }
+
+    @Test
+    public void changesCarryOnTheBeats() {
+        TempoMap map = TempoMap.create(120, 4, 2, EPOCH);
+        //asked for a quarter of the way into beat 10, the change happens on beat 11
+        TempoMap faster = map.withTempo(240, map.timeOf(10.25));
+        assertEquals(11, faster.getBeatAtEpoch());
+        assertEquals(map.timeOf(11), faster.getEpoch());
+        assertEquals(map.timeOf(11) + 250000, faster.timeOf(12));
+        assertEquals(map.getBarOrigin(), faster.getBarOrigin());
+        //a new meter starts on a bar boundary, with a new first bar
+        TempoMap waltz = faster.withMeter(3, 4, faster.timeOf(13));
+        assertEquals(16, waltz.getBeatAtEpoch());
+        assertEquals(16, waltz.getBarOrigin());
+        assertEquals(19, waltz.nextBoundary(16, TempoMap.Unit.BAR));
+        assertEquals(28, waltz.nextBoundary(16, TempoMap.Unit.PHRASE));
+    }
+
+    @Test
+    public void survivesTheControlCodec() throws IOException {
+        TempoMap map = TempoMap.create(133.333, 7, 3, 1500000000000000L).withMeter(5, 2, 1500000000123456L);
+        ControlCodec codec = new ControlCodec();
+        ByteBuffer b = ByteBuffer.allocate(8192);
+        codec.encode(map.toMessage(), b);
+        b.flip();
+        OSCMessage msg = (OSCMessage) codec.decode(b);
+        assertEquals(TempoMap.MESSAGE_NAME, msg.getName());
+        assertEquals(map, TempoMap.fromMessage(msg));
+    }
+
+    @Test
+    public void quantizesToTheNextBar() {
+        BeatScheduler beats = beats(TempoMap.create(120, 4, 2, EPOCH));
+        now = EPOCH + 1250000;
+        BeatScheduler.Handle handle = beats.doOnNext(() -> {}, TempoMap.Unit.BAR);
+        assertEquals(4, handle.getBeat(), 0);
+        assertEquals(EPOCH + 2000000, (long) times.get(0));
+        //on a boundary, the next one
+        now = EPOCH + 2000000;
+        assertEquals(8, beats.doOnNext(() -> {}, TempoMap.Unit.BAR).getBeat(), 0);
+        assertEquals(2, beats.getPendingCount());
+        assertTrue(handle.cancel());
+        assertFalse(handle.cancel());
+        assertEquals(1, beats.getPendingCount());
+    }
+
+    @Test
+    public void tempoChangesMoveWaitingActions() {
+        TempoMap map = TempoMap.create(120, 4, 2, EPOCH);
+        BeatScheduler beats = beats(map);
+        beats.doAtBeat(() -> {}, 16);
+        assertEquals(map.timeOf(16), (long) times.get(0));
+        //twice as fast from beat 8
+        TempoMap faster = map.withTempo(240, map.timeOf(8));
+        beats.setTempoMap(faster);
+        assertEquals(map.timeOf(8) + 8 * 250000, (long) times.get(1));
+        //the old map still applies until the change
+        assertEquals(map, beats.getTempoMap());
+        assertEquals(faster, beats.getLatestTempoMap());
+        assertEquals(EPOCH + 1000000, beats.timeOf(2));
+        now = faster.getEpoch() + 250000;
+        assertEquals(9, beats.beatNow(), 1e-9);
+        assertEquals(faster, beats.getTempoMap());
+    }
+
+    @Test
+    public void meterChangesMoveTheNextBar() {
+        TempoMap map = TempoMap.create(120, 4, 2, EPOCH);
+        BeatScheduler beats = beats(map);
+        //the meter changes at the start of bar 2, beat 4, so the next bar after that is 3 beats later
+        beats.setTempoMap(map.withMeter(3, 2, map.timeOf(1)));
+        now = map.timeOf(4.5);
+        assertEquals(7, beats.doOnNext(() -> {}, TempoMap.Unit.BAR).getBeat(), 0);
+        now = map.timeOf(1);
+        assertEquals(4, beats.doOnNext(() -> {}, TempoMap.Unit.BAR).getBeat(), 0);
+    }
+
+    @Test
+    public void runsOnTheBeat() {
+        //a 20ms beat
+        BeatScheduler beats = beats(TempoMap.create(3000, 4, 4, EPOCH));
+        now = EPOCH + 10000;
+        List<Long> ranAt = new ArrayList<>();
+        BeatScheduler.Handle handle = beats.doOnNext(() -> ranAt.add(now), TempoMap.Unit.BAR);
+        assertEquals(4, handle.getBeat(), 0);
+        advanceTo(EPOCH + 79999);
+        assertFalse(handle.isDone());
+        advanceTo(EPOCH + 100000);
+        assertTrue(handle.isDone());
+        assertEquals(0, beats.getPendingCount());
+        assertEquals(1, ranAt.size());
+        assertEquals(beats.timeOf(4), (long) ranAt.get(0));
+        assertEquals(EPOCH + 80000, (long) ranAt.get(0));
+    }
+
+    @Test
+    public void clearCancelsWaitingActions() {
+        BeatScheduler beats = beats(TempoMap.create(3000, 4, 4, EPOCH));
+        List<Double> ran = new ArrayList<>();
+        BeatScheduler.Handle bar = beats.doOnNext(() -> ran.add(4.0), TempoMap.Unit.BAR);
+        BeatScheduler.Handle phrase = beats.doOnNext(() -> ran.add(16.0), TempoMap.Unit.PHRASE);
+        assertEquals(2, beats.getPendingCount());
+        beats.clear();
+        assertEquals(0, beats.getPendingCount());
+        assertFalse(bar.cancel());
+        assertFalse(phrase.cancel());
+        //actions scheduled after the clear still run
+        beats.doAtBeat(() -> ran.add(8.0), 8);
+        advanceTo(beats.timeOf(20));
+        assertEquals(Collections.singletonList(8.0), ran);
+        assertFalse(phrase.isDone());
+    }
+}
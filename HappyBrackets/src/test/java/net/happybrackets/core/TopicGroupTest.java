@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TopicGroupTest {
+
+    @Test
+    public void topicsHashIntoThePool() throws Exception {
+        Set<InetAddress> groups = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            InetAddress group = BroadcastManager.topicGroup("topic" + i, "::FFFF:225.2.2.5", "::FFFF:225.2.3.0", 8);
+            assertTrue(group.isMulticastAddress());
+            byte[] bytes = group.getAddress();
+            assertEquals(225, bytes[0] & 0xFF);
+            assertEquals(2, bytes[1] & 0xFF);
+            assertEquals(3, bytes[2] & 0xFF);
+            assertTrue((bytes[3] & 0xFF) < 8);
+            groups.add(group);
+        }
+        assertEquals(8, groups.size());
+    }
+
+    @Test
+    public void sameTopicSameGroup() throws Exception {
+        assertEquals(
+                BroadcastManager.topicGroup("drums", "::FFFF:225.2.2.5", "::FFFF:225.2.3.0", 8),
+                BroadcastManager.topicGroup("drums", "::FFFF:225.2.2.5", "::FFFF:225.2.3.0", 8)
+        );
+    }
+
+    @Test
+    public void emptyPoolUsesMainGroup() throws Exception {
+        assertEquals(
+                InetAddress.getByName("::FFFF:225.2.2.5"),
+                BroadcastManager.topicGroup("drums", "::FFFF:225.2.2.5", "::FFFF:225.2.3.0", 0)
+        );
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TrickleTimerTest {
+
+    private List<Long> run(TrickleTimer timer, long from, long to) {
+        List<Long> sends = new ArrayList<>();
+        for (long t = from; t < to; t++) {
+            if (timer.poll(t)) {
+                sends.add(t);
+            }
+        }
+        return sends;
+    }
+
+    @Test
+    public void intervalDoublesUpToTheMaximum() {
+        TrickleTimer timer = new TrickleTimer(100, 800, 0, new Random(1));
+        timer.start(0);
+        //intervals of 100, 200, 400, 800, 800... each with one send in its second half
+        List<Long> sends = run(timer, 0, 3100);
+        assertEquals(6, sends.size());
+        assertTrue(sends.get(0) >= 50 && sends.get(0) < 100);
+        assertTrue(sends.get(1) >= 200 && sends.get(1) < 300);
+        assertTrue(sends.get(3) >= 1100 && sends.get(3) < 1500);
+        assertEquals(800, timer.getInterval());
+    }
+
+    @Test
+    public void resetShortensTheInterval() {
+        TrickleTimer timer = new TrickleTimer(100, 800, 0, new Random(1));
+        timer.start(0);
+        run(timer, 0, 5000);
+        timer.reset(5000);
+        assertEquals(100, timer.getInterval());
+        List<Long> sends = run(timer, 5000, 5100);
+        assertEquals(1, sends.size());
+        assertTrue(sends.get(0) >= 5050);
+        //a reset at the minimum interval does not delay the send
+        timer.reset(5100);
+        assertTrue(timer.getNextEventTime() < 5300);
+    }
+
+    @Test
+    public void consistentMessagesSuppressSends() {
+        TrickleTimer timer = new TrickleTimer(100, 800, 2, new Random(1));
+        timer.start(0);
+        timer.hearConsistent();
+        assertEquals(1, run(timer, 0, 100).size());
+        //move into the next interval before hearing from the others
+        assertFalse(timer.poll(100));
+        timer.hearConsistent();
+        timer.hearConsistent();
+        assertEquals(0, run(timer, 101, 300).size());
+        //the count starts again each interval
+        assertEquals(1, run(timer, 300, 700).size());
+    }
+
+    @Test
+    public void inconsistentMessageForcesASend() {
+        TrickleTimer timer = new TrickleTimer(100, 800, 1, new Random(1));
+        timer.start(0);
+        timer.hearConsistent();
+        timer.hearInconsistent(10);
+        timer.hearConsistent();
+        assertEquals(1, run(timer, 10, 100).size());
+        //suppression applies again from the next interval
+        assertFalse(timer.poll(100));
+        timer.hearConsistent();
+        assertEquals(0, run(timer, 101, 300).size());
+    }
+
+    @Test
+    public void catchesUpAfterALongGap() {
+        TrickleTimer timer = new TrickleTimer(100, 800, 0, new Random(1));
+        timer.start(0);
+        assertTrue(timer.poll(10000));
+        assertEquals(800, timer.getInterval());
+        assertTrue(timer.getNextEventTime() > 10000);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.BroadcastManager;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the delivery latency of a broadcast sent over multicast with one relayed through the controller, on a
+ * simulated loaded Wi-Fi link.
+ *
+ * The link is a single shared medium. Background unicast traffic keeps it busy to the given utilisation. In multicast
+ * mode a broadcast goes up to the access point at the unicast rate and is then sent once by the access point at the
+ * basic rate. In relay mode it goes up to the access point and on to a wired controller, which sends one unicast frame
+ * per device. Packet sizes are the real encoded sizes of a typical HB.broadcast message in each mode.
+ *
+ * Access points that have any station in power save hold multicast frames until the next DTIM beacon, so multicast is
+ * also simulated with DTIM buffering.
+ */
+public class BroadcastRelayLatencyTest {
+
+	static final double BASIC_RATE_BPS = 1e6;		// lowest basic rate, which many access points use for multicast
+	static final double UNICAST_RATE_BPS = 24e6;
+	static final double BASIC_OVERHEAD_S = 192e-6 + 50e-6;		// long preamble + DIFS
+	static final double UNICAST_OVERHEAD_S = 20e-6 + 50e-6 + 44e-6;	// preamble + DIFS + ACK
+	static final int BACKGROUND_FRAME_BYTES = 1500;
+	static final double BROADCASTS_PER_SECOND = 20;
+	static final double SIMULATED_SECONDS = 60;
+	static final double DTIM_INTERVAL_S = 0.1024;		// beacon interval of 100 TU with a DTIM period of 1
+
+	public static void main(String[] args) throws Exception {
+		OSCMessage userMsg = new OSCMessage("/pattern/step", new Object[] {3, 0.5f, "kick"});
+		int multicastBytes = userMsg.getSize() + 28;
+		int relayBytes = new OSCMessage(BroadcastManager.RELAY_MESSAGE_NAME, new Object[] {"/pattern/step", 3, 0.5f, "kick"}).getSize() + 28;
+		System.out.println("Multicast packet " + multicastBytes + " bytes, relay packet " + relayBytes + " bytes (including IP/UDP headers)");
+		System.out.println();
+		System.out.println(String.format("%8s %6s | %10s %10s | %10s %10s | %10s %10s %10s | %8s %8s", "devices", "load",
+				"mc mean", "mc p99", "dtim mean", "dtim p99", "relay mean", "relay p99", "relay last", "mc air%", "rly air%"));
+		for (int devices : new int[] {10, 40, 100}) {
+			for (double load : new double[] {0.2, 0.5, 0.7}) {
+				Result multicast = simulate(false, false, devices, load, multicastBytes, relayBytes, new Random(1));
+				Result dtim = simulate(false, true, devices, load, multicastBytes, relayBytes, new Random(1));
+				Result relay = simulate(true, false, devices, load, multicastBytes, relayBytes, new Random(1));
+				System.out.println(String.format("%8d %6.1f | %8.2fms %8.2fms | %8.2fms %8.2fms | %8.2fms %8.2fms %8.2fms | %7.2f%% %7.2f%%",
+						devices, load,
+						multicast.mean * 1000, multicast.p99 * 1000,
+						dtim.mean * 1000, dtim.p99 * 1000,
+						relay.mean * 1000, relay.p99 * 1000, relay.lastMean * 1000,
+						multicast.airtimeShare * 100, relay.airtimeShare * 100));
+			}
+		}
+	}
+
+	static class Result {
+		double mean, p99, lastMean, airtimeShare;
+	}
+
+	static double airtime(int bytes, boolean basicRate) {
+		return basicRate ? BASIC_OVERHEAD_S + bytes * 8 / BASIC_RATE_BPS : UNICAST_OVERHEAD_S + bytes * 8 / UNICAST_RATE_BPS;
+	}
+
+	/**
+	 * Run the medium as a FIFO queue of frames. Background frames arrive as a Poisson process, as do broadcasts.
+	 */
+	static Result simulate(boolean relay, boolean dtimBuffering, int devices, double load, int multicastBytes, int relayBytes, Random rng) {
+		double backgroundFrameTime = airtime(BACKGROUND_FRAME_BYTES, false);
+		double backgroundRate = load / backgroundFrameTime;
+		double busyUntil = 0;
+		double nextBackground = exp(rng, backgroundRate);
+		double nextBroadcast = exp(rng, BROADCASTS_PER_SECOND);
+		double broadcastAirtime = 0;
+		int capacity = (int) (SIMULATED_SECONDS * BROADCASTS_PER_SECOND * 2) * devices;
+		double[] latencies = new double[capacity];
+		int latencyCount = 0;
+		double lastSum = 0;
+		int broadcasts = 0;
+		while (nextBroadcast < SIMULATED_SECONDS) {
+			if (nextBackground < nextBroadcast) {
+				busyUntil = Math.max(busyUntil, nextBackground) + backgroundFrameTime;
+				nextBackground += exp(rng, backgroundRate);
+				continue;
+			}
+			double sent = nextBroadcast;
+			// uplink from the sending device to the access point
+			double up = airtime(relay ? relayBytes : multicastBytes, false);
+			busyUntil = Math.max(busyUntil, sent) + up;
+			broadcastAirtime += up;
+			if (relay) {
+				// the controller is wired, so it answers straight away with one unicast frame per device
+				double frame = airtime(relayBytes, false);
+				for (int i = 0; i < devices; i++) {
+					busyUntil += frame;
+					broadcastAirtime += frame;
+					if (latencyCount < capacity) latencies[latencyCount++] = busyUntil - sent;
+				}
+			} else {
+				double frame = airtime(multicastBytes, true);
+				busyUntil += frame;
+				broadcastAirtime += frame;
+				double delivered = busyUntil;
+				if (dtimBuffering) {
+					// the frame waits in the access point for the next beacon, the medium carries on meanwhile
+					delivered = Math.ceil((busyUntil - frame) / DTIM_INTERVAL_S) * DTIM_INTERVAL_S + frame;
+				}
+				for (int i = 0; i < devices && latencyCount < capacity; i++) {
+					latencies[latencyCount++] = delivered - sent;
+				}
+				lastSum += delivered - sent;
+				broadcasts++;
+				nextBroadcast += exp(rng, BROADCASTS_PER_SECOND);
+				continue;
+			}
+			lastSum += busyUntil - sent;
+			broadcasts++;
+			nextBroadcast += exp(rng, BROADCASTS_PER_SECOND);
+		}
+		double[] sorted = Arrays.copyOf(latencies, latencyCount);
+		Arrays.sort(sorted);
+		Result result = new Result();
+		result.mean = Arrays.stream(sorted).average().orElse(0);
+		result.p99 = sorted.length == 0 ? 0 : sorted[(int) (sorted.length * 0.99)];
+		result.lastMean = broadcasts == 0 ? 0 : lastSum / broadcasts;
+		result.airtimeShare = broadcastAirtime / SIMULATED_SECONDS;
+		return result;
+	}
+
+	static double exp(Random rng, double rate) {
+		return -Math.log(1 - rng.nextDouble()) / rate;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.ControlCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the size and decode time of the built-in control messages sent as OSC and in the compact binary form of
+ * {@link ControlCodec}.
+ */
+public class ControlCodecBenchmark {
+
+	static final int ITERATIONS = 2000000;
+
+	public static void main(String[] args) throws Exception {
+		long timeToSync = System.currentTimeMillis() + 5000;
+		Object[][] messages = {
+				{"/device/set_id", new Object[] {12}},
+				{"/device/get_logs", new Object[] {1}},
+				{"/device/sync", new Object[] {"" + timeToSync}},
+				{"/device/gain", new Object[] {0.5f, 100f}},
+				{"/device/fadeout_reset", new Object[] {2000f}},
+				{"/device/bleep", new Object[0]},
+		};
+		ControlCodec codec = new ControlCodec();
+		System.out.println(String.format("%-28s %8s %8s | %10s %10s", "message", "osc B", "binary B", "osc ns", "binary ns"));
+		for (Object[] m : messages) {
+			String name = (String) m[0];
+			Object[] msgArgs = (Object[]) m[1];
+			OSCMessage osc = new OSCMessage(name, msgArgs);
+			//the binary form carries the sync time as a long rather than a string
+			Object[] binaryArgs = name.equals("/device/sync") ? new Object[] {timeToSync} : msgArgs;
+			ControlCodec.CompactMessage compact = new ControlCodec.CompactMessage(name, binaryArgs);
+
+			ByteBuffer oscBuffer = ByteBuffer.allocate(1024);
+			codec.encode(osc, oscBuffer);
+			oscBuffer.flip();
+			ByteBuffer binaryBuffer = ByteBuffer.allocate(1024);
+			codec.encode(compact, binaryBuffer);
+			binaryBuffer.flip();
+
+			double oscNs = decodeTime(codec, oscBuffer);
+			double binaryNs = decodeTime(codec, binaryBuffer);
+			System.out.println(String.format("%-28s %8d %8d | %10.1f %10.1f", name, oscBuffer.limit(), binaryBuffer.limit(), oscNs, binaryNs));
+		}
+	}
+
+	static double decodeTime(ControlCodec codec, ByteBuffer packet) throws Exception {
+		int sink = 0;
+		//warm up
+		for (int i = 0; i < ITERATIONS / 10; i++) {
+			packet.rewind();
+			sink += ((OSCMessage) codec.decode(packet)).getArgCount();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			packet.rewind();
+			sink += ((OSCMessage) codec.decode(packet)).getArgCount();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (sink == 42) System.out.println();
+		return elapsed / (double) ITERATIONS;
+	}
+}
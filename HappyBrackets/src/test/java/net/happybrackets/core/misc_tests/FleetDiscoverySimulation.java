@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.BroadcastManager;
+import net.happybrackets.core.transport.InMemoryNetwork;
+import net.happybrackets.core.transport.InMemoryTransport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs a fleet of simulated devices and a controller on an {@link InMemoryNetwork} in virtual time, and measures how
+ * long the controller takes to hear from every device as the network gets worse. Devices send /device/alive messages
+ * over their {@link BroadcastManager} exactly as real devices do, starting at random times in the first second.
+ *
+ * The run is deterministic: the same seed always gives the same numbers, so the output can be compared between
+ * versions to catch regressions.
+ */
+public class FleetDiscoverySimulation {
+
+	static final long MS = 1000000;
+	static final int ALIVE_INTERVAL_MS = 1000;
+
+	public static void main(String[] args) {
+		System.out.println(String.format("%8s %8s %8s | %12s %12s %10s", "devices", "loss", "delay", "all seen", "packets", "dropped"));
+		for (int devices : new int[] {10, 100}) {
+			for (double loss : new double[] {0, 0.1, 0.3}) {
+				for (double delay : new double[] {1, 20}) {
+					run(devices, loss, delay);
+				}
+			}
+		}
+	}
+
+	static void run(int deviceCount, double loss, double delayMs) {
+		InMemoryNetwork network = new InMemoryNetwork(42).setDelay(delayMs, delayMs / 2).setLoss(loss).setBandwidth(2000000);
+		BroadcastManager controller = new BroadcastManager("225.2.2.5", 2222, "225.2.3.0", 8, new InMemoryTransport(network, "controller"));
+		controller.refreshBroadcaster();
+		Map<String, Long> firstSeen = new HashMap<>();
+		controller.addBroadcastListener((msg, src, time) -> {
+			if (msg.getName().equals("/device/alive") && !firstSeen.containsKey(msg.getArg(0))) {
+				firstSeen.put((String) msg.getArg(0), network.now());
+			}
+		});
+		List<BroadcastManager> devices = new ArrayList<>();
+		List<Long> nextAlive = new ArrayList<>();
+		Random starts = new Random(7);
+		for (int i = 0; i < deviceCount; i++) {
+			BroadcastManager device = new BroadcastManager("225.2.2.5", 2222, "225.2.3.0", 8, new InMemoryTransport(network, "hb-" + i));
+			device.refreshBroadcaster();
+			devices.add(device);
+			nextAlive.add((long) (starts.nextDouble() * 1000 * MS));
+		}
+		long allSeen = -1;
+		for (long t = 0; t < 60000 * MS && allSeen < 0; t += MS) {
+			for (int i = 0; i < deviceCount; i++) {
+				if (nextAlive.get(i) <= t) {
+					BroadcastManager device = devices.get(i);
+					String name = device.getTransport().getDeviceName();
+					int id = i;
+					device.forAllTransmitters((ni, transmitter) -> transmitter.send(new OSCMessage("/device/alive", new Object[] {
+							name, device.getTransport().selectHostname(ni), device.getTransport().selectIP(ni), 0, "ok", id, 2226
+					})));
+					nextAlive.set(i, t + ALIVE_INTERVAL_MS * MS);
+				}
+			}
+			network.runUntil(t + MS);
+			if (firstSeen.size() == deviceCount) {
+				allSeen = firstSeen.values().stream().mapToLong(Long::longValue).max().getAsLong();
+			}
+		}
+		System.out.println(String.format("%8d %7.0f%% %6.0fms | %10.0fms %12d %10d", deviceCount, loss * 100, delayMs,
+				allSeen / (double) MS, network.getPacketsSent(), network.getPacketsDropped()));
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import net.happybrackets.core.ClockEstimator;
+import net.happybrackets.core.LeaderElection;
+import net.happybrackets.core.SlewingCorrection;
+import net.happybrackets.core.Synchronizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Forces leader changes on a simulated fleet and measures the biggest step any device's synchronized time takes, and
+ * how far apart the devices are afterwards. The devices have clocks with random offsets and drift, and exchange synch
+ * pulses over a network with random queuing delays, in virtual time.
+ *
+ * The old policy follows the device with the highest MAC address and steps to the last measured offset. The new
+ * policy uses {@link LeaderElection} and {@link SlewingCorrection} the same way {@link Synchronizer} does.
+ *
+ * The forced changes are: the leader disappearing, a device with a higher MAC address and a clock 3 seconds out
+ * joining, and a device with a higher leader priority joining.
+ */
+public class LeaderHandoverSimulation {
+
+	static final long LEADER_LOST = 120000;
+	static final long HIGH_MAC_JOINS = 240000;
+	static final long PRIORITY_JOINS = 360000;
+	static final long END = 480000;
+
+	static final String[] PHASES = {"leader lost", "high MAC joins", "priority joins"};
+
+	static class Node {
+		final String id;
+		final double offset;
+		final double drift;
+		final boolean newPolicy;
+		final LeaderElection election;
+		final SlewingCorrection correction = new SlewingCorrection();
+		final Map<String, ClockEstimator> estimators = new HashMap<>();
+		double naiveCorrection = 0;
+		String naiveLeader;
+		long naiveLastSample[];
+		boolean alive = true;
+		boolean everSynced = false;
+		long nextPulse;
+
+		Node(String id, int priority, double offset, double drift, boolean newPolicy, long start) {
+			this.id = id;
+			this.offset = offset;
+			this.drift = drift;
+			this.newPolicy = newPolicy;
+			election = new LeaderElection(id, priority, Synchronizer.LEADER_TIMEOUT, Synchronizer.LEADER_HOLDOFF);
+			nextPulse = start;
+		}
+
+		long raw(long t) {
+			return (long) (offset + t * (1 + drift));
+		}
+
+		double corrected(long t) {
+			long raw = raw(t);
+			return raw + (newPolicy ? correction.at(raw) : naiveCorrection);
+		}
+
+		String leader() {
+			return newPolicy ? election.getLeader() : naiveLeader;
+		}
+	}
+
+	public static void main(String[] args) {
+		System.out.println(String.format("%-8s %-16s | %14s %14s", "policy", "phase", "max step ms", "spread ms"));
+		for (boolean newPolicy : new boolean[] {false, true}) {
+			run(newPolicy);
+		}
+	}
+
+	static void run(boolean newPolicy) {
+		Random random = new Random(5);
+		List<Node> nodes = new ArrayList<>();
+		for (int i = 1; i <= 8; i++) {
+			nodes.add(new Node(String.format("hb-%02d", i), 0, random.nextDouble() * 1000 - 500, (random.nextDouble() - 0.5) * 1e-4, newPolicy, random.nextInt(1000)));
+		}
+		double[] maxStep = new double[PHASES.length];
+		double[] spread = new double[PHASES.length];
+		Map<Node, Double> before = new HashMap<>();
+		for (long t = 0; t < END; t += 10) {
+			int phase = t >= PRIORITY_JOINS ? 2 : t >= HIGH_MAC_JOINS ? 1 : t >= LEADER_LOST ? 0 : -1;
+			if (t == LEADER_LOST) {
+				for (Node node : nodes) {
+					if (node.id.equals(node.leader())) {
+						node.alive = false;
+					}
+				}
+			}
+			if (t == HIGH_MAC_JOINS) {
+				nodes.add(new Node("hb-99", 0, 3000, 3e-5, newPolicy, t + 300));
+			}
+			if (t == PRIORITY_JOINS) {
+				nodes.add(new Node("hb-00", 1, -2000, -2e-5, newPolicy, t + 600));
+			}
+			for (Node node : nodes) {
+				if (!node.alive || node.nextPulse > t) {
+					continue;
+				}
+				node.nextPulse = t + 1000 + random.nextInt(200);
+				//every other device responds, and every device hears every response
+				for (Node other : nodes) {
+					if (other == node || !other.alive) {
+						continue;
+					}
+					long out = 2 + (random.nextDouble() < 0.5 ? random.nextInt(40) : 0);
+					long in = 2 + (random.nextDouble() < 0.5 ? random.nextInt(40) : 0);
+					long remote = Math.round(other.corrected(t + out));
+					ClockEstimator estimator = node.estimators.computeIfAbsent(other.id, k -> new ClockEstimator(ClockEstimator.DEFAULT_CAPACITY, Synchronizer.JUMP_THRESHOLD));
+					estimator.addSample(node.raw(t), node.raw(t + out + in), remote);
+					node.naiveLastSample = other.id.equals(node.naiveLeader) ? new long[] {node.raw(t), node.raw(t + out + in), remote} : node.naiveLastSample;
+					node.election.heard(other.id, other.election.getMyPriority(), other.leader(), node.raw(t));
+					other.election.heard(node.id, node.election.getMyPriority(), node.leader(), other.raw(t));
+				}
+				before.clear();
+				before.put(node, node.corrected(t + 550));
+				update(node, nodes, t + 550);
+				double step = node.corrected(t + 550) - before.get(node);
+				if (phase >= 0 && node.everSynced) {
+					maxStep[phase] = Math.max(maxStep[phase], Math.abs(step));
+				}
+				if (step != 0 || node.id.equals(node.leader())) {
+					node.everSynced = true;
+				}
+			}
+			//the spread at the end of each phase, once things have settled
+			if (phase >= 0 && (t + 10 == HIGH_MAC_JOINS || t + 10 == PRIORITY_JOINS || t + 10 == END)) {
+				double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+				for (Node node : nodes) {
+					if (node.alive) {
+						min = Math.min(min, node.corrected(t));
+						max = Math.max(max, node.corrected(t));
+					}
+				}
+				spread[phase] = max - min;
+			}
+		}
+		for (int i = 0; i < PHASES.length; i++) {
+			System.out.println(String.format("%-8s %-16s | %14.1f %14.1f", newPolicy ? "new" : "old", PHASES[i], maxStep[i], spread[i]));
+		}
+	}
+
+	static void update(Node node, List<Node> nodes, long t) {
+		long raw = node.raw(t);
+		if (node.newPolicy) {
+			String leader = node.election.update(raw, node.correction.isSynced());
+			ClockEstimator estimator = node.election.isLeader() ? null : node.estimators.get(leader);
+			if (estimator == null || !estimator.update()) {
+				node.correction.hold(raw);
+			} else {
+				node.correction.follow(raw, estimator.getOffset(raw), estimator.getDrift());
+			}
+			return;
+		}
+		//the old policy: the highest MAC address leads, and followers step to the last round trip from it
+		String leader = node.id;
+		for (Node other : nodes) {
+			if (other.alive && other.id.compareTo(leader) > 0) {
+				leader = other.id;
+			}
+		}
+		if (!leader.equals(node.naiveLeader)) {
+			node.naiveLeader = leader;
+			node.naiveLastSample = null;
+		}
+		if (!leader.equals(node.id) && node.naiveLastSample != null) {
+			long[] sample = node.naiveLastSample;
+			node.naiveCorrection = sample[2] - (sample[0] + sample[1]) / 2.0;
+		}
+	}
+}
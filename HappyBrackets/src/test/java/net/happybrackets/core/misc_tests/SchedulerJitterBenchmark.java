@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import net.happybrackets.core.EventScheduler;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how late events fire with 1000 events pending: the {@link EventScheduler} with and without its final
+ * spin, against the old approach of a thread per event calling {@link Thread#sleep(long)}.
+ */
+public class SchedulerJitterBenchmark {
+
+	static final int EVENTS = 1000;
+	static final long MS = 1000000;
+
+	public static void main(String[] args) throws InterruptedException {
+		System.out.println(String.format("%-24s %10s %10s %10s %10s", "scheduler", "mean us", "p50 us", "p99 us", "max us"));
+		for (int run = 0; run < 2; run++) {
+			report("thread per event", threadPerEvent());
+			report("EventScheduler, no spin", scheduler(0));
+			report("EventScheduler, 1ms spin", scheduler(EventScheduler.DEFAULT_SPIN_NANOS));
+		}
+	}
+
+	static long[] targets() {
+		//spread over 3 seconds starting 1 second from now, so all are pending before the first fires
+		Random random = new Random(1);
+		long start = System.nanoTime() + 1000 * MS;
+		long[] targets = new long[EVENTS];
+		for (int i = 0; i < EVENTS; i++) {
+			targets[i] = start + (long) (random.nextDouble() * 3000 * MS);
+		}
+		return targets;
+	}
+
+	static long[] threadPerEvent() throws InterruptedException {
+		long[] targets = targets();
+		long[] late = new long[EVENTS];
+		CountDownLatch latch = new CountDownLatch(EVENTS);
+		for (int i = 0; i < EVENTS; i++) {
+			int id = i;
+			long target = targets[i];
+			new Thread() {
+				public void run() {
+					try {
+						Thread.sleep((target - System.nanoTime()) / MS);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					late[id] = System.nanoTime() - target;
+					latch.countDown();
+				}
+			}.start();
+		}
+		latch.await();
+		return late;
+	}
+
+	static long[] scheduler(long spinNanos) throws InterruptedException {
+		EventScheduler scheduler = new EventScheduler(System::nanoTime, spinNanos);
+		long[] targets = targets();
+		long[] late = new long[EVENTS];
+		CountDownLatch latch = new CountDownLatch(EVENTS);
+		for (int i = 0; i < EVENTS; i++) {
+			int id = i;
+			scheduler.schedule(() -> {
+				late[id] = System.nanoTime() - targets[id];
+				latch.countDown();
+			}, targets[i]);
+		}
+		latch.await();
+		scheduler.shutdown();
+		return late;
+	}
+
+	static void report(String name, long[] late) {
+		Arrays.sort(late);
+		double mean = 0;
+		for (long l : late) {
+			mean += l;
+		}
+		mean /= late.length;
+		System.out.println(String.format("%-24s %10.1f %10.1f %10.1f %10.1f", name, mean / 1000, late[late.length / 2] / 1000.0,
+				late[late.length * 99 / 100] / 1000.0, late[late.length - 1] / 1000.0));
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.controller.network.SensorRecorder;
+import net.happybrackets.core.ControlCodec;
+import net.happybrackets.device.sensors.SensorStream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what streaming 9-axis motion data from a fleet costs the controller: decoding each {@link SensorStream}
+ * message and adding it to a {@link SensorRecorder}, which is the work done on the controller's receive thread, and the
+ * traffic. For comparison it also shows the traffic of the same data sent the old way, as a message of values per
+ * sample, where each datagram costs the network and both ends far more than its bytes.
+ *
+ * Usage: SensorStreamBenchmark [devices] [frames per second] [seconds]
+ */
+public class SensorStreamBenchmark {
+
+	static final int CHANNELS = 9;
+
+	public static void main(String[] args) throws Exception {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+		ControlCodec codec = new ControlCodec();
+		//encode every device's stream up front, so only the controller's work is timed
+		List<ByteBuffer> streamed = new ArrayList<>();
+		List<ByteBuffer> perSample = new ArrayList<>();
+		long[] now = {1500000000000000L};
+		List<SensorStream> streams = new ArrayList<>();
+		for (int d = 0; d < devices; d++) {
+			streams.add(new SensorStream("hb-" + d, "imu", CHANNELS, SensorStream.DEFAULT_FRAMES_PER_MESSAGE, SensorStream.DEFAULT_MAX_DELAY,
+					() -> now[0], msg -> streamed.add(encode(codec, msg))));
+		}
+		double[] values = new double[CHANNELS];
+		Object[] boxed = new Object[CHANNELS];
+		for (int frame = 0; frame < rate * seconds; frame++) {
+			for (int d = 0; d < devices; d++) {
+				for (int c = 0; c < CHANNELS; c++) {
+					values[c] = Math.sin(frame * 0.01 + d + c);
+					boxed[c] = (float) values[c];
+				}
+				streams.get(d).addFrame(values);
+				if (frame < rate) {
+					perSample.add(encode(codec, new OSCMessage("/imu", boxed)));
+				}
+			}
+			now[0] += 1000000 / rate;
+		}
+		long bytes = 0;
+		for (ByteBuffer b : streamed) {
+			bytes += b.limit();
+		}
+		//time the controller's side, twice so the second run is warmed up
+		double streamedMs = 0;
+		for (int run = 0; run < 2; run++) {
+			SensorRecorder recorder = new SensorRecorder();
+			long start = System.nanoTime();
+			for (ByteBuffer b : streamed) {
+				b.rewind();
+				recorder.record((OSCMessage) codec.decode(b));
+			}
+			streamedMs = (System.nanoTime() - start) / 1e6;
+		}
+		long perSampleBytes = 0;
+		for (ByteBuffer b : perSample) {
+			perSampleBytes += b.limit();
+		}
+		System.out.println(String.format("%d devices x %d Hz x %d axes for %d s", devices, rate, CHANNELS, seconds));
+		System.out.println(String.format("%-22s %12s %12s %16s", "", "messages/s", "bytes/s", "controller CPU %"));
+		System.out.println(String.format("%-22s %12.0f %12.0f %16.2f", "streamed frames", streamed.size() / (double) seconds, bytes / (double) seconds, 100 * streamedMs / 1000 / seconds));
+		//the per-sample messages were only encoded for the first second
+		System.out.println(String.format("%-22s %12d %12d %16s", "message per sample", perSample.size(), perSampleBytes, "-"));
+	}
+
+	static ByteBuffer encode(ControlCodec codec, OSCMessage msg) {
+		try {
+			ByteBuffer b = ByteBuffer.allocate(codec.getSize(msg));
+			codec.encode(msg, b);
+			b.flip();
+			return b;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import net.happybrackets.core.ClockEstimator;
+import net.happybrackets.core.SlewingCorrection;
+import net.happybrackets.core.Synchronizer;
+import net.happybrackets.core.TrickleTimer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the synch traffic and accuracy of every device answering every pulse by multicast, as the Synchronizer used
+ * to, with only the leader answering by unicast and pulses paced by a {@link TrickleTimer}, as it does now. Runs in
+ * virtual time with us clocks that have random offsets and drift, over a network with random queuing delays.
+ *
+ * Packets are the packets sent per second, and receptions the packets every device has to process per second, as
+ * multicast packets reach every device. The error is how far the followers' synchronized time is from the leader's
+ * over the last minute.
+ */
+public class SynchTrafficSimulation {
+
+	static final long STEP = 10000;
+	static final long END = 300000000;
+	static final long MEASURE_FROM = END - 60000000;
+
+	static class Node {
+		final double offset;
+		final double drift;
+		final ClockEstimator estimator = new ClockEstimator(ClockEstimator.DEFAULT_CAPACITY, Synchronizer.JUMP_THRESHOLD * 1000);
+		final SlewingCorrection correction = new SlewingCorrection(1000);
+		final TrickleTimer timer;
+		long nextPulse;
+
+		Node(Random random, long start) {
+			offset = random.nextDouble() * 1000000 - 500000;
+			drift = (random.nextDouble() - 0.5) * 1e-4;
+			timer = new TrickleTimer(Synchronizer.MIN_PULSE_INTERVAL * 1000, Synchronizer.MAX_PULSE_INTERVAL * 1000, 0, random);
+			timer.start(start);
+			nextPulse = start;
+		}
+
+		long raw(long t) {
+			return (long) (offset + t * (1 + drift));
+		}
+
+		double corrected(long t) {
+			long raw = raw(t);
+			return raw + correction.at(raw);
+		}
+	}
+
+	public static void main(String[] args) {
+		System.out.println(String.format("%-8s %6s | %12s %12s %14s %14s", "mode", "nodes", "packets/s", "receptions/s", "mean error us", "max error us"));
+		for (int n : new int[] {10, 50, 100}) {
+			run(n, false);
+			run(n, true);
+		}
+	}
+
+	static void run(int n, boolean leaderOnly) {
+		Random random = new Random(11);
+		List<Node> nodes = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			nodes.add(new Node(random, random.nextInt(1000000)));
+		}
+		Node leader = nodes.get(0);
+		long packets = 0, receptions = 0;
+		double errorSum = 0, errorMax = 0;
+		long errorCount = 0;
+		for (long t = 0; t < END; t += STEP) {
+			for (Node node : nodes) {
+				boolean pulse;
+				if (leaderOnly) {
+					pulse = node.timer.poll(t);
+				} else {
+					pulse = t >= node.nextPulse;
+					if (pulse) {
+						node.nextPulse = t + 1000000 + random.nextInt(200000);
+					}
+				}
+				if (!pulse) {
+					continue;
+				}
+				//update from the responses to the last pulse, then pulse again, as the Synchronizer does
+				long raw = node.raw(t);
+				if (node != leader && node.estimator.update()) {
+					node.correction.follow(raw, node.estimator.getOffset(raw), node.estimator.getDrift());
+				}
+				if (leaderOnly && node != leader && Synchronizer.needsSamples(node.estimator, node.correction.getError())) {
+					node.timer.reset(t);
+				}
+				packets++;
+				receptions += n - 1;
+				int responders = leaderOnly ? (node == leader ? 0 : 1) : n - 1;
+				packets += responders;
+				receptions += leaderOnly ? responders : responders * (long) (n - 1);
+				if (node != leader) {
+					long out = delay(random);
+					long in = delay(random);
+					long remote = Math.round(leader.corrected(t + out));
+					node.estimator.addSample(raw, node.raw(t + out + in), remote);
+				}
+			}
+			if (t >= MEASURE_FROM && t % 1000000 == 0) {
+				double reference = leader.corrected(t);
+				for (Node node : nodes) {
+					if (node != leader) {
+						double error = Math.abs(node.corrected(t) - reference);
+						errorSum += error;
+						errorMax = Math.max(errorMax, error);
+						errorCount++;
+					}
+				}
+			}
+		}
+		double seconds = END / 1e6;
+		System.out.println(String.format("%-8s %6d | %12.0f %12.0f %14.0f %14.0f", leaderOnly ? "leader" : "mesh", n, packets / seconds, receptions / seconds, errorSum / errorCount, errorMax));
+	}
+
+	static long delay(Random random) {
+		return 2000 + (random.nextDouble() < 0.5 ? random.nextInt(40000) : 0);
+	}
+}
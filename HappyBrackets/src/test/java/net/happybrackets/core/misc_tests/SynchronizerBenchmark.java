@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import net.happybrackets.core.BroadcastManager;
+import net.happybrackets.core.Synchronizer;
+import net.happybrackets.core.transport.InMemoryNetwork;
+import net.happybrackets.core.transport.InMemoryTransport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs real {@link Synchronizer}s, one per simulated device, on an {@link InMemoryNetwork} in virtual time. Each
+ * device's clock has a random offset of up to half a second and a random drift of up to 50 parts per million, and the
+ * network delays are drawn from a distribution for each scenario.
+ *
+ * For each run it prints how long the devices take to converge, meaning the spread of their synchronized clocks stays
+ * under {@link #CONVERGED_US} from then on, the biggest and mean spread over the last minute, and the synch traffic over
+ * the last minute. The run is deterministic, so the output can be compared between versions of the Synchronizer.
+ *
+ * Usage: SynchronizerBenchmark [device count...]
+ */
+public class SynchronizerBenchmark {
+
+	static final long MS = 1000000;
+	static final long END = 180000 * MS;
+	static final long MEASURE_FROM = END - 60000 * MS;
+	static final long SAMPLE_INTERVAL = 100 * MS;
+	static final long CONVERGED_US = 1000;
+	static final long EPOCH = 1500000000000L * MS;		//a wall clock time to start the device clocks from
+
+	static class Scenario {
+		final String name;
+		final InMemoryNetwork.DelayDistribution delay;
+		final double loss;
+
+		Scenario(String name, InMemoryNetwork.DelayDistribution delay, double loss) {
+			this.name = name;
+			this.delay = delay;
+			this.loss = loss;
+		}
+	}
+
+	static final Scenario[] SCENARIOS = {
+			//a switched network: small, even delays
+			new Scenario("wired", random -> 200000 + (long) (random.nextDouble() * 100000), 0),
+			//Wi-Fi: half the packets queue behind others for an exponentially distributed time
+			new Scenario("wifi", random -> 2 * MS + (random.nextBoolean() ? (long) (-Math.log(1 - random.nextDouble()) * 5 * MS) : 0), 0.01),
+			//a busy access point: every packet queues, with a heavy tail, and more are lost
+			new Scenario("congested", random -> 5 * MS + (long) (20 * MS / Math.pow(1 - random.nextDouble(), 0.5) - 20 * MS), 0.05),
+	};
+
+	public static void main(String[] args) {
+		int[] deviceCounts = args.length == 0 ? new int[] {5, 20, 50} : new int[args.length];
+		for (int i = 0; i < args.length; i++) {
+			deviceCounts[i] = Integer.parseInt(args[i]);
+		}
+		System.out.println(String.format("%-10s %7s | %12s %14s %14s %10s %10s", "network", "devices", "converged s", "max spread us", "mean spread us", "packets/s", "bytes/s"));
+		for (Scenario scenario : SCENARIOS) {
+			for (int devices : deviceCounts) {
+				run(scenario, devices);
+			}
+		}
+	}
+
+	static void run(Scenario scenario, int deviceCount) {
+		InMemoryNetwork network = new InMemoryNetwork(42).setDelay(scenario.delay).setLoss(scenario.loss);
+		Random random = new Random(7);
+		List<Synchronizer> devices = new ArrayList<>();
+		for (int i = 0; i < deviceCount; i++) {
+			long offset = (long) ((random.nextDouble() - 0.5) * 1000 * MS);
+			double drift = (random.nextDouble() - 0.5) * 1e-4;
+			BroadcastManager broadcast = new BroadcastManager("225.2.2.5", 2225, "225.2.3.0", 0, new InMemoryTransport(network, "hb-" + i));
+			broadcast.refreshBroadcaster();
+			devices.add(new Synchronizer(broadcast, () -> EPOCH + offset + (long) (network.now() * (1 + drift)), 0, new Random(random.nextLong())));
+		}
+		long lastDiverged = 0;
+		long maxSpread = 0;
+		double spreadSum = 0;
+		int spreadCount = 0;
+		long packetsBefore = 0, bytesBefore = 0;
+		for (long t = 0; t < END; t += MS) {
+			network.runUntil(t);
+			for (Synchronizer device : devices) {
+				device.poll();
+			}
+			if (t == MEASURE_FROM) {
+				packetsBefore = network.getPacketsSent();
+				bytesBefore = network.getBytesSent();
+			}
+			if (t % SAMPLE_INTERVAL == 0) {
+				long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+				for (Synchronizer device : devices) {
+					long time = device.correctedTimeMicros();
+					min = Math.min(min, time);
+					max = Math.max(max, time);
+				}
+				long spread = max - min;
+				if (spread >= CONVERGED_US) {
+					lastDiverged = t + SAMPLE_INTERVAL;
+				}
+				if (t >= MEASURE_FROM) {
+					maxSpread = Math.max(maxSpread, spread);
+					spreadSum += spread;
+					spreadCount++;
+				}
+			}
+		}
+		devices.forEach(Synchronizer::close);
+		double seconds = (END - MEASURE_FROM) / 1e9;
+		System.out.println(String.format("%-10s %7d | %12s %14d %14.0f %10.0f %10.0f", scenario.name, deviceCount,
+				lastDiverged >= END ? "never" : String.format("%.1f", lastDiverged / 1e9), maxSpread, spreadSum / spreadCount,
+				(network.getPacketsSent() - packetsBefore) / seconds, (network.getBytesSent() - bytesBefore) / seconds));
+	}
+}
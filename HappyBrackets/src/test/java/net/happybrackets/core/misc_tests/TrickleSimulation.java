@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.misc_tests;
+
+import net.happybrackets.core.TrickleTimer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the number of /device/alive and /hb/controller messages sent with fixed intervals against
+ * {@link TrickleTimer}s, and how long each takes to notice a new device, a lost device and a new controller. The
+ * devices and the controller follow the same rules as {@link net.happybrackets.device.network.NetworkCommunication}
+ * and {@link net.happybrackets.core.ControllerAdvertiser}, in virtual time with 1 ms steps and independent loss on
+ * each delivery.
+ *
+ * The fixed interval rows are the old behaviour: an alive every 1000 ms and an advertisement every 500 ms, with a 5000
+ * ms timeout.
+ */
+public class TrickleSimulation {
+
+	static final int ALIVE_MIN = 1000;
+	static final int AD_MIN = 250;
+	static final int AD_MAX = 8000;
+
+	static final long JOIN_AT = 120000;
+	static final long LEAVE_AT = 240000;
+	static final long CONTROLLER_CHANGE_AT = 360000;
+	static final long END = 480000;
+
+	public static void main(String[] args) {
+		System.out.println(String.format("%8s %7s %6s %8s | %10s %10s %10s %10s", "devices", "mode", "loss", "maxIntvl", "msgs/min", "join ms", "lost ms", "ctrl ms"));
+		for (int devices : new int[] {20, 200}) {
+			for (double loss : new double[] {0, 0.2}) {
+				run(devices, loss, false, 1000);
+				for (int aliveMax : new int[] {4000, 8000, 16000}) {
+					run(devices, loss, true, aliveMax);
+				}
+			}
+		}
+	}
+
+	static void run(int deviceCount, double loss, boolean trickle, int aliveMax) {
+		Random random = new Random(42);
+		long timeout = trickle ? Math.max(ALIVE_MIN * 5, aliveMax * 3) : ALIVE_MIN * 5;
+		int total = deviceCount + 1;
+		TrickleTimer[] alive = new TrickleTimer[total];
+		//what each device knows: when it last heard each peer, and the controller it last heard
+		long[][] peerHeard = new long[total][total];
+		int[] controllerKnown = new int[total];
+		long[] controllerHeard = new long[total];
+		boolean[] running = new boolean[total];
+		TrickleTimer advertiser = trickle ? new TrickleTimer(AD_MIN, AD_MAX, 2, new Random(1)) : new TrickleTimer(500, 500, 0, new Random(1));
+		int controller = 1;
+		for (int i = 0; i < total; i++) {
+			alive[i] = trickle ? new TrickleTimer(ALIVE_MIN, aliveMax, 0, new Random(i)) : new TrickleTimer(ALIVE_MIN, ALIVE_MIN, 0, new Random(i));
+			Arrays.fill(peerHeard[i], -1);
+		}
+		//the controller's view of the devices
+		long[] controllerView = new long[total];
+		Arrays.fill(controllerView, -1);
+		advertiser.start(0);
+		for (int i = 0; i < deviceCount; i++) {
+			running[i] = true;
+			alive[i].start((long) (random.nextDouble() * 1000));
+		}
+		long steadyMessages = 0;
+		long joinSeen = -1, lostSeen = -1, controllerSeen = -1;
+		for (long t = 0; t < END; t++) {
+			if (t == JOIN_AT) {
+				running[deviceCount] = true;
+				alive[deviceCount].start(t);
+			}
+			if (t == LEAVE_AT) {
+				running[0] = false;
+			}
+			if (t == CONTROLLER_CHANGE_AT) {
+				controller = 2;
+				advertiser.start(t);
+			}
+			boolean countThis = t >= 60000 && t < JOIN_AT;
+			if (t >= advertiser.getNextEventTime() && advertiser.poll(t)) {
+				if (countThis) steadyMessages++;
+				for (int j = 0; j < total; j++) {
+					if (running[j] && random.nextDouble() >= loss) {
+						controllerHeard[j] = t;
+						if (controllerKnown[j] != controller) {
+							controllerKnown[j] = controller;
+							alive[j].reset(t);
+						}
+					}
+				}
+			}
+			for (int i = 0; i < total; i++) {
+				if (!running[i] || t < alive[i].getNextEventTime() || !alive[i].poll(t)) {
+					continue;
+				}
+				if (countThis) steadyMessages++;
+				for (int j = 0; j < total; j++) {
+					if (j != i && running[j] && random.nextDouble() >= loss) {
+						if (peerHeard[j][i] < 0 && trickle) {
+							alive[j].reset(t);
+						}
+						peerHeard[j][i] = t;
+					}
+				}
+				if (random.nextDouble() >= loss) {
+					if (controllerView[i] < 0 && i == deviceCount && joinSeen < 0) {
+						joinSeen = t - JOIN_AT;
+					}
+					controllerView[i] = t;
+					//a device that reports the current controller makes an advertisement redundant
+					if (controllerKnown[i] == controller) {
+						advertiser.hearConsistent();
+					} else {
+						advertiser.hearInconsistent(t);
+					}
+				}
+			}
+			//peers drop stale entries and tell everyone about it
+			if (trickle && t % 100 == 0) {
+				for (int j = 0; j < total; j++) {
+					if (!running[j]) continue;
+					for (int i = 0; i < total; i++) {
+						if (peerHeard[j][i] >= 0 && t - peerHeard[j][i] > timeout) {
+							peerHeard[j][i] = -1;
+							alive[j].reset(t);
+						}
+					}
+				}
+			}
+			if (lostSeen < 0 && t > LEAVE_AT && controllerView[0] >= 0 && t - controllerView[0] > timeout) {
+				lostSeen = t - LEAVE_AT;
+			}
+			if (controllerSeen < 0 && t > CONTROLLER_CHANGE_AT) {
+				boolean all = true;
+				for (int j = 0; j < total && all; j++) {
+					all = !running[j] || controllerKnown[j] == controller;
+				}
+				if (all) {
+					controllerSeen = t - CONTROLLER_CHANGE_AT;
+				}
+			}
+		}
+		System.out.println(String.format("%8d %7s %6.2f %8d | %10d %10d %10d %10d", deviceCount, trickle ? "trickle" : "fixed", loss, aliveMax, steadyMessages, joinSeen, lostSeen, controllerSeen));
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.core.transport;
+
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacketCodec;
+import de.sciss.net.OSCServer;
+import net.happybrackets.core.BroadcastManager;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InMemoryNetworkTest {
+
+    private static final long MS = 1000000;
+
+    private List<Long> sendAndRecord(long seed, int count) throws IOException {
+        InMemoryNetwork network = new InMemoryNetwork(seed).setDelay(5, 10).setLoss(0.2);
+        InMemoryTransport a = new InMemoryTransport(network, "a");
+        InMemoryTransport b = new InMemoryTransport(network, "b");
+        OSCServer sender = a.openServer(new OSCPacketCodec(), 0);
+        OSCServer receiver = b.openServer(new OSCPacketCodec(), 3000);
+        List<Long> arrivals = new ArrayList<>();
+        receiver.addOSCListener((msg, src, time) -> arrivals.add(network.now() * 1000 + (Integer) msg.getArg(0)));
+        receiver.start();
+        for (int i = 0; i < count; i++) {
+            sender.send(new OSCMessage("/test", new Object[] {i}), b.resolve("b.local", 3000));
+        }
+        network.runUntil(100 * MS);
+        return arrivals;
+    }
+
+    @Test
+    public void delaysAndDropsRepeatably() throws IOException {
+        List<Long> first = sendAndRecord(1, 200);
+        assertEquals(first, sendAndRecord(1, 200));
+        assertNotEquals(first, sendAndRecord(2, 200));
+        //roughly 20% loss, and every packet within the delay and jitter
+        assertTrue(first.size() > 140 && first.size() < 180);
+        for (long arrival : first) {
+            long time = arrival / 1000;
+            assertTrue(time >= 5 * MS && time <= 15 * MS);
+        }
+    }
+
+    @Test
+    public void multicastReachesEveryMemberAndRespectsBandwidth() throws IOException {
+        InMemoryNetwork network = new InMemoryNetwork(0).setBandwidth(100000);
+        List<String> received = new ArrayList<>();
+        List<Transport.MulticastEndpoint> endpoints = new ArrayList<>();
+        for (String name : new String[] {"a", "b", "c"}) {
+            InMemoryTransport node = new InMemoryTransport(network, name);
+            Transport.MulticastEndpoint endpoint = node.openMulticast(null, node.resolve("225.2.2.5", 0).getAddress(), 2222);
+            endpoint.addOSCListener((msg, src, time) -> received.add(name + msg.getArg(0)));
+            endpoint.startListening();
+            endpoints.add(endpoint);
+        }
+        OSCMessage msg = new OSCMessage("/test", new Object[] {1});
+        endpoints.get(0).getTransmitter().send(msg);
+        endpoints.get(0).getTransmitter().send(new OSCMessage("/test", new Object[] {2}));
+        //each 16 byte packet takes 160us at 100kB/s, so the second one is not through yet
+        network.runUntil(200000);
+        assertEquals(3, received.size());
+        network.runUntil(MS);
+        assertEquals(6, received.size());
+        assertTrue(received.contains("a1") && received.contains("b2") && received.contains("c2"));
+        //leaving a topic group stops delivery from it but not from the main group
+        InMemoryTransport d = new InMemoryTransport(network, "d");
+        endpoints.get(1).join(d.resolve("225.2.3.1", 0).getAddress());
+        endpoints.get(1).leave(d.resolve("225.2.3.1", 0).getAddress());
+        endpoints.get(1).leave(d.resolve("225.2.2.5", 0).getAddress());
+        endpoints.get(0).getTransmitter().send(msg);
+        network.runUntil(2 * MS);
+        assertEquals(9, received.size());
+    }
+
+    @Test
+    public void broadcastManagersTalkOverTheNetwork() throws InterruptedException {
+        InMemoryNetwork network = new InMemoryNetwork(0).setDelay(1, 1);
+        network.start();
+        try {
+            BroadcastManager a = new BroadcastManager("225.2.2.5", 2222, "225.2.3.0", 8, new InMemoryTransport(network, "a"));
+            BroadcastManager b = new BroadcastManager("225.2.2.5", 2222, "225.2.3.0", 8, new InMemoryTransport(network, "b"));
+            a.refreshBroadcaster();
+            b.refreshBroadcaster();
+            List<String> received = new ArrayList<>();
+            b.addBroadcastListener((msg, src, time) -> {
+                synchronized (received) {
+                    received.add(msg.getName());
+                }
+            });
+            b.addBroadcastListener("drums", (msg, src, time) -> {
+                synchronized (received) {
+                    received.add("drums" + msg.getName());
+                }
+            });
+            a.broadcast("/hello");
+            a.broadcastToTopic("drums", "/kick");
+            a.broadcastToTopic("bass", "/note");
+            Thread.sleep(100);
+            synchronized (received) {
+                assertEquals(2, received.size());
+                assertTrue(received.contains("/hello"));
+                assertTrue(received.contains("drums/kick"));
+            }
+        } finally {
+            network.stop();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.Bead;
+import net.beadsproject.beads.core.UGen;
+import net.beadsproject.beads.core.io.NonrealtimeIO;
+import net.beadsproject.beads.ugens.Static;
+import net.happybrackets.core.OutputLatency;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+public class AudioEventSchedulerTest {
+
+    private static final int BUFFER_SIZE = 512;
+
+    private AudioContext ac;
+    private float[] recorded;
+    private int recordedFrames;
+
+    /**
+     * Records the first channel of a UGen.
+     */
+    private class Recorder extends UGen {
+        Recorder(UGen source) {
+            super(ac, 1, 0);
+            addInput(source);
+        }
+
+        @Override
+        public void calculateBuffer() {
+            int n = Math.min(bufferSize, recorded.length - recordedFrames);
+            System.arraycopy(bufIn[0], 0, recorded, recordedFrames, n);
+            recordedFrames += n;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ac = new AudioContext(new NonrealtimeIO(), BUFFER_SIZE);
+        recorded = new float[(int) ac.msToSamples(20000)];
+        recordedFrames = 0;
+    }
+
+    private long frameTime(double frame) {
+        return (long) (frame / ac.getSampleRate() * 1e9);
+    }
+
+    private int firstSoundingFrame() {
+        for (int i = 0; i < recordedFrames; i++) {
+            if (recorded[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void startAt(AudioEventScheduler scheduler, double frame) {
+        SampleAccurateStart start = new SampleAccurateStart(ac, new Static(ac, 1));
+        ac.out.addDependent(new Recorder(start));
+        scheduler.schedule(start, frameTime(frame));
+    }
+
+    @Test
+    public void startsOnTheScheduledFrame() {
+        AudioEventScheduler scheduler = new AudioEventScheduler(ac, () -> frameTime(ac.getTimeStep() * BUFFER_SIZE));
+        startAt(scheduler, 10000.5);
+        ac.runForNMillisecondsNonRealTime(1000);
+        assertEquals(10000, firstSoundingFrame());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void smoothsOutAudioThreadJitter() {
+        Random random = new Random(1);
+        //the audio thread runs up to 3 ms late, and the sound card runs 100 ppm fast
+        LongSupplier clock = () -> (long) (frameTime(ac.getTimeStep() * BUFFER_SIZE) * 0.9999) + (long) (random.nextDouble() * 3e6);
+        AudioEventScheduler scheduler = new AudioEventScheduler(ac, clock);
+        double target = ac.getSampleRate() * 15;
+        startAt(scheduler, target);
+        ac.runForNMillisecondsNonRealTime(16000);
+        //the true frame for the event, given the fast sound card, and the average lateness of the audio thread
+        double expected = target / 0.9999 - ac.msToSamples(1.5);
+        int error = (int) Math.abs(firstSoundingFrame() - expected);
+        assertTrue("out by " + error + " frames", error < ac.msToSamples(0.5));
+    }
+
+    @Test
+    public void cancelledEventsDoNotTrigger() {
+        AudioEventScheduler scheduler = new AudioEventScheduler(ac, () -> frameTime(ac.getTimeStep() * BUFFER_SIZE));
+        int[] triggered = new int[1];
+        AudioEventScheduler.Handle handle = scheduler.schedule(new Bead() {
+            @Override
+            protected void messageReceived(Bead message) {
+                triggered[0]++;
+            }
+        }, frameTime(5000));
+        assertTrue(handle.cancel());
+        ac.runForNMillisecondsNonRealTime(500);
+        assertEquals(0, triggered[0]);
+        assertFalse(handle.isDone());
+    }
+
+    @Test
+    public void triggersEarlyByTheOutputLatency() {
+        AudioEventScheduler scheduler = new AudioEventScheduler(ac, () -> frameTime(ac.getTimeStep() * BUFFER_SIZE));
+        //a device with 2048 frames on the way to the speaker
+        LatencyCompensation latency = new LatencyCompensation(ac, scheduler, 2048);
+        assertEquals(Math.round(2048 / ac.getSampleRate() * 1e6), latency.getMicros());
+        startAt(scheduler, 10000.5);
+        ac.runForNMillisecondsNonRealTime(1000);
+        assertEquals(10000 - 2048, firstSoundingFrame(), 1);
+    }
+
+    @Test
+    public void measuresTheJitterOfTheAudioThread() {
+        //the audio thread runs in bursts of four buffers, as if the driver took them four at a time
+        AudioEventScheduler scheduler = new AudioEventScheduler(ac, () -> frameTime((ac.getTimeStep() / 4 * 4 + 3) * BUFFER_SIZE));
+        LatencyCompensation latency = new LatencyCompensation(ac, scheduler, BUFFER_SIZE);
+        latency.setExtraLatency(5);
+        ac.runForNMillisecondsNonRealTime(5000);
+        //the smoothed timeline runs through the middle of the bursts, so the first buffer of a burst is at least 1.5 buffers early
+        OutputLatency estimate = latency.getOutputLatency();
+        assertTrue("jitter " + estimate.jitter + "us", estimate.jitter >= frameTime(1.5 * BUFFER_SIZE) / 1000 && estimate.jitter <= frameTime(3 * BUFFER_SIZE) / 1000);
+        assertEquals(5000, estimate.extra);
+        assertEquals(estimate.buffered + estimate.jitter + estimate.extra, estimate.total, LatencyCompensation.CHANGE_THRESHOLD);
+        assertEquals(estimate.total * 1000, scheduler.getOutputLatency());
+        latency.setOverride(20);
+        assertEquals(20000, latency.getMicros());
+        latency.clearOverride();
+        estimate = latency.getOutputLatency();
+        assertEquals(estimate.buffered + estimate.jitter + estimate.extra, latency.getMicros());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device;
+
+import net.beadsproject.beads.core.AudioContext;
+import net.beadsproject.beads.core.Bead;
+import net.beadsproject.beads.core.io.NonrealtimeIO;
+import net.beadsproject.beads.ugens.Clock;
+import net.beadsproject.beads.ugens.Envelope;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+public class ClockDisciplineTest {
+
+    private static final int BUFFER_SIZE = 512;
+    private static final double TICK_MS = 500.0 / 16;
+
+    private AudioContext ac;
+    private Clock clock;
+    private Envelope interval;
+    private long frames;
+
+    @Before
+    public void setUp() {
+        ac = new AudioContext(new NonrealtimeIO(), BUFFER_SIZE);
+        interval = new Envelope(ac, 500);
+        clock = new Clock(ac, interval);
+        ac.out.addDependent(clock);
+        //count frames here, as the context's time step starts again on every run
+        frames = -BUFFER_SIZE;
+        ac.invokeBeforeEveryFrame(new Bead() {
+            @Override
+            protected void messageReceived(Bead message) {
+                frames += BUFFER_SIZE;
+            }
+        });
+    }
+
+    /**
+     * @param rate how fast synchronized time passes compared to the sound card.
+     * @return a synchronized clock, in ns.
+     */
+    private LongSupplier synchronizedClock(double rate) {
+        return () -> (long) (frames / ac.getSampleRate() * 1e9 * rate);
+    }
+
+    /**
+     * @param rate how fast synchronized time passes compared to the sound card.
+     * @return the synchronized time at the start of the next buffer, which is where a run leaves the clock, in ms.
+     */
+    private double nextBufferTime(double rate) {
+        return (frames + BUFFER_SIZE) / ac.getSampleRate() * 1e3 * rate;
+    }
+
+    @Test
+    public void keepsInPhaseWithASlowSoundCard() {
+        //the sound card runs 200 ppm slow, so on its own the clock would be 12 ms behind after a minute
+        LongSupplier time = synchronizedClock(1.0002);
+        ClockDiscipline discipline = new ClockDiscipline(ac, clock, interval, new AudioEventScheduler(ac, time));
+        discipline.anchor(0);
+        ac.runForNMillisecondsNonRealTime(60000);
+        double behind = nextBufferTime(1.0002) / TICK_MS - clock.getSubTickNow();
+        assertTrue("behind by " + behind * TICK_MS + " ms", Math.abs(behind * TICK_MS) < 0.5);
+        assertTrue(Math.abs(discipline.getPhaseError()) < 0.5);
+        //the interval is shrunk to make up for the slow sound card
+        assertEquals(-0.0002, discipline.getAdjustment(), 0.00005);
+    }
+
+    @Test
+    public void catchesUpWithALateReset() {
+        LongSupplier time = synchronizedClock(1);
+        ClockDiscipline discipline = new ClockDiscipline(ac, clock, interval, new AudioEventScheduler(ac, time));
+        ac.runForNMillisecondsNonRealTime(1000);
+        //the reset was meant to happen 20 ms ago
+        long anchor = (long) (nextBufferTime(1) * 1e6) - 20000000L;
+        clock.reset();
+        discipline.anchor(anchor);
+        ac.runForNMillisecondsNonRealTime(100);
+        assertEquals(-20, discipline.getPhaseError(), 1);
+        ac.runForNMillisecondsNonRealTime(20000);
+        double behind = (nextBufferTime(1) - anchor / 1e6) / TICK_MS - clock.getSubTickNow();
+        assertTrue("behind by " + behind * TICK_MS + " ms", Math.abs(behind * TICK_MS) < 0.5);
+        assertTrue(Math.abs(discipline.getAdjustment()) <= ClockDiscipline.MAX_ADJUSTMENT);
+    }
+
+    @Test
+    public void followsTempoChanges() {
+        LongSupplier time = synchronizedClock(0.9999);
+        ClockDiscipline discipline = new ClockDiscipline(ac, clock, interval, new AudioEventScheduler(ac, time));
+        discipline.anchor(0);
+        ac.runForNMillisecondsNonRealTime(10000);
+        interval.setValue(250);
+        ac.runForNMillisecondsNonRealTime(30000);
+        assertTrue("out by " + discipline.getPhaseError() + " ms", Math.abs(discipline.getPhaseError()) < 0.5);
+    }
+
+    @Test
+    public void leavesTheClockAloneWhenDisabled() {
+        ClockDiscipline discipline = new ClockDiscipline(ac, clock, interval, new AudioEventScheduler(ac, synchronizedClock(1.001)));
+        discipline.setEnabled(false);
+        ac.runForNMillisecondsNonRealTime(10000);
+        assertEquals(0, discipline.getAdjustment(), 0);
+        assertEquals(nextBufferTime(1) / TICK_MS, clock.getSubTickNow(), 0.01);
+    }
+}
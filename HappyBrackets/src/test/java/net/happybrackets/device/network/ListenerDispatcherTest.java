@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device.network;
+
+import de.sciss.net.OSCListener;
+import de.sciss.net.OSCMessage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ListenerDispatcherTest {
+
+    private final SocketAddress src = new InetSocketAddress("127.0.0.1", 2224);
+    private final CommandRegistry commands = new CommandRegistry();
+    private final ListenerDispatcher dispatcher = new ListenerDispatcher(4);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    //a composition's listener that holds up everything behind it until released
+    private final OSCListener stuck = (msg, src, time) -> {
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    };
+
+    private void receive(OSCMessage msg, List<OSCListener> listeners) {
+        if (!commands.dispatch(msg, src, 0)) {
+            dispatcher.dispatch(listeners, msg, src, 0);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        commands.close();
+        dispatcher.close();
+    }
+
+    @Test
+    public void commandsDoNotWaitForListeners() throws InterruptedException {
+        CountDownLatch reset = new CountDownLatch(1);
+        commands.register("/device/reset", (msg, src, time) -> reset.countDown());
+        assertTrue(commands.isCommand("/device/reset"));
+        receive(new OSCMessage("/composition/note"), Collections.singletonList(stuck));
+        receive(new OSCMessage("/device/reset"), Collections.singletonList(stuck));
+        assertTrue(reset.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyRegistersBuiltInCommands() {
+        //the controller wouldn't know to ask for it to be acknowledged
+        commands.register("/device/custom", (msg, src, time) -> {});
+    }
+
+    @Test
+    public void dropsMessagesWhenListenersFallBehind() throws InterruptedException {
+        List<OSCListener> listeners = Collections.singletonList(stuck);
+        //the first is taken off the queue by the stuck listener, then four fill the queue
+        assertTrue(dispatcher.dispatch(listeners, new OSCMessage("/note"), src, 0));
+        Thread.sleep(100);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(dispatcher.dispatch(listeners, new OSCMessage("/note"), src, 0));
+        }
+        assertFalse(dispatcher.dispatch(listeners, new OSCMessage("/note"), src, 0));
+        assertEquals(4, dispatcher.getQueueLength());
+        assertEquals(1, dispatcher.getDroppedCount());
+        dispatcher.clear();
+        assertEquals(0, dispatcher.getQueueLength());
+    }
+
+    @Test
+    public void timesEachListener() throws InterruptedException {
+        CountDownLatch handled = new CountDownLatch(3);
+        OSCListener slow = (msg, src, time) -> {
+            try {
+                Thread.sleep(30);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        OSCListener fast = (msg, src, time) -> handled.countDown();
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(Arrays.asList(slow, fast), new OSCMessage("/note"), src, 0);
+        }
+        assertTrue(handled.await(2, TimeUnit.SECONDS));
+        ListenerDispatcher.ListenerStats slowStats = dispatcher.getStats(slow);
+        assertEquals(3, slowStats.getCount());
+        assertTrue(slowStats.getMeanNanos() >= 30000000);
+        assertTrue(slowStats.getMaxNanos() >= slowStats.getMeanNanos());
+        assertTrue(dispatcher.getStats(fast).getMeanNanos() < slowStats.getMeanNanos());
+        dispatcher.forget(slow);
+        assertNull(dispatcher.getStats(slow));
+    }
+
+    @Test
+    public void removedListenersAreNotCalled() throws InterruptedException {
+        List<String> heard = new CopyOnWriteArrayList<>();
+        OSCListener removed = (msg, src, time) -> heard.add(msg.getName());
+        CountDownLatch done = new CountDownLatch(1);
+        //one message being handled by the stuck listener, with the removed listener next, and one queued
+        dispatcher.dispatch(Arrays.asList(stuck, removed), new OSCMessage("/handling"), src, 0);
+        Thread.sleep(100);
+        dispatcher.dispatch(Collections.singletonList(removed), new OSCMessage("/queued"), src, 0);
+        dispatcher.forget(removed);
+        dispatcher.dispatch(Collections.singletonList((msg, src, time) -> done.countDown()), new OSCMessage("/after"), src, 0);
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(heard.isEmpty());
+        assertNull(dispatcher.getStats(removed));
+        //added again, it hears new messages
+        CountDownLatch again = new CountDownLatch(1);
+        dispatcher.dispatch(Arrays.asList(removed, (msg, src, time) -> again.countDown()), new OSCMessage("/again"), src, 0);
+        assertTrue(again.await(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("/again"), heard);
+    }
+
+    @Test
+    public void clearingStopsTheMessageBeingHandled() throws InterruptedException {
+        List<String> heard = new CopyOnWriteArrayList<>();
+        OSCListener next = (msg, src, time) -> heard.add(msg.getName());
+        dispatcher.dispatch(Arrays.asList(stuck, next), new OSCMessage("/handling"), src, 0);
+        Thread.sleep(100);
+        dispatcher.clear();
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch(Arrays.asList(next, (msg, src, time) -> done.countDown()), new OSCMessage("/after"), src, 0);
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("/after"), heard);
+        assertNull(dispatcher.getStats(stuck));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Ollie Bown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.happybrackets.device.network;
+
+import de.sciss.net.OSCMessage;
+import net.happybrackets.core.DeviceHeartbeat;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PeerTableTest {
+
+    PeerTable peers;
+
+    @Before
+    public void setUp() {
+        peers = new PeerTable("me");
+    }
+
+    private OSCMessage alive(String name, int id, int port) {
+        return new OSCMessage("/device/alive", new Object[] {name, name + ".local", "10.0.0.2", 0, "status", id, port});
+    }
+
+    @Test
+    public void addsAndLooksUpPeers() {
+        InetSocketAddress sender = new InetSocketAddress("10.0.0.2", 2222);
+        assertTrue(peers.update(alive("pi2", 2, 2226), sender, 1000));
+        assertFalse(peers.update(alive("pi2", 2, 2226), sender, 1100));
+
+        PeerTable.Peer peer = peers.getPeer(2);
+        assertNotNull(peer);
+        assertEquals("pi2", peer.deviceName);
+        assertEquals(2226, peer.getSocketAddress().getPort());
+        assertEquals(sender.getAddress(), peer.getSocketAddress().getAddress());
+        assertEquals(1100, peer.getLastTimeSeen());
+    }
+
+    @Test
+    public void ignoresSelfAndOldAliveMessages() {
+        InetSocketAddress sender = new InetSocketAddress("10.0.0.3", 2222);
+        assertFalse(peers.update(alive("me", 1, 2226), sender, 1000));
+        assertFalse(peers.update(new OSCMessage("/device/alive", new Object[] {"old", "old", "10.0.0.3", 0, "status"}), sender, 1000));
+        assertEquals(0, peers.size());
+    }
+
+    @Test
+    public void followsIDChangesAndExpires() {
+        InetSocketAddress sender = new InetSocketAddress("10.0.0.2", 2222);
+        peers.update(alive("pi2", 2, 2226), sender, 1000);
+        assertTrue(peers.update(alive("pi2", 7, 2226), sender, 2000));
+        assertNull(peers.getPeer(2));
+        assertEquals("pi2", peers.getPeer(7).deviceName);
+
+        peers.removeStalePeers(4000, 5000);
+        assertEquals(1, peers.size());
+        peers.removeStalePeers(8000, 5000);
+        assertEquals(0, peers.size());
+        assertNull(peers.getPeer(7));
+    }
+
+    @Test
+    public void onlyLooksUpAssignedIDs() {
+        peers.update(alive("pi2", PeerTable.UNASSIGNED_ID, 2226), new InetSocketAddress("10.0.0.2", 2222), 1000);
+        peers.update(alive("pi3", PeerTable.UNASSIGNED_ID, 2226), new InetSocketAddress("10.0.0.3", 2222), 1000);
+        //neither device has an ID yet, so neither can be reached by one
+        assertNull(peers.getPeer(PeerTable.UNASSIGNED_ID));
+        assertEquals(2, peers.size());
+        assertEquals(2226, peers.getPeer("pi2").getSocketAddress().getPort());
+        assertTrue(peers.update(alive("pi2", 4, 2226), new InetSocketAddress("10.0.0.2", 2222), 1100));
+        assertEquals("pi2", peers.getPeer(4).deviceName);
+        assertNull(peers.getPeer(PeerTable.UNASSIGNED_ID));
+    }
+
+    @Test
+    public void heartbeatsKeepUpToDatePeersAlive() {
+        InetSocketAddress sender = new InetSocketAddress("10.0.0.2", 2222);
+        DeviceHeartbeat heartbeat = new DeviceHeartbeat(new Random(1));
+        heartbeat.update("status");
+        //not yet known
+        assertFalse(peers.heartbeat(heartbeat.toMessage(), 1000));
+        Object[] args = {"pi2", "pi2.local", "10.0.0.2", 0, "status", 2, 2226, 1, "controller"};
+        peers.update(new OSCMessage("/device/alive", heartbeat.withToken(args)), sender, 1000);
+        assertTrue(peers.heartbeat(heartbeat.toMessage(), 5000));
+        assertEquals(5000, peers.getPeer(2).getLastTimeSeen());
+        //a status the table hasn't seen
+        heartbeat.update("new status");
+        assertFalse(peers.heartbeat(heartbeat.toMessage(), 6000));
+        assertEquals(5000, peers.getPeer(2).getLastTimeSeen());
+
+        peers.removeStalePeers(20000, 5000);
+        assertEquals(0, peers.size());
+        heartbeat.update("status");
+        assertFalse(peers.heartbeat(heartbeat.toMessage(), 21000));
+    }
+}